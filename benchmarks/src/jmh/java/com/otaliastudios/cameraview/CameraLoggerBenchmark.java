@@ -0,0 +1,42 @@
+package com.otaliastudios.cameraview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of a verbose {@link CameraLogger} call when verbose logging is disabled,
+ * which is the default. This is what hot paths, like frame dispatching, pay on each call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CameraLoggerBenchmark {
+
+    private final static CameraLogger LOG = CameraLogger.create("CameraLoggerBenchmark");
+
+    private long time;
+    private int count;
+
+    @Setup
+    public void setUp() {
+        CameraLogger.setLogLevel(CameraLogger.LEVEL_ERROR);
+    }
+
+    @Benchmark
+    public String logString() {
+        return LOG.v("dispatch:");
+    }
+
+    @Benchmark
+    public String logArguments() {
+        // Arguments are boxed and wrapped in an array before the level is checked.
+        return LOG.v("dispatch:", time++, "processors:", count++);
+    }
+}
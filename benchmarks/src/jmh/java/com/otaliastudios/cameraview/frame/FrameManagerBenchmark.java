@@ -0,0 +1,49 @@
+package com.otaliastudios.cameraview.frame;
+
+import android.graphics.ImageFormat;
+
+import com.otaliastudios.cameraview.size.Size;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the life of a frame in a {@link FrameManager} that recycles buffers and frames:
+ * taking a buffer, wrapping it in a {@link Frame} and releasing it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameManagerBenchmark {
+
+    private final Size size = new Size(1280, 720);
+    private FrameManager manager;
+    private long time;
+
+    @Setup
+    public void setUp() {
+        manager = new FrameManager(2, 8, null);
+        manager.setUp(12, size); // NV21 bits per pixel
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.release();
+    }
+
+    @Benchmark
+    public Frame recycle() {
+        byte[] buffer = manager.getBuffer();
+        Frame frame = manager.getFrame(buffer, time++, 0, size, ImageFormat.NV21);
+        frame.release();
+        return frame;
+    }
+}
@@ -0,0 +1,148 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ImageHelper#convertToNV21(int, int, ByteBuffer, int, int, ByteBuffer, int, int,
+ * ByteBuffer, int, int, byte[])} with direct buffers that stand in for the planes of a
+ * YUV_420_888 image, against the previous per-sample implementation. The previous
+ * implementation does not handle padded Y rows correctly, so its SEMI_PLANAR output is wrong,
+ * but it does the same amount of work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ImageHelperBenchmark {
+
+    /**
+     * The image size, as width x height.
+     */
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String size;
+
+    /**
+     * The plane layout. PLANAR has separate U and V planes with a pixel stride of 1 and
+     * no padding. SEMI_PLANAR has interleaved V and U with a pixel stride of 2 and padded rows,
+     * which is what most devices produce.
+     */
+    @Param({"PLANAR", "SEMI_PLANAR"})
+    public String layout;
+
+    private int width;
+    private int height;
+    private ByteBuffer y;
+    private ByteBuffer u;
+    private ByteBuffer v;
+    private int rowStride;
+    private int chromaRowStride;
+    private int chromaPixelStride;
+    private byte[] output;
+
+    @Setup
+    public void setUp() {
+        String[] parts = size.split("x");
+        width = Integer.parseInt(parts[0]);
+        height = Integer.parseInt(parts[1]);
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        if (layout.equals("PLANAR")) {
+            rowStride = width;
+            chromaRowStride = chromaWidth;
+            chromaPixelStride = 1;
+            v = fill(ByteBuffer.allocateDirect(chromaWidth * chromaHeight));
+            u = fill(ByteBuffer.allocateDirect(chromaWidth * chromaHeight));
+        } else {
+            rowStride = width + 64;
+            chromaRowStride = rowStride;
+            chromaPixelStride = 2;
+            ByteBuffer chroma = fill(ByteBuffer.allocateDirect(chromaRowStride * chromaHeight));
+            v = chroma.duplicate();
+            u = chroma.duplicate();
+            u.position(1);
+        }
+        y = fill(ByteBuffer.allocateDirect(rowStride * height));
+        output = new byte[width * height * 3 / 2];
+    }
+
+    private static ByteBuffer fill(ByteBuffer buffer) {
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) i);
+        }
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] convertToNV21() {
+        ImageHelper.convertToNV21(width, height,
+                y, rowStride, 1,
+                u, chromaRowStride, chromaPixelStride,
+                v, chromaRowStride, chromaPixelStride,
+                output);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] convertToNV21Legacy() {
+        convertLegacy();
+        return output;
+    }
+
+    /**
+     * The previous implementation, from https://stackoverflow.com/a/52740776/4288782 ,
+     * working on buffers instead of an Image.
+     */
+    private void convertLegacy() {
+        byte[] result = output;
+        int ySize = width * height;
+        int uvSize = width * height / 4;
+        ByteBuffer yBuffer = y.duplicate();
+        ByteBuffer uBuffer = u.duplicate();
+        ByteBuffer vBuffer = v.duplicate();
+        int rowStride = this.rowStride;
+        int pos = 0;
+        if (rowStride == width) {
+            yBuffer.get(result, 0, ySize);
+            pos += ySize;
+        } else {
+            int yBufferPos = width - rowStride;
+            for (; pos < ySize; pos += width) {
+                yBufferPos += rowStride - width;
+                yBuffer.position(yBufferPos);
+                yBuffer.get(result, pos, width);
+            }
+        }
+        rowStride = chromaRowStride;
+        int pixelStride = chromaPixelStride;
+        if (pixelStride == 2 && rowStride == width && uBuffer.get(0) == vBuffer.get(1)) {
+            byte savePixel = vBuffer.get(1);
+            vBuffer.put(1, (byte) 0);
+            if (uBuffer.get(0) == 0) {
+                vBuffer.put(1, (byte) 255);
+                //noinspection ConstantConditions
+                if (uBuffer.get(0) == 255) {
+                    vBuffer.put(1, savePixel);
+                    vBuffer.get(result, ySize, uvSize);
+                    return;
+                }
+            }
+            vBuffer.put(1, savePixel);
+        }
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                int vuPos = col * pixelStride + row * rowStride;
+                result[pos++] = vBuffer.get(vuPos);
+                result[pos++] = uBuffer.get(vuPos);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+import com.otaliastudios.cameraview.CameraLogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a {@link Pool#get()} and {@link Pool#recycle(Object)} pair, on a single thread
+ * and with several threads sharing the same pool, like encoder threads do.
+ * The same pair is measured on the previous, synchronized implementation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PoolBenchmark {
+
+    private final static int POOL_SIZE = 16;
+
+    private Pool<Object> pool;
+    private LegacyPool<Object> legacyPool;
+
+    @Setup
+    public void setUp() {
+        Pool.Factory<Object> factory = new Pool.Factory<Object>() {
+            @Override
+            public Object create() {
+                return new Object();
+            }
+        };
+        pool = new Pool<>(POOL_SIZE, factory);
+        legacyPool = new LegacyPool<>(POOL_SIZE, factory);
+    }
+
+    @Benchmark
+    public Object getRecycle() {
+        Object item = pool.get();
+        if (item != null) pool.recycle(item);
+        return item;
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Object getRecycle2Threads() {
+        return getRecycle();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object getRecycle4Threads() {
+        return getRecycle();
+    }
+
+    @Benchmark
+    public Object getRecycleLegacy() {
+        Object item = legacyPool.get();
+        if (item != null) legacyPool.recycle(item);
+        return item;
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Object getRecycleLegacy2Threads() {
+        return getRecycleLegacy();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object getRecycleLegacy4Threads() {
+        return getRecycleLegacy();
+    }
+
+    /**
+     * The previous implementation.
+     */
+    private static class LegacyPool<T> {
+
+        private static final CameraLogger LOG = CameraLogger.create(LegacyPool.class.getSimpleName());
+
+        private int maxPoolSize;
+        private int activeCount;
+        private LinkedBlockingQueue<T> queue;
+        private Pool.Factory<T> factory;
+        private final Object lock = new Object();
+
+        private LegacyPool(int maxPoolSize, Pool.Factory<T> factory) {
+            this.maxPoolSize = maxPoolSize;
+            this.queue = new LinkedBlockingQueue<>(maxPoolSize);
+            this.factory = factory;
+        }
+
+        private boolean isEmpty() {
+            synchronized (lock) {
+                return activeCount + queue.size() >= maxPoolSize;
+            }
+        }
+
+        private T get() {
+            synchronized (lock) {
+                T item = queue.poll();
+                if (item != null) {
+                    activeCount++;
+                    LOG.v("GET - Reusing recycled item.", this);
+                    return item;
+                }
+                if (isEmpty()) {
+                    LOG.v("GET - Returning null. Too much items requested.", this);
+                    return null;
+                }
+                activeCount++;
+                LOG.v("GET - Creating a new item.", this);
+                return factory.create();
+            }
+        }
+
+        private void recycle(T item) {
+            synchronized (lock) {
+                LOG.v("RECYCLE - Recycling item.", this);
+                if (--activeCount < 0) {
+                    throw new IllegalStateException("Recycled too many items.");
+                }
+                if (!queue.offer(item)) {
+                    throw new IllegalStateException("Queue is full.");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+import com.otaliastudios.cameraview.size.Size;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link RotationHelper#rotate(byte[], Size, int, boolean, byte[])} on NV21 frames,
+ * with a recycled output array as the library does, against the previous per-pixel
+ * implementation, which allocated its output and could not mirror.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RotationHelperBenchmark {
+
+    /**
+     * The frame size, as width x height.
+     */
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String size;
+
+    @Param({"90", "180", "270"})
+    public int rotation;
+
+    @Param({"false", "true"})
+    public boolean mirror;
+
+    private Size frameSize;
+    private byte[] input;
+    private byte[] output;
+
+    @Setup
+    public void setUp() {
+        String[] parts = size.split("x");
+        frameSize = new Size(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        input = new byte[frameSize.getWidth() * frameSize.getHeight() * 3 / 2];
+        for (int i = 0; i < input.length; i++) input[i] = (byte) i;
+        output = new byte[input.length];
+    }
+
+    @Benchmark
+    public byte[] rotate() {
+        RotationHelper.rotate(input, frameSize, rotation, mirror, output);
+        return output;
+    }
+
+    /**
+     * The mirror param does not apply here.
+     */
+    @Benchmark
+    public byte[] rotateLegacy() {
+        return rotateLegacy(input, frameSize, rotation);
+    }
+
+    /**
+     * The previous implementation.
+     */
+    private static byte[] rotateLegacy(byte[] yuv, Size size, int rotation) {
+        final int width = size.getWidth();
+        final int height = size.getHeight();
+        final byte[] output = new byte[yuv.length];
+        final int frameSize = width * height;
+        final boolean swap = rotation % 180 != 0;
+        final boolean xflip = rotation % 270 != 0;
+        final boolean yflip = rotation >= 180;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                final int yIn = j * width + i;
+                final int uIn = frameSize + (j >> 1) * width + (i & ~1);
+                final int vIn = uIn + 1;
+                final int wOut = swap ? height : width;
+                final int hOut = swap ? width : height;
+                final int iSwapped = swap ? j : i;
+                final int jSwapped = swap ? i : j;
+                final int iOut = xflip ? wOut - iSwapped - 1 : iSwapped;
+                final int jOut = yflip ? hOut - jSwapped - 1 : jSwapped;
+                final int yOut = jOut * wOut + iOut;
+                final int uOut = frameSize + (jOut >> 1) * wOut + (iOut & ~1);
+                final int vOut = uOut + 1;
+                output[yOut] = (byte) (0xff & yuv[yIn]);
+                output[uOut] = (byte) (0xff & yuv[uIn]);
+                output[vOut] = (byte) (0xff & yuv[vIn]);
+            }
+        }
+        return output;
+    }
+}
@@ -0,0 +1,33 @@
+package com.otaliastudios.cameraview.size;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AspectRatio#of(int, int)}, which is called for each size
+ * when sizes are sorted or filtered. Ratios are cached after the first call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AspectRatioBenchmark {
+
+    private final static int[][] SIZES = {
+            {1920, 1080}, {1440, 1080}, {1280, 720}, {640, 480},
+            {1080, 1080}, {3264, 1836}, {4032, 3024}, {176, 144}
+    };
+
+    private int index;
+
+    @Benchmark
+    public AspectRatio of() {
+        int[] size = SIZES[index++ & (SIZES.length - 1)];
+        return AspectRatio.of(size[0], size[1]);
+    }
+}
@@ -0,0 +1,56 @@
+package com.otaliastudios.cameraview.size;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a typical {@link SizeSelectors} chain, as the one in the docs, against
+ * the sizes of a common camera.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SizeSelectorsBenchmark {
+
+    private final static int[][] SIZES = {
+            {4032, 3024}, {4032, 2268}, {3264, 2448}, {3264, 1836}, {2592, 1944},
+            {2592, 1458}, {2048, 1536}, {1920, 1440}, {1920, 1080}, {1600, 1200},
+            {1440, 1080}, {1280, 960}, {1280, 720}, {1024, 768}, {960, 720},
+            {960, 540}, {800, 600}, {800, 480}, {720, 480}, {640, 480},
+            {640, 360}, {352, 288}, {320, 240}, {176, 144}
+    };
+
+    private List<Size> sizes;
+    private SizeSelector selector;
+
+    @Setup
+    public void setUp() {
+        sizes = new ArrayList<>();
+        for (int[] size : SIZES) sizes.add(new Size(size[0], size[1]));
+        SizeSelector width = SizeSelectors.minWidth(1000);
+        SizeSelector height = SizeSelectors.minHeight(2000);
+        SizeSelector dimensions = SizeSelectors.and(width, height);
+        SizeSelector ratio = SizeSelectors.aspectRatio(AspectRatio.of(1, 1), 0);
+        SizeSelector wide = SizeSelectors.aspectRatio(AspectRatio.of(16, 9), 0.05F);
+        selector = SizeSelectors.or(
+                SizeSelectors.and(ratio, dimensions),
+                SizeSelectors.and(wide, SizeSelectors.maxArea(1920 * 1080)),
+                ratio,
+                SizeSelectors.biggest()
+        );
+    }
+
+    @Benchmark
+    public List<Size> select() {
+        return selector.select(sizes);
+    }
+}
@@ -0,0 +1,35 @@
+package com.otaliastudios.cameraview.video.encoding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AudioTimestamp#increaseUs(int)}, which is called for each audio buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AudioTimestampBenchmark {
+
+    private AudioTimestamp timestamp;
+    private int frameSize;
+
+    @Setup
+    public void setUp() {
+        AudioConfig config = new AudioConfig();
+        timestamp = new AudioTimestamp(config.byteRate());
+        frameSize = config.frameSize();
+    }
+
+    @Benchmark
+    public long increaseUs() {
+        return timestamp.increaseUs(frameSize);
+    }
+}
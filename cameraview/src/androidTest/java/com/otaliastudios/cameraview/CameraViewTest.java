@@ -56,6 +56,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 import static org.mockito.Mockito.*;
@@ -798,31 +801,36 @@ public class CameraViewTest extends BaseTest {
 
     @Test
     public void testFrameProcessorsList() {
-        assertTrue(cameraView.mFrameProcessors.isEmpty());
+        assertTrue(cameraView.mFrameDispatcher.isEmpty());
 
         FrameProcessor processor = new FrameProcessor() {
             public void process(@NonNull Frame frame) {}
         };
         cameraView.addFrameProcessor(processor);
-        assertEquals(cameraView.mFrameProcessors.size(), 1);
+        assertEquals(cameraView.mFrameDispatcher.size(), 1);
 
         cameraView.removeFrameProcessor(processor);
-        assertEquals(cameraView.mFrameProcessors.size(), 0);
+        assertEquals(cameraView.mFrameDispatcher.size(), 0);
 
         cameraView.addFrameProcessor(processor);
         cameraView.addFrameProcessor(processor);
-        assertEquals(cameraView.mFrameProcessors.size(), 2);
+        assertEquals(cameraView.mFrameDispatcher.size(), 2);
 
         cameraView.clearFrameProcessors();
-        assertTrue(cameraView.mFrameProcessors.isEmpty());
+        assertTrue(cameraView.mFrameDispatcher.isEmpty());
 
         // Ensure this does not throw a ConcurrentModificationException
-        cameraView.addFrameProcessor(new FrameProcessor() { public void process(@NonNull Frame f) {} });
-        cameraView.addFrameProcessor(new FrameProcessor() { public void process(@NonNull Frame f) {} });
-        cameraView.addFrameProcessor(new FrameProcessor() { public void process(@NonNull Frame f) {} });
-        for (FrameProcessor test : cameraView.mFrameProcessors) {
-            cameraView.mFrameProcessors.remove(test);
+        List<FrameProcessor> processors = new ArrayList<>();
+        processors.add(new FrameProcessor() { public void process(@NonNull Frame f) {} });
+        processors.add(new FrameProcessor() { public void process(@NonNull Frame f) {} });
+        processors.add(new FrameProcessor() { public void process(@NonNull Frame f) {} });
+        for (FrameProcessor test : processors) {
+            cameraView.addFrameProcessor(test);
+        }
+        for (FrameProcessor test : processors) {
+            cameraView.mFrameDispatcher.remove(test);
         }
+        assertTrue(cameraView.mFrameDispatcher.isEmpty());
     }
 
     //endregion
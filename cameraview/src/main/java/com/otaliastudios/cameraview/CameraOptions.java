@@ -250,6 +250,20 @@ public class CameraOptions {
         }
     }
 
+    // Engines that have no camera, like the replay engine.
+    // Only the given size is supported, and no other control.
+    public CameraOptions(@NonNull Size size) {
+        supportedFacing.add(Facing.BACK);
+        supportedFacing.add(Facing.FRONT);
+        supportedWhiteBalance.add(WhiteBalance.AUTO);
+        supportedFlash.add(Flash.OFF);
+        supportedHdr.add(Hdr.OFF);
+        supportedPictureSizes.add(size);
+        supportedPictureAspectRatio.add(AspectRatio.of(size.getWidth(), size.getHeight()));
+        supportedVideoSizes.add(size);
+        supportedVideoAspectRatio.add(AspectRatio.of(size.getWidth(), size.getHeight()));
+    }
+
     /**
      * Shorthand for getSupported*().contains(value).
      *
@@ -46,6 +46,7 @@ import com.otaliastudios.cameraview.controls.WhiteBalance;
 import com.otaliastudios.cameraview.engine.Camera1Engine;
 import com.otaliastudios.cameraview.engine.Camera2Engine;
 import com.otaliastudios.cameraview.engine.CameraEngine;
+import com.otaliastudios.cameraview.engine.ReplayEngine;
 import com.otaliastudios.cameraview.engine.offset.Reference;
 import com.otaliastudios.cameraview.filter.Filter;
 import com.otaliastudios.cameraview.filter.FilterParser;
@@ -53,8 +54,16 @@ import com.otaliastudios.cameraview.filter.Filters;
 import com.otaliastudios.cameraview.filter.NoFilter;
 import com.otaliastudios.cameraview.filter.OneParameterFilter;
 import com.otaliastudios.cameraview.filter.TwoParameterFilter;
+import com.otaliastudios.cameraview.frame.AsyncFrameProcessor;
+import com.otaliastudios.cameraview.frame.BatchFrameProcessor;
 import com.otaliastudios.cameraview.frame.Frame;
+import com.otaliastudios.cameraview.frame.FrameDispatcher;
+import com.otaliastudios.cameraview.frame.FrameDumpProcessor;
 import com.otaliastudios.cameraview.frame.FrameProcessor;
+import com.otaliastudios.cameraview.frame.FrameProcessorOptions;
+import com.otaliastudios.cameraview.frame.FramePipelineStats;
+import com.otaliastudios.cameraview.frame.FrameProcessorStats;
+import com.otaliastudios.cameraview.frame.FrameSource;
 import com.otaliastudios.cameraview.gesture.Gesture;
 import com.otaliastudios.cameraview.gesture.GestureAction;
 import com.otaliastudios.cameraview.gesture.GestureFinder;
@@ -115,6 +124,8 @@ public class CameraView extends FrameLayout implements LifecycleObserver {
     private Preview mPreview;
     private Engine mEngine;
     private Filter mPendingFilter;
+    private File mReplaySource;
+    private float mReplayFrameRate = -1;
 
     // Components
     @VisibleForTesting CameraCallbacks mCameraCallbacks;
@@ -124,7 +135,7 @@ public class CameraView extends FrameLayout implements LifecycleObserver {
     private MediaActionSound mSound;
     private AutoFocusMarker mAutoFocusMarker;
     @VisibleForTesting List<CameraListener> mListeners = new CopyOnWriteArrayList<>();
-    @VisibleForTesting List<FrameProcessor> mFrameProcessors = new CopyOnWriteArrayList<>();
+    @VisibleForTesting FrameDispatcher mFrameDispatcher;
     private Lifecycle mLifecycle;
 
     // Gestures
@@ -191,6 +202,7 @@ public class CameraView extends FrameLayout implements LifecycleObserver {
         mCameraCallbacks = new CameraCallbacks();
         mUiHandler = new Handler(Looper.getMainLooper());
         mFrameProcessorsHandler = WorkerHandler.get("FrameProcessorsWorker");
+        mFrameDispatcher = new FrameDispatcher(mFrameProcessorsHandler.getExecutor());
 
         // Gestures
         mPinchGestureFinder = new PinchGestureFinder(mCameraCallbacks);
@@ -287,7 +299,12 @@ public class CameraView extends FrameLayout implements LifecycleObserver {
      */
     @NonNull
     protected CameraEngine instantiateCameraEngine(@NonNull Engine engine, @NonNull CameraEngine.Callback callback) {
-        if (mExperimental && engine == Engine.CAMERA2 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+        if (engine == Engine.REPLAY) {
+            ReplayEngine replayEngine = new ReplayEngine(callback);
+            replayEngine.setSource(mReplaySource);
+            replayEngine.setFrameRate(mReplayFrameRate);
+            return replayEngine;
+        } else if (mExperimental && engine == Engine.CAMERA2 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             return new Camera2Engine(callback);
         } else {
             mEngine = Engine.CAMERA1;
@@ -900,6 +917,7 @@ public class CameraView extends FrameLayout implements LifecycleObserver {
      *
      * @see Engine#CAMERA1
      * @see Engine#CAMERA2
+     * @see Engine#REPLAY
      *
      * @param engine desired engine
      */
@@ -925,6 +943,10 @@ public class CameraView extends FrameLayout implements LifecycleObserver {
         setVideoMaxDuration(oldEngine.getVideoMaxDuration());
         setVideoBitRate(oldEngine.getVideoBitRate());
         setAutoFocusResetDelay(oldEngine.getAutoFocusResetDelay());
+        setFrameProcessingMaxMemory(oldEngine.getFrameManager().getMaxMemory());
+        setFrameProcessingHotAttach(oldEngine.getFrameProcessingHotAttach());
+        mCameraEngine.setFrameProcessingPreferences(oldEngine.getFrameProcessingPreferences());
+        mCameraEngine.setFrameProcessingReservedFrames(oldEngine.getFrameManager().getReservedCount());
     }
 
     /**
@@ -938,6 +960,56 @@ public class CameraView extends FrameLayout implements LifecycleObserver {
         return mEngine;
     }
 
+    /**
+     * Sets the Y4M or raw NV21 file to be replayed by the {@link Engine#REPLAY} engine,
+     * for example one written by {@link FrameDumpProcessor}. Takes effect the next time
+     * the camera is opened.
+     *
+     * @see Engine#REPLAY
+     * @param source the file to replay
+     */
+    public void setReplaySource(@Nullable File source) {
+        mReplaySource = source;
+        if (mCameraEngine instanceof ReplayEngine) {
+            ((ReplayEngine) mCameraEngine).setSource(source);
+        }
+    }
+
+    /**
+     * Returns the file set by {@link #setReplaySource(File)}.
+     *
+     * @return the file to replay
+     */
+    @Nullable
+    public File getReplaySource() {
+        return mReplaySource;
+    }
+
+    /**
+     * Sets the rate at which the {@link Engine#REPLAY} engine produces frames.
+     * Use 0 to produce frames as fast as processors can consume them, or a negative
+     * value to use the frame rate of the file, which is the default.
+     * Takes effect the next time the preview is started.
+     *
+     * @see FrameSource#setFrameRate(float)
+     * @param frameRate the frame rate
+     */
+    public void setReplayFrameRate(float frameRate) {
+        mReplayFrameRate = frameRate;
+        if (mCameraEngine instanceof ReplayEngine) {
+            ((ReplayEngine) mCameraEngine).setFrameRate(frameRate);
+        }
+    }
+
+    /**
+     * Returns the frame rate set by {@link #setReplayFrameRate(float)}.
+     *
+     * @return the replay frame rate
+     */
+    public float getReplayFrameRate() {
+        return mReplayFrameRate;
+    }
+
     /**
      * Returns a {@link CameraOptions} instance holding supported options for this camera
      * session. This might change over time. It's better to hold a reference from
@@ -1443,11 +1515,55 @@ public class CameraView extends FrameLayout implements LifecycleObserver {
      * @param processor a frame processor.
      */
     public void addFrameProcessor(@Nullable FrameProcessor processor) {
+        addFrameProcessor(processor, new FrameProcessorOptions());
+    }
+
+
+    /**
+     * Adds a {@link FrameProcessor} instance to be notified of
+     * new frames in the preview stream, using the given options.
+     *
+     * @param processor a frame processor.
+     * @param options the processor options
+     */
+    public void addFrameProcessor(@Nullable FrameProcessor processor, @NonNull FrameProcessorOptions options) {
         if (processor != null) {
-            mFrameProcessors.add(processor);
-            if (mFrameProcessors.size() == 1) {
-                mCameraEngine.setHasFrameProcessors(true);
-            }
+            mFrameDispatcher.add(processor, options);
+            onFrameProcessorsChanged(true);
+        }
+    }
+
+
+    /**
+     * Adds an {@link AsyncFrameProcessor} instance to be notified of
+     * new frames in the preview stream, using the given options.
+     * Frames are kept alive until the task returned by the processor completes,
+     * and at most {@link FrameProcessorOptions#getMaxInFlightFrames()} frames can be in flight.
+     *
+     * @param processor an async frame processor.
+     * @param options the processor options
+     */
+    public void addAsyncFrameProcessor(@Nullable AsyncFrameProcessor processor, @NonNull FrameProcessorOptions options) {
+        if (processor != null) {
+            mFrameDispatcher.addAsync(processor, options);
+            onFrameProcessorsChanged(true);
+        }
+    }
+
+
+    /**
+     * Adds a {@link BatchFrameProcessor} instance to be notified of batches of
+     * new frames in the preview stream, using the given options.
+     * Frames are held until their batch is delivered, so the frame pool grows
+     * to make room for them, see {@link FrameProcessorOptions#setBatchSize(int)}.
+     *
+     * @param processor a batch frame processor.
+     * @param options the processor options
+     */
+    public void addBatchFrameProcessor(@Nullable BatchFrameProcessor processor, @NonNull FrameProcessorOptions options) {
+        if (processor != null) {
+            mFrameDispatcher.addBatch(processor, options);
+            onFrameProcessorsChanged(true);
         }
     }
 
@@ -1459,9 +1575,38 @@ public class CameraView extends FrameLayout implements LifecycleObserver {
      */
     public void removeFrameProcessor(@Nullable FrameProcessor processor) {
         if (processor != null) {
-            mFrameProcessors.remove(processor);
-            if (mFrameProcessors.size() == 0) {
-                mCameraEngine.setHasFrameProcessors(false);
+            if (mFrameDispatcher.remove(processor)) {
+                onFrameProcessorsChanged(false);
+            }
+        }
+    }
+
+
+    /**
+     * Remove an {@link AsyncFrameProcessor} that was previously registered.
+     * Frames in flight are released when their task completes.
+     *
+     * @param processor an async frame processor
+     */
+    public void removeAsyncFrameProcessor(@Nullable AsyncFrameProcessor processor) {
+        if (processor != null) {
+            if (mFrameDispatcher.removeAsync(processor)) {
+                onFrameProcessorsChanged(false);
+            }
+        }
+    }
+
+
+    /**
+     * Remove a {@link BatchFrameProcessor} that was previously registered.
+     * Frames waiting for their batch are released without being processed.
+     *
+     * @param processor a batch frame processor
+     */
+    public void removeBatchFrameProcessor(@Nullable BatchFrameProcessor processor) {
+        if (processor != null) {
+            if (mFrameDispatcher.removeBatch(processor)) {
+                onFrameProcessorsChanged(false);
             }
         }
     }
@@ -1472,14 +1617,139 @@ public class CameraView extends FrameLayout implements LifecycleObserver {
      * to preview frames.
      */
     public void clearFrameProcessors() {
-        boolean had = mFrameProcessors.size() > 0;
-        mFrameProcessors.clear();
+        boolean had = !mFrameDispatcher.isEmpty();
+        mFrameDispatcher.clear();
         if (had) {
+            onFrameProcessorsChanged(false);
+        }
+    }
+
+
+    /**
+     * Passes the new processors requirements to the engine, after
+     * a processor was added or removed.
+     *
+     * @param added whether a processor was added
+     */
+    private void onFrameProcessorsChanged(boolean added) {
+        mCameraEngine.setFrameProcessingPreferences(mFrameDispatcher.getStreamPreferences());
+        mCameraEngine.setFrameProcessingReservedFrames(mFrameDispatcher.getReservedFrames());
+        if (added && mFrameDispatcher.size() == 1) {
+            mCameraEngine.setHasFrameProcessors(true);
+        } else if (!added && mFrameDispatcher.isEmpty()) {
             mCameraEngine.setHasFrameProcessors(false);
         }
     }
 
 
+    /**
+     * Returns the current statistics for a {@link FrameProcessor} that was
+     * previously registered, like the time spent processing each frame.
+     *
+     * @param processor a frame processor
+     * @return the stats, or null if the processor is not registered
+     */
+    @Nullable
+    public FrameProcessorStats getFrameProcessorStats(@NonNull FrameProcessor processor) {
+        return mFrameDispatcher.getStats(processor);
+    }
+
+
+    /**
+     * Returns the current statistics for an {@link AsyncFrameProcessor} that was
+     * previously registered. The latency includes the time until its task completes.
+     *
+     * @param processor an async frame processor
+     * @return the stats, or null if the processor is not registered
+     */
+    @Nullable
+    public FrameProcessorStats getAsyncFrameProcessorStats(@NonNull AsyncFrameProcessor processor) {
+        return mFrameDispatcher.getAsyncStats(processor);
+    }
+
+
+    /**
+     * Returns the current statistics for a {@link BatchFrameProcessor} that was
+     * previously registered. Latencies are split between the frames of each batch.
+     *
+     * @param processor a batch frame processor
+     * @return the stats, or null if the processor is not registered
+     */
+    @Nullable
+    public FrameProcessorStats getBatchFrameProcessorStats(@NonNull BatchFrameProcessor processor) {
+        return mFrameDispatcher.getBatchStats(processor);
+    }
+
+
+    /**
+     * Returns the current statistics for the whole frame processing pipeline,
+     * like the number of produced, dispatched and dropped frames, the buffer pool
+     * usage and the statistics of each processor.
+     * This does not lock, so it can be polled often, from any thread.
+     *
+     * @return the stats
+     */
+    @NonNull
+    public FramePipelineStats getFramePipelineStats() {
+        return mFrameDispatcher.getPipelineStats(mCameraEngine.getFrameManagers());
+    }
+
+
+    /**
+     * Sets the maximum memory, in bytes, that can be used by the frame processing
+     * buffers. The engine starts with a small pool of buffers, and when all of them are
+     * held by frames that were retained with {@link Frame#retain()}, or when processors hold
+     * frames for longer than the camera takes to produce new ones, the pool can grow as long
+     * as it stays within this value. When processors get faster, the pool shrinks back.
+     * If this is not set, the pool will not grow.
+     *
+     * @param maxMemoryBytes the max memory in bytes
+     */
+    public void setFrameProcessingMaxMemory(long maxMemoryBytes) {
+        mCameraEngine.setFrameProcessingMaxMemory(maxMemoryBytes);
+    }
+
+
+    /**
+     * Returns the maximum memory, in bytes, that can be used by the frame processing
+     * buffers, as set by {@link #setFrameProcessingMaxMemory(long)}.
+     *
+     * @return the max memory in bytes
+     */
+    public long getFrameProcessingMaxMemory() {
+        return mCameraEngine.getFrameManager().getMaxMemory();
+    }
+
+
+    /**
+     * Whether frame processors can be added and removed without restarting the camera.
+     * Some engines, like {@link Engine#CAMERA2}, need a restart when the first processor
+     * is added or the last one is removed, which also stops any video being recorded.
+     * When this is true, the frame processing stream is always configured, and frames
+     * are discarded as soon as they arrive while there are no processors. This costs a
+     * bit of power, but processors can then be attached at any time.
+     *
+     * A restart can still happen if the processor options need a different stream size,
+     * see {@link FrameProcessorOptions#setPreferredSize(SizeSelector)}.
+     *
+     * @param hotAttach whether to keep the frame processing stream
+     */
+    public void setFrameProcessingHotAttach(boolean hotAttach) {
+        mCameraEngine.setFrameProcessingHotAttach(hotAttach);
+    }
+
+
+    /**
+     * Whether frame processors can be added and removed without restarting the camera,
+     * as set by {@link #setFrameProcessingHotAttach(boolean)}.
+     *
+     * @return whether hot attach is enabled
+     */
+    public boolean getFrameProcessingHotAttach() {
+        return mCameraEngine.getFrameProcessingHotAttach();
+    }
+
+
     /**
      * Asks the camera to capture an image of the current scene.
      * This will trigger {@link CameraListener#onPictureTaken(PictureResult)} if a listener
@@ -2083,27 +2353,9 @@ public class CameraView extends FrameLayout implements LifecycleObserver {
 
         @Override
         public void dispatchFrame(final Frame frame) {
-            mLogger.v("dispatchFrame:", frame.getTime(), "processors:", mFrameProcessors.size());
-            if (mFrameProcessors.isEmpty()) {
-                // Mark as released. This instance will be reused.
-                frame.release();
-                return;
-            }
-            mFrameProcessorsHandler.run(new Runnable() {
-                @Override
-                public void run() {
-                    for (FrameProcessor processor : mFrameProcessors) {
-                        try {
-                            processor.process(frame);
-                        } catch (Exception e) {
-                            mLogger.w("dispatchFrame:",
-                                    "Error during processor implementation.",
-                                    "Can happen when camera is closed while processors are running.", e);
-                        }
-                    }
-                    frame.release();
-                }
-            });
+            mLogger.v("dispatchFrame:", frame.getTime(), "processors:", mFrameDispatcher.size());
+            // If there are no processors, the frame is released right away and reused.
+            mFrameDispatcher.dispatch(frame);
         }
 
         @Override
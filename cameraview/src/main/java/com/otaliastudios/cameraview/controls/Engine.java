@@ -6,6 +6,8 @@ import com.otaliastudios.cameraview.CameraView;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.File;
+
 /**
  * The engine to be used.
  *
@@ -22,7 +24,15 @@ public enum Engine implements Control {
      * Camera2 based engine. For API versions older than 21,
      * the system falls back to {@link #CAMERA1}.
      */
-    CAMERA2(1);
+    CAMERA2(1),
+
+    /**
+     * Replays frames from a Y4M or raw NV21 file instead of using a camera,
+     * for example to benchmark frame processors. The preview stays black.
+     *
+     * @see CameraView#setReplaySource(File)
+     */
+    REPLAY(2);
 
     final static Engine DEFAULT = CAMERA1;
 
@@ -59,6 +59,8 @@ public class Camera1Engine extends CameraEngine implements
     private static final CameraLogger LOG = CameraLogger.create(TAG);
 
     private static final int PREVIEW_FORMAT = ImageFormat.NV21;
+    private static final int FRAME_PROCESSING_POOL_SIZE = 2;
+    private static final int FRAME_PROCESSING_MAX_POOL_SIZE = 8;
     @VisibleForTesting static final int AUTOFOCUS_END_DELAY_MILLIS = 2500;
 
     private Camera mCamera;
@@ -643,7 +645,7 @@ public class Camera1Engine extends CameraEngine implements
     @NonNull
     @Override
     protected FrameManager instantiateFrameManager() {
-        return new FrameManager(2, this);
+        return new FrameManager(FRAME_PROCESSING_POOL_SIZE, FRAME_PROCESSING_MAX_POOL_SIZE, this);
     }
 
     @Override
@@ -655,8 +657,10 @@ public class Camera1Engine extends CameraEngine implements
 
     @Override
     public void onPreviewFrame(@NonNull byte[] data, Camera camera) {
+        // Camera1 has no sensor timestamp, so we use the delivery time.
         Frame frame = getFrameManager().getFrame(data,
                 System.currentTimeMillis(),
+                System.nanoTime(),
                 getAngles().offset(Reference.SENSOR, Reference.OUTPUT, Axis.RELATIVE_TO_SENSOR),
                 mPreviewStreamSize,
                 PREVIEW_FORMAT);
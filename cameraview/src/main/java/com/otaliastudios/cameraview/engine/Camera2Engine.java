@@ -20,6 +20,7 @@ import android.location.Location;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Rational;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -47,15 +48,16 @@ import com.otaliastudios.cameraview.engine.offset.Axis;
 import com.otaliastudios.cameraview.engine.offset.Reference;
 import com.otaliastudios.cameraview.frame.Frame;
 import com.otaliastudios.cameraview.frame.FrameManager;
+import com.otaliastudios.cameraview.frame.FrameStreams;
 import com.otaliastudios.cameraview.gesture.Gesture;
 import com.otaliastudios.cameraview.internal.utils.CropHelper;
-import com.otaliastudios.cameraview.internal.utils.ImageHelper;
 import com.otaliastudios.cameraview.internal.utils.WorkerHandler;
 import com.otaliastudios.cameraview.picture.Full2PictureRecorder;
 import com.otaliastudios.cameraview.picture.SnapshotGlPictureRecorder;
 import com.otaliastudios.cameraview.preview.GlCameraPreview;
 import com.otaliastudios.cameraview.size.AspectRatio;
 import com.otaliastudios.cameraview.size.Size;
+import com.otaliastudios.cameraview.size.SizeSelector;
 import com.otaliastudios.cameraview.size.SizeSelectors;
 import com.otaliastudios.cameraview.video.Full2VideoRecorder;
 import com.otaliastudios.cameraview.video.SnapshotVideoRecorder;
@@ -75,6 +77,8 @@ public class Camera2Engine extends CameraEngine implements ImageReader.OnImageAv
 
     private static final int FRAME_PROCESSING_FORMAT = ImageFormat.NV21;
     private static final int FRAME_PROCESSING_INPUT_FORMAT = ImageFormat.YUV_420_888;
+    private static final int FRAME_PROCESSING_POOL_SIZE = 2;
+    private static final int FRAME_PROCESSING_MAX_POOL_SIZE = 8;
 
     private final CameraManager mManager;
     private String mCameraId;
@@ -87,9 +91,15 @@ public class Camera2Engine extends CameraEngine implements ImageReader.OnImageAv
 
     // Frame processing
     private Size mFrameProcessingSize;
+    private boolean mRealtimeTimestamps;
     private ImageReader mFrameProcessingReader; // need this or the reader surface is collected
     private final WorkerHandler mFrameConversionHandler;
     private Surface mFrameProcessingSurface;
+    private FrameStreams mFrameStreams;
+    private final FrameManager mSecondaryFrameManager;
+    private Size mSecondaryFrameProcessingSize;
+    private ImageReader mSecondaryFrameProcessingReader;
+    private Surface mSecondaryFrameProcessingSurface;
 
     // Preview
     private Surface mPreviewStreamSurface;
@@ -110,6 +120,7 @@ public class Camera2Engine extends CameraEngine implements ImageReader.OnImageAv
         mMapper = Mapper.get(Engine.CAMERA2);
         mManager = (CameraManager) mCallback.getContext().getSystemService(Context.CAMERA_SERVICE);
         mFrameConversionHandler = WorkerHandler.get("CameraFrameConversion");
+        mSecondaryFrameManager = instantiateFrameManager();
     }
 
     //region Utilities
@@ -177,9 +188,7 @@ public class Camera2Engine extends CameraEngine implements ImageReader.OnImageAv
      */
     private void addRepeatingRequestBuilderSurfaces(@NonNull Surface... extraSurfaces) {
         mRepeatingRequestBuilder.addTarget(mPreviewStreamSurface);
-        if (mFrameProcessingSurface != null) {
-            mRepeatingRequestBuilder.addTarget(mFrameProcessingSurface);
-        }
+        if (hasFrameProcessors()) addFrameProcessingTargets();
         for (Surface extraSurface : extraSurfaces) {
             if (extraSurface == null) {
                 throw new IllegalArgumentException("Should not add a null surface.");
@@ -194,9 +203,33 @@ public class Camera2Engine extends CameraEngine implements ImageReader.OnImageAv
      */
     private void removeRepeatingRequestBuilderSurfaces() {
         mRepeatingRequestBuilder.removeTarget(mPreviewStreamSurface);
+        removeFrameProcessingTargets();
+    }
+
+    /**
+     * Adds the frame processing surfaces, if they are part of the session,
+     * to the repeating request builder.
+     */
+    private void addFrameProcessingTargets() {
+        if (mFrameProcessingSurface != null) {
+            mRepeatingRequestBuilder.addTarget(mFrameProcessingSurface);
+        }
+        if (mSecondaryFrameProcessingSurface != null) {
+            mRepeatingRequestBuilder.addTarget(mSecondaryFrameProcessingSurface);
+        }
+    }
+
+    /**
+     * Removes the frame processing surfaces from the repeating request builder.
+     * The surfaces stay in the session, so they can be added back without a restart.
+     */
+    private void removeFrameProcessingTargets() {
         if (mFrameProcessingSurface != null) {
             mRepeatingRequestBuilder.removeTarget(mFrameProcessingSurface);
         }
+        if (mSecondaryFrameProcessingSurface != null) {
+            mRepeatingRequestBuilder.removeTarget(mSecondaryFrameProcessingSurface);
+        }
     }
 
     /**
@@ -334,6 +367,11 @@ public class Camera2Engine extends CameraEngine implements ImageReader.OnImageAv
                     try {
                         LOG.i("createCamera:", "Applying default parameters.");
                         mCameraCharacteristics = mManager.getCameraCharacteristics(mCameraId);
+                        mRealtimeTimestamps = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                                && readCharacteristic(
+                                CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE,
+                                CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN)
+                                == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
                         boolean flip = getAngles().flip(Reference.SENSOR, Reference.VIEW);
                         mCameraOptions = new CameraOptions(mManager, mCameraId, flip);
                         createRepeatingRequestBuilder(CameraDevice.TEMPLATE_PREVIEW);
@@ -435,28 +473,28 @@ public class Camera2Engine extends CameraEngine implements ImageReader.OnImageAv
         }
 
         // 4. FRAME PROCESSING
-        if (hasFrameProcessors()) {
-            // Choose the size.
-            StreamConfigurationMap streamMap = mCameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            if (streamMap == null) throw new RuntimeException("StreamConfigurationMap is null. Should not happen.");
-            android.util.Size[] aSizes = streamMap.getOutputSizes(FRAME_PROCESSING_INPUT_FORMAT);
-            List<Size> sizes = new ArrayList<>();
-            for (android.util.Size aSize : aSizes) {
-                sizes.add(new Size(aSize.getWidth(), aSize.getHeight()));
-            }
-            mFrameProcessingSize = SizeSelectors.and(
-                    SizeSelectors.maxWidth(Math.min(700, mPreviewStreamSize.getWidth())),
-                    SizeSelectors.maxHeight(Math.min(700, mPreviewStreamSize.getHeight())),
-                    SizeSelectors.biggest()).select(sizes).get(0);
-            mFrameProcessingReader = ImageReader.newInstance(
-                    mFrameProcessingSize.getWidth(),
-                    mFrameProcessingSize.getHeight(),
-                    FRAME_PROCESSING_INPUT_FORMAT,
-                    2);
-            mFrameProcessingReader.setOnImageAvailableListener(this, mFrameConversionHandler.getHandler());
+        // With hot attach, the surface is always configured, but only becomes
+        // a target of the repeating request while there are processors.
+        if (hasFrameProcessors() || getFrameProcessingHotAttach()) {
+            // Choose the sizes from what processors need.
+            mFrameStreams = negotiateFrameStreams();
+            mFrameProcessingSize = mFrameStreams.getPrimarySize();
+            mFrameProcessingReader = createFrameProcessingReader(mFrameProcessingSize, getFrameManager());
             mFrameProcessingSurface = mFrameProcessingReader.getSurface();
             outputSurfaces.add(mFrameProcessingSurface);
+            if (mFrameStreams.hasSecondaryStream()) {
+                mSecondaryFrameManager.setStream(mFrameStreams, FrameStreams.SECONDARY);
+                getFrameManager().setStream(mFrameStreams, FrameStreams.PRIMARY);
+                mSecondaryFrameProcessingSize = mFrameStreams.getSecondarySize();
+                mSecondaryFrameProcessingReader = createFrameProcessingReader(
+                        mSecondaryFrameProcessingSize, mSecondaryFrameManager);
+                mSecondaryFrameProcessingSurface = mSecondaryFrameProcessingReader.getSurface();
+                outputSurfaces.add(mSecondaryFrameProcessingSurface);
+            } else {
+                getFrameManager().setStream(null, FrameStreams.PRIMARY);
+            }
         } else {
+            mFrameStreams = null;
             mFrameProcessingReader = null;
             mFrameProcessingSize = null;
             mFrameProcessingSurface = null;
@@ -497,8 +535,12 @@ public class Camera2Engine extends CameraEngine implements ImageReader.OnImageAv
         }
         mPreview.setStreamSize(previewSizeForView.getWidth(), previewSizeForView.getHeight());
         mPreview.setDrawRotation(getAngles().offset(Reference.BASE, Reference.VIEW, Axis.ABSOLUTE));
-        if (hasFrameProcessors()) {
+        if (mFrameProcessingSize != null) {
             getFrameManager().setUp(ImageFormat.getBitsPerPixel(FRAME_PROCESSING_FORMAT), mFrameProcessingSize);
+            if (mSecondaryFrameProcessingSize != null) {
+                mSecondaryFrameManager.setUp(ImageFormat.getBitsPerPixel(FRAME_PROCESSING_FORMAT),
+                        mSecondaryFrameProcessingSize);
+            }
         }
 
         LOG.i("onStartPreview", "Starting preview.");
@@ -539,8 +581,9 @@ public class Camera2Engine extends CameraEngine implements ImageReader.OnImageAv
             mVideoRecorder = null;
         }
         mPictureRecorder = null;
-        if (hasFrameProcessors()) {
+        if (mFrameProcessingSize != null) {
             getFrameManager().release();
+            mSecondaryFrameManager.release();
         }
         try {
             // NOTE: should we wait for onReady() like docs say?
@@ -570,10 +613,17 @@ public class Camera2Engine extends CameraEngine implements ImageReader.OnImageAv
         mPreviewStreamSize = null;
         mCaptureSize = null;
         mFrameProcessingSize = null;
+        mFrameStreams = null;
         if (mFrameProcessingReader != null) {
             mFrameProcessingReader.close();
             mFrameProcessingReader = null;
         }
+        mSecondaryFrameProcessingSurface = null;
+        mSecondaryFrameProcessingSize = null;
+        if (mSecondaryFrameProcessingReader != null) {
+            mSecondaryFrameProcessingReader.close();
+            mSecondaryFrameProcessingReader = null;
+        }
         if (mPictureReader != null) {
             mPictureReader.close();
             mPictureReader = null;
@@ -1017,45 +1067,103 @@ public class Camera2Engine extends CameraEngine implements ImageReader.OnImageAv
     @NonNull
     @Override
     protected FrameManager instantiateFrameManager() {
-        return new FrameManager(2, null);
+        return new FrameManager(FRAME_PROCESSING_POOL_SIZE, FRAME_PROCESSING_MAX_POOL_SIZE, null);
+    }
+
+    /**
+     * Lists the sizes that can be used for frame processing.
+     */
+    @NonNull
+    private List<Size> collectFrameProcessingSizes() {
+        StreamConfigurationMap streamMap = mCameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (streamMap == null) throw new RuntimeException("StreamConfigurationMap is null. Should not happen.");
+        android.util.Size[] aSizes = streamMap.getOutputSizes(FRAME_PROCESSING_INPUT_FORMAT);
+        List<Size> sizes = new ArrayList<>();
+        for (android.util.Size aSize : aSizes) {
+            sizes.add(new Size(aSize.getWidth(), aSize.getHeight()));
+        }
+        return sizes;
+    }
+
+    /**
+     * Chooses the frame processing streams from the processors preferences.
+     * Processors with no preference get the biggest size under 700x700.
+     */
+    @NonNull
+    private FrameStreams negotiateFrameStreams() {
+        SizeSelector fallback = SizeSelectors.and(
+                SizeSelectors.maxWidth(Math.min(700, mPreviewStreamSize.getWidth())),
+                SizeSelectors.maxHeight(Math.min(700, mPreviewStreamSize.getHeight())),
+                SizeSelectors.biggest());
+        // LIMITED devices guarantee a preview stream with two YUV streams, but not if
+        // there is also a JPEG or a video recording stream.
+        int level = readCharacteristic(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL,
+                CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY);
+        boolean allowSecondary = level != CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY
+                && getMode() == Mode.VIDEO
+                && mFullVideoPendingStub == null;
+        return FrameStreams.negotiate(collectFrameProcessingSizes(), fallback,
+                getFrameProcessingPreferences(), allowSecondary);
+    }
+
+    @NonNull
+    private ImageReader createFrameProcessingReader(@NonNull Size size, @NonNull FrameManager manager) {
+        ImageReader reader = ImageReader.newInstance(
+                size.getWidth(),
+                size.getHeight(),
+                FRAME_PROCESSING_INPUT_FORMAT,
+                // Frames hold their image until released, so allow as many images as the
+                // frame pool can grow to. Keep one more, so that acquireLatestImage()
+                // can skip to the newest one. Images are only allocated when needed.
+                manager.getAllowedPoolSize(ImageFormat.getBitsPerPixel(FRAME_PROCESSING_FORMAT), size) + 1);
+        reader.setOnImageAvailableListener(this, mFrameConversionHandler.getHandler());
+        return reader;
     }
 
     @Override
     public void onImageAvailable(ImageReader reader) {
-        byte[] data = getFrameManager().getBuffer();
-        if (data == null) {
-            LOG.w("onImageAvailable", "no byte buffer!");
-            return;
-        }
+        boolean secondary = reader == mSecondaryFrameProcessingReader;
+        FrameManager manager = secondary ? mSecondaryFrameManager : getFrameManager();
         Image image = null;
         try {
             image = reader.acquireLatestImage();
         } catch (IllegalStateException ignore) { }
         if (image == null) {
-            LOG.w("onImageAvailable", "we have a byte buffer but no Image!");
-            getFrameManager().onBufferUnused(data);
+            // This happens when all images are held by frames that were not released yet.
+            LOG.w("onImageAvailable", "no Image!");
+            manager.onFrameUnavailable();
             return;
         }
-        LOG.i("onImageAvailable", "we have both a byte buffer and an Image.");
-        try {
-            ImageHelper.convertToNV21(image, data);
-        } catch (Exception e) {
-            LOG.w("onImageAvailable", "error while converting.");
-            getFrameManager().onBufferUnused(data);
-            image.close();
-            return;
-        }
-        image.close();
-        if (getEngineState() == STATE_STARTED) {
-            Frame frame = getFrameManager().getFrame(data,
+        if (getEngineState() == STATE_STARTED && hasFrameProcessors()) {
+            LOG.i("onImageAvailable", "we have an Image.");
+            // The frame holds the image planes. They will be converted to NV21 only
+            // if some processor asks for the byte array, and the image is closed on release.
+            Frame frame = manager.getFrame(image,
                     System.currentTimeMillis(),
+                    getFrameTimestamp(image),
                     getAngles().offset(Reference.SENSOR, Reference.OUTPUT, Axis.RELATIVE_TO_SENSOR),
-                    mFrameProcessingSize,
-                    FRAME_PROCESSING_FORMAT);
+                    secondary ? mSecondaryFrameProcessingSize : mFrameProcessingSize);
             mCallback.dispatchFrame(frame);
         } else {
-            getFrameManager().onBufferUnused(data);
+            image.close();
+        }
+    }
+
+    /**
+     * Converts the image timestamp to the {@link System#nanoTime()} reference.
+     * With a realtime source, the sensor uses {@link SystemClock#elapsedRealtimeNanos()},
+     * which also counts deep sleep, so we remove the offset between the two clocks.
+     * Otherwise the clock is unknown, but in practice it is the monotonic one.
+     *
+     * @param image the image
+     * @return the frame timestamp
+     */
+    private long getFrameTimestamp(@NonNull Image image) {
+        long timestamp = image.getTimestamp();
+        if (mRealtimeTimestamps) {
+            timestamp -= SystemClock.elapsedRealtimeNanos() - System.nanoTime();
         }
+        return timestamp;
     }
 
     @Override
@@ -1066,7 +1174,17 @@ public class Camera2Engine extends CameraEngine implements ImageReader.OnImageAv
             @Override
             public void run() {
                 LOG.i("setHasFrameProcessors", "changed to", hasFrameProcessors, "executing. BindState:", getBindState());
-                if (getBindState() == STATE_STARTED) {
+                if (getBindState() == STATE_STARTED && mFrameProcessingSurface != null) {
+                    // The surface is already part of the session (hot attach). Just
+                    // add or remove it from the repeating request, keeping any video.
+                    LOG.i("setHasFrameProcessors", "updating the repeating request.");
+                    if (hasFrameProcessors()) {
+                        addFrameProcessingTargets();
+                    } else {
+                        removeFrameProcessingTargets();
+                    }
+                    applyRepeatingRequestBuilder();
+                } else if (getBindState() == STATE_STARTED) {
                     LOG.i("setHasFrameProcessors", "triggering a restart.");
                     // TODO if taking video, this stops it.
                     restartBind();
@@ -1077,6 +1195,91 @@ public class Camera2Engine extends CameraEngine implements ImageReader.OnImageAv
         });
     }
 
+    @NonNull
+    @Override
+    public List<FrameManager> getFrameManagers() {
+        return Arrays.asList(getFrameManager(), mSecondaryFrameManager);
+    }
+
+    @Override
+    public void setFrameProcessingMaxMemory(long maxMemoryBytes) {
+        super.setFrameProcessingMaxMemory(maxMemoryBytes);
+        mSecondaryFrameManager.setMaxMemory(maxMemoryBytes);
+        checkFrameProcessingReaders("setFrameProcessingMaxMemory");
+    }
+
+    @Override
+    public void setFrameProcessingReservedFrames(int frames) {
+        super.setFrameProcessingReservedFrames(frames);
+        mSecondaryFrameManager.setReservedCount(frames);
+        checkFrameProcessingReaders("setFrameProcessingReservedFrames");
+    }
+
+    /**
+     * Frames hold their image, so the readers must allow as many images as the pool.
+     * If the pool can now grow past them, restarts the bind to create bigger readers.
+     */
+    private void checkFrameProcessingReaders(@NonNull final String caller) {
+        mHandler.run(new Runnable() {
+            @Override
+            public void run() {
+                if (getBindState() != STATE_STARTED || mFrameProcessingReader == null) return;
+                boolean tooSmall = isReaderTooSmall(mFrameProcessingReader, getFrameManager(),
+                        mFrameProcessingSize);
+                if (mSecondaryFrameProcessingReader != null) {
+                    tooSmall |= isReaderTooSmall(mSecondaryFrameProcessingReader, mSecondaryFrameManager,
+                            mSecondaryFrameProcessingSize);
+                }
+                if (tooSmall) {
+                    LOG.i(caller, "reader is too small. Triggering a restart.");
+                    restartBind();
+                }
+            }
+        });
+    }
+
+    private boolean isReaderTooSmall(@NonNull ImageReader reader, @NonNull FrameManager manager, @NonNull Size size) {
+        int images = manager.getAllowedPoolSize(ImageFormat.getBitsPerPixel(FRAME_PROCESSING_FORMAT), size) + 1;
+        return images > reader.getMaxImages();
+    }
+
+    @Override
+    public void setFrameProcessingHotAttach(boolean hotAttach) {
+        super.setFrameProcessingHotAttach(hotAttach);
+        mHandler.run(new Runnable() {
+            @Override
+            public void run() {
+                if (getBindState() != STATE_STARTED) return;
+                // Restart only if the surface should be added to or removed from the session.
+                boolean configured = mFrameProcessingSurface != null;
+                boolean needed = hasFrameProcessors() || getFrameProcessingHotAttach();
+                if (configured != needed) {
+                    LOG.i("setFrameProcessingHotAttach", "triggering a restart.");
+                    restartBind();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setFrameProcessingPreferences(@NonNull final List<SizeSelector> preferences) {
+        super.setFrameProcessingPreferences(preferences);
+        mHandler.run(new Runnable() {
+            @Override
+            public void run() {
+                if (getBindState() != STATE_STARTED || mFrameStreams == null) return;
+                // With no processors, the current streams are as good as any.
+                if (preferences.isEmpty()) return;
+                // Only restart if the new preferences change the streams.
+                FrameStreams streams = negotiateFrameStreams();
+                if (!streams.equals(mFrameStreams)) {
+                    LOG.i("setFrameProcessingPreferences", "streams changed to", streams, "triggering a restart.");
+                    restartBind();
+                }
+            }
+        });
+    }
+
     //endregion
 
     //region Auto Focus
@@ -24,6 +24,7 @@ import com.otaliastudios.cameraview.engine.offset.Angles;
 import com.otaliastudios.cameraview.engine.offset.Reference;
 import com.otaliastudios.cameraview.frame.Frame;
 import com.otaliastudios.cameraview.frame.FrameManager;
+import com.otaliastudios.cameraview.frame.FrameStreams;
 import com.otaliastudios.cameraview.internal.utils.Op;
 import com.otaliastudios.cameraview.internal.utils.WorkerHandler;
 import com.otaliastudios.cameraview.picture.PictureRecorder;
@@ -51,6 +52,7 @@ import androidx.annotation.WorkerThread;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
@@ -183,6 +185,8 @@ public abstract class CameraEngine implements
     private int mVideoBitRate;
     private int mAudioBitRate;
     private boolean mHasFrameProcessors;
+    private boolean mFrameProcessingHotAttach;
+    private volatile List<SizeSelector> mFrameProcessingPreferences = Collections.emptyList();
     private long mAutoFocusResetDelayMillis;
     private int mSnapshotMaxWidth = Integer.MAX_VALUE; // in REF_VIEW for consistency with SizeSelectors
     private int mSnapshotMaxHeight = Integer.MAX_VALUE; // in REF_VIEW for consistency with SizeSelectors
@@ -960,6 +964,17 @@ public abstract class CameraEngine implements
         return mFrameManager;
     }
 
+    /**
+     * Returns all the frame managers of this engine, starting with {@link #getFrameManager()}.
+     * Engines that produce frames from more than one stream have one manager for each.
+     *
+     * @return the frame managers
+     */
+    @NonNull
+    public List<FrameManager> getFrameManagers() {
+        return Collections.singletonList(mFrameManager);
+    }
+
     @Nullable
     public final CameraOptions getCameraOptions() {
         return mCameraOptions;
@@ -998,11 +1013,67 @@ public abstract class CameraEngine implements
         mHasFrameProcessors = hasFrameProcessors;
     }
 
+    /**
+     * Sets the stream size preference of each frame processor, or null for processors
+     * that have no preference. Engines can use these to choose the frame processing
+     * stream size, see {@link FrameStreams}.
+     *
+     * @param preferences the preferences
+     */
+    @CallSuper
+    public void setFrameProcessingPreferences(@NonNull List<SizeSelector> preferences) {
+        mFrameProcessingPreferences = preferences;
+    }
+
+    /**
+     * Sets the maximum memory that the frame processing buffers can use.
+     * See {@link FrameManager#setMaxMemory(long)}.
+     *
+     * @param maxMemoryBytes the max memory in bytes
+     */
+    @CallSuper
+    public void setFrameProcessingMaxMemory(long maxMemoryBytes) {
+        getFrameManager().setMaxMemory(maxMemoryBytes);
+    }
+
+    /**
+     * Sets the number of frames that processors can hold on purpose at the same time,
+     * like the frames of a batch, so that the frame pool makes room for them.
+     * See {@link FrameManager#setReservedCount(int)}.
+     *
+     * @param frames the reserved frames count
+     */
+    @CallSuper
+    public void setFrameProcessingReservedFrames(int frames) {
+        getFrameManager().setReservedCount(frames);
+    }
+
+    @NonNull
+    @SuppressWarnings("WeakerAccess")
+    public final List<SizeSelector> getFrameProcessingPreferences() {
+        return mFrameProcessingPreferences;
+    }
+
     @SuppressWarnings("WeakerAccess")
     public final boolean hasFrameProcessors() {
         return mHasFrameProcessors;
     }
 
+    /**
+     * Whether frame processors should be attached and detached without restarting
+     * the camera, by keeping the frame processing stream even when there are none.
+     *
+     * @param hotAttach whether to keep the frame processing stream
+     */
+    @CallSuper
+    public void setFrameProcessingHotAttach(boolean hotAttach) {
+        mFrameProcessingHotAttach = hotAttach;
+    }
+
+    public final boolean getFrameProcessingHotAttach() {
+        return mFrameProcessingHotAttach;
+    }
+
     @SuppressWarnings("WeakerAccess")
     protected final boolean shouldResetAutoFocus() {
         return mAutoFocusResetDelayMillis > 0 && mAutoFocusResetDelayMillis != Long.MAX_VALUE;
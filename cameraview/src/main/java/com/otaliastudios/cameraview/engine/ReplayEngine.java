@@ -0,0 +1,318 @@
+package com.otaliastudios.cameraview.engine;
+
+import android.graphics.ImageFormat;
+import android.graphics.PointF;
+import android.location.Location;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.otaliastudios.cameraview.CameraException;
+import com.otaliastudios.cameraview.CameraLogger;
+import com.otaliastudios.cameraview.CameraOptions;
+import com.otaliastudios.cameraview.PictureResult;
+import com.otaliastudios.cameraview.VideoResult;
+import com.otaliastudios.cameraview.controls.Facing;
+import com.otaliastudios.cameraview.controls.Flash;
+import com.otaliastudios.cameraview.controls.Hdr;
+import com.otaliastudios.cameraview.controls.WhiteBalance;
+import com.otaliastudios.cameraview.engine.offset.Reference;
+import com.otaliastudios.cameraview.frame.Frame;
+import com.otaliastudios.cameraview.frame.FrameManager;
+import com.otaliastudios.cameraview.frame.FrameReplay;
+import com.otaliastudios.cameraview.frame.FrameSource;
+import com.otaliastudios.cameraview.gesture.Gesture;
+import com.otaliastudios.cameraview.size.AspectRatio;
+import com.otaliastudios.cameraview.size.Size;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An engine that has no camera, and replays the frames of a Y4M or raw NV21 file
+ * through a {@link FrameReplay}, so that frame processors can be run and measured
+ * on devices and emulators with no camera.
+ *
+ * Frames go through the same {@link FrameManager} and dispatching path as camera frames.
+ * The preview is not drawn, and pictures, videos and camera controls are not supported.
+ *
+ * Like the other engines, this needs the Android framework to run its threads, so it can only
+ * run on devices and emulators. On a plain JVM, {@link FrameReplay} can drive a FrameManager
+ * and a FrameDispatcher directly, as the soak test of the library does.
+ */
+public class ReplayEngine extends CameraEngine implements FrameSource.Callback {
+
+    private static final String TAG = ReplayEngine.class.getSimpleName();
+    private static final CameraLogger LOG = CameraLogger.create(TAG);
+
+    private static final int FRAME_PROCESSING_FORMAT = ImageFormat.NV21;
+    private static final int FRAME_PROCESSING_POOL_SIZE = 2;
+    private static final int FRAME_PROCESSING_MAX_POOL_SIZE = 8;
+
+    private File mSource;
+    private float mFrameRate = -1;
+    private FrameReplay mReplay;
+    private Thread mReplayThread;
+
+    public ReplayEngine(@NonNull Callback callback) {
+        super(callback);
+    }
+
+    /**
+     * Sets the file to be replayed. Takes effect the next time the engine is started.
+     *
+     * @param source the source file
+     */
+    public void setSource(@Nullable File source) {
+        mSource = source;
+    }
+
+    /**
+     * Returns the file being replayed.
+     *
+     * @return the source file
+     */
+    @Nullable
+    public File getSource() {
+        return mSource;
+    }
+
+    /**
+     * Sets the frame rate, see {@link FrameSource#setFrameRate(float)}, or a negative
+     * value to use the file frame rate. Takes effect the next time the preview is started.
+     *
+     * @param frameRate the frame rate
+     */
+    public void setFrameRate(float frameRate) {
+        mFrameRate = frameRate;
+    }
+
+    /**
+     * Returns the frame rate set by {@link #setFrameRate(float)}.
+     *
+     * @return the frame rate
+     */
+    public float getFrameRate() {
+        return mFrameRate;
+    }
+
+    //region Protected APIs
+
+    @NonNull
+    @Override
+    protected List<Size> getPreviewStreamAvailableSizes() {
+        return Collections.singletonList(mReplay.getSize());
+    }
+
+    @WorkerThread
+    @Override
+    protected void onPreviewStreamSizeChanged() {
+        restartPreview();
+    }
+
+    @Override
+    protected boolean collectCameraInfo(@NonNull Facing facing) {
+        LOG.i("collectCameraInfo", "Facing:", facing, "Source:", mSource);
+        if (mSource == null) return false;
+        getAngles().setSensorOffset(facing, 0);
+        return true;
+    }
+
+    @NonNull
+    @Override
+    protected FrameManager instantiateFrameManager() {
+        return new FrameManager(FRAME_PROCESSING_POOL_SIZE, FRAME_PROCESSING_MAX_POOL_SIZE, null);
+    }
+
+    //endregion
+
+    //region Start
+
+    @NonNull
+    @WorkerThread
+    @Override
+    protected Task<Void> onStartEngine() {
+        try {
+            mReplay = new FrameReplay(mSource);
+        } catch (IOException e) {
+            LOG.e("onStartEngine:", "Could not open source", mSource, e);
+            throw new CameraException(e, CameraException.REASON_FAILED_TO_CONNECT);
+        }
+        mReplay.setLoop(true);
+        mCameraOptions = new CameraOptions(mReplay.getSize());
+        return Tasks.forResult(null);
+    }
+
+    @NonNull
+    @WorkerThread
+    @Override
+    protected Task<Void> onStartBind() {
+        mCaptureSize = computeCaptureSize();
+        mPreviewStreamSize = computePreviewStreamSize();
+        return Tasks.forResult(null);
+    }
+
+    @NonNull
+    @WorkerThread
+    @Override
+    protected Task<Void> onStartPreview() {
+        mCallback.onCameraPreviewStreamSizeChanged();
+        Size previewSize = getPreviewStreamSize(Reference.VIEW);
+        if (previewSize == null) {
+            throw new IllegalStateException("previewStreamSize should not be null at this point.");
+        }
+        mPreview.setStreamSize(previewSize.getWidth(), previewSize.getHeight());
+        getFrameManager().setUp(ImageFormat.getBitsPerPixel(FRAME_PROCESSING_FORMAT), mPreviewStreamSize);
+        mReplay.setFrameRate(mFrameRate < 0 ? mReplay.getFileFrameRate() : mFrameRate);
+        final FrameReplay replay = mReplay;
+        final FrameManager manager = getFrameManager();
+        replay.prepare();
+        mReplayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long count = replay.run(manager, ReplayEngine.this);
+                LOG.i("onStartPreview:", "Replay ended. Frames:", count);
+            }
+        }, TAG);
+        mReplayThread.start();
+        return Tasks.forResult(null);
+    }
+
+    @Override
+    public void dispatchFrame(@NonNull Frame frame) {
+        if (getPreviewState() == STATE_STARTED && hasFrameProcessors()) {
+            mCallback.dispatchFrame(frame);
+        } else {
+            frame.release();
+        }
+    }
+
+    //endregion
+
+    //region Stop
+
+    @NonNull
+    @WorkerThread
+    @Override
+    protected Task<Void> onStopPreview() {
+        if (mReplay != null) mReplay.stop();
+        if (mReplayThread != null) {
+            try {
+                mReplayThread.join();
+            } catch (InterruptedException e) {
+                LOG.w("onStopPreview:", "Interrupted while stopping the replay.");
+            }
+            mReplayThread = null;
+        }
+        getFrameManager().release();
+        return Tasks.forResult(null);
+    }
+
+    @NonNull
+    @WorkerThread
+    @Override
+    protected Task<Void> onStopBind() {
+        mPreviewStreamSize = null;
+        mCaptureSize = null;
+        return Tasks.forResult(null);
+    }
+
+    @NonNull
+    @WorkerThread
+    @Override
+    protected Task<Void> onStopEngine() {
+        if (mReplay != null) {
+            mReplay.release();
+            mReplay = null;
+        }
+        mCameraOptions = null;
+        return Tasks.forResult(null);
+    }
+
+    //endregion
+
+    //region Pictures and videos
+
+    @WorkerThread
+    @Override
+    protected void onTakePicture(@NonNull PictureResult.Stub stub) {
+        onPictureResult(null, new UnsupportedOperationException("Pictures are not supported by the replay engine."));
+    }
+
+    @WorkerThread
+    @Override
+    protected void onTakePictureSnapshot(@NonNull PictureResult.Stub stub, @NonNull AspectRatio outputRatio) {
+        onPictureResult(null, new UnsupportedOperationException("Pictures are not supported by the replay engine."));
+    }
+
+    @WorkerThread
+    @Override
+    protected void onTakeVideo(@NonNull VideoResult.Stub stub) {
+        onVideoResult(null, new UnsupportedOperationException("Videos are not supported by the replay engine."));
+    }
+
+    @WorkerThread
+    @Override
+    protected void onTakeVideoSnapshot(@NonNull VideoResult.Stub stub, @NonNull AspectRatio outputRatio) {
+        onVideoResult(null, new UnsupportedOperationException("Videos are not supported by the replay engine."));
+    }
+
+    //endregion
+
+    //region Parameters
+
+    // None of these is supported, see CameraOptions. We only keep the value,
+    // so that it can be passed to another engine.
+
+    @Override
+    public void setZoom(float zoom, @Nullable PointF[] points, boolean notify) {
+        mZoomOp.end(null);
+    }
+
+    @Override
+    public void setExposureCorrection(float EVvalue, @NonNull float[] bounds, @Nullable PointF[] points, boolean notify) {
+        mExposureCorrectionOp.end(null);
+    }
+
+    @Override
+    public void setFlash(@NonNull Flash flash) {
+        mFlash = flash;
+        mFlashOp.end(null);
+    }
+
+    @Override
+    public void setWhiteBalance(@NonNull WhiteBalance whiteBalance) {
+        mWhiteBalance = whiteBalance;
+        mWhiteBalanceOp.end(null);
+    }
+
+    @Override
+    public void setHdr(@NonNull Hdr hdr) {
+        mHdr = hdr;
+        mHdrOp.end(null);
+    }
+
+    @Override
+    public void setLocation(@Nullable Location location) {
+        mLocation = location;
+        mLocationOp.end(null);
+    }
+
+    @Override
+    public void startAutoFocus(@Nullable Gesture gesture, @NonNull PointF point) {
+        LOG.w("startAutoFocus:", "Not supported by the replay engine.");
+    }
+
+    @Override
+    public void setPlaySounds(boolean playSounds) {
+        mPlaySounds = playSounds;
+        mPlaySoundsOp.end(null);
+    }
+
+    //endregion
+}
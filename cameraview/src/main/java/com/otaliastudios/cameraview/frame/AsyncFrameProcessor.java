@@ -0,0 +1,32 @@
+package com.otaliastudios.cameraview.frame;
+
+import com.google.android.gms.tasks.Task;
+import com.otaliastudios.cameraview.CameraView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+/**
+ * An AsyncFrameProcessor processes {@link Frame}s coming from the camera preview, like
+ * {@link FrameProcessor}, but the work can end after {@link #process(Frame)} returns,
+ * for example when frames are handed to a GPU or a hardware accelerator.
+ * It must be passed to {@link CameraView#addAsyncFrameProcessor(AsyncFrameProcessor, FrameProcessorOptions)}.
+ *
+ * The frame stays valid until the returned task completes, so there is no need to call
+ * {@link Frame#retain()} or {@link Frame#freeze()}. The number of frames that can be in flight
+ * at the same time is limited by {@link FrameProcessorOptions#setMaxInFlightFrames(int)}: when
+ * the limit is reached, new frames follow the {@link FrameProcessorOptions.Backpressure} policy.
+ */
+public interface AsyncFrameProcessor {
+
+    /**
+     * Starts processing the given frame. The frame holds the correct values
+     * until the returned task completes, either successfully or not.
+     *
+     * @param frame the new frame
+     * @return a task that completes when the frame is not needed anymore
+     */
+    @NonNull
+    @WorkerThread
+    Task<?> process(@NonNull Frame frame);
+}
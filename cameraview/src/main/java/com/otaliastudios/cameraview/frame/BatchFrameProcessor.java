@@ -0,0 +1,30 @@
+package com.otaliastudios.cameraview.frame;
+
+import com.otaliastudios.cameraview.CameraView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.util.List;
+
+/**
+ * A BatchFrameProcessor processes {@link Frame}s coming from the camera preview in batches,
+ * which is what many machine learning models are best at.
+ * It must be passed to {@link CameraView#addBatchFrameProcessor(BatchFrameProcessor, FrameProcessorOptions)}.
+ *
+ * Batches have {@link FrameProcessorOptions#setBatchSize(int)} frames, or fewer if a window is set
+ * with {@link FrameProcessorOptions#setBatchWindow(long)}. Frames waiting for their batch are held,
+ * so the frame pool grows to make room for them.
+ */
+public interface BatchFrameProcessor {
+
+    /**
+     * Processes the given frames, oldest first. The frames will hold the correct values only
+     * for the duration of this method. As with {@link FrameProcessor}, use {@link Frame#retain()}
+     * or {@link Frame#freeze()} to keep working with them after this method returns.
+     *
+     * @param frames the new frames
+     */
+    @WorkerThread
+    void process(@NonNull List<Frame> frames);
+}
@@ -1,13 +1,36 @@
 package com.otaliastudios.cameraview.frame;
 
+import android.annotation.SuppressLint;
+import android.graphics.ImageFormat;
+
 import com.otaliastudios.cameraview.CameraLogger;
 import com.otaliastudios.cameraview.size.Size;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A preview frame to be processed by {@link FrameProcessor}s.
+ *
+ * Frames are reference counted. Each holder can call {@link #retain()} to keep the frame
+ * alive past the {@link FrameProcessor#process(Frame)} call, and must balance it with a
+ * {@link #release()} call when done. The backing buffer goes back to the {@link FrameManager}
+ * only when the last holder releases it.
+ *
+ * Some engines can produce frames that hold the YUV_420_888 planes coming from the camera
+ * (see {@link #hasPlanes()}). These can be accessed without copying through
+ * {@link #getPlaneBuffer(int)}, while the NV21 array returned by {@link #getData()}
+ * is only computed when first requested.
+ *
+ * Processors that request a frame size or crop (see {@link FrameProcessorOptions#setFrameSize(Size)})
+ * receive a frame derived from the camera frame. Derived frames share the lifecycle of the frame
+ * they come from: retaining or releasing them retains or releases the original frame,
+ * and they are disposed together with it.
  */
 public class Frame {
 
@@ -16,12 +39,42 @@ public class Frame {
 
     @VisibleForTesting FrameManager mManager;
 
-    private byte[] mData = null;
+    private volatile byte[] mData = null;
+    private boolean mDataPooled = false;
+    private ImagePlanes mPlanes = null;
     private long mTime = -1;
     private long mLastTime = -1;
+    private long mTimestamp = -1;
+    private long mSequenceNumber = -1;
     private int mRotation = 0;
     private Size mSize = null;
     private int mFormat = -1;
+    private final AtomicInteger mRefCount = new AtomicInteger(0);
+
+    // When the manager handed out this frame, in System.nanoTime() reference.
+    // This is also when the engine finished preparing it.
+    long mAcquireTime = 0;
+
+    // The stream this frame comes from, if the engine has more than one. See FrameStreams.
+    FrameStreams mStreams = null;
+    int mStream = FrameStreams.PRIMARY;
+
+    // For derived frames, the frame they come from and how to compute their data.
+    private Frame mParent = null;
+    private FrameVariant mVariant = null;
+    // Frames derived from this one. Only modified by the dispatching thread.
+    private final List<Frame> mDerivedFrames = new ArrayList<>(2);
+
+    // NV21 has 12 bits per pixel.
+    private final static int BITS_PER_PIXEL = 12;
+
+    // Frames can be converted from any thread, and converters are not thread safe.
+    private final static ThreadLocal<FrameConverter> CONVERTER = new ThreadLocal<FrameConverter>() {
+        @Override
+        protected FrameConverter initialValue() {
+            return new FrameConverter();
+        }
+    };
 
     Frame(@NonNull FrameManager manager) {
         mManager = manager;
@@ -29,7 +82,7 @@ public class Frame {
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     private boolean isAlive() {
-        return mData != null;
+        return mData != null || mPlanes != null || mParent != null;
     }
 
     private void ensureAlive() {
@@ -42,12 +95,88 @@ public class Frame {
     }
 
     void set(@NonNull byte[] data, long time, int rotation, @NonNull Size size, int format) {
+        set(data, time, -1, -1, rotation, size, format);
+    }
+
+    void set(@NonNull byte[] data, long time, long timestamp, long sequenceNumber,
+             int rotation, @NonNull Size size, int format) {
         this.mData = data;
+        this.mDataPooled = true;
+        this.mPlanes = null;
+        this.mTime = time;
+        this.mLastTime = time;
+        this.mTimestamp = timestamp;
+        this.mSequenceNumber = sequenceNumber;
+        this.mRotation = rotation;
+        this.mSize = size;
+        this.mFormat = format;
+        this.mRefCount.set(1);
+    }
+
+    void setPlanes(@NonNull ImagePlanes planes, long time, long timestamp, long sequenceNumber,
+                   int rotation, @NonNull Size size, int format) {
+        this.mData = null;
+        this.mDataPooled = false;
+        this.mPlanes = planes;
         this.mTime = time;
         this.mLastTime = time;
+        this.mTimestamp = timestamp;
+        this.mSequenceNumber = sequenceNumber;
         this.mRotation = rotation;
         this.mSize = size;
         this.mFormat = format;
+        this.mRefCount.set(1);
+    }
+
+    /**
+     * Returns the frame derived from this one according to the given variant, creating
+     * it if needed. Its data is only computed when first requested, see {@link #getData()}.
+     * Should only be called by the dispatching thread, while holding a reference.
+     *
+     * @param variant the variant
+     * @return the derived frame
+     */
+    @NonNull
+    Frame derive(@NonNull FrameVariant variant) {
+        ensureAlive();
+        for (int i = 0; i < mDerivedFrames.size(); i++) {
+            Frame derived = mDerivedFrames.get(i);
+            if (derived.mVariant == variant) return derived;
+        }
+        Frame derived = variant.obtain(mManager);
+        derived.mManager = mManager;
+        derived.mData = null;
+        derived.mDataPooled = false;
+        derived.mPlanes = null;
+        derived.mTime = mTime;
+        derived.mLastTime = mTime;
+        derived.mTimestamp = mTimestamp;
+        derived.mSequenceNumber = mSequenceNumber;
+        derived.mAcquireTime = mAcquireTime;
+        derived.mRotation = mRotation;
+        derived.mSize = variant.getOutputSize(mSize);
+        derived.mFormat = variant.getFormat();
+        derived.mVariant = variant;
+        derived.mParent = this;
+        mDerivedFrames.add(derived);
+        return derived;
+    }
+
+    // Called when the frame this one was derived from is released.
+    private void releaseDerived() {
+        byte[] buffer = mDataPooled ? mData : null;
+        FrameVariant variant = mVariant;
+        mParent = null;
+        mVariant = null;
+        mData = null;
+        mDataPooled = false;
+        mRotation = 0;
+        mTime = -1;
+        mTimestamp = -1;
+        mSequenceNumber = -1;
+        mSize = null;
+        mFormat = -1;
+        variant.recycle(this, buffer);
     }
 
     @Override
@@ -61,36 +190,104 @@ public class Frame {
      * This can be kept or safely passed to other threads.
      * Using freeze without clearing with {@link #release()} can result in memory leaks.
      *
+     * This copies the whole data array, so it can be expensive. In most cases,
+     * {@link #retain()} should be preferred.
+     *
      * @return a frozen Frame
      */
     @SuppressWarnings("WeakerAccess")
     @NonNull
     public Frame freeze() {
-        ensureAlive();
-        byte[] data = new byte[mData.length];
-        System.arraycopy(mData, 0, data, 0, mData.length);
+        byte[] source = getData();
+        byte[] data = new byte[source.length];
+        System.arraycopy(source, 0, data, 0, source.length);
         Frame other = new Frame(mManager);
-        other.set(data, mTime, mRotation, mSize, mFormat);
+        other.set(data, mTime, mTimestamp, mSequenceNumber, mRotation, mSize, mFormat);
+        // The copy was not allocated by the manager, so it must not go back to the pool.
+        other.mDataPooled = false;
+        other.mAcquireTime = mAcquireTime;
         return other;
     }
 
     /**
-     * Disposes the contents of this frame. Can be useful for frozen frames
-     * that are not useful anymore.
+     * Retains this frame, so that its contents are not overwritten when the
+     * {@link FrameProcessor#process(Frame)} call returns. This does not copy any data.
+     * The frame can be kept or safely passed to other threads, and each call to this method
+     * must be balanced by a call to {@link #release()}.
+     *
+     * Note that while a frame is retained, its buffer is not available to the camera.
+     * Holding many frames might make the {@link FrameManager} pool grow, or frames be dropped.
+     *
+     * @return this frame
      */
+    @NonNull
+    public Frame retain() {
+        ensureAlive();
+        Frame parent = mParent;
+        if (parent != null) {
+            parent.retain();
+            return this;
+        }
+        int count = mRefCount.incrementAndGet();
+        LOG.v("Frame with time", mTime, "retained. References:", count);
+        return this;
+    }
+
+    /**
+     * Releases this frame. If this is the last reference to it (see {@link #retain()}),
+     * the contents are disposed and the buffer goes back to the {@link FrameManager}.
+     * Should be used on frozen or retained frames that are not useful anymore.
+     */
+    @SuppressLint("NewApi")
     public void release() {
         if (!isAlive()) return;
+        Frame parent = mParent;
+        if (parent != null) {
+            parent.release();
+            return;
+        }
+        int count = mRefCount.decrementAndGet();
+        if (count > 0) {
+            LOG.v("Frame with time", mTime, "released. References:", count);
+            return;
+        } else if (count < 0) {
+            // Some other holder is releasing this frame right now.
+            return;
+        }
         LOG.v("Frame with time", mTime, "is being released. Has manager:", mManager != null);
 
-        if (mManager != null) {
-            // If needed, the manager will call releaseManager on us.
-            mManager.onFrameReleased(this);
+        for (int i = 0; i < mDerivedFrames.size(); i++) {
+            mDerivedFrames.get(i).releaseDerived();
         }
+        mDerivedFrames.clear();
+
+        // Clear everything before handing this frame to the manager, which might reuse it right away.
+        byte[] buffer = mDataPooled ? mData : null;
+        ImagePlanes planes = mPlanes;
+        FrameManager manager = mManager;
         mData = null;
+        mDataPooled = false;
+        mPlanes = null;
         mRotation = 0;
         mTime = -1;
+        mTimestamp = -1;
+        mSequenceNumber = -1;
         mSize = null;
         mFormat = -1;
+        mStreams = null;
+        if (planes != null) {
+            // Planes are only set on API 19+.
+            planes.close();
+        }
+        if (buffer == null && planes == null) {
+            // We held nothing from the pool (e.g. we are a frozen copy),
+            // so our lifetime must not count in the manager hold time.
+            mAcquireTime = 0;
+        }
+        if (manager != null) {
+            // If needed, the manager will call releaseManager on us.
+            manager.onFrameReleased(this, buffer);
+        }
     }
 
     // Once this is called, this instance is not usable anymore.
@@ -99,13 +296,137 @@ public class Frame {
     }
 
     /**
-     * Returns the frame data.
+     * Returns the frame data, in the format specified by {@link #getFormat()}.
+     * If this frame holds planes (see {@link #hasPlanes()}), the data is computed
+     * from the planes the first time this is called.
+     *
      * @return the frame data
      */
     @NonNull
     public byte[] getData() {
         ensureAlive();
-        return mData;
+        byte[] data = mData;
+        if (data == null) {
+            synchronized (this) {
+                data = mData;
+                if (data == null) {
+                    data = mParent != null ? renderDerived() : convertPlanes();
+                    mData = data;
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Converts this frame to ARGB_8888 pixels, writing them into the given array,
+     * which should be at least as big as width * height. No rotation is applied.
+     * Large frames are converted in parallel, see {@link FrameConverter}, which can
+     * also crop and downscale the output. This does not allocate.
+     *
+     * @param output the output array
+     */
+    public void toArgb(@NonNull int[] output) {
+        ensureAlive();
+        if (mFormat != ImageFormat.NV21) {
+            throw new IllegalStateException("Only NV21 frames can be converted.");
+        }
+        CONVERTER.get().convert(this, output);
+    }
+
+    @NonNull
+    private byte[] renderDerived() {
+        Frame parent = mParent;
+        byte[] data = mVariant.render(parent.getData(), parent.getSize(), mSize);
+        mDataPooled = true;
+        return data;
+    }
+
+    @SuppressLint("NewApi")
+    @NonNull
+    private byte[] convertPlanes() {
+        byte[] buffer = mManager != null ? mManager.getBuffer() : null;
+        mDataPooled = buffer != null;
+        if (buffer == null) {
+            LOG.w("convertPlanes:", "no buffer available. Allocating.");
+            long sizeInBits = mSize.getWidth() * mSize.getHeight() * BITS_PER_PIXEL;
+            buffer = new byte[(int) Math.ceil(sizeInBits / 8.0d)];
+        }
+        // Planes are only set on API 19+.
+        mPlanes.convertToNV21(buffer);
+        return buffer;
+    }
+
+    /**
+     * Whether this frame holds the YUV_420_888 planes coming from the camera.
+     * If true, they can be accessed without copying using {@link #getPlaneBuffer(int)},
+     * {@link #getPlaneRowStride(int)} and {@link #getPlanePixelStride(int)}.
+     *
+     * @return true if this frame has planes
+     */
+    public boolean hasPlanes() {
+        ensureAlive();
+        return mPlanes != null;
+    }
+
+    /**
+     * Returns the number of planes, or 0 if {@link #hasPlanes()} is false.
+     *
+     * @return the number of planes
+     */
+    @SuppressLint("NewApi")
+    public int getPlaneCount() {
+        ensureAlive();
+        ImagePlanes planes = mPlanes;
+        return planes == null ? 0 : planes.getCount();
+    }
+
+    /**
+     * Returns a read-only view of the given plane, without copying.
+     * The buffer must not be accessed after this frame has been released.
+     * Throws if {@link #hasPlanes()} is false.
+     *
+     * @param plane the plane index, 0 for Y, 1 for U and 2 for V
+     * @return the plane buffer
+     */
+    @SuppressLint("NewApi")
+    @NonNull
+    public ByteBuffer getPlaneBuffer(int plane) {
+        return getPlanes().getBuffer(plane);
+    }
+
+    /**
+     * Returns the row stride of the given plane.
+     * Throws if {@link #hasPlanes()} is false.
+     *
+     * @param plane the plane index, 0 for Y, 1 for U and 2 for V
+     * @return the row stride in bytes
+     */
+    @SuppressLint("NewApi")
+    public int getPlaneRowStride(int plane) {
+        return getPlanes().getRowStride(plane);
+    }
+
+    /**
+     * Returns the pixel stride of the given plane.
+     * Throws if {@link #hasPlanes()} is false.
+     *
+     * @param plane the plane index, 0 for Y, 1 for U and 2 for V
+     * @return the pixel stride in bytes
+     */
+    @SuppressLint("NewApi")
+    public int getPlanePixelStride(int plane) {
+        return getPlanes().getPixelStride(plane);
+    }
+
+    @NonNull
+    private ImagePlanes getPlanes() {
+        ensureAlive();
+        ImagePlanes planes = mPlanes;
+        if (planes == null) {
+            throw new IllegalStateException("This frame has no planes. Check hasPlanes() first.");
+        }
+        return planes;
     }
 
     /**
@@ -119,6 +440,44 @@ public class Frame {
         return mTime;
     }
 
+    /**
+     * Returns the time at which the camera sensor captured this frame, in nanoseconds
+     * and in the {@link System#nanoTime()} reference, so that it can be compared with
+     * other frames, with {@link #getConversionTime()} or with audio and video timestamps.
+     * When the engine has no sensor timestamp, this is the time at which it received the frame.
+     *
+     * @return the sensor timestamp in nanoseconds
+     */
+    public long getTimestamp() {
+        ensureAlive();
+        return mTimestamp;
+    }
+
+    /**
+     * Returns the sequence number of this frame. Each frame processing stream numbers
+     * its frames in order, counting also the frames that the camera produced but could not
+     * be delivered because all buffers were held. Gaps in the sequence mean dropped frames.
+     *
+     * @return the sequence number
+     */
+    public long getSequenceNumber() {
+        ensureAlive();
+        return mSequenceNumber;
+    }
+
+    /**
+     * Returns the time at which the engine finished preparing this frame, right before
+     * dispatching it, in nanoseconds and in the {@link System#nanoTime()} reference.
+     * The difference with {@link #getTimestamp()} is the latency of the camera and of the engine.
+     * Frames holding planes are converted lazily, see {@link #getData()}.
+     *
+     * @return the conversion time in nanoseconds
+     */
+    public long getConversionTime() {
+        ensureAlive();
+        return mAcquireTime;
+    }
+
     /**
      * Returns the clock-wise rotation that should be applied on the data
      * array, such that the resulting frame matches what the user is seeing
@@ -143,9 +502,10 @@ public class Frame {
     }
 
     /**
-     * Returns the data format, in one of the
+     * Returns the format of {@link #getData()}, in one of the
      * {@link android.graphics.ImageFormat} constants.
      * This will always be {@link android.graphics.ImageFormat#NV21} for now.
+     * Planes, if present, are always in the YUV_420_888 layout.
      *
      * @return the data format
      * @see android.graphics.ImageFormat
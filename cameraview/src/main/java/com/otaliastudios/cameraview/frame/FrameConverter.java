@@ -0,0 +1,286 @@
+package com.otaliastudios.cameraview.frame;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+
+import com.otaliastudios.cameraview.internal.utils.ParallelHelper;
+import com.otaliastudios.cameraview.size.Size;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Converts NV21 {@link Frame}s to ARGB_8888 pixels, that can be passed to
+ * {@link android.graphics.Bitmap#setPixels(int[], int, int, int, int, int, int)} or to models.
+ *
+ * The conversion uses fixed-point lookup tables (BT.601, video range) and large frames
+ * are split in row stripes that are converted in parallel. Optionally, the frame can be
+ * cropped and downscaled by an integer factor, by sampling one pixel every N.
+ * Note that no rotation is applied: see {@link Frame#getRotation()}.
+ * Frame width and height should be even, as for any NV21 image.
+ *
+ * A converter keeps its output array across calls, so converting frames of the same
+ * size does not allocate. Converters are not thread safe: use one per thread.
+ *
+ * <pre>{@code
+ * FrameConverter converter = new FrameConverter().setDownscale(2);
+ * int[] pixels = converter.convert(frame);
+ * Size size = converter.getOutputSize(frame.getSize());
+ * }</pre>
+ */
+public class FrameConverter {
+
+    // Fixed point with 10 bits of fraction.
+    private final static int SHIFT = 10;
+    private final static int MAX = (256 << SHIFT) - 1;
+    private final static int[] Y_TABLE = new int[256];
+    private final static int[] RV_TABLE = new int[256];
+    private final static int[] GV_TABLE = new int[256];
+    private final static int[] GU_TABLE = new int[256];
+    private final static int[] BU_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y_TABLE[i] = Math.round(1.164F * (1 << SHIFT) * Math.max(0, i - 16));
+            RV_TABLE[i] = Math.round(1.596F * (1 << SHIFT) * (i - 128));
+            GV_TABLE[i] = Math.round(0.813F * (1 << SHIFT) * (i - 128));
+            GU_TABLE[i] = Math.round(0.391F * (1 << SHIFT) * (i - 128));
+            BU_TABLE[i] = Math.round(2.018F * (1 << SHIFT) * (i - 128));
+        }
+    }
+
+    // Don't split frames in stripes of less than this many output pixels.
+    private final static int MIN_STRIPE_PIXELS = 64 * 1024;
+
+    private int mDownscale = 1;
+    private boolean mHasCrop = false;
+    private int mCropLeft;
+    private int mCropTop;
+    private int mCropRight;
+    private int mCropBottom;
+    private int[] mOutput = null;
+    private final Rows mRows = new Rows();
+
+    // Computed by computeRect().
+    private int mLeft;
+    private int mTop;
+    private int mOutputWidth;
+    private int mOutputHeight;
+
+    /**
+     * Sets the downscale factor. The output will be made of one pixel every
+     * {@code factor} pixels, both horizontally and vertically. Defaults to 1.
+     *
+     * @param factor the downscale factor
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameConverter setDownscale(int factor) {
+        if (factor < 1) {
+            throw new IllegalArgumentException("Downscale factor should be at least 1.");
+        }
+        mDownscale = factor;
+        return this;
+    }
+
+    /**
+     * Returns the downscale factor set with {@link #setDownscale(int)}.
+     *
+     * @return the downscale factor
+     */
+    public int getDownscale() {
+        return mDownscale;
+    }
+
+    /**
+     * Sets a crop rect, in the frame coordinates, before any rotation is applied.
+     * Only the part of the frame inside this rect will be converted.
+     * Defaults to null, which means the whole frame.
+     *
+     * @param crop the crop rect, or null
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameConverter setCrop(@Nullable Rect crop) {
+        mHasCrop = crop != null;
+        if (crop != null) {
+            mCropLeft = crop.left;
+            mCropTop = crop.top;
+            mCropRight = crop.right;
+            mCropBottom = crop.bottom;
+        }
+        return this;
+    }
+
+    /**
+     * Returns the crop rect set with {@link #setCrop(Rect)}.
+     *
+     * @return the crop rect, or null
+     */
+    @Nullable
+    public Rect getCrop() {
+        return mHasCrop ? new Rect(mCropLeft, mCropTop, mCropRight, mCropBottom) : null;
+    }
+
+    /**
+     * Returns the size of the converted image, for frames of the given size.
+     *
+     * @param frameSize the frame size
+     * @return the output size
+     */
+    @NonNull
+    public Size getOutputSize(@NonNull Size frameSize) {
+        computeRect(frameSize);
+        return new Size(mOutputWidth, mOutputHeight);
+    }
+
+    /**
+     * Converts the frame into an array that is owned by this converter, and reused
+     * by the next calls. The array might be bigger than the output size
+     * returned by {@link #getOutputSize(Size)}.
+     *
+     * @param frame the frame
+     * @return the ARGB pixels
+     */
+    @NonNull
+    public int[] convert(@NonNull Frame frame) {
+        computeRect(frame.getSize());
+        int length = mOutputWidth * mOutputHeight;
+        if (mOutput == null || mOutput.length < length) {
+            mOutput = new int[length];
+        }
+        convert(frame, mOutput);
+        return mOutput;
+    }
+
+    /**
+     * Converts the frame into the given array, which should be at least as big
+     * as the output size returned by {@link #getOutputSize(Size)}.
+     *
+     * @param frame the frame
+     * @param output the output array
+     */
+    public void convert(@NonNull Frame frame, @NonNull int[] output) {
+        if (frame.getFormat() != ImageFormat.NV21) {
+            throw new IllegalStateException("Only NV21 frames can be converted.");
+        }
+        Size size = frame.getSize();
+        computeRect(size);
+        convert(frame.getData(), size.getWidth(), size.getHeight(),
+                mLeft, mTop, mOutputWidth, mOutputHeight,
+                mDownscale, output, mRows);
+    }
+
+    private void computeRect(@NonNull Size frameSize) {
+        int left = 0;
+        int top = 0;
+        int right = frameSize.getWidth();
+        int bottom = frameSize.getHeight();
+        if (mHasCrop) {
+            left = Math.max(left, mCropLeft);
+            top = Math.max(top, mCropTop);
+            right = Math.min(right, mCropRight);
+            bottom = Math.min(bottom, mCropBottom);
+            if (left >= right || top >= bottom) {
+                throw new IllegalArgumentException("Crop rect is outside of the frame.");
+            }
+        }
+        mLeft = left;
+        mTop = top;
+        mOutputWidth = Math.max(1, (right - left) / mDownscale);
+        mOutputHeight = Math.max(1, (bottom - top) / mDownscale);
+    }
+
+    /**
+     * Converts the whole NV21 image into the output array.
+     *
+     * @param nv21 the NV21 image
+     * @param width the image width
+     * @param height the image height
+     * @param output the output array, at least width * height
+     */
+    @VisibleForTesting
+    static void convert(@NonNull byte[] nv21, int width, int height, @NonNull int[] output) {
+        convert(nv21, width, height, 0, 0, width, height, 1, output, new Rows());
+    }
+
+    private static void convert(@NonNull byte[] nv21, int width, int height,
+                                int left, int top, int outWidth, int outHeight, int downscale,
+                                @NonNull int[] output, @NonNull Rows rows) {
+        if (nv21.length < width * height + 2 * (width / 2) * (height / 2)) {
+            throw new IllegalArgumentException("Data is too small for size " + width + "x" + height);
+        }
+        if (output.length < outWidth * outHeight) {
+            throw new IllegalArgumentException("Output is too small.");
+        }
+        rows.set(nv21, width, height, left, top, downscale, output, outWidth);
+        try {
+            ParallelHelper.run(outHeight, Math.max(1, MIN_STRIPE_PIXELS / outWidth), rows);
+        } finally {
+            rows.set(null, 0, 0, 0, 0, 0, null, 0);
+        }
+    }
+
+    /**
+     * Holds the conversion parameters, so that they can be reused across calls.
+     */
+    private static class Rows implements ParallelHelper.Task {
+        private byte[] nv21;
+        private int width;
+        private int height;
+        private int left;
+        private int top;
+        private int downscale;
+        private int[] output;
+        private int outWidth;
+
+        private void set(byte[] nv21, int width, int height, int left, int top,
+                         int downscale, int[] output, int outWidth) {
+            this.nv21 = nv21;
+            this.width = width;
+            this.height = height;
+            this.left = left;
+            this.top = top;
+            this.downscale = downscale;
+            this.output = output;
+            this.outWidth = outWidth;
+        }
+
+        @Override
+        public void run(int start, int end) {
+            convertRows(nv21, width, height, left, top, downscale, output, outWidth, start, end);
+        }
+    }
+
+    private static void convertRows(@NonNull byte[] nv21, int width, int height,
+                                    int left, int top, int downscale,
+                                    @NonNull int[] output, int outWidth,
+                                    int startRow, int endRow) {
+        final int[] yTable = Y_TABLE;
+        final int[] rvTable = RV_TABLE;
+        final int[] gvTable = GV_TABLE;
+        final int[] guTable = GU_TABLE;
+        final int[] buTable = BU_TABLE;
+        final int chromaOffset = width * height;
+        int out = startRow * outWidth;
+        for (int row = startRow; row < endRow; row++) {
+            int y = top + row * downscale;
+            int yRow = y * width;
+            int vuRow = chromaOffset + (y >> 1) * width;
+            for (int col = 0, x = left; col < outWidth; col++, x += downscale) {
+                int vu = vuRow + (x & ~1);
+                int v = nv21[vu] & 0xFF;
+                int u = nv21[vu + 1] & 0xFF;
+                int luma = yTable[nv21[yRow + x] & 0xFF];
+                int r = luma + rvTable[v];
+                int g = luma - gvTable[v] - guTable[u];
+                int b = luma + buTable[u];
+                r = r < 0 ? 0 : r > MAX ? 255 : r >> SHIFT;
+                g = g < 0 ? 0 : g > MAX ? 255 : g >> SHIFT;
+                b = b < 0 ? 0 : b > MAX ? 255 : b >> SHIFT;
+                output[out++] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+}
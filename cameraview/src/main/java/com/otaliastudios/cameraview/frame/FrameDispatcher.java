@@ -0,0 +1,342 @@
+package com.otaliastudios.cameraview.frame;
+
+import com.otaliastudios.cameraview.CameraLogger;
+import com.otaliastudios.cameraview.internal.utils.StripedCounter;
+import com.otaliastudios.cameraview.size.SizeSelector;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Dispatches {@link Frame}s to the registered {@link FrameProcessor}s,
+ * {@link AsyncFrameProcessor}s and {@link BatchFrameProcessor}s.
+ *
+ * Each processor has its own queue and {@link Executor}, as specified by its
+ * {@link FrameProcessorOptions}. When a frame is dispatched, it is retained once for each
+ * processor that wants it, according to its frame rate options, and fanned out to all
+ * of them at the same time. The frame goes back to
+ * the {@link FrameManager} after the last processor has finished with it.
+ *
+ * Processors that request a frame size or crop receive a derived frame instead.
+ * Processors with equal requests share the same {@link FrameVariant}, so that
+ * each variant is computed at most once per frame. Variants are dropped, with their
+ * pooled frames and buffers, when the last processor using them is removed.
+ */
+public class FrameDispatcher {
+
+    private static final String TAG = FrameDispatcher.class.getSimpleName();
+    private static final CameraLogger LOG = CameraLogger.create(TAG);
+
+    private final Executor mDefaultExecutor;
+    private final List<FrameProcessorWorker> mWorkers = new CopyOnWriteArrayList<>();
+    private final StripedCounter mDispatchedCount = new StripedCounter();
+    private final StripedCounter mUnusedCount = new StripedCounter();
+    // Guarded by mVariants. Counts the workers using each shared variant.
+    private final Map<FrameVariant, FrameVariant> mVariants = new HashMap<>();
+    private final Map<FrameVariant, Integer> mVariantWorkers = new HashMap<>();
+
+    /**
+     * Creates a new dispatcher.
+     *
+     * @param defaultExecutor the executor for processors that do not specify one
+     */
+    public FrameDispatcher(@NonNull Executor defaultExecutor) {
+        mDefaultExecutor = defaultExecutor;
+    }
+
+    /**
+     * Adds a new processor.
+     *
+     * @param processor the processor
+     * @param options the processor options
+     */
+    public void add(@NonNull FrameProcessor processor, @NonNull FrameProcessorOptions options) {
+        mWorkers.add(new FrameProcessorWorker(processor, getExecutor(options), options, getVariant(options)));
+    }
+
+    /**
+     * Adds a new async processor.
+     *
+     * @param processor the processor
+     * @param options the processor options
+     */
+    public void addAsync(@NonNull AsyncFrameProcessor processor, @NonNull FrameProcessorOptions options) {
+        mWorkers.add(FrameProcessorWorker.forAsyncProcessor(processor, getExecutor(options), options,
+                getVariant(options)));
+    }
+
+    /**
+     * Adds a new batch processor.
+     *
+     * @param processor the processor
+     * @param options the processor options
+     */
+    public void addBatch(@NonNull BatchFrameProcessor processor, @NonNull FrameProcessorOptions options) {
+        mWorkers.add(FrameProcessorWorker.forBatchProcessor(processor, getExecutor(options), options,
+                getVariant(options)));
+    }
+
+    @NonNull
+    private Executor getExecutor(@NonNull FrameProcessorOptions options) {
+        Executor executor = options.getExecutor();
+        return executor != null ? executor : mDefaultExecutor;
+    }
+
+    @Nullable
+    private FrameVariant getVariant(@NonNull FrameProcessorOptions options) {
+        FrameVariant variant = options.getVariant();
+        if (variant == null) return null;
+        synchronized (mVariants) {
+            FrameVariant shared = mVariants.get(variant);
+            if (shared == null) {
+                shared = variant;
+                mVariants.put(shared, shared);
+                mVariantWorkers.put(shared, 1);
+            } else {
+                mVariantWorkers.put(shared, mVariantWorkers.get(shared) + 1);
+            }
+            return shared;
+        }
+    }
+
+    private void releaseVariant(@Nullable FrameVariant variant) {
+        if (variant == null) return;
+        synchronized (mVariants) {
+            Integer workers = mVariantWorkers.get(variant);
+            if (workers == null) return;
+            if (workers > 1) {
+                mVariantWorkers.put(variant, workers - 1);
+            } else {
+                // Frames in flight still hold the instance, so it is collected after them.
+                mVariantWorkers.remove(variant);
+                mVariants.remove(variant);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of distinct variants in use by the processors.
+     *
+     * @return the variants count
+     */
+    @VisibleForTesting
+    int getVariantCount() {
+        synchronized (mVariants) {
+            return mVariants.size();
+        }
+    }
+
+    /**
+     * Removes a processor that was previously added.
+     * Frames that were queued for this processor are released without being processed.
+     *
+     * @param processor the processor
+     * @return true if it was removed
+     */
+    public boolean remove(@NonNull FrameProcessor processor) {
+        return removeProcessor(processor);
+    }
+
+    /**
+     * Removes an async processor that was previously added.
+     * Frames that were queued for this processor are released without being processed,
+     * while frames in flight are released when their task completes.
+     *
+     * @param processor the processor
+     * @return true if it was removed
+     */
+    public boolean removeAsync(@NonNull AsyncFrameProcessor processor) {
+        return removeProcessor(processor);
+    }
+
+    /**
+     * Removes a batch processor that was previously added.
+     * Frames that were queued or waiting for their batch are released without being processed.
+     *
+     * @param processor the processor
+     * @return true if it was removed
+     */
+    public boolean removeBatch(@NonNull BatchFrameProcessor processor) {
+        return removeProcessor(processor);
+    }
+
+    private boolean removeProcessor(@NonNull Object processor) {
+        for (FrameProcessorWorker worker : mWorkers) {
+            if (worker.getProcessor().equals(processor)) {
+                if (!mWorkers.remove(worker)) return false;
+                worker.release();
+                releaseVariant(worker.getVariant());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all processors.
+     */
+    public void clear() {
+        for (FrameProcessorWorker worker : mWorkers) {
+            if (mWorkers.remove(worker)) {
+                worker.release();
+                releaseVariant(worker.getVariant());
+            }
+        }
+    }
+
+    /**
+     * Returns the stream size preference of each processor, or null for processors
+     * that have no preference. See {@link FrameStreams#negotiate(List, SizeSelector, List, boolean)}.
+     *
+     * @return the preferences
+     */
+    @NonNull
+    public List<SizeSelector> getStreamPreferences() {
+        List<SizeSelector> preferences = new ArrayList<>(mWorkers.size());
+        for (FrameProcessorWorker worker : mWorkers) {
+            preferences.add(worker.getStreamPreference());
+        }
+        return preferences;
+    }
+
+    /**
+     * Returns the number of frames that processors can hold on purpose at the same time,
+     * on top of the one frame that each processor holds while processing:
+     * the frames in flight of async processors, and the frames of a batch.
+     * See {@link FrameManager#setReservedCount(int)}.
+     *
+     * @return the reserved frames count
+     */
+    public int getReservedFrames() {
+        int count = 0;
+        for (FrameProcessorWorker worker : mWorkers) {
+            count += worker.getMaxHeldFrames() - 1;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of processors.
+     *
+     * @return the number of processors
+     */
+    public int size() {
+        return mWorkers.size();
+    }
+
+    /**
+     * Whether there are no processors.
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return mWorkers.isEmpty();
+    }
+
+    /**
+     * Dispatches the frame to all processors. The dispatcher takes ownership of
+     * the frame, which will be released when all processors are done.
+     *
+     * @param frame the frame
+     */
+    public void dispatch(@NonNull Frame frame) {
+        LOG.v("dispatch:", frame.getTime(), "processors:", mWorkers.size());
+        mDispatchedCount.increment();
+        boolean used = false;
+        for (FrameProcessorWorker worker : mWorkers) {
+            if (!worker.accepts(frame)) continue;
+            used = true;
+            FrameVariant variant = worker.getVariant();
+            Frame target = variant == null ? frame : frame.derive(variant);
+            target.retain();
+            worker.enqueue(target);
+        }
+        if (!used) mUnusedCount.increment();
+        // Release our own reference. If there are no processors,
+        // this instance will be reused right away.
+        frame.release();
+    }
+
+    /**
+     * Returns the current statistics for the given processor.
+     *
+     * @param processor the processor
+     * @return the stats, or null if the processor was not found
+     */
+    @Nullable
+    public FrameProcessorStats getStats(@NonNull FrameProcessor processor) {
+        return getProcessorStats(processor);
+    }
+
+    /**
+     * Returns the current statistics for the given async processor.
+     *
+     * @param processor the processor
+     * @return the stats, or null if the processor was not found
+     */
+    @Nullable
+    public FrameProcessorStats getAsyncStats(@NonNull AsyncFrameProcessor processor) {
+        return getProcessorStats(processor);
+    }
+
+    /**
+     * Returns the current statistics for the given batch processor.
+     *
+     * @param processor the processor
+     * @return the stats, or null if the processor was not found
+     */
+    @Nullable
+    public FrameProcessorStats getBatchStats(@NonNull BatchFrameProcessor processor) {
+        return getProcessorStats(processor);
+    }
+
+    @Nullable
+    private FrameProcessorStats getProcessorStats(@NonNull Object processor) {
+        for (FrameProcessorWorker worker : mWorkers) {
+            if (worker.getProcessor().equals(processor)) {
+                return worker.getStats();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the current statistics for the whole pipeline, including the given
+     * manager, which should be the one producing the dispatched frames.
+     * This does not lock, so it can be called often and from any thread.
+     *
+     * @param manager the frame manager
+     * @return the stats
+     */
+    @NonNull
+    public FramePipelineStats getPipelineStats(@NonNull FrameManager manager) {
+        return getPipelineStats(Collections.singletonList(manager));
+    }
+
+    /**
+     * Returns the current statistics for the whole pipeline, including the given
+     * managers, which should be all the ones producing the dispatched frames.
+     * This does not lock, so it can be called often and from any thread.
+     *
+     * @param managers the frame managers
+     * @return the stats
+     */
+    @NonNull
+    public FramePipelineStats getPipelineStats(@NonNull List<FrameManager> managers) {
+        Map<Object, FrameProcessorStats> processorStats = new HashMap<>();
+        for (FrameProcessorWorker worker : mWorkers) {
+            processorStats.put(worker.getProcessor(), worker.getStats());
+        }
+        return new FramePipelineStats(managers, mDispatchedCount.get(),
+                mUnusedCount.get(), processorStats);
+    }
+}
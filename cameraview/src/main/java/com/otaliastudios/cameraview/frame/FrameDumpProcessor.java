@@ -0,0 +1,350 @@
+package com.otaliastudios.cameraview.frame;
+
+import android.graphics.ImageFormat;
+
+import com.otaliastudios.cameraview.CameraLogger;
+import com.otaliastudios.cameraview.size.Size;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link FrameProcessor} that writes frames to disk, so that the exact frames seen by
+ * a device can be inspected or replayed later. Frames are written in one of the {@link Format}s,
+ * along with a small index file that holds their sequence number, timestamps and rotation.
+ *
+ * Files are preallocated and memory-mapped when the first frame arrives, and work as a ring
+ * of the given number of frames: once full, the oldest frame is overwritten. Writing a frame is
+ * then a memory copy that does not allocate, and the system flushes pages to disk in background.
+ * After wrapping, frames are not in chronological order in the file until {@link #release()}
+ * is called, which rotates the ring in place, so that standard tools read the frames in order.
+ * Until then, they should be sorted by their sequence number, as found in the index.
+ *
+ * All frames should have the same size. Frames with a different size are skipped.
+ * Once the processor is removed, it should be released with {@link #release()}.
+ *
+ * The index file is named as the frame file, plus {@link #INDEX_EXTENSION}. It is made of a
+ * 32 bytes header (magic, version, format, width, height, data header length, frame length,
+ * frame count, as big endian ints) followed by a 32 bytes entry for each slot in the ring
+ * (sequence number, timestamp in nanoseconds, time in milliseconds, as longs, then rotation
+ * and a flag which is 1 if the slot was written, as ints).
+ */
+public class FrameDumpProcessor implements FrameProcessor {
+
+    private static final String TAG = FrameDumpProcessor.class.getSimpleName();
+    private static final CameraLogger LOG = CameraLogger.create(TAG);
+
+    /**
+     * The file format.
+     */
+    public enum Format {
+
+        /**
+         * The YUV4MPEG2 format, which most video tools can read. The header has the frame size
+         * and the frame rate (see {@link #setFrameRate(int)}), and each frame is stored
+         * in the planar 4:2:0 layout.
+         */
+        Y4M,
+
+        /**
+         * The NV21 data, as returned by {@link Frame#getData()}, one frame after the other
+         * and with no header. The frame size can be found in the index.
+         */
+        NV21
+    }
+
+    /**
+     * The extension that is appended to the file name to get the index file name.
+     */
+    public static final String INDEX_EXTENSION = ".index";
+
+    static final int INDEX_MAGIC = 0x43564649; // CVFI
+    static final int INDEX_VERSION = 1;
+    static final int INDEX_HEADER_LENGTH = 32;
+    static final int INDEX_ENTRY_LENGTH = 32;
+    private static final byte[] Y4M_FRAME_HEADER = { 'F', 'R', 'A', 'M', 'E', '\n' };
+
+    private final Object mLock = new Object();
+    private final File mFile;
+    private final File mIndexFile;
+    private final Format mFormat;
+    private final int mMaxFrames;
+    private int mFrameRate = 30;
+
+    private RandomAccessFile mDataFile;
+    private RandomAccessFile mIndexDataFile;
+    private MappedByteBuffer mData;
+    private MappedByteBuffer mIndex;
+    private Size mSize;
+    private int mHeaderLength;
+    private int mFrameLength;
+    private int mSlotLength;
+    private byte[] mChroma;
+    private volatile long mWrittenCount;
+    private volatile long mSkippedCount;
+    private volatile boolean mReleased;
+
+    /**
+     * Creates a new processor. Any existing file will be overwritten.
+     *
+     * @param file the frame file
+     * @param format the file format
+     * @param maxFrames the number of frames in the ring
+     */
+    public FrameDumpProcessor(@NonNull File file, @NonNull Format format, int maxFrames) {
+        if (maxFrames < 1) {
+            throw new IllegalArgumentException("Max frames should be at least 1.");
+        }
+        mFile = file;
+        mIndexFile = new File(file.getPath() + INDEX_EXTENSION);
+        mFormat = format;
+        mMaxFrames = maxFrames;
+    }
+
+    /**
+     * Sets the frame rate to be written in the {@link Format#Y4M} header.
+     * This has no effect after the first frame. Defaults to 30.
+     *
+     * @param frameRate the frame rate
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameDumpProcessor setFrameRate(int frameRate) {
+        if (frameRate < 1) {
+            throw new IllegalArgumentException("Frame rate should be at least 1.");
+        }
+        mFrameRate = frameRate;
+        return this;
+    }
+
+    /**
+     * Returns the frame file.
+     *
+     * @return the file
+     */
+    @NonNull
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the index file.
+     *
+     * @return the index file
+     */
+    @NonNull
+    public File getIndexFile() {
+        return mIndexFile;
+    }
+
+    /**
+     * Returns the number of frames written so far, including
+     * the ones that were later overwritten.
+     *
+     * @return the written frames count
+     */
+    public long getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    /**
+     * Returns the number of frames that were skipped, because their
+     * size or format did not match the first frame.
+     *
+     * @return the skipped frames count
+     */
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    @Override
+    public void process(@NonNull Frame frame) {
+        synchronized (mLock) {
+            if (mReleased) return;
+            Size size = frame.getSize();
+            boolean valid = frame.getFormat() == ImageFormat.NV21;
+            if (valid && mSize == null && !open(size)) return;
+            if (!valid || !size.equals(mSize)) {
+                LOG.w("process:", "Skipping frame with size", size, "format", frame.getFormat());
+                mSkippedCount++;
+                return;
+            }
+            byte[] data = frame.getData();
+            int slot = (int) (mWrittenCount % mMaxFrames);
+            writeData(data, slot);
+            writeIndex(frame, slot);
+            mWrittenCount++;
+        }
+    }
+
+    private boolean open(@NonNull Size size) {
+        int width = size.getWidth();
+        int height = size.getHeight();
+        byte[] header = new byte[0];
+        mFrameLength = width * height * 3 / 2;
+        mSlotLength = mFrameLength;
+        if (mFormat == Format.Y4M) {
+            header = ("YUV4MPEG2 W" + width + " H" + height + " F" + mFrameRate + ":1"
+                    + " Ip A1:1 C420jpeg\n").getBytes();
+            mSlotLength += Y4M_FRAME_HEADER.length;
+            mChroma = new byte[mFrameLength - width * height];
+        }
+        long length = header.length + (long) mSlotLength * mMaxFrames;
+        if (length > Integer.MAX_VALUE) {
+            LOG.e("open:", "Too many frames for a single file:", mMaxFrames, "of", size);
+            release();
+            return false;
+        }
+        LOG.i("open:", "Mapping", length, "bytes for", mMaxFrames, "frames of", size);
+        try {
+            mDataFile = new RandomAccessFile(mFile, "rw");
+            mDataFile.setLength(0);
+            mDataFile.setLength(length);
+            mData = mDataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            mData.put(header);
+            mIndexDataFile = new RandomAccessFile(mIndexFile, "rw");
+            mIndexDataFile.setLength(0);
+            int indexLength = INDEX_HEADER_LENGTH + INDEX_ENTRY_LENGTH * mMaxFrames;
+            mIndexDataFile.setLength(indexLength);
+            mIndex = mIndexDataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexLength);
+        } catch (IOException e) {
+            LOG.e("open:", "Could not map the files.", e);
+            release();
+            return false;
+        }
+        mIndex.putInt(INDEX_MAGIC);
+        mIndex.putInt(INDEX_VERSION);
+        mIndex.putInt(mFormat.ordinal());
+        mIndex.putInt(width);
+        mIndex.putInt(height);
+        mIndex.putInt(header.length);
+        mIndex.putInt(mFrameLength);
+        mIndex.putInt(mMaxFrames);
+        mHeaderLength = header.length;
+        mSize = size;
+        return true;
+    }
+
+    private void writeData(@NonNull byte[] data, int slot) {
+        MappedByteBuffer buffer = mData;
+        buffer.position(mHeaderLength + slot * mSlotLength);
+        if (mFormat == Format.NV21) {
+            buffer.put(data, 0, mFrameLength);
+            return;
+        }
+        // Y4M wants the planar layout: Y, then U, then V. NV21 has interleaved V and U.
+        int lumaLength = mSize.getWidth() * mSize.getHeight();
+        int chromaLength = mChroma.length / 2;
+        byte[] chroma = mChroma;
+        for (int i = 0; i < chromaLength; i++) {
+            chroma[i] = data[lumaLength + 2 * i + 1];
+            chroma[chromaLength + i] = data[lumaLength + 2 * i];
+        }
+        buffer.put(Y4M_FRAME_HEADER);
+        buffer.put(data, 0, lumaLength);
+        buffer.put(chroma);
+    }
+
+    private void writeIndex(@NonNull Frame frame, int slot) {
+        MappedByteBuffer index = mIndex;
+        int position = INDEX_HEADER_LENGTH + slot * INDEX_ENTRY_LENGTH;
+        index.putLong(position, frame.getSequenceNumber());
+        index.putLong(position + 8, frame.getTimestamp());
+        index.putLong(position + 16, frame.getTime());
+        index.putInt(position + 24, frame.getRotation());
+        index.putInt(position + 28, 1);
+    }
+
+    /**
+     * Releases the processor, flushing the files to disk and closing them.
+     * If the ring was not filled, files are truncated to the written frames.
+     * Any future frame will be ignored.
+     */
+    public void release() {
+        synchronized (mLock) {
+            if (mReleased) return;
+            mReleased = true;
+            if (mData != null && mIndex != null) {
+                sortRing();
+                mData.force();
+                mIndex.force();
+                long count = Math.min(mWrittenCount, mMaxFrames);
+                if (count < mMaxFrames) {
+                    try {
+                        mDataFile.setLength(mHeaderLength + count * mSlotLength);
+                        mIndexDataFile.setLength(INDEX_HEADER_LENGTH + count * INDEX_ENTRY_LENGTH);
+                    } catch (IOException e) {
+                        LOG.w("release:", "Could not truncate the files.", e);
+                    }
+                }
+            }
+            mData = null;
+            mIndex = null;
+            mChroma = null;
+            close(mDataFile);
+            close(mIndexDataFile);
+            mDataFile = null;
+            mIndexDataFile = null;
+        }
+    }
+
+    /**
+     * If the ring wrapped, the oldest frame is in the slot that would be written next.
+     * Rotates the slots and the index entries, so that this frame comes first.
+     */
+    private void sortRing() {
+        int start = (int) (mWrittenCount % mMaxFrames);
+        if (mWrittenCount <= mMaxFrames || start == 0) return;
+        LOG.i("sortRing:", "Rotating", mMaxFrames, "frames by", start, "slots.");
+        byte[][] slots = { new byte[mSlotLength], new byte[mSlotLength] };
+        byte[][] entries = { new byte[INDEX_ENTRY_LENGTH], new byte[INDEX_ENTRY_LENGTH] };
+        // Rotate left by start slots, by reversing the two parts and then the whole ring.
+        reverseRing(0, start, slots, entries);
+        reverseRing(start, mMaxFrames, slots, entries);
+        reverseRing(0, mMaxFrames, slots, entries);
+    }
+
+    private void reverseRing(int from, int to, @NonNull byte[][] slots, @NonNull byte[][] entries) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            swap(mData, mHeaderLength, mSlotLength, i, j, slots);
+            swap(mIndex, INDEX_HEADER_LENGTH, INDEX_ENTRY_LENGTH, i, j, entries);
+        }
+    }
+
+    private static void swap(@NonNull MappedByteBuffer buffer, int offset, int length,
+                             int first, int second, @NonNull byte[][] temp) {
+        int firstPosition = offset + first * length;
+        int secondPosition = offset + second * length;
+        buffer.position(firstPosition);
+        buffer.get(temp[0]);
+        buffer.position(secondPosition);
+        buffer.get(temp[1]);
+        buffer.position(firstPosition);
+        buffer.put(temp[1]);
+        buffer.position(secondPosition);
+        buffer.put(temp[0]);
+    }
+
+    private static void close(RandomAccessFile file) {
+        if (file == null) return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            LOG.w("close:", "Could not close file.", e);
+        }
+    }
+
+    /**
+     * Whether {@link #release()} was called.
+     *
+     * @return true if released
+     */
+    public boolean isReleased() {
+        return mReleased;
+    }
+}
@@ -0,0 +1,176 @@
+package com.otaliastudios.cameraview.frame;
+
+import com.otaliastudios.cameraview.size.Size;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A {@link FrameSource} that synthesizes NV21 frames of any size, for tests that
+ * need frames but no particular content, like soak and allocation tests.
+ *
+ * Frames are deterministic: the content of each frame only depends on the {@link Pattern},
+ * the size, the seed and the frame index, so that runs can be compared with each other.
+ * Generating a frame does not allocate. The frame rate defaults to 30, and the number of
+ * frames is unbounded unless {@link #setFrameCount(int)} is called.
+ */
+public class FrameGenerator extends FrameSource {
+
+    private static final float DEFAULT_FRAME_RATE = 30;
+
+    /**
+     * The frame content.
+     */
+    public enum Pattern {
+
+        /**
+         * A diagonal luma gradient that shifts by one level every frame,
+         * with horizontal and vertical chroma gradients.
+         */
+        GRADIENT,
+
+        /**
+         * Black and white vertical bars, one eighth of the width each,
+         * that move by one pixel every frame.
+         */
+        MOVING_BARS,
+
+        /**
+         * Pseudo-random noise, different for every frame.
+         */
+        NOISE
+    }
+
+    private final Size mSize;
+    private final Pattern mPattern;
+    private final long mSeed;
+    private int mFrameCount = Integer.MAX_VALUE;
+
+    /**
+     * Creates a new generator with a seed of 0.
+     *
+     * @param size the frame size, with even width and height
+     * @param pattern the pattern
+     */
+    public FrameGenerator(@NonNull Size size, @NonNull Pattern pattern) {
+        this(size, pattern, 0);
+    }
+
+    /**
+     * Creates a new generator.
+     *
+     * @param size the frame size, with even width and height
+     * @param pattern the pattern
+     * @param seed the seed for {@link Pattern#NOISE}
+     */
+    public FrameGenerator(@NonNull Size size, @NonNull Pattern pattern, long seed) {
+        super(DEFAULT_FRAME_RATE);
+        if (size.getWidth() <= 0 || size.getHeight() <= 0
+                || size.getWidth() % 2 != 0 || size.getHeight() % 2 != 0) {
+            throw new IllegalArgumentException("Width and height should be positive and even: " + size);
+        }
+        mSize = size;
+        mPattern = pattern;
+        mSeed = seed;
+    }
+
+    /**
+     * Sets the number of frames to be generated by {@link #run(FrameManager, Callback)}.
+     * Defaults to {@link Integer#MAX_VALUE}, which is never reached in practice.
+     *
+     * @param frameCount the frame count
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameGenerator setFrameCount(int frameCount) {
+        if (frameCount < 1) {
+            throw new IllegalArgumentException("Frame count should be at least 1.");
+        }
+        mFrameCount = frameCount;
+        return this;
+    }
+
+    /**
+     * Returns the pattern.
+     *
+     * @return the pattern
+     */
+    @NonNull
+    public Pattern getPattern() {
+        return mPattern;
+    }
+
+    @NonNull
+    @Override
+    public Size getSize() {
+        return mSize;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    @Override
+    public void read(int frame, @NonNull byte[] output) {
+        switch (mPattern) {
+            case GRADIENT: gradient(frame, output); break;
+            case MOVING_BARS: bars(frame, output); break;
+            case NOISE: noise(frame, output); break;
+        }
+    }
+
+    private void gradient(int frame, @NonNull byte[] output) {
+        int width = mSize.getWidth();
+        int height = mSize.getHeight();
+        int span = width + height - 1;
+        int index = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                output[index++] = (byte) ((x + y) * 255 / span + frame);
+            }
+        }
+        for (int y = 0; y < height / 2; y++) {
+            byte v = (byte) (y * 2 * 255 / height);
+            for (int x = 0; x < width / 2; x++) {
+                output[index++] = v;
+                output[index++] = (byte) (x * 2 * 255 / width);
+            }
+        }
+    }
+
+    private void bars(int frame, @NonNull byte[] output) {
+        int width = mSize.getWidth();
+        int height = mSize.getHeight();
+        int barWidth = Math.max(1, width / 8);
+        // The first row is computed, the others are copies.
+        for (int x = 0; x < width; x++) {
+            output[x] = (byte) (((x + frame) / barWidth) % 2 == 0 ? 235 : 16);
+        }
+        for (int y = 1; y < height; y++) {
+            System.arraycopy(output, 0, output, y * width, width);
+        }
+        int lumaLength = width * height;
+        int length = lumaLength * 3 / 2;
+        for (int i = lumaLength; i < length; i++) {
+            output[i] = (byte) 128;
+        }
+    }
+
+    private void noise(int frame, @NonNull byte[] output) {
+        // xorshift64*, seeded with a mix of the seed and the frame index.
+        long state = mSeed ^ ((frame + 1) * 0x9E3779B97F4A7C15L);
+        if (state == 0) state = 1;
+        int length = mSize.getWidth() * mSize.getHeight() * 3 / 2;
+        int index = 0;
+        while (index < length) {
+            state ^= state >>> 12;
+            state ^= state << 25;
+            state ^= state >>> 27;
+            long value = state * 0x2545F4914F6CDD1DL;
+            for (int i = 0; i < 8 && index < length; i++) {
+                output[index++] = (byte) value;
+                value >>>= 8;
+            }
+        }
+    }
+}
@@ -1,13 +1,22 @@
 package com.otaliastudios.cameraview.frame;
 
 
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.os.Build;
+
 import com.otaliastudios.cameraview.CameraLogger;
+import com.otaliastudios.cameraview.internal.utils.RingBuffer;
+import com.otaliastudios.cameraview.internal.utils.StripedCounter;
 import com.otaliastudios.cameraview.size.Size;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class manages the allocation of byte buffers and {@link Frame} objects.
@@ -23,8 +32,30 @@ import java.util.concurrent.LinkedBlockingQueue;
  * - {@link #release()}: to release. After release, a manager can be setUp again.
  * - {@link #getFrame(byte[], long, int, Size, int)}: gets a new {@link Frame}.
  *
+ * Frames are numbered in order, see {@link Frame#getSequenceNumber()}. Frames that the camera
+ * produced but could not be delivered, as reported by {@link #onFrameUnavailable()}, also take
+ * a number, so that gaps in the sequence reveal dropped frames.
+ *
  * For both byte buffers and frames to get back to the FrameManager pool, all you have to do
- * is call {@link Frame#release()} when done.
+ * is call {@link Frame#release()} when done. Since frames are reference counted, this happens
+ * when the last holder releases the frame.
+ *
+ * The pool starts with {@link #mPoolSize} buffers, and is resized at runtime between this
+ * value and the max pool size, as long as the total allocated memory stays within
+ * {@link #setMaxMemory(long)}. By default, the max memory is 0 and the pool does not grow.
+ * Both bounds are raised by {@link #setReservedCount(int)}, for frames that processors
+ * hold on purpose, like the frames of a batch, so that these never starve the camera.
+ * - The pool grows when all buffers are held (starvation), for example by frames that were
+ *   retained with {@link Frame#retain()} or by slow processors, and when the average time
+ *   frames are held for, compared to the interval between frames, says that more buffers
+ *   will be needed to keep up with the camera.
+ * - The pool shrinks, one buffer at a time, when fewer buffers would be enough and there
+ *   was no starvation for a while, by dropping buffers as they are released.
+ *
+ * Frames and buffers are kept in lock-free {@link RingBuffer}s, so that recycling them
+ * does not allocate or lock, neither on the camera thread nor on the threads releasing frames.
+ * The rings are sized when the manager is created, so the pool can not grow past the
+ * max pool size plus {@link #MAX_RESERVED_COUNT}.
  *
  * Other than this, the FrameManager can work in two modes, depending on whether a {@link BufferCallback}
  * is passed to the constructor. The modes changes the buffer behavior.
@@ -39,6 +70,10 @@ import java.util.concurrent.LinkedBlockingQueue;
  *    This buffer can be filled with data and used to get a frame {@link #getFrame(byte[], long, int, Size, int)},
  *    or, in case it was not filled, returned to the queue using {@link #onBufferUnused(byte[])}.
  *    This is used for Camera2.
+ *
+ * In {@link #BUFFER_MODE_ENQUEUE}, frames can also be created out of an {@link Image} through
+ * {@link #getFrame(Image, long, int, Size)}. These frames hold the image planes until released,
+ * and only take a buffer from the queue if their NV21 data is requested.
  */
 public class FrameManager {
 
@@ -53,10 +88,53 @@ public class FrameManager {
         void onBufferAvailable(@NonNull byte[] buffer);
     }
 
+    /**
+     * Default max pool size, when not passed to the constructor.
+     */
+    private final static int DEFAULT_MAX_POOL_SIZE = 32;
+
+    /**
+     * Max value for {@link #setReservedCount(int)}.
+     */
+    private final static int MAX_RESERVED_COUNT = 16;
+
+    /**
+     * Hold times and frame intervals are averaged with this weight (1/8)
+     * for the most recent value.
+     */
+    private final static int AVERAGE_SHIFT = 3;
+
+    /**
+     * The pool only shrinks if there was no starvation for this time,
+     * and at most once in this time.
+     */
+    private final static long SHRINK_DELAY_NANOS = 2000000000L;
+
     private final int mPoolSize;
-    private int mBufferSize = -1;
-    private LinkedBlockingQueue<Frame> mFrameQueue;
-    private LinkedBlockingQueue<byte[]> mBufferQueue;
+    private final int mMaxBufferCount;
+    private volatile int mBufferSize = -1;
+    private final AtomicInteger mBufferCount = new AtomicInteger(0);
+    private volatile long mMaxMemory = 0;
+    private volatile int mReservedCount = 0;
+    private final AtomicInteger mStarvationCount = new AtomicInteger(0);
+    private final StripedCounter mAllocatedFrames = new StripedCounter();
+    private final StripedCounter mRecycledFrames = new StripedCounter();
+    private final StripedCounter mAllocatedBuffers = new StripedCounter();
+    private final StripedCounter mRecycledBuffers = new StripedCounter();
+    private volatile long mLastStarvationTime = 0;
+    private volatile FrameStreams mStreams = null;
+    private volatile int mStream = FrameStreams.PRIMARY;
+    private volatile long mLastShrinkTime = 0;
+    private volatile long mHoldTime = 0;
+    private volatile long mFrameInterval = 0;
+    private long mLastFrameTime = 0;
+    private final AtomicLong mSequenceNumber = new AtomicLong(0);
+    private final AtomicInteger mAvailableCount = new AtomicInteger(0);
+    private final RingBuffer<Frame> mFrameQueue;
+    private RingBuffer<byte[]> mBufferQueue;
+    // Threads waiting in awaitBuffer(). Only modified while holding mBufferLock.
+    private final Object mBufferLock = new Object();
+    private volatile int mBufferWaiters = 0;
     private BufferCallback mBufferCallback;
     private final int mBufferMode;
 
@@ -81,19 +159,189 @@ public class FrameManager {
      * @param callback a callback
      */
     public FrameManager(int poolSize, @Nullable BufferCallback callback) {
-        mPoolSize = poolSize;
-        mFrameQueue = new LinkedBlockingQueue<>(mPoolSize);
+        this(poolSize, Math.max(poolSize, DEFAULT_MAX_POOL_SIZE), callback);
+    }
+
+    /**
+     * Construct a new frame manager whose pool can be resized between the given bounds.
+     * The construction must be followed by an {@link #setUp(int, Size)} call
+     * as soon as the parameters are known.
+     *
+     * @param minPoolSize the initial and minimum size of the backing pool.
+     * @param maxPoolSize the maximum size of the backing pool.
+     * @param callback a callback
+     */
+    public FrameManager(int minPoolSize, int maxPoolSize, @Nullable BufferCallback callback) {
+        if (minPoolSize < 1 || maxPoolSize < minPoolSize) {
+            throw new IllegalArgumentException("Pool size bounds should be 1 <= min <= max.");
+        }
+        mPoolSize = minPoolSize;
+        mMaxBufferCount = maxPoolSize;
+        mFrameQueue = new RingBuffer<>(mMaxBufferCount + MAX_RESERVED_COUNT);
         if (callback != null) {
             mBufferCallback = callback;
             mBufferMode = BUFFER_MODE_DISPATCH;
         } else {
-            mBufferQueue = new LinkedBlockingQueue<>(mPoolSize);
+            mBufferQueue = new RingBuffer<>(mMaxBufferCount + MAX_RESERVED_COUNT);
             mBufferMode = BUFFER_MODE_ENQUEUE;
         }
     }
 
     /**
-     * Allocates a {@link #mPoolSize} number of buffers. Should be called once
+     * Sets the maximum memory, in bytes, that can be allocated for buffers.
+     * When all buffers are held, the pool will grow as long as it stays within
+     * this value. The pool never shrinks below {@link #getMinCount()} buffers,
+     * so values smaller than that are ignored and the pool will not grow.
+     * The pool also never grows past the max pool size.
+     * If the pool is already bigger, it will shrink as buffers are released.
+     *
+     * @param maxMemoryBytes the max memory in bytes
+     */
+    public void setMaxMemory(long maxMemoryBytes) {
+        mMaxMemory = maxMemoryBytes;
+    }
+
+    /**
+     * Returns the maximum memory, in bytes, that can be allocated for buffers,
+     * as set by {@link #setMaxMemory(long)}.
+     *
+     * @return the max memory in bytes
+     */
+    public long getMaxMemory() {
+        return mMaxMemory;
+    }
+
+    /**
+     * Sets the number of frames that processors can hold on purpose at the same time,
+     * on top of the ones needed to keep up with the camera. For example, a processor that
+     * receives batches of N frames holds N - 1 frames while waiting for the batch to fill.
+     * Both the min and the max pool size are raised by this value, regardless of
+     * {@link #setMaxMemory(long)}. Buffers are allocated on {@link #setUp(int, Size)}, or
+     * when the camera runs out of buffers if this is called after. The value is capped to 16.
+     *
+     * @param count the reserved frames count
+     */
+    public void setReservedCount(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Reserved count should be >= 0.");
+        }
+        if (count > MAX_RESERVED_COUNT) {
+            LOG.w("setReservedCount:", count, "frames requested. Capping to", MAX_RESERVED_COUNT);
+            count = MAX_RESERVED_COUNT;
+        }
+        mReservedCount = count;
+    }
+
+    /**
+     * Returns the number of reserved frames, as set by {@link #setReservedCount(int)}.
+     *
+     * @return the reserved frames count
+     */
+    public int getReservedCount() {
+        return mReservedCount;
+    }
+
+    /**
+     * Returns the number of buffers that the pool can grow to, for frames of the given
+     * format and size, given the max pool size and {@link #setMaxMemory(long)}.
+     *
+     * @param bitsPerPixel bits per pixel, depends on image format
+     * @param size the frame size
+     * @return the max number of buffers
+     */
+    public int getAllowedPoolSize(int bitsPerPixel, @NonNull Size size) {
+        long sizeInBits = size.getHeight() * size.getWidth() * bitsPerPixel;
+        return getAllowedCount((int) Math.ceil(sizeInBits / 8.0d));
+    }
+
+    /**
+     * Returns the number of buffers currently allocated by the pool,
+     * including the ones that are held by frames.
+     *
+     * @return the pool size
+     */
+    public int getPoolSize() {
+        return mBufferCount.get();
+    }
+
+    /**
+     * Returns how many times the camera ran out of buffers, since creation.
+     *
+     * @return the starvation count
+     */
+    public int getStarvationCount() {
+        return mStarvationCount.get();
+    }
+
+    /**
+     * Sets the stream that the frames of this manager come from, for engines that
+     * have more than one frame processing stream. Frames will only be dispatched to
+     * the processors that were assigned to this stream.
+     *
+     * @param streams the negotiated streams, or null if there is a single stream
+     * @param stream the stream, {@link FrameStreams#PRIMARY} or {@link FrameStreams#SECONDARY}
+     */
+    public void setStream(@Nullable FrameStreams streams, int stream) {
+        mStreams = streams;
+        mStream = stream;
+    }
+
+    /**
+     * Should be called by engines when the camera produced a frame, but it could not
+     * be delivered because all frames are held. Counts as starvation, and skips
+     * a sequence number.
+     */
+    public void onFrameUnavailable() {
+        mSequenceNumber.incrementAndGet();
+        onStarvationDetected();
+    }
+
+    private void onStarvationDetected() {
+        mStarvationCount.incrementAndGet();
+        mLastStarvationTime = getNanoTime();
+    }
+
+    /**
+     * Returns the number of {@link Frame} instances that were created, since creation.
+     *
+     * @return the allocated frames count
+     */
+    public long getAllocatedFrameCount() {
+        return mAllocatedFrames.get();
+    }
+
+    /**
+     * Returns the number of frames that were handed out by reusing
+     * a released {@link Frame} instance, since creation.
+     *
+     * @return the recycled frames count
+     */
+    public long getRecycledFrameCount() {
+        return mRecycledFrames.get();
+    }
+
+    /**
+     * Returns the number of byte buffers that were allocated, since creation.
+     *
+     * @return the allocated buffers count
+     */
+    public long getAllocatedBufferCount() {
+        return mAllocatedBuffers.get();
+    }
+
+    /**
+     * Returns the number of times that a byte buffer went back to the pool
+     * to be reused, since creation.
+     *
+     * @return the recycled buffers count
+     */
+    public long getRecycledBufferCount() {
+        return mRecycledBuffers.get();
+    }
+
+    /**
+     * Allocates the minimum number of buffers, that is {@link #mPoolSize}
+     * plus the reserved count. Should be called once
      * the preview size and the bitsPerPixel value are known.
      *
      * This method can be called again after {@link #release()} has been called.
@@ -106,16 +354,169 @@ public class FrameManager {
         // TODO throw if called twice without release?
         long sizeInBits = previewSize.getHeight() * previewSize.getWidth() * bitsPerPixel;
         mBufferSize = (int) Math.ceil(sizeInBits / 8.0d);
-        for (int i = 0; i < mPoolSize; i++) {
-            if (mBufferMode == BUFFER_MODE_DISPATCH) {
-                mBufferCallback.onBufferAvailable(new byte[mBufferSize]);
-            } else {
-                mBufferQueue.offer(new byte[mBufferSize]);
-            }
+        int count = getMinCount();
+        mBufferCount.set(count);
+        mAvailableCount.set(0);
+        mHoldTime = 0;
+        mFrameInterval = 0;
+        mLastFrameTime = 0;
+        for (int i = 0; i < count; i++) {
+            mAllocatedBuffers.increment();
+            onBufferAvailable(new byte[mBufferSize]);
         }
         return mBufferSize;
     }
 
+    /**
+     * Hands a buffer to the callback or to the queue, depending on
+     * the buffer mode.
+     *
+     * @param buffer a buffer
+     */
+    private void onBufferAvailable(@NonNull byte[] buffer) {
+        if (mBufferMode == BUFFER_MODE_DISPATCH) {
+            mAvailableCount.incrementAndGet();
+            mBufferCallback.onBufferAvailable(buffer);
+        } else if (mBufferQueue.offer(buffer)) {
+            mAvailableCount.incrementAndGet();
+            if (mBufferWaiters > 0) notifyBufferWaiters();
+        } else {
+            // Can only happen if someone passed us buffers that we did not allocate.
+            LOG.w("onBufferAvailable:", "buffer queue is full. Dropping buffer.");
+        }
+    }
+
+    /**
+     * Called when a buffer was taken from the camera (or from the queue).
+     */
+    private void onBufferTaken() {
+        int available = mAvailableCount.decrementAndGet();
+        if (available < 0) {
+            // Someone passed us a buffer that we did not allocate.
+            mAvailableCount.compareAndSet(available, 0);
+        }
+    }
+
+    @VisibleForTesting
+    long getNanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Returns the number of buffers that the pool never shrinks below.
+     */
+    private int getMinCount() {
+        return mPoolSize + mReservedCount;
+    }
+
+    /**
+     * Returns the number of buffers that we can allocate, given the max pool
+     * size and {@link #mMaxMemory}. This is never less than {@link #getMinCount()}.
+     */
+    private int getAllowedCount(int bufferSize) {
+        int reserved = mReservedCount;
+        long count = mMaxMemory / Math.max(1, bufferSize);
+        return (int) Math.max(mPoolSize + reserved, Math.min(mMaxBufferCount + reserved, count));
+    }
+
+    /**
+     * Returns the number of buffers that should be enough to keep up with the camera:
+     * the frames that are held at the same time, plus one being filled.
+     */
+    @VisibleForTesting
+    int getDesiredCount() {
+        long holdTime = mHoldTime;
+        long frameInterval = mFrameInterval;
+        int reserved = mReservedCount;
+        if (holdTime <= 0 || frameInterval <= 0) return mPoolSize + reserved;
+        long count = (holdTime + frameInterval - 1) / frameInterval + 1;
+        return (int) Math.max(mPoolSize + reserved, Math.min(mMaxBufferCount + reserved, count));
+    }
+
+    private static long average(long average, long value) {
+        if (average <= 0) return value;
+        return average + ((value - average) >> AVERAGE_SHIFT);
+    }
+
+    /**
+     * Called when all buffers are held and the camera has nothing to write into.
+     * Tries to grow the pool.
+     *
+     * @return a new buffer, or null
+     */
+    @Nullable
+    private byte[] onStarvation() {
+        onStarvationDetected();
+        return tryGrow(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Tries to grow the pool by allocating a new buffer, if the pool is smaller
+     * than the given target and this respects {@link #mMaxMemory}.
+     *
+     * @param target the target count
+     * @return a new buffer, or null
+     */
+    @Nullable
+    private byte[] tryGrow(int target) {
+        int bufferSize = mBufferSize;
+        if (bufferSize <= 0) return null;
+        int maxCount = Math.min(target, getAllowedCount(bufferSize));
+        while (true) {
+            int count = mBufferCount.get();
+            if (count >= maxCount) {
+                LOG.v("tryGrow:", "can't grow. Count:", count, "Target:", target);
+                return null;
+            }
+            if (mBufferCount.compareAndSet(count, count + 1)) {
+                LOG.i("tryGrow:", "growing to", count + 1, "buffers.",
+                        "Hold time:", mHoldTime, "Frame interval:", mFrameInterval);
+                mAllocatedBuffers.increment();
+                return new byte[bufferSize];
+            }
+        }
+    }
+
+    /**
+     * Called when a buffer comes back. If the pool is bigger than needed, we can
+     * drop it instead of recycling it.
+     *
+     * @return true if the buffer was dropped
+     */
+    private boolean tryShrink(int bufferSize) {
+        long now = getNanoTime();
+        int allowed = getAllowedCount(bufferSize);
+        int count = mBufferCount.get();
+        if (count <= getMinCount()) return false;
+        if (count <= allowed) {
+            // We can keep it. Check if it is needed.
+            if (count <= getDesiredCount()) return false;
+            if (now - mLastStarvationTime < SHRINK_DELAY_NANOS) return false;
+            if (now - mLastShrinkTime < SHRINK_DELAY_NANOS) return false;
+        }
+        if (mBufferCount.compareAndSet(count, count - 1)) {
+            mLastShrinkTime = now;
+            LOG.i("tryShrink:", "shrinking to", count - 1, "buffers.",
+                    "Hold time:", mHoldTime, "Frame interval:", mFrameInterval);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called when a frame is handed out. Keeps track of the frame interval.
+     * This is always called on the camera thread.
+     */
+    private void onFrameAcquired(@NonNull Frame frame) {
+        long now = getNanoTime();
+        frame.mAcquireTime = now;
+        long lastFrameTime = mLastFrameTime;
+        mLastFrameTime = now;
+        if (lastFrameTime > 0) {
+            mFrameInterval = average(mFrameInterval, now - lastFrameTime);
+        }
+    }
+
     /**
      * Returns a new byte buffer than can be filled.
      * This can only be called in {@link #BUFFER_MODE_ENQUEUE} mode! Where the frame
@@ -131,7 +532,62 @@ public class FrameManager {
         if (mBufferMode != BUFFER_MODE_ENQUEUE) {
             throw new IllegalStateException("Can't call getBuffer() when not in BUFFER_MODE_ENQUEUE.");
         }
-        return mBufferQueue.poll();
+        byte[] buffer = mBufferQueue.poll();
+        if (buffer != null) {
+            onBufferTaken();
+        } else {
+            buffer = onStarvation();
+        }
+        return buffer;
+    }
+
+    /**
+     * Like {@link #getBuffer()}, but if all buffers are held, waits for one to be released
+     * instead of growing the pool, for up to the given time. Waiting does not count as
+     * starvation. This is meant for sources that can wait for the processors, unlike a camera,
+     * like a {@link FrameSource} running as fast as possible.
+     * This can only be called in {@link #BUFFER_MODE_ENQUEUE} mode.
+     *
+     * @param timeoutMillis the max time to wait
+     * @return a buffer, or null if none was released in time or the manager was released
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    @Nullable
+    public byte[] awaitBuffer(long timeoutMillis) throws InterruptedException {
+        if (mBufferMode != BUFFER_MODE_ENQUEUE) {
+            throw new IllegalStateException("Can't call awaitBuffer() when not in BUFFER_MODE_ENQUEUE.");
+        }
+        byte[] buffer = mBufferQueue.poll();
+        if (buffer != null) {
+            onBufferTaken();
+            return buffer;
+        }
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        synchronized (mBufferLock) {
+            // Releasing threads only notify if they see a waiter, so we must poll
+            // again after registering, in case a buffer came back in the meantime.
+            mBufferWaiters++;
+            try {
+                while (true) {
+                    buffer = mBufferQueue.poll();
+                    if (buffer != null) {
+                        onBufferTaken();
+                        return buffer;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || mBufferSize <= 0) return null;
+                    mBufferLock.wait(Math.max(1, remaining / 1000000));
+                }
+            } finally {
+                mBufferWaiters--;
+            }
+        }
+    }
+
+    private void notifyBufferWaiters() {
+        synchronized (mBufferLock) {
+            mBufferLock.notifyAll();
+        }
     }
 
     /**
@@ -143,7 +599,8 @@ public class FrameManager {
         if (mBufferMode != BUFFER_MODE_ENQUEUE) {
             throw new IllegalStateException("Can't call onBufferUnused() when not in BUFFER_MODE_ENQUEUE.");
         }
-        mBufferQueue.offer(buffer);
+        mRecycledBuffers.increment();
+        onBufferAvailable(buffer);
     }
 
     /**
@@ -164,14 +621,111 @@ public class FrameManager {
      */
     @NonNull
     public Frame getFrame(@NonNull byte[] data, long time, int rotation, @NonNull Size previewSize, int previewFormat) {
+        return getFrame(data, time, getNanoTime(), rotation, previewSize, previewFormat);
+    }
+
+    /**
+     * Returns a new Frame for the given data, like {@link #getFrame(byte[], long, int, Size, int)},
+     * with the given sensor timestamp.
+     *
+     * @param data data
+     * @param time timestamp
+     * @param timestampNanos the sensor timestamp, in the {@link System#nanoTime()} reference
+     * @param rotation rotation
+     * @param previewSize preview size
+     * @param previewFormat format
+     * @return a new frame
+     */
+    @NonNull
+    public Frame getFrame(@NonNull byte[] data, long time, long timestampNanos,
+                          int rotation, @NonNull Size previewSize, int previewFormat) {
         Frame frame = mFrameQueue.poll();
         if (frame != null) {
             LOG.v("getFrame for time:", time, "RECYCLING.", "Data:", data != null);
+            mRecycledFrames.increment();
         } else {
             LOG.v("getFrame for time:", time, "CREATING.", "Data:", data != null);
+            mAllocatedFrames.increment();
             frame = new Frame(this);
         }
-        frame.set(data, time, rotation, previewSize, previewFormat);
+        frame.set(data, time, timestampNanos, mSequenceNumber.getAndIncrement(),
+                rotation, previewSize, previewFormat);
+        frame.mStreams = mStreams;
+        frame.mStream = mStream;
+        onFrameAcquired(frame);
+        if (mBufferMode == BUFFER_MODE_DISPATCH) {
+            // The camera gave us this buffer. If this was the last one, try to
+            // give it a new one so it can keep producing frames.
+            onBufferTaken();
+            byte[] buffer;
+            if (mAvailableCount.get() == 0) {
+                buffer = onStarvation();
+            } else {
+                buffer = tryGrow(getDesiredCount());
+            }
+            if (buffer != null) onBufferAvailable(buffer);
+        } else if (mBufferCount.get() < getDesiredCount()) {
+            // Grow ahead of time, so that the next frames find a buffer.
+            byte[] buffer = tryGrow(getDesiredCount());
+            if (buffer != null) onBufferAvailable(buffer);
+        }
+        return frame;
+    }
+
+    /**
+     * Returns a new Frame holding the planes of the given YUV_420_888 image, without copying them.
+     * The image will be closed when the frame is released. A byte buffer is taken from the queue
+     * only if {@link Frame#getData()} is called.
+     * This can only be called in {@link #BUFFER_MODE_ENQUEUE} mode, after {@link #setUp(int, Size)}.
+     *
+     * @param image a YUV_420_888 image
+     * @param time timestamp
+     * @param rotation rotation
+     * @param previewSize preview size
+     * @return a new frame
+     */
+    @RequiresApi(Build.VERSION_CODES.KITKAT)
+    @NonNull
+    public Frame getFrame(@NonNull Image image, long time, int rotation, @NonNull Size previewSize) {
+        return getFrame(image, time, getNanoTime(), rotation, previewSize);
+    }
+
+    /**
+     * Returns a new Frame holding the planes of the given YUV_420_888 image, like
+     * {@link #getFrame(Image, long, int, Size)}, with the given sensor timestamp.
+     * The image timestamp can not be used directly, because its clock depends on the device.
+     *
+     * @param image a YUV_420_888 image
+     * @param time timestamp
+     * @param timestampNanos the sensor timestamp, in the {@link System#nanoTime()} reference
+     * @param rotation rotation
+     * @param previewSize preview size
+     * @return a new frame
+     */
+    @RequiresApi(Build.VERSION_CODES.KITKAT)
+    @NonNull
+    public Frame getFrame(@NonNull Image image, long time, long timestampNanos,
+                          int rotation, @NonNull Size previewSize) {
+        if (mBufferMode != BUFFER_MODE_ENQUEUE) {
+            throw new IllegalStateException("Can't create frames from images when not in BUFFER_MODE_ENQUEUE.");
+        }
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Only YUV_420_888 images are supported.");
+        }
+        Frame frame = mFrameQueue.poll();
+        if (frame != null) {
+            LOG.v("getFrame for time:", time, "RECYCLING.", "Image:", true);
+            mRecycledFrames.increment();
+        } else {
+            LOG.v("getFrame for time:", time, "CREATING.", "Image:", true);
+            mAllocatedFrames.increment();
+            frame = new Frame(this);
+        }
+        frame.setPlanes(new ImagePlanes(image), time, timestampNanos, mSequenceNumber.getAndIncrement(),
+                rotation, previewSize, ImageFormat.NV21);
+        frame.mStreams = mStreams;
+        frame.mStream = mStream;
+        onFrameAcquired(frame);
         return frame;
     }
 
@@ -182,38 +736,54 @@ public class FrameManager {
      */
     public void release() {
         LOG.w("Releasing all frames!");
-        for (Frame frame : mFrameQueue) {
+        Frame frame;
+        while ((frame = mFrameQueue.poll()) != null) {
             frame.releaseManager();
             frame.release();
         }
-        mFrameQueue.clear();
         if (mBufferMode == BUFFER_MODE_ENQUEUE) {
             mBufferQueue.clear();
         }
         mBufferSize = -1;
+        mBufferCount.set(0);
+        mAvailableCount.set(0);
+        if (mBufferWaiters > 0) notifyBufferWaiters();
     }
 
     /**
      * Called by child frames when they are released.
      * @param frame the released frame
+     * @param buffer the buffer that this frame was holding, if it came from this manager
      */
-    void onFrameReleased(@NonNull Frame frame) {
-        byte[] buffer = frame.getData();
-        boolean willRecycle = mFrameQueue.offer(frame);
+    void onFrameReleased(@NonNull Frame frame, @Nullable byte[] buffer) {
+        long acquireTime = frame.mAcquireTime;
+        if (acquireTime > 0) {
+            // Released from any thread, so this is racy, but good enough for an average.
+            mHoldTime = average(mHoldTime, getNanoTime() - acquireTime);
+        }
+        int reqSize = mBufferSize;
+        boolean validBuffer = buffer != null && buffer.length == reqSize;
+        if (validBuffer && tryShrink(reqSize)) {
+            // The pool is bigger than needed. Drop the buffer, and the frame as well,
+            // so that the frame queue shrinks with it.
+            frame.releaseManager();
+            return;
+        }
+        // The pool can grow, so the frame queue is bounded by the current buffer count.
+        boolean willRecycle = mFrameQueue.size() < mBufferCount.get() && mFrameQueue.offer(frame);
         if (!willRecycle) {
-            // If frame queue is full, let's drop everything.
+            // If frame queue is full, let's drop everything. The buffer was held, so it was
+            // not counted as available, but it must not be counted in the pool anymore,
+            // or it would never be replaced.
             frame.releaseManager();
-        } else {
-            // If frame will be recycled, let's recycle the buffer as well.
-            int currSize = buffer.length;
-            int reqSize = mBufferSize;
-            if (currSize == reqSize) {
-                if (mBufferMode == BUFFER_MODE_DISPATCH) {
-                    mBufferCallback.onBufferAvailable(buffer);
-                } else {
-                    mBufferQueue.offer(buffer);
-                }
+            if (validBuffer) {
+                int count = mBufferCount.decrementAndGet();
+                LOG.i("onFrameReleased:", "frame queue is full. Dropping buffer. Count:", count);
             }
+        } else if (validBuffer) {
+            // If frame will be recycled, let's recycle the buffer as well.
+            mRecycledBuffers.increment();
+            onBufferAvailable(buffer);
         }
     }
 }
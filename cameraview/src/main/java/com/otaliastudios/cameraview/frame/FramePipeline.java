@@ -0,0 +1,391 @@
+package com.otaliastudios.cameraview.frame;
+
+import com.otaliastudios.cameraview.CameraLogger;
+import com.otaliastudios.cameraview.internal.utils.LatencyHistogram;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link FrameProcessor} made of a graph of stages, like downscale, then detect, then track.
+ *
+ * Root stages, added with {@link #addStage(String, Stage)}, receive the frame and run on the
+ * processor thread, as specified by its {@link FrameProcessorOptions}. Every other stage, added
+ * with {@link Node#then(String, Stage)}, runs on its own thread and receives the results of its
+ * parent through a bounded queue. A stage can have more than one child, in which case its results
+ * are passed to all of them. This way, a frame can be detected while the previous one is tracked.
+ *
+ * Frames are only valid during the root stages, which should not pass them downstream:
+ * they should output something else, for example a downscaled copy, or use {@link Frame#freeze()}.
+ * If results hold resources, like retained or frozen frames, results that are dropped by a queue
+ * or pending at release time can be released with {@link Node#setDropCallback(DropCallback)}.
+ *
+ * Stages can only be added before the first frame is processed. Once the processor is removed,
+ * the pipeline should be released with {@link #release()}, which stops its threads.
+ */
+public class FramePipeline implements FrameProcessor {
+
+    private static final String TAG = FramePipeline.class.getSimpleName();
+    private static final CameraLogger LOG = CameraLogger.create(TAG);
+
+    // How often blocked stages check whether the pipeline was released.
+    private static final long BLOCK_TIMEOUT_MILLIS = 50;
+
+    /**
+     * Defines what happens when a stage produces a result while the queue
+     * of one of its children is full.
+     */
+    public enum Overflow {
+
+        /**
+         * The parent stage waits until there is room in the queue.
+         * If the parent is a root stage, frames will queue up before the pipeline
+         * and follow its {@link FrameProcessorOptions.Backpressure} policy.
+         */
+        BLOCK,
+
+        /**
+         * The oldest result in the queue is dropped.
+         */
+        DROP_OLDEST,
+
+        /**
+         * The new result is dropped.
+         */
+        DROP_NEWEST
+    }
+
+    /**
+     * A stage of the pipeline.
+     *
+     * @param <I> the input type
+     * @param <O> the output type
+     */
+    public interface Stage<I, O> {
+
+        /**
+         * Processes the given input.
+         *
+         * @param input the input
+         * @return the output for the next stages, or null to stop here
+         */
+        @Nullable
+        @WorkerThread
+        O process(@NonNull I input);
+    }
+
+    /**
+     * Receives the results that a stage will never process, because they were dropped
+     * by its {@link Overflow} policy or were still pending when the pipeline was released.
+     *
+     * @param <T> the result type
+     */
+    public interface DropCallback<T> {
+
+        /**
+         * Called for each dropped result, on the thread that dropped it.
+         * This is where the result resources, if any, should be released.
+         *
+         * @param input the dropped result
+         */
+        void onDropped(@NonNull T input);
+    }
+
+    private final Object mLock = new Object();
+    private final List<Node<Frame, ?>> mRoots = new ArrayList<>();
+    private final List<Node<?, ?>> mNodes = new ArrayList<>();
+    private volatile boolean mStarted;
+    private volatile boolean mReleased;
+
+    /**
+     * Adds a root stage, which receives the frames.
+     *
+     * @param name the stage name
+     * @param stage the stage
+     * @param <O> the output type
+     * @return the new node, to add children
+     */
+    @NonNull
+    public <O> Node<Frame, O> addStage(@NonNull String name, @NonNull Stage<Frame, O> stage) {
+        Node<Frame, O> node = new Node<>(this, name, stage, 0, Overflow.BLOCK);
+        synchronized (mLock) {
+            checkNotStarted();
+            mNodes.add(node);
+            mRoots.add(node);
+        }
+        return node;
+    }
+
+    private void checkNotStarted() {
+        if (mStarted || mReleased) {
+            throw new IllegalStateException("Can't add stages after the pipeline has started.");
+        }
+    }
+
+    @Override
+    public void process(@NonNull Frame frame) {
+        if (!mStarted) start();
+        if (mReleased) return;
+        for (Node<Frame, ?> root : mRoots) {
+            root.handle(frame);
+        }
+    }
+
+    private void start() {
+        synchronized (mLock) {
+            if (mStarted || mReleased) return;
+            LOG.i("start:", "starting", mNodes.size(), "stages.");
+            for (Node<?, ?> node : mNodes) {
+                node.start();
+            }
+            mStarted = true;
+        }
+    }
+
+    /**
+     * Releases the pipeline, stopping the threads of its stages.
+     * Pending results are dropped, and any future frame will be ignored.
+     */
+    public void release() {
+        synchronized (mLock) {
+            if (mReleased) return;
+            mReleased = true;
+            for (Node<?, ?> node : mNodes) {
+                node.stop();
+            }
+        }
+    }
+
+    /**
+     * Whether {@link #release()} was called.
+     *
+     * @return true if released
+     */
+    public boolean isReleased() {
+        return mReleased;
+    }
+
+    /**
+     * A stage in the pipeline graph.
+     *
+     * @param <I> the input type
+     * @param <O> the output type
+     */
+    public static class Node<I, O> implements Runnable {
+
+        private final FramePipeline mPipeline;
+        private final String mName;
+        private final Stage<I, O> mStage;
+        private final Overflow mOverflow;
+        private final ArrayBlockingQueue<I> mQueue; // null for root stages
+        private final List<Node<O, ?>> mChildren = new ArrayList<>();
+        private DropCallback<I> mDropCallback;
+        private Thread mThread;
+
+        // Each node has a single consumer thread and a single producer thread.
+        // Drops can also happen on the thread that releases the pipeline.
+        private volatile long mProcessedCount;
+        private final AtomicLong mDroppedCount = new AtomicLong();
+        private volatile long mTotalLatencyNanos;
+        private volatile long mLastLatencyNanos;
+        private final LatencyHistogram mLatencies = new LatencyHistogram();
+
+        private Node(@NonNull FramePipeline pipeline,
+                     @NonNull String name,
+                     @NonNull Stage<I, O> stage,
+                     int queueSize,
+                     @NonNull Overflow overflow) {
+            mPipeline = pipeline;
+            mName = name;
+            mStage = stage;
+            mOverflow = overflow;
+            mQueue = queueSize > 0 ? new ArrayBlockingQueue<I>(queueSize) : null;
+        }
+
+        /**
+         * Adds a child stage, running on its own thread, which receives the results
+         * of this one through a queue of one item. When full, the oldest result is dropped.
+         *
+         * @param name the stage name
+         * @param stage the stage
+         * @param <R> the output type
+         * @return the new node
+         */
+        @NonNull
+        public <R> Node<O, R> then(@NonNull String name, @NonNull Stage<O, R> stage) {
+            return then(name, stage, 1, Overflow.DROP_OLDEST);
+        }
+
+        /**
+         * Adds a child stage, running on its own thread, which receives the results
+         * of this one through a queue of the given size.
+         *
+         * @param name the stage name
+         * @param stage the stage
+         * @param queueSize the queue size
+         * @param overflow what to do when the queue is full
+         * @param <R> the output type
+         * @return the new node
+         */
+        @NonNull
+        public <R> Node<O, R> then(@NonNull String name,
+                                   @NonNull Stage<O, R> stage,
+                                   int queueSize,
+                                   @NonNull Overflow overflow) {
+            if (queueSize < 1) {
+                throw new IllegalArgumentException("Queue size should be at least 1.");
+            }
+            Node<O, R> node = new Node<>(mPipeline, name, stage, queueSize, overflow);
+            synchronized (mPipeline.mLock) {
+                mPipeline.checkNotStarted();
+                mPipeline.mNodes.add(node);
+                mChildren.add(node);
+            }
+            return node;
+        }
+
+        /**
+         * Sets a callback for the results that this stage will never process. Note that
+         * when a stage has more than one child, the same result is passed to all of them,
+         * so each child will process or drop it.
+         *
+         * @param callback the callback, or null
+         * @return this for chaining
+         */
+        @NonNull
+        public Node<I, O> setDropCallback(@Nullable DropCallback<I> callback) {
+            synchronized (mPipeline.mLock) {
+                mPipeline.checkNotStarted();
+                mDropCallback = callback;
+            }
+            return this;
+        }
+
+        /**
+         * Returns the stage name.
+         *
+         * @return the name
+         */
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the current statistics for this stage: the processed and dropped
+         * results count, the time spent in the stage and the queue depth.
+         * This does not lock, so it can be called at any time from any thread.
+         *
+         * @return the stats
+         */
+        @NonNull
+        public FrameProcessorStats getStats() {
+            long count = mProcessedCount;
+            long total = mTotalLatencyNanos;
+            return new FrameProcessorStats(count, mDroppedCount.get(), 0, 0,
+                    count == 0 ? 0 : total / count, mLastLatencyNanos,
+                    mLatencies.getPercentile(0.5F), mLatencies.getPercentile(0.99F),
+                    0, 0, 0,
+                    mQueue == null ? 0 : mQueue.size());
+        }
+
+        private void start() {
+            if (mQueue == null) return;
+            mThread = new Thread(this, TAG + "-" + mName);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        private void stop() {
+            if (mThread != null) mThread.interrupt();
+            if (mQueue != null) clear();
+        }
+
+        private void clear() {
+            I input;
+            while ((input = mQueue.poll()) != null) {
+                drop(input);
+            }
+        }
+
+        private void drop(@NonNull I input) {
+            mDroppedCount.incrementAndGet();
+            if (mDropCallback == null) return;
+            try {
+                mDropCallback.onDropped(input);
+            } catch (Exception e) {
+                LOG.w("drop:", "Error during stage", mName, "drop callback.", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!mPipeline.mReleased) {
+                I input;
+                try {
+                    input = mQueue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (mPipeline.mReleased) {
+                    drop(input);
+                    return;
+                }
+                handle(input);
+            }
+        }
+
+        private void handle(@NonNull I input) {
+            long start = System.nanoTime();
+            O output = null;
+            try {
+                output = mStage.process(input);
+            } catch (Exception e) {
+                LOG.w("handle:", "Error during stage", mName, "implementation.", e);
+            }
+            long latency = System.nanoTime() - start;
+            mLastLatencyNanos = latency;
+            mTotalLatencyNanos += latency;
+            mLatencies.record(latency);
+            mProcessedCount++;
+            if (output == null) return;
+            for (Node<O, ?> child : mChildren) {
+                child.offer(output);
+            }
+        }
+
+        private void offer(@NonNull I input) {
+            switch (mOverflow) {
+                case DROP_NEWEST:
+                    if (!mQueue.offer(input)) drop(input);
+                    break;
+                case DROP_OLDEST:
+                    while (!mQueue.offer(input)) {
+                        I oldest = mQueue.poll();
+                        if (oldest != null) drop(oldest);
+                    }
+                    break;
+                case BLOCK:
+                    boolean offered = false;
+                    try {
+                        while (!offered && !mPipeline.mReleased) {
+                            offered = mQueue.offer(input, BLOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (!offered) drop(input);
+                    break;
+            }
+            // If released in the meanwhile, stop() might have cleared the queue already.
+            if (mPipeline.mReleased) clear();
+        }
+    }
+}
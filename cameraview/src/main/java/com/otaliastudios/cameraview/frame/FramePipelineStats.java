@@ -0,0 +1,266 @@
+package com.otaliastudios.cameraview.frame;
+
+import com.otaliastudios.cameraview.CameraView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the statistics for the whole frame processing pipeline, from the
+ * {@link FrameManager} pool to each {@link FrameProcessor}.
+ * Can be obtained through {@link CameraView#getFramePipelineStats()}.
+ *
+ * Counters are collected without locking, and so is this snapshot, so it can be polled
+ * often (for example, to send it to telemetry). While frames are flowing, the counters
+ * might not be perfectly consistent with each other. Processor counters only include
+ * the processors that are currently registered.
+ */
+public class FramePipelineStats {
+
+    /**
+     * The reasons why a frame was not processed.
+     * Except for {@link #UNUSED}, they are counted once for each processor.
+     */
+    public enum DropReason {
+
+        /**
+         * The frame was dropped by the processor {@link FrameProcessorOptions.Backpressure} policy.
+         */
+        BACKPRESSURE,
+
+        /**
+         * The frame was skipped because of the processor frame rate or frame interval options.
+         */
+        SKIPPED,
+
+        /**
+         * The frame was queued, but released without being processed,
+         * for example because the processor was removed.
+         */
+        RELEASED,
+
+        /**
+         * The frame was dispatched, but there were no processors that wanted it.
+         */
+        UNUSED
+    }
+
+    private final long mAllocatedFrameCount;
+    private final long mRecycledFrameCount;
+    private final long mAllocatedBufferCount;
+    private final long mRecycledBufferCount;
+    private final long mStarvationCount;
+    private final int mPoolSize;
+    private final long mDispatchedCount;
+    private final long[] mDroppedCounts;
+    private final Map<Object, FrameProcessorStats> mProcessorStats;
+
+    FramePipelineStats(@NonNull List<FrameManager> managers,
+                       long dispatchedCount,
+                       long unusedCount,
+                       @NonNull Map<Object, FrameProcessorStats> processorStats) {
+        // Engines with more than one stream have a manager for each, so add them up.
+        long allocatedFrames = 0, recycledFrames = 0, allocatedBuffers = 0, recycledBuffers = 0;
+        long starvation = 0;
+        int poolSize = 0;
+        for (FrameManager manager : managers) {
+            allocatedFrames += manager.getAllocatedFrameCount();
+            recycledFrames += manager.getRecycledFrameCount();
+            allocatedBuffers += manager.getAllocatedBufferCount();
+            recycledBuffers += manager.getRecycledBufferCount();
+            starvation += manager.getStarvationCount();
+            poolSize += manager.getPoolSize();
+        }
+        mAllocatedFrameCount = allocatedFrames;
+        mRecycledFrameCount = recycledFrames;
+        mAllocatedBufferCount = allocatedBuffers;
+        mRecycledBufferCount = recycledBuffers;
+        mStarvationCount = starvation;
+        mPoolSize = poolSize;
+        mDispatchedCount = dispatchedCount;
+        mProcessorStats = Collections.unmodifiableMap(processorStats);
+        mDroppedCounts = new long[DropReason.values().length];
+        mDroppedCounts[DropReason.UNUSED.ordinal()] = unusedCount;
+        for (FrameProcessorStats stats : processorStats.values()) {
+            mDroppedCounts[DropReason.BACKPRESSURE.ordinal()] += stats.getDroppedCount();
+            mDroppedCounts[DropReason.SKIPPED.ordinal()] += stats.getSkippedCount();
+            mDroppedCounts[DropReason.RELEASED.ordinal()] += stats.getReleasedCount();
+        }
+    }
+
+    /**
+     * Returns the number of frames that the camera produced, that is,
+     * the number of recycled plus allocated frames.
+     *
+     * @return the produced frames count
+     */
+    public long getProducedCount() {
+        return mAllocatedFrameCount + mRecycledFrameCount;
+    }
+
+    /**
+     * Returns the number of frames that were dispatched to processors.
+     *
+     * @return the dispatched frames count
+     */
+    public long getDispatchedCount() {
+        return mDispatchedCount;
+    }
+
+    /**
+     * Returns the number of frames that were not processed for the given reason.
+     *
+     * @param reason the reason
+     * @return the dropped frames count
+     */
+    public long getDroppedCount(@NonNull DropReason reason) {
+        return mDroppedCounts[reason.ordinal()];
+    }
+
+    /**
+     * Returns the number of frames that were not processed, for any reason
+     * other than {@link DropReason#SKIPPED}, which is up to the processor options.
+     *
+     * @return the dropped frames count
+     */
+    public long getDroppedCount() {
+        return getDroppedCount(DropReason.BACKPRESSURE)
+                + getDroppedCount(DropReason.RELEASED)
+                + getDroppedCount(DropReason.UNUSED);
+    }
+
+    /**
+     * Returns the number of frames that reused a released frame instance.
+     *
+     * @return the recycled frames count
+     */
+    public long getRecycledFrameCount() {
+        return mRecycledFrameCount;
+    }
+
+    /**
+     * Returns the number of frame instances that were allocated.
+     *
+     * @return the allocated frames count
+     */
+    public long getAllocatedFrameCount() {
+        return mAllocatedFrameCount;
+    }
+
+    /**
+     * Returns the number of times that a byte buffer went back to the pool.
+     *
+     * @return the recycled buffers count
+     */
+    public long getRecycledBufferCount() {
+        return mRecycledBufferCount;
+    }
+
+    /**
+     * Returns the number of byte buffers that were allocated.
+     *
+     * @return the allocated buffers count
+     */
+    public long getAllocatedBufferCount() {
+        return mAllocatedBufferCount;
+    }
+
+    /**
+     * Returns the number of times that the camera ran out of buffers,
+     * because all of them were held by frames.
+     *
+     * @return the starvation count
+     */
+    public long getStarvationCount() {
+        return mStarvationCount;
+    }
+
+    /**
+     * Returns the number of buffers currently allocated by the pool.
+     *
+     * @return the pool size
+     */
+    public int getPoolSize() {
+        return mPoolSize;
+    }
+
+    /**
+     * Returns the number of frames that are currently waiting to be processed,
+     * summed over all processors.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (FrameProcessorStats stats : mProcessorStats.values()) {
+            depth += stats.getQueueDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the statistics for the given processor.
+     *
+     * @param processor the processor
+     * @return the stats, or null if the processor was not registered
+     */
+    @Nullable
+    public FrameProcessorStats getProcessorStats(@NonNull FrameProcessor processor) {
+        return mProcessorStats.get(processor);
+    }
+
+    /**
+     * Returns the statistics for the given async processor.
+     *
+     * @param processor the processor
+     * @return the stats, or null if the processor was not registered
+     */
+    @Nullable
+    public FrameProcessorStats getAsyncProcessorStats(@NonNull AsyncFrameProcessor processor) {
+        return mProcessorStats.get(processor);
+    }
+
+    /**
+     * Returns the statistics for the given batch processor.
+     *
+     * @param processor the processor
+     * @return the stats, or null if the processor was not registered
+     */
+    @Nullable
+    public FrameProcessorStats getBatchProcessorStats(@NonNull BatchFrameProcessor processor) {
+        return mProcessorStats.get(processor);
+    }
+
+    /**
+     * Returns the statistics for all processors. Keys are
+     * {@link FrameProcessor}, {@link AsyncFrameProcessor} or {@link BatchFrameProcessor} instances.
+     *
+     * @return the stats for each processor
+     */
+    @NonNull
+    public Map<Object, FrameProcessorStats> getProcessorStats() {
+        return mProcessorStats;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " - produced:" + getProducedCount()
+                + ", dispatched:" + getDispatchedCount()
+                + ", backpressure:" + getDroppedCount(DropReason.BACKPRESSURE)
+                + ", skipped:" + getDroppedCount(DropReason.SKIPPED)
+                + ", released:" + getDroppedCount(DropReason.RELEASED)
+                + ", unused:" + getDroppedCount(DropReason.UNUSED)
+                + ", recycledFrames:" + getRecycledFrameCount()
+                + ", allocatedFrames:" + getAllocatedFrameCount()
+                + ", recycledBuffers:" + getRecycledBufferCount()
+                + ", allocatedBuffers:" + getAllocatedBufferCount()
+                + ", starvation:" + getStarvationCount()
+                + ", poolSize:" + getPoolSize()
+                + ", queueDepth:" + getQueueDepth();
+    }
+}
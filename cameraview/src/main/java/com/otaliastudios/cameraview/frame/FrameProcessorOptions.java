@@ -0,0 +1,493 @@
+package com.otaliastudios.cameraview.frame;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+
+import com.otaliastudios.cameraview.CameraView;
+import com.otaliastudios.cameraview.size.Size;
+import com.otaliastudios.cameraview.size.SizeSelector;
+import com.otaliastudios.cameraview.size.SizeSelectors;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Options that can be passed to {@link CameraView#addFrameProcessor(FrameProcessor, FrameProcessorOptions)}
+ * to control how frames are delivered to a given {@link FrameProcessor}.
+ *
+ * Setters return this instance, so calls can be chained.
+ */
+public class FrameProcessorOptions {
+
+    /**
+     * Defines what happens when frames arrive while the processor is busy.
+     */
+    public enum Backpressure {
+
+        /**
+         * Frames that arrive while the processor is busy are dropped.
+         * The processor always receives the frame that follows the end of the previous one.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Frames that arrive while the processor is busy are queued, but only the
+         * most recent ones are kept: when the queue is full, the oldest frame is dropped.
+         * With the default queue size of 1, this works as a latest-frame mailbox.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Frames that arrive while the processor is busy are queued, in order.
+         * When the queue is full, new frames are dropped. By default, the queue is unbounded
+         * and frames are only dropped when the camera runs out of buffers.
+         */
+        QUEUE
+    }
+
+    private static final int MAX_BATCH_SIZE = 16;
+
+    private static final int SHARED_EXECUTOR_THREADS = Math.max(2,
+            Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static Executor sSharedExecutor;
+
+    /**
+     * Returns a shared, bounded thread pool that can be passed to {@link #setExecutor(Executor)}.
+     * Processors using this executor run in parallel with each other, but each processor
+     * still receives frames one at a time.
+     *
+     * @return the shared executor
+     */
+    @NonNull
+    public static synchronized Executor getSharedExecutor() {
+        if (sSharedExecutor == null) {
+            final AtomicInteger count = new AtomicInteger(0);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    SHARED_EXECUTOR_THREADS,
+                    SHARED_EXECUTOR_THREADS,
+                    30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable, "FrameProcessorsPool-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sSharedExecutor = executor;
+        }
+        return sSharedExecutor;
+    }
+
+    private Executor mExecutor;
+    private Backpressure mBackpressure = Backpressure.QUEUE;
+    private int mQueueSize = -1;
+    private int mMaxInFlightFrames = 1;
+    private int mBatchSize = 1;
+    private long mBatchWindow = 0;
+    private float mMaxFrameRate = 0F;
+    private int mFrameInterval = 1;
+    private Size mFrameSize = null;
+    private boolean mHasFrameCrop = false;
+    private int mFrameCropLeft;
+    private int mFrameCropTop;
+    private int mFrameCropRight;
+    private int mFrameCropBottom;
+    private int mFrameFormat = ImageFormat.NV21;
+    private SizeSelector mPreferredSize = null;
+    private SizeSelector mStreamPreference = null;
+
+    /**
+     * Sets the executor that will be used to run the processor. Frames are dispatched to all
+     * processors at the same time, so processors with different executors run in parallel.
+     * The processor will never receive two frames at the same time, even if the executor
+     * has more than one thread.
+     *
+     * If null (the default), the processor runs on a single background thread
+     * that is shared by all processors that have no executor.
+     *
+     * @param executor an executor, or null
+     * @return this for chaining
+     * @see #getSharedExecutor()
+     */
+    @NonNull
+    public FrameProcessorOptions setExecutor(@Nullable Executor executor) {
+        mExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Returns the executor set with {@link #setExecutor(Executor)}.
+     *
+     * @return the executor, or null
+     */
+    @Nullable
+    public Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Sets the {@link Backpressure} policy, which defines which frames are dropped
+     * when the processor can not keep up with the camera. Dropped frames go back to
+     * the camera right away, so they do not hold buffers that other processors might need.
+     * Defaults to {@link Backpressure#QUEUE}.
+     *
+     * @param backpressure the policy
+     * @return this for chaining
+     * @see #setQueueSize(int)
+     */
+    @NonNull
+    public FrameProcessorOptions setBackpressure(@NonNull Backpressure backpressure) {
+        mBackpressure = backpressure;
+        return this;
+    }
+
+    /**
+     * Returns the policy set with {@link #setBackpressure(Backpressure)}.
+     *
+     * @return the backpressure policy
+     */
+    @NonNull
+    public Backpressure getBackpressure() {
+        return mBackpressure;
+    }
+
+    /**
+     * Sets the maximum number of frames that can wait while the processor is busy.
+     * This is used by {@link Backpressure#DROP_OLDEST} (defaults to 1) and
+     * {@link Backpressure#QUEUE} (defaults to unbounded).
+     *
+     * @param queueSize the queue size
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameProcessorOptions setQueueSize(int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("Queue size should be at least 1.");
+        }
+        mQueueSize = queueSize;
+        return this;
+    }
+
+    /**
+     * Returns the effective queue size for the current {@link Backpressure} policy.
+     *
+     * @return the queue size
+     * @see #setQueueSize(int)
+     */
+    public int getQueueSize() {
+        switch (mBackpressure) {
+            case DROP_NEWEST: return 0;
+            case DROP_OLDEST: return mQueueSize > 0 ? mQueueSize : 1;
+            default: return mQueueSize > 0 ? mQueueSize : Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Sets the maximum number of frames that an {@link AsyncFrameProcessor} can process
+     * at the same time, that is, frames whose task has not completed yet. When this is reached,
+     * the processor is busy and new frames follow the {@link Backpressure} policy.
+     * Each frame in flight holds a camera buffer, so this should be kept small.
+     * Defaults to 1. This is ignored by {@link FrameProcessor}s, which process one frame at a time.
+     *
+     * @param maxInFlightFrames the max number of frames in flight
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameProcessorOptions setMaxInFlightFrames(int maxInFlightFrames) {
+        if (maxInFlightFrames < 1) {
+            throw new IllegalArgumentException("Max in-flight frames should be at least 1.");
+        }
+        mMaxInFlightFrames = maxInFlightFrames;
+        return this;
+    }
+
+    /**
+     * Returns the value set with {@link #setMaxInFlightFrames(int)}.
+     *
+     * @return the max number of frames in flight
+     */
+    public int getMaxInFlightFrames() {
+        return mMaxInFlightFrames;
+    }
+
+    /**
+     * Sets the number of frames that a {@link BatchFrameProcessor} receives at once.
+     * Frames are held until the batch is full, so the frame pool grows by this amount
+     * to make room for them. Should be between 1 and 16. Defaults to 1.
+     * This is ignored by other processors.
+     *
+     * @param batchSize the batch size
+     * @return this for chaining
+     * @see #setBatchWindow(long)
+     */
+    @NonNull
+    public FrameProcessorOptions setBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch size should be between 1 and " + MAX_BATCH_SIZE + ".");
+        }
+        mBatchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Returns the value set with {@link #setBatchSize(int)}.
+     *
+     * @return the batch size
+     */
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * Sets the time window of a {@link BatchFrameProcessor} batch, in milliseconds.
+     * An incomplete batch is delivered as it is when this time has passed since its first
+     * frame was added, even if no more frames arrive. It is also delivered when a frame
+     * arrives whose timestamp is this long after the first frame of the batch, in which case
+     * that frame starts a new batch.
+     * Defaults to 0, which means that batches are always full.
+     *
+     * @param windowMillis the batch window, or 0
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameProcessorOptions setBatchWindow(long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Batch window should be >= 0.");
+        }
+        mBatchWindow = windowMillis;
+        return this;
+    }
+
+    /**
+     * Returns the value set with {@link #setBatchWindow(long)}.
+     *
+     * @return the batch window, or 0
+     */
+    public long getBatchWindow() {
+        return mBatchWindow;
+    }
+
+    /**
+     * Sets the maximum number of frames per second that this processor should receive.
+     * Frames in excess are skipped before being dispatched, so they never reach the
+     * processor thread and do not hold buffers.
+     * Defaults to 0, which means no limit.
+     *
+     * @param maxFrameRate the max frame rate, or 0
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameProcessorOptions setMaxFrameRate(float maxFrameRate) {
+        if (maxFrameRate < 0) {
+            throw new IllegalArgumentException("Max frame rate should be >= 0.");
+        }
+        mMaxFrameRate = maxFrameRate;
+        return this;
+    }
+
+    /**
+     * Returns the value set with {@link #setMaxFrameRate(float)}.
+     *
+     * @return the max frame rate, or 0
+     */
+    public float getMaxFrameRate() {
+        return mMaxFrameRate;
+    }
+
+    /**
+     * Sets the frame interval, so that this processor only receives one frame every
+     * {@code interval} frames. Like {@link #setMaxFrameRate(float)}, skipped frames
+     * are never dispatched to the processor. Defaults to 1, which means every frame.
+     *
+     * @param frameInterval the frame interval
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameProcessorOptions setFrameInterval(int frameInterval) {
+        if (frameInterval < 1) {
+            throw new IllegalArgumentException("Frame interval should be at least 1.");
+        }
+        mFrameInterval = frameInterval;
+        return this;
+    }
+
+    /**
+     * Returns the value set with {@link #setFrameInterval(int)}.
+     *
+     * @return the frame interval
+     */
+    public int getFrameInterval() {
+        return mFrameInterval;
+    }
+
+    /**
+     * Sets the size of the frames that this processor should receive. Camera frames
+     * are cropped (see {@link #setFrameCrop(Rect)}) and then resized to this size,
+     * using a box filter when the size is an exact fraction of the crop, and bilinear
+     * interpolation otherwise. Note that the aspect ratio is not preserved.
+     *
+     * Processors that request the same size, crop and format share the same derived frame,
+     * which is computed once per frame, the first time one of them reads its data.
+     * Defaults to null, which means the size of the crop or of the camera frame.
+     *
+     * @param size the frame size, or null
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameProcessorOptions setFrameSize(@Nullable Size size) {
+        if (size != null && (size.getWidth() < 2 || size.getHeight() < 2
+                || size.getWidth() % 2 != 0 || size.getHeight() % 2 != 0)) {
+            throw new IllegalArgumentException("Frame size should be positive and even.");
+        }
+        mFrameSize = size;
+        mStreamPreference = null;
+        return this;
+    }
+
+    /**
+     * Returns the value set with {@link #setFrameSize(Size)}.
+     *
+     * @return the frame size, or null
+     */
+    @Nullable
+    public Size getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * Sets a crop rect, in the camera frame coordinates, before any rotation is applied.
+     * This processor will only receive the part of the frame inside this rect, resized
+     * to the frame size if one was set with {@link #setFrameSize(Size)}.
+     * Coordinates are aligned to even values, and if the rect is outside of the frame,
+     * the whole frame is used. Defaults to null, which means the whole frame.
+     *
+     * @param crop the crop rect, or null
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameProcessorOptions setFrameCrop(@Nullable Rect crop) {
+        if (crop != null && (crop.left < 0 || crop.top < 0
+                || crop.right <= crop.left || crop.bottom <= crop.top)) {
+            throw new IllegalArgumentException("Frame crop should be a valid, non empty rect.");
+        }
+        mHasFrameCrop = crop != null;
+        if (crop != null) {
+            mFrameCropLeft = crop.left;
+            mFrameCropTop = crop.top;
+            mFrameCropRight = crop.right;
+            mFrameCropBottom = crop.bottom;
+        }
+        return this;
+    }
+
+    /**
+     * Returns the crop rect set with {@link #setFrameCrop(Rect)}.
+     *
+     * @return the crop rect, or null
+     */
+    @Nullable
+    public Rect getFrameCrop() {
+        return mHasFrameCrop ? new Rect(mFrameCropLeft, mFrameCropTop, mFrameCropRight, mFrameCropBottom) : null;
+    }
+
+    /**
+     * Sets the format of the frames that this processor should receive, in one of the
+     * {@link ImageFormat} constants. This can only be {@link ImageFormat#NV21} for now.
+     *
+     * @param format the frame format
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameProcessorOptions setFrameFormat(int format) {
+        if (format != ImageFormat.NV21) {
+            throw new IllegalArgumentException("Only NV21 frames are supported.");
+        }
+        mFrameFormat = format;
+        return this;
+    }
+
+    /**
+     * Returns the value set with {@link #setFrameFormat(int)}.
+     *
+     * @return the frame format
+     */
+    public int getFrameFormat() {
+        return mFrameFormat;
+    }
+
+    /**
+     * Sets the preferred size of the camera frames for this processor, before
+     * {@link #setFrameSize(Size)} and {@link #setFrameCrop(Rect)} are applied.
+     * Engines that support it (currently, {@link com.otaliastudios.cameraview.controls.Engine#CAMERA2})
+     * choose the frame processing stream size from the preferences of all processors,
+     * and might add a second, smaller stream for processors that want much smaller frames.
+     *
+     * Defaults to null, which means at least the frame size, if set, or the engine default.
+     *
+     * @param selector a size selector, or null
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameProcessorOptions setPreferredSize(@Nullable SizeSelector selector) {
+        mPreferredSize = selector;
+        mStreamPreference = null;
+        return this;
+    }
+
+    /**
+     * Returns the value set with {@link #setPreferredSize(SizeSelector)}.
+     *
+     * @return the preferred size selector, or null
+     */
+    @Nullable
+    public SizeSelector getPreferredSize() {
+        return mPreferredSize;
+    }
+
+    /**
+     * Returns the selector to be used for negotiating the stream size,
+     * or null if the processor has no preference.
+     *
+     * @return a selector, or null
+     */
+    @Nullable
+    SizeSelector getStreamPreference() {
+        if (mPreferredSize != null) return mPreferredSize;
+        if (mFrameSize == null) return null;
+        if (mStreamPreference == null) {
+            // The smallest size that is at least the frame size, or the biggest.
+            mStreamPreference = SizeSelectors.or(
+                    SizeSelectors.and(
+                            SizeSelectors.minWidth(mFrameSize.getWidth()),
+                            SizeSelectors.minHeight(mFrameSize.getHeight()),
+                            SizeSelectors.smallest()),
+                    SizeSelectors.biggest());
+        }
+        return mStreamPreference;
+    }
+
+    /**
+     * Returns the variant described by the frame size, crop and format options,
+     * or null if the processor wants the camera frames as they are.
+     *
+     * @return the variant, or null
+     */
+    @Nullable
+    FrameVariant getVariant() {
+        if (mFrameSize == null && !mHasFrameCrop) return null;
+        return new FrameVariant(mFrameSize, mHasFrameCrop,
+                mFrameCropLeft, mFrameCropTop, mFrameCropRight, mFrameCropBottom,
+                mFrameFormat);
+    }
+}
@@ -0,0 +1,183 @@
+package com.otaliastudios.cameraview.frame;
+
+import com.otaliastudios.cameraview.CameraView;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A snapshot of the statistics for a single {@link FrameProcessor}.
+ * Can be obtained through {@link CameraView#getFrameProcessorStats(FrameProcessor)}.
+ */
+public class FrameProcessorStats {
+
+    private final long mProcessedCount;
+    private final long mDroppedCount;
+    private final long mSkippedCount;
+    private final long mReleasedCount;
+    private final long mAverageLatencyNanos;
+    private final long mLastLatencyNanos;
+    private final long mMedianLatencyNanos;
+    private final long mP99LatencyNanos;
+    private final long mAverageEndToEndLatencyNanos;
+    private final long mMedianEndToEndLatencyNanos;
+    private final long mP99EndToEndLatencyNanos;
+    private final int mQueueDepth;
+
+    FrameProcessorStats(long processedCount, long droppedCount,
+                        long skippedCount, long releasedCount,
+                        long averageLatencyNanos, long lastLatencyNanos,
+                        long medianLatencyNanos, long p99LatencyNanos,
+                        long averageEndToEndLatencyNanos,
+                        long medianEndToEndLatencyNanos, long p99EndToEndLatencyNanos,
+                        int queueDepth) {
+        mProcessedCount = processedCount;
+        mDroppedCount = droppedCount;
+        mSkippedCount = skippedCount;
+        mReleasedCount = releasedCount;
+        mAverageLatencyNanos = averageLatencyNanos;
+        mLastLatencyNanos = lastLatencyNanos;
+        mMedianLatencyNanos = medianLatencyNanos;
+        mP99LatencyNanos = p99LatencyNanos;
+        mAverageEndToEndLatencyNanos = averageEndToEndLatencyNanos;
+        mMedianEndToEndLatencyNanos = medianEndToEndLatencyNanos;
+        mP99EndToEndLatencyNanos = p99EndToEndLatencyNanos;
+        mQueueDepth = queueDepth;
+    }
+
+    /**
+     * Returns the number of frames that were delivered to the processor
+     * and processed so far.
+     *
+     * @return the processed frames count
+     */
+    public long getProcessedCount() {
+        return mProcessedCount;
+    }
+
+    /**
+     * Returns the number of frames that were dropped for this processor
+     * because of its {@link FrameProcessorOptions.Backpressure} policy.
+     *
+     * @return the dropped frames count
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns the number of frames that were not delivered to the processor
+     * because of its frame rate or frame interval options.
+     *
+     * @return the skipped frames count
+     */
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * Returns the number of frames that were queued for the processor, but released
+     * without being processed, for example because the processor was removed.
+     *
+     * @return the released frames count
+     */
+    public long getReleasedCount() {
+        return mReleasedCount;
+    }
+
+    /**
+     * Returns the number of frames that are currently waiting to be processed.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * Returns the average time spent in {@link FrameProcessor#process(Frame)},
+     * in milliseconds.
+     *
+     * @return the average latency
+     */
+    public float getAverageLatency() {
+        return mAverageLatencyNanos / 1000000F;
+    }
+
+    /**
+     * Returns the time spent in {@link FrameProcessor#process(Frame)} for
+     * the last frame, in milliseconds.
+     *
+     * @return the last latency
+     */
+    public float getLastLatency() {
+        return mLastLatencyNanos / 1000000F;
+    }
+
+    /**
+     * Returns the median (50th percentile) of the time spent in
+     * {@link FrameProcessor#process(Frame)}, in milliseconds.
+     *
+     * @return the median latency
+     */
+    public float getMedianLatency() {
+        return mMedianLatencyNanos / 1000000F;
+    }
+
+    /**
+     * Returns the 99th percentile of the time spent in
+     * {@link FrameProcessor#process(Frame)}, in milliseconds.
+     *
+     * @return the 99th percentile latency
+     */
+    public float getP99Latency() {
+        return mP99LatencyNanos / 1000000F;
+    }
+
+    /**
+     * Returns the average time from the frame capture, as given by
+     * {@link Frame#getTimestamp()}, to the end of processing, in milliseconds.
+     * This includes the time spent in the camera pipeline, in the queue and
+     * in the processor. Frames with no timestamp are not counted.
+     *
+     * @return the average end-to-end latency
+     */
+    public float getAverageEndToEndLatency() {
+        return mAverageEndToEndLatencyNanos / 1000000F;
+    }
+
+    /**
+     * Returns the median (50th percentile) of the time from the frame capture
+     * to the end of processing, in milliseconds.
+     *
+     * @return the median end-to-end latency
+     */
+    public float getMedianEndToEndLatency() {
+        return mMedianEndToEndLatencyNanos / 1000000F;
+    }
+
+    /**
+     * Returns the 99th percentile of the time from the frame capture
+     * to the end of processing, in milliseconds.
+     *
+     * @return the 99th percentile end-to-end latency
+     */
+    public float getP99EndToEndLatency() {
+        return mP99EndToEndLatencyNanos / 1000000F;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " - processed:" + getProcessedCount()
+                + ", dropped:" + getDroppedCount()
+                + ", skipped:" + getSkippedCount()
+                + ", released:" + getReleasedCount()
+                + ", queueDepth:" + getQueueDepth()
+                + ", averageLatency:" + getAverageLatency()
+                + ", lastLatency:" + getLastLatency()
+                + ", medianLatency:" + getMedianLatency()
+                + ", p99Latency:" + getP99Latency()
+                + ", averageEndToEndLatency:" + getAverageEndToEndLatency()
+                + ", p99EndToEndLatency:" + getP99EndToEndLatency();
+    }
+}
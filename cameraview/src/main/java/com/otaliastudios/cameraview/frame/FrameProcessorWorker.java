@@ -0,0 +1,565 @@
+package com.otaliastudios.cameraview.frame;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.otaliastudios.cameraview.CameraLogger;
+import com.otaliastudios.cameraview.internal.utils.LatencyHistogram;
+import com.otaliastudios.cameraview.size.SizeSelector;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers frames to a single {@link FrameProcessor}, using its own {@link Executor}.
+ * Frames are queued and processed one at a time, so the processor never
+ * runs concurrently with itself, even if the executor has multiple threads.
+ *
+ * An {@link AsyncFrameProcessor} is also started on one frame at a time, but frames are
+ * only released when their task completes. The processor is busy while
+ * {@link FrameProcessorOptions#getMaxInFlightFrames()} frames are in flight.
+ *
+ * A {@link BatchFrameProcessor} receives frames in batches: frames that wait for their batch
+ * count as in flight, and are released after the batch has been processed. With a batch window,
+ * a timer delivers the batch when the window expires, even if no more frames arrive.
+ *
+ * When frames arrive while the processor is busy, the {@link FrameProcessorOptions.Backpressure}
+ * policy decides which ones are dropped.
+ */
+class FrameProcessorWorker implements Runnable {
+
+    private static final String TAG = FrameProcessorWorker.class.getSimpleName();
+    private static final CameraLogger LOG = CameraLogger.create(TAG);
+
+    // Completion listeners only release the frame and schedule the worker, so they run inline.
+    private static final Executor COMPLETION_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private final FrameProcessor mProcessor;
+    private final AsyncFrameProcessor mAsyncProcessor;
+    private final BatchFrameProcessor mBatchProcessor;
+    private final int mBatchSize;
+    private final long mBatchWindow;
+    private final int mMaxInFlight;
+    private final Executor mExecutor;
+    private final FrameProcessorOptions.Backpressure mBackpressure;
+    private final int mQueueSize;
+    private final long mMinFrameDistance;
+    private final int mFrameInterval;
+    private final FrameVariant mVariant;
+    private final SizeSelector mStreamPreference;
+    private final ArrayDeque<Frame> mQueue = new ArrayDeque<>();
+    private final Object mLock = new Object();
+    private boolean mScheduled;
+    private boolean mReleased;
+    private int mInFlight;
+    private final List<Frame> mBatch = new ArrayList<>();
+    // Incremented when a batch is taken, so that stale timeouts are ignored.
+    private int mBatchGeneration;
+    private ScheduledFuture<?> mBatchTimeout;
+    private boolean mBatchExpired;
+
+    private static ScheduledExecutorService sBatchTimer;
+
+    @NonNull
+    private static synchronized ScheduledExecutorService getBatchTimer() {
+        if (sBatchTimer == null) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable, "FrameBatchTimer");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            timer.setKeepAliveTime(30, TimeUnit.SECONDS);
+            timer.allowCoreThreadTimeOut(true);
+            sBatchTimer = timer;
+        }
+        return sBatchTimer;
+    }
+
+    // Frames are processed one at a time, so there's a single writer for these.
+    // Async completions write them while holding the lock.
+    private volatile long mProcessedCount;
+    private volatile long mTotalLatencyNanos;
+    private volatile long mLastLatencyNanos;
+    private final LatencyHistogram mLatencies = new LatencyHistogram();
+    // From the sensor timestamp to the end of processing, for frames that have one.
+    private volatile long mEndToEndCount;
+    private volatile long mTotalEndToEndNanos;
+    private final LatencyHistogram mEndToEndLatencies = new LatencyHistogram();
+    // Only written while holding the lock.
+    private volatile long mDroppedCount;
+    private volatile long mReleasedCount;
+    private volatile int mQueueDepth;
+
+    // Only accessed by the dispatching thread.
+    private int mFrameIndex;
+    private long mNextFrameTime = Long.MIN_VALUE;
+    private volatile long mSkippedCount;
+
+    FrameProcessorWorker(@NonNull FrameProcessor processor,
+                         @NonNull Executor executor,
+                         @NonNull FrameProcessorOptions options,
+                         @Nullable FrameVariant variant) {
+        this(processor, null, null, executor, options, variant);
+    }
+
+    @NonNull
+    static FrameProcessorWorker forAsyncProcessor(@NonNull AsyncFrameProcessor processor,
+                                                  @NonNull Executor executor,
+                                                  @NonNull FrameProcessorOptions options,
+                                                  @Nullable FrameVariant variant) {
+        return new FrameProcessorWorker(null, processor, null, executor, options, variant);
+    }
+
+    @NonNull
+    static FrameProcessorWorker forBatchProcessor(@NonNull BatchFrameProcessor processor,
+                                                  @NonNull Executor executor,
+                                                  @NonNull FrameProcessorOptions options,
+                                                  @Nullable FrameVariant variant) {
+        return new FrameProcessorWorker(null, null, processor, executor, options, variant);
+    }
+
+    private FrameProcessorWorker(@Nullable FrameProcessor processor,
+                                 @Nullable AsyncFrameProcessor asyncProcessor,
+                                 @Nullable BatchFrameProcessor batchProcessor,
+                                 @NonNull Executor executor,
+                                 @NonNull FrameProcessorOptions options,
+                                 @Nullable FrameVariant variant) {
+        mProcessor = processor;
+        mAsyncProcessor = asyncProcessor;
+        mBatchProcessor = batchProcessor;
+        mBatchSize = batchProcessor != null ? options.getBatchSize() : 1;
+        mBatchWindow = options.getBatchWindow();
+        // Synchronous processors never count frames in flight.
+        if (asyncProcessor != null) {
+            mMaxInFlight = options.getMaxInFlightFrames();
+        } else if (batchProcessor != null) {
+            mMaxInFlight = mBatchSize;
+        } else {
+            mMaxInFlight = 1;
+        }
+        mVariant = variant;
+        mStreamPreference = options.getStreamPreference();
+        mExecutor = executor;
+        mBackpressure = options.getBackpressure();
+        mQueueSize = options.getQueueSize();
+        float maxFrameRate = options.getMaxFrameRate();
+        mMinFrameDistance = maxFrameRate > 0 ? (long) (1000F / maxFrameRate) : 0;
+        mFrameInterval = options.getFrameInterval();
+    }
+
+    /**
+     * Returns the processor, either a {@link FrameProcessor}, an {@link AsyncFrameProcessor}
+     * or a {@link BatchFrameProcessor}.
+     *
+     * @return the processor
+     */
+    @NonNull
+    Object getProcessor() {
+        if (mProcessor != null) return mProcessor;
+        if (mAsyncProcessor != null) return mAsyncProcessor;
+        return mBatchProcessor;
+    }
+
+    /**
+     * Returns the number of frames that this processor can hold at the same time,
+     * not counting queued frames: the frames in flight, or the frames of a batch.
+     *
+     * @return the number of held frames
+     */
+    int getMaxHeldFrames() {
+        return mMaxInFlight;
+    }
+
+    /**
+     * Returns the variant of the frames that this processor wants,
+     * or null if it wants the camera frames.
+     *
+     * @return the variant, or null
+     */
+    @Nullable
+    FrameVariant getVariant() {
+        return mVariant;
+    }
+
+    /**
+     * Returns the stream size preference of this processor, or null.
+     *
+     * @return the preference, or null
+     */
+    @Nullable
+    SizeSelector getStreamPreference() {
+        return mStreamPreference;
+    }
+
+    /**
+     * Whether this worker wants the given frame, according to the stream it comes from
+     * (see {@link FrameStreams}) and the frame rate and frame interval options.
+     * This should be called by the dispatching thread before
+     * {@link #enqueue(Frame)}, so that skipped frames are never retained.
+     *
+     * @param frame the frame
+     * @return true if the frame should be enqueued
+     */
+    boolean accepts(@NonNull Frame frame) {
+        FrameStreams streams = frame.mStreams;
+        if (streams != null && !streams.accepts(frame.mStream, mStreamPreference)) {
+            // Frames from other streams do not count as skipped.
+            return false;
+        }
+        if (mFrameInterval > 1) {
+            boolean accept = mFrameIndex == 0;
+            mFrameIndex = (mFrameIndex + 1) % mFrameInterval;
+            if (!accept) {
+                mSkippedCount++;
+                return false;
+            }
+        }
+        if (mMinFrameDistance > 0) {
+            long time = frame.getTime();
+            if (time < mNextFrameTime) {
+                mSkippedCount++;
+                return false;
+            }
+            // Move on by a fixed step, so that the average rate matches the target rate
+            // even if frames do not arrive at regular intervals. After a long pause, restart.
+            mNextFrameTime += mMinFrameDistance;
+            if (mNextFrameTime <= time) mNextFrameTime = time + mMinFrameDistance;
+        }
+        return true;
+    }
+
+    /**
+     * Enqueues a frame for processing. The caller should retain the frame:
+     * this worker will release it when done.
+     *
+     * @param frame a retained frame
+     */
+    void enqueue(@NonNull Frame frame) {
+        Frame dropped = null;
+        boolean schedule = false;
+        synchronized (mLock) {
+            if (mReleased) {
+                dropped = frame;
+                mReleasedCount++;
+            } else if ((mScheduled || mInFlight >= mMaxInFlight) && mQueue.size() >= mQueueSize) {
+                // The processor is busy and the queue is full.
+                if (mBackpressure == FrameProcessorOptions.Backpressure.DROP_OLDEST) {
+                    dropped = mQueue.pollFirst();
+                    mQueue.addLast(frame);
+                } else {
+                    dropped = frame;
+                }
+                mDroppedCount++;
+            } else {
+                mQueue.addLast(frame);
+                mQueueDepth = mQueue.size();
+                schedule = shouldSchedule();
+            }
+        }
+        if (dropped != null) {
+            LOG.v("enqueue:", "dropping frame. Backpressure:", mBackpressure);
+            dropped.release();
+        }
+        if (schedule) schedule();
+    }
+
+    // Should be called while holding the lock.
+    private boolean shouldSchedule() {
+        if (mScheduled || mInFlight >= mMaxInFlight || mQueue.isEmpty()) return false;
+        mScheduled = true;
+        return true;
+    }
+
+    private void schedule() {
+        try {
+            mExecutor.execute(this);
+        } catch (RejectedExecutionException e) {
+            LOG.w("schedule:", "executor rejected the worker. Dropping frames.", e);
+            synchronized (mLock) {
+                mScheduled = false;
+            }
+            drain();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Frame frame = null;
+            List<Frame> expired = null;
+            synchronized (mLock) {
+                if (mBatchExpired) {
+                    mBatchExpired = false;
+                    if (!mBatch.isEmpty()) expired = takeBatch();
+                }
+                if (expired == null) {
+                    frame = mInFlight < mMaxInFlight ? mQueue.pollFirst() : null;
+                    if (frame == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                    mQueueDepth = mQueue.size();
+                    if (mProcessor == null) mInFlight++;
+                }
+            }
+            if (expired != null) {
+                processBatch(expired);
+            } else if (mAsyncProcessor != null) {
+                processAsync(frame);
+            } else if (mBatchProcessor != null) {
+                processBatch(frame);
+            } else {
+                process(frame);
+            }
+        }
+    }
+
+    private void process(@NonNull Frame frame) {
+        long start = System.nanoTime();
+        try {
+            mProcessor.process(frame);
+        } catch (Exception e) {
+            LOG.w("process:",
+                    "Error during processor implementation.",
+                    "Can happen when camera is closed while processors are running.", e);
+        }
+        record(System.nanoTime() - start);
+        recordEndToEnd(frame);
+        frame.release();
+    }
+
+    private void processAsync(@NonNull final Frame frame) {
+        final long start = System.nanoTime();
+        Task<?> task = null;
+        try {
+            task = mAsyncProcessor.process(frame);
+        } catch (Exception e) {
+            LOG.w("processAsync:",
+                    "Error during processor implementation.",
+                    "Can happen when camera is closed while processors are running.", e);
+        }
+        if (task == null) {
+            onComplete(frame, start);
+            return;
+        }
+        addCompletion(task, frame, start);
+    }
+
+    private <T> void addCompletion(@NonNull Task<T> task, @NonNull final Frame frame, final long start) {
+        task.addOnCompleteListener(COMPLETION_EXECUTOR, new OnCompleteListener<T>() {
+            @Override
+            public void onComplete(@NonNull Task<T> task) {
+                if (!task.isSuccessful()) {
+                    LOG.w("processAsync:", "task failed.", task.getException());
+                }
+                FrameProcessorWorker.this.onComplete(frame, start);
+            }
+        });
+    }
+
+    private void onComplete(@NonNull Frame frame, long start) {
+        boolean schedule;
+        synchronized (mLock) {
+            // The latency includes the time spent by the task.
+            record(System.nanoTime() - start);
+            recordEndToEnd(frame);
+            mInFlight--;
+            schedule = shouldSchedule();
+        }
+        frame.release();
+        if (schedule) schedule();
+    }
+
+    private void processBatch(@NonNull Frame frame) {
+        List<Frame> batch = null;
+        synchronized (mLock) {
+            if (mReleased) {
+                // Released while this frame was being polled.
+                mInFlight--;
+                mReleasedCount++;
+            } else {
+                if (!mBatch.isEmpty() && mBatchWindow > 0
+                        && frame.getTime() - mBatch.get(0).getTime() >= mBatchWindow) {
+                    // Outside of the window. Deliver the current batch and start a new one.
+                    batch = takeBatch();
+                }
+                mBatch.add(frame);
+                if (mBatch.size() == 1 && mBatch.size() < mBatchSize && mBatchWindow > 0) {
+                    startBatchTimeout();
+                }
+                frame = null;
+            }
+        }
+        if (frame != null) {
+            frame.release();
+            return;
+        }
+        if (batch != null) processBatch(batch);
+        synchronized (mLock) {
+            if (mBatch.size() < mBatchSize) return;
+            batch = takeBatch();
+        }
+        processBatch(batch);
+    }
+
+    // Should be called while holding the lock.
+    @NonNull
+    private List<Frame> takeBatch() {
+        List<Frame> batch = new ArrayList<>(mBatch);
+        mBatch.clear();
+        mBatchGeneration++;
+        if (mBatchTimeout != null) {
+            mBatchTimeout.cancel(false);
+            mBatchTimeout = null;
+        }
+        return batch;
+    }
+
+    // Should be called while holding the lock, when the first frame of a batch is added.
+    private void startBatchTimeout() {
+        final int generation = mBatchGeneration;
+        try {
+            mBatchTimeout = getBatchTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onBatchTimeout(generation);
+                }
+            }, mBatchWindow, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.w("startBatchTimeout:", "timer rejected the timeout.", e);
+        }
+    }
+
+    /**
+     * Called by the timer when the window of a batch has expired. The batch is delivered
+     * by the worker on its executor, so that the processor never runs concurrently with itself.
+     */
+    private void onBatchTimeout(int generation) {
+        boolean schedule = false;
+        synchronized (mLock) {
+            if (mReleased || generation != mBatchGeneration || mBatch.isEmpty()) return;
+            LOG.v("onBatchTimeout:", "delivering incomplete batch. Size:", mBatch.size());
+            mBatchTimeout = null;
+            mBatchExpired = true;
+            if (!mScheduled) {
+                mScheduled = true;
+                schedule = true;
+            }
+        }
+        if (schedule) schedule();
+    }
+
+    private void processBatch(@NonNull List<Frame> batch) {
+        long start = System.nanoTime();
+        try {
+            mBatchProcessor.process(Collections.unmodifiableList(batch));
+        } catch (Exception e) {
+            LOG.w("processBatch:",
+                    "Error during processor implementation.",
+                    "Can happen when camera is closed while processors are running.", e);
+        }
+        long latency = System.nanoTime() - start;
+        synchronized (mLock) {
+            // Latencies are per frame, as if the batch cost was split between its frames.
+            mLastLatencyNanos = latency / batch.size();
+            mTotalLatencyNanos += latency;
+            mLatencies.record(latency / batch.size());
+            mProcessedCount += batch.size();
+            mInFlight -= batch.size();
+            for (Frame frame : batch) {
+                recordEndToEnd(frame);
+            }
+        }
+        for (Frame frame : batch) {
+            frame.release();
+        }
+    }
+
+    private void record(long latency) {
+        mLastLatencyNanos = latency;
+        mTotalLatencyNanos += latency;
+        mLatencies.record(latency);
+        mProcessedCount++;
+    }
+
+    private void recordEndToEnd(@NonNull Frame frame) {
+        long timestamp = frame.getTimestamp();
+        if (timestamp < 0) return;
+        long latency = System.nanoTime() - timestamp;
+        mTotalEndToEndNanos += latency;
+        mEndToEndLatencies.record(latency);
+        mEndToEndCount++;
+    }
+
+    /**
+     * Releases this worker. Pending frames are released without being
+     * processed, and any future frame will be ignored.
+     */
+    void release() {
+        List<Frame> batch;
+        synchronized (mLock) {
+            mReleased = true;
+            // Frames waiting for their batch are released too.
+            batch = takeBatch();
+            mInFlight -= batch.size();
+            mReleasedCount += batch.size();
+        }
+        for (Frame frame : batch) {
+            frame.release();
+        }
+        drain();
+    }
+
+    private void drain() {
+        while (true) {
+            Frame frame;
+            synchronized (mLock) {
+                frame = mQueue.pollFirst();
+                if (frame != null) mReleasedCount++;
+                mQueueDepth = mQueue.size();
+            }
+            if (frame == null) return;
+            frame.release();
+        }
+    }
+
+    /**
+     * Returns the current statistics. This does not lock, so it can be
+     * called at any time from any thread.
+     *
+     * @return the stats
+     */
+    @NonNull
+    FrameProcessorStats getStats() {
+        long count = mProcessedCount;
+        long total = mTotalLatencyNanos;
+        long endToEndCount = mEndToEndCount;
+        long endToEndTotal = mTotalEndToEndNanos;
+        return new FrameProcessorStats(count, mDroppedCount, mSkippedCount, mReleasedCount,
+                count == 0 ? 0 : total / count, mLastLatencyNanos,
+                mLatencies.getPercentile(0.5F), mLatencies.getPercentile(0.99F),
+                endToEndCount == 0 ? 0 : endToEndTotal / endToEndCount,
+                mEndToEndLatencies.getPercentile(0.5F), mEndToEndLatencies.getPercentile(0.99F),
+                mQueueDepth);
+    }
+}
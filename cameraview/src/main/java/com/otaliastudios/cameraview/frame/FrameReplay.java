@@ -0,0 +1,283 @@
+package com.otaliastudios.cameraview.frame;
+
+import com.otaliastudios.cameraview.CameraLogger;
+import com.otaliastudios.cameraview.size.Size;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A {@link FrameSource} that reads frames from a Y4M or raw NV21 file, like the ones written
+ * by {@link FrameDumpProcessor}. It is also what powers the replay engine.
+ *
+ * Y4M files must use a 4:2:0 color space. Raw NV21 files need the index file written by
+ * {@link FrameDumpProcessor}, or the frame size passed to {@link #FrameReplay(File, Size)}.
+ * If the index is present, frames are played in the order they were recorded, with their rotation.
+ * The frame rate defaults to {@link #getFileFrameRate()}.
+ */
+public class FrameReplay extends FrameSource {
+
+    private static final String TAG = FrameReplay.class.getSimpleName();
+    private static final CameraLogger LOG = CameraLogger.create(TAG);
+
+    private static final String Y4M_MAGIC = "YUV4MPEG2";
+    private static final String Y4M_FRAME = "FRAME";
+    // 8-bit 4:2:0 only. The variants only differ in chroma siting.
+    private static final List<String> Y4M_COLOR_SPACES
+            = Arrays.asList("420", "420jpeg", "420paldv", "420mpeg2");
+    private static final float DEFAULT_FRAME_RATE = 30;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final ByteBuffer mBuffer;
+    private final boolean mPlanar;
+    private final Size mSize;
+    private final int mFrameLength;
+    private final float mFileFrameRate;
+    private final int[] mOffsets; // in play order
+    private final int[] mRotations; // in play order
+    private byte[] mChroma;
+
+    /**
+     * Opens the given Y4M or raw NV21 file. Raw NV21 files should have an index file,
+     * see {@link FrameDumpProcessor#INDEX_EXTENSION}.
+     *
+     * @param file the file
+     * @throws IOException if the file can not be read
+     */
+    public FrameReplay(@NonNull File file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Opens the given Y4M or raw NV21 file. For raw NV21 files with no index file,
+     * the frame size must be passed here.
+     *
+     * @param file the file
+     * @param size the frame size, or null to read it from the file or its index
+     * @throws IOException if the file can not be read
+     */
+    public FrameReplay(@NonNull File file, @Nullable Size size) throws IOException {
+        super(0);
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            long length = mRandomAccessFile.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File is too big: " + length);
+            }
+            mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            ByteBuffer index = readIndex(new File(file.getPath() + FrameDumpProcessor.INDEX_EXTENSION));
+            int headerLength = 0;
+            int slotHeaderLength = 0;
+            float frameRate = -1;
+            // Check the magic first, so that raw files are not scanned for a line end.
+            mPlanar = startsWith(0, Y4M_MAGIC);
+            if (mPlanar) {
+                String header = readLine(0);
+                if (header == null) {
+                    throw new IOException("Invalid Y4M header.");
+                }
+                int width = -1, height = -1;
+                for (String token : header.split(" ")) {
+                    if (token.isEmpty()) continue;
+                    char tag = token.charAt(0);
+                    String value = token.substring(1);
+                    try {
+                        if (tag == 'W') width = Integer.parseInt(value);
+                        if (tag == 'H') height = Integer.parseInt(value);
+                        if (tag == 'F') frameRate = parseFrameRate(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid Y4M header: " + header, e);
+                    }
+                    if (tag == 'C' && !Y4M_COLOR_SPACES.contains(value)) {
+                        throw new IOException("Unsupported Y4M color space: " + value);
+                    }
+                }
+                if (width <= 0 || height <= 0) {
+                    throw new IOException("Invalid Y4M header: " + header);
+                }
+                size = new Size(width, height);
+                headerLength = header.length() + 1;
+                // Frame headers can have parameters too. We assume they are all the same.
+                String frameHeader = startsWith(headerLength, Y4M_FRAME) ? readLine(headerLength) : null;
+                if (frameHeader == null) {
+                    throw new IOException("No frames in file.");
+                }
+                slotHeaderLength = frameHeader.length() + 1;
+            } else if (size == null) {
+                if (index == null) {
+                    throw new IOException("Raw NV21 files need an index file or a size.");
+                }
+                size = new Size(index.getInt(12), index.getInt(16));
+                headerLength = index.getInt(20);
+            }
+            mSize = size;
+            mFrameLength = size.getWidth() * size.getHeight() * 3 / 2;
+            int slotLength = slotHeaderLength + mFrameLength;
+            int count = (int) ((length - headerLength) / slotLength);
+            if (count == 0) throw new IOException("No frames in file.");
+            Integer[] order = new Integer[count];
+            final long[] sequences = new long[count];
+            int[] rotations = new int[count];
+            long minTimestamp = Long.MAX_VALUE, maxTimestamp = Long.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+                sequences[i] = i;
+                int entry = FrameDumpProcessor.INDEX_HEADER_LENGTH + i * FrameDumpProcessor.INDEX_ENTRY_LENGTH;
+                if (index != null && entry + FrameDumpProcessor.INDEX_ENTRY_LENGTH <= index.limit()
+                        && index.getInt(entry + 28) == 1) {
+                    sequences[i] = index.getLong(entry);
+                    rotations[i] = index.getInt(entry + 24);
+                    long timestamp = index.getLong(entry + 8);
+                    minTimestamp = Math.min(minTimestamp, timestamp);
+                    maxTimestamp = Math.max(maxTimestamp, timestamp);
+                }
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer first, Integer second) {
+                    long diff = sequences[first] - sequences[second];
+                    return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+                }
+            });
+            mOffsets = new int[count];
+            mRotations = new int[count];
+            for (int i = 0; i < count; i++) {
+                mOffsets[i] = headerLength + order[i] * slotLength + slotHeaderLength;
+                mRotations[i] = rotations[order[i]];
+            }
+            if (frameRate <= 0 && count > 1 && maxTimestamp > minTimestamp) {
+                frameRate = (count - 1) * 1000000000F / (maxTimestamp - minTimestamp);
+            }
+            mFileFrameRate = frameRate > 0 ? frameRate : DEFAULT_FRAME_RATE;
+            setFrameRate(mFileFrameRate);
+            LOG.i("FrameReplay:", "Opened", file, "frames:", count, "size:", mSize, "fps:", mFileFrameRate);
+        } catch (IOException | RuntimeException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+    }
+
+    @Nullable
+    private static ByteBuffer readIndex(@NonNull File file) throws IOException {
+        if (!file.exists()) return null;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            ByteBuffer index = ByteBuffer.wrap(bytes);
+            if (bytes.length < FrameDumpProcessor.INDEX_HEADER_LENGTH
+                    || index.getInt(0) != FrameDumpProcessor.INDEX_MAGIC
+                    || index.getInt(4) != FrameDumpProcessor.INDEX_VERSION) {
+                LOG.w("readIndex:", "Ignoring invalid index file", file);
+                return null;
+            }
+            return index;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private boolean startsWith(int position, @NonNull String prefix) {
+        if (position + prefix.length() > mBuffer.limit()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (mBuffer.get(position + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    @Nullable
+    private String readLine(int position) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = position; i < mBuffer.limit(); i++) {
+            char c = (char) mBuffer.get(i);
+            if (c == '\n') return builder.toString();
+            builder.append(c);
+        }
+        return null;
+    }
+
+    private static float parseFrameRate(@NonNull String value) {
+        String[] parts = value.split(":");
+        float numerator = Float.parseFloat(parts[0]);
+        float denominator = parts.length > 1 ? Float.parseFloat(parts[1]) : 1;
+        return denominator > 0 ? numerator / denominator : -1;
+    }
+
+    /**
+     * Returns the file being read.
+     *
+     * @return the file
+     */
+    @NonNull
+    public File getFile() {
+        return mFile;
+    }
+
+    @NonNull
+    @Override
+    public Size getSize() {
+        return mSize;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return mOffsets.length;
+    }
+
+    /**
+     * Returns the frame rate of the file. This comes from the Y4M header or from
+     * the timestamps in the index file, and defaults to 30.
+     *
+     * @return the file frame rate
+     */
+    public float getFileFrameRate() {
+        return mFileFrameRate;
+    }
+
+    @Override
+    public void read(int frame, @NonNull byte[] output) {
+        int offset = mOffsets[frame];
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(offset);
+        if (!mPlanar) {
+            buffer.get(output, 0, mFrameLength);
+            return;
+        }
+        // Y4M has planar U and V, while NV21 wants interleaved V and U.
+        int lumaLength = mSize.getWidth() * mSize.getHeight();
+        int chromaLength = (mFrameLength - lumaLength) / 2;
+        if (mChroma == null) mChroma = new byte[chromaLength * 2];
+        byte[] chroma = mChroma;
+        buffer.get(output, 0, lumaLength);
+        buffer.get(chroma, 0, chromaLength * 2);
+        for (int i = 0; i < chromaLength; i++) {
+            output[lumaLength + 2 * i] = chroma[chromaLength + i];
+            output[lumaLength + 2 * i + 1] = chroma[i];
+        }
+    }
+
+    @Override
+    protected int getRotation(int frame) {
+        return mRotations[frame];
+    }
+
+    @Override
+    protected void onRelease() {
+        try {
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            LOG.w("release:", "Could not close file.", e);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.otaliastudios.cameraview.frame;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Crops and resizes NV21 images, using fixed-point arithmetic only.
+ *
+ * When the crop size is an integer multiple of the output size, each output pixel is the
+ * average of the box of input pixels that it covers, which is both fast and free of aliasing.
+ * Otherwise, output pixels are interpolated bilinearly from the four nearest input pixels.
+ * Luma and chroma planes are resampled separately, the interleaved VU plane at half resolution.
+ *
+ * All sizes and crop coordinates should be even, as for any NV21 image.
+ */
+class FrameResampler {
+
+    // Positions are in 16.16 fixed point, bilinear weights in 8 bits.
+    private final static int SHIFT = 16;
+    private final static int HALF = 1 << (SHIFT - 1);
+    private final static int WEIGHT_SHIFT = 8;
+    private final static int WEIGHT_ONE = 1 << WEIGHT_SHIFT;
+
+    // Box averages multiply by the reciprocal of the box area, in 8.24 fixed point.
+    private final static int BOX_SHIFT = 24;
+
+    /**
+     * Returns the length of an NV21 image with the given size.
+     *
+     * @param width the image width
+     * @param height the image height
+     * @return the length in bytes
+     */
+    static int getLength(int width, int height) {
+        return width * height + 2 * (width / 2) * (height / 2);
+    }
+
+    /**
+     * Resamples the given crop of the input image into the output image.
+     *
+     * @param input the NV21 input
+     * @param inputWidth the input width
+     * @param inputHeight the input height
+     * @param left the crop left
+     * @param top the crop top
+     * @param cropWidth the crop width
+     * @param cropHeight the crop height
+     * @param output the NV21 output
+     * @param outputWidth the output width
+     * @param outputHeight the output height
+     */
+    static void resample(@NonNull byte[] input, int inputWidth, int inputHeight,
+                         int left, int top, int cropWidth, int cropHeight,
+                         @NonNull byte[] output, int outputWidth, int outputHeight) {
+        if (input.length < getLength(inputWidth, inputHeight)) {
+            throw new IllegalArgumentException("Input is too small for size " + inputWidth + "x" + inputHeight);
+        }
+        if (output.length < getLength(outputWidth, outputHeight)) {
+            throw new IllegalArgumentException("Output is too small for size " + outputWidth + "x" + outputHeight);
+        }
+        if (left < 0 || top < 0 || cropWidth < 2 || cropHeight < 2
+                || left + cropWidth > inputWidth || top + cropHeight > inputHeight) {
+            throw new IllegalArgumentException("Crop is outside of the input.");
+        }
+        // Luma.
+        resamplePlane(input, 0, inputWidth, 1,
+                left, top, cropWidth, cropHeight,
+                output, 0, outputWidth, outputWidth, outputHeight);
+        // Chroma, with V and U interleaved.
+        resamplePlane(input, inputWidth * inputHeight, inputWidth, 2,
+                left / 2, top / 2, cropWidth / 2, cropHeight / 2,
+                output, outputWidth * outputHeight, outputWidth, outputWidth / 2, outputHeight / 2);
+    }
+
+    private static void resamplePlane(@NonNull byte[] input, int inputOffset, int inputStride, int channels,
+                                      int left, int top, int cropWidth, int cropHeight,
+                                      @NonNull byte[] output, int outputOffset, int outputStride,
+                                      int outputWidth, int outputHeight) {
+        if (cropWidth % outputWidth == 0 && cropHeight % outputHeight == 0) {
+            box(input, inputOffset, inputStride, channels,
+                    left, top, cropWidth / outputWidth, cropHeight / outputHeight,
+                    output, outputOffset, outputStride, outputWidth, outputHeight);
+        } else {
+            bilinear(input, inputOffset, inputStride, channels,
+                    left, top, cropWidth, cropHeight,
+                    output, outputOffset, outputStride, outputWidth, outputHeight);
+        }
+    }
+
+    private static void box(@NonNull byte[] input, int inputOffset, int inputStride, int channels,
+                            int left, int top, int factorX, int factorY,
+                            @NonNull byte[] output, int outputOffset, int outputStride,
+                            int outputWidth, int outputHeight) {
+        int rowLength = outputWidth * channels;
+        if (factorX == 1 && factorY == 1) {
+            for (int y = 0; y < outputHeight; y++) {
+                System.arraycopy(input, inputOffset + (top + y) * inputStride + left * channels,
+                        output, outputOffset + y * outputStride, rowLength);
+            }
+            return;
+        }
+        int area = factorX * factorY;
+        long reciprocal = ((1L << BOX_SHIFT) + area / 2) / area;
+        long round = 1L << (BOX_SHIFT - 1);
+        int step = factorX * channels;
+        for (int y = 0; y < outputHeight; y++) {
+            int inputRow = inputOffset + (top + y * factorY) * inputStride + left * channels;
+            int out = outputOffset + y * outputStride;
+            for (int x = 0, pixel = inputRow; x < outputWidth; x++, pixel += step) {
+                for (int c = 0; c < channels; c++) {
+                    int sum = 0;
+                    for (int j = 0, row = pixel + c; j < factorY; j++, row += inputStride) {
+                        for (int i = 0, p = row; i < factorX; i++, p += channels) {
+                            sum += input[p] & 0xFF;
+                        }
+                    }
+                    output[out++] = (byte) ((sum * reciprocal + round) >> BOX_SHIFT);
+                }
+            }
+        }
+    }
+
+    private static void bilinear(@NonNull byte[] input, int inputOffset, int inputStride, int channels,
+                                 int left, int top, int cropWidth, int cropHeight,
+                                 @NonNull byte[] output, int outputOffset, int outputStride,
+                                 int outputWidth, int outputHeight) {
+        // Sample at the center of each output pixel.
+        int stepX = (int) (((long) cropWidth << SHIFT) / outputWidth);
+        int stepY = (int) (((long) cropHeight << SHIFT) / outputHeight);
+        int maxX = (cropWidth - 1) << SHIFT;
+        int maxY = (cropHeight - 1) << SHIFT;
+        int round = 1 << (2 * WEIGHT_SHIFT - 1);
+        int positionY = stepY / 2 - HALF;
+        for (int y = 0; y < outputHeight; y++, positionY += stepY) {
+            int sy = positionY < 0 ? 0 : positionY > maxY ? maxY : positionY;
+            int y0 = sy >> SHIFT;
+            int y1 = Math.min(y0 + 1, cropHeight - 1);
+            int wy = (sy >> (SHIFT - WEIGHT_SHIFT)) & (WEIGHT_ONE - 1);
+            int row0 = inputOffset + (top + y0) * inputStride + left * channels;
+            int row1 = inputOffset + (top + y1) * inputStride + left * channels;
+            int out = outputOffset + y * outputStride;
+            int positionX = stepX / 2 - HALF;
+            for (int x = 0; x < outputWidth; x++, positionX += stepX) {
+                int sx = positionX < 0 ? 0 : positionX > maxX ? maxX : positionX;
+                int x0 = (sx >> SHIFT) * channels;
+                int x1 = Math.min((sx >> SHIFT) + 1, cropWidth - 1) * channels;
+                int wx = (sx >> (SHIFT - WEIGHT_SHIFT)) & (WEIGHT_ONE - 1);
+                for (int c = 0; c < channels; c++) {
+                    int top0 = input[row0 + x0 + c] & 0xFF;
+                    int top1 = input[row0 + x1 + c] & 0xFF;
+                    int bottom0 = input[row1 + x0 + c] & 0xFF;
+                    int bottom1 = input[row1 + x1 + c] & 0xFF;
+                    int topValue = top0 * (WEIGHT_ONE - wx) + top1 * wx;
+                    int bottomValue = bottom0 * (WEIGHT_ONE - wx) + bottom1 * wx;
+                    output[out++] = (byte) ((topValue * (WEIGHT_ONE - wy) + bottomValue * wy + round)
+                            >> (2 * WEIGHT_SHIFT));
+                }
+            }
+        }
+    }
+}
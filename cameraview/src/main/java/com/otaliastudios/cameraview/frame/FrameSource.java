@@ -0,0 +1,238 @@
+package com.otaliastudios.cameraview.frame;
+
+import android.graphics.ImageFormat;
+
+import com.otaliastudios.cameraview.size.Size;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A source of NV21 frames that do not come from a camera, like {@link FrameReplay} or
+ * {@link FrameGenerator}. Frames are created by a {@link FrameManager} and dispatched to
+ * a {@link Callback} exactly as engines do, so that processors, filters and encoders can be
+ * run and measured without a camera. This class does not depend on the Android framework,
+ * and can be used on a plain JVM.
+ *
+ * <pre>{@code
+ * FrameManager manager = new FrameManager(2, 8, null);
+ * manager.setUp(12, source.getSize()); // NV21 bits per pixel
+ * source.setFrameRate(0); // As fast as possible
+ * source.run(manager, callback); // Blocks until the source ends or stop() is called.
+ * }</pre>
+ */
+public abstract class FrameSource {
+
+    /**
+     * Receives the frames produced by {@link #run(FrameManager, Callback)}.
+     */
+    public interface Callback {
+
+        /**
+         * Called for each frame, on the thread that called {@link #run(FrameManager, Callback)}.
+         * The frame should be released when done, as engines do when dispatching
+         * frames to processors.
+         *
+         * @param frame the frame
+         */
+        void dispatchFrame(@NonNull Frame frame);
+    }
+
+    /**
+     * With a rate of 0, how long we wait for a buffer before checking
+     * whether we were stopped.
+     */
+    private static final long BUFFER_WAIT_MILLIS = 100;
+
+    private float mFrameRate;
+    private boolean mLoop;
+    private volatile boolean mStopped;
+    private volatile boolean mReleased;
+
+    protected FrameSource(float frameRate) {
+        mFrameRate = frameRate;
+    }
+
+    /**
+     * Returns the frame size.
+     *
+     * @return the size
+     */
+    @NonNull
+    public abstract Size getSize();
+
+    /**
+     * Returns the number of frames in this source.
+     *
+     * @return the frame count
+     */
+    public abstract int getFrameCount();
+
+    /**
+     * Reads the given frame into the output, in the NV21 format.
+     *
+     * @param frame the frame index, from 0 to {@link #getFrameCount()}
+     * @param output the output, at least as big as width * height * 3 / 2
+     */
+    public abstract void read(int frame, @NonNull byte[] output);
+
+    /**
+     * Returns the rotation of the given frame.
+     *
+     * @param frame the frame index
+     * @return the rotation
+     */
+    protected int getRotation(int frame) {
+        return 0;
+    }
+
+    /**
+     * Sets the rate at which frames are produced by {@link #run(FrameManager, Callback)}.
+     * At a given rate, frames are dropped, as a camera would, if the processors are too
+     * slow to release them. With a rate of 0, frames are produced as fast as possible,
+     * waiting for a buffer to be released when needed, so that no frame is dropped.
+     * This wait does not count as starvation, see {@link FrameManager#awaitBuffer(long)}.
+     *
+     * @param frameRate the frame rate, or 0 for as fast as possible
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameSource setFrameRate(float frameRate) {
+        if (frameRate < 0) {
+            throw new IllegalArgumentException("Frame rate should not be negative.");
+        }
+        mFrameRate = frameRate;
+        return this;
+    }
+
+    /**
+     * Returns the frame rate set by {@link #setFrameRate(float)}.
+     *
+     * @return the frame rate
+     */
+    public float getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * Whether {@link #run(FrameManager, Callback)} should start again from the first frame
+     * when the source ends, instead of returning. Defaults to false.
+     *
+     * @param loop whether to loop
+     * @return this for chaining
+     */
+    @NonNull
+    public FrameSource setLoop(boolean loop) {
+        mLoop = loop;
+        return this;
+    }
+
+    /**
+     * Produces frames and dispatches them to the callback, on the current thread, until the
+     * source ends (see {@link #setLoop(boolean)}), {@link #stop()} is called or the thread
+     * is interrupted. Frames are created by the manager, which should be set up with
+     * {@link #getSize()} and created with no {@link FrameManager.BufferCallback}.
+     * Frames have the current time as timestamp, so that the latency stats are relative
+     * to the moment they were produced.
+     *
+     * If {@link #stop()} was called before this, it returns immediately: to run a stopped
+     * source again, call {@link #prepare()} first, before starting the thread that runs it.
+     *
+     * @param manager the frame manager
+     * @param callback the callback
+     * @return the number of dispatched frames
+     */
+    public long run(@NonNull FrameManager manager, @NonNull Callback callback) {
+        float frameRate = mFrameRate;
+        long interval = frameRate > 0 ? (long) (1000000000D / frameRate) : 0;
+        long next = System.nanoTime();
+        long count = 0;
+        int frames = getFrameCount();
+        Size size = getSize();
+        int frame = 0;
+        while (!mStopped && !mReleased && !Thread.currentThread().isInterrupted()) {
+            if (frame == frames) {
+                if (!mLoop) break;
+                frame = 0;
+            }
+            if (interval > 0) {
+                long wait = next - System.nanoTime();
+                if (wait > 0 && !sleep(wait)) break;
+                // If we are late, do not try to catch up with a burst of frames.
+                next = Math.max(next + interval, System.nanoTime());
+            }
+            byte[] buffer;
+            if (interval > 0) {
+                buffer = manager.getBuffer();
+                if (buffer == null) {
+                    // Like a camera, we skip this frame.
+                    manager.onFrameUnavailable();
+                    frame++;
+                    continue;
+                }
+            } else {
+                try {
+                    buffer = manager.awaitBuffer(BUFFER_WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (buffer == null) continue;
+            }
+            read(frame, buffer);
+            Frame output = manager.getFrame(buffer,
+                    System.currentTimeMillis(),
+                    System.nanoTime(),
+                    getRotation(frame),
+                    size,
+                    ImageFormat.NV21);
+            callback.dispatchFrame(output);
+            frame++;
+            count++;
+        }
+        return count;
+    }
+
+    private static boolean sleep(long nanos) {
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Makes a stopped source ready to {@link #run(FrameManager, Callback)} again. This
+     * should be called before starting the thread that runs the source, so that a
+     * {@link #stop()} coming in the meanwhile is not lost.
+     */
+    public void prepare() {
+        if (!mReleased) mStopped = false;
+    }
+
+    /**
+     * Stops {@link #run(FrameManager, Callback)}, which will return after the current frame.
+     * If the source is not running yet, the next run returns immediately.
+     * This can be called from any thread.
+     */
+    public void stop() {
+        mStopped = true;
+    }
+
+    /**
+     * Stops and releases resources. This instance can not be used anymore.
+     */
+    public void release() {
+        if (mReleased) return;
+        mReleased = true;
+        mStopped = true;
+        onRelease();
+    }
+
+    /**
+     * Called when the source is released, to release resources.
+     */
+    protected void onRelease() {
+    }
+}
@@ -0,0 +1,195 @@
+package com.otaliastudios.cameraview.frame;
+
+import com.otaliastudios.cameraview.CameraLogger;
+import com.otaliastudios.cameraview.size.Size;
+import com.otaliastudios.cameraview.size.SizeSelector;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The frame processing streams that an engine produces, as negotiated from the
+ * size preferences of the registered processors (see {@link FrameProcessorOptions#setPreferredSize(SizeSelector)}).
+ *
+ * There is always a primary stream, big enough for the processor that wants the biggest frames.
+ * If allowed, and if some processors want frames that are much smaller than the primary ones,
+ * a secondary stream is added for them, so that they do not pay for frames that are too big.
+ * Each processor receives frames from one stream only, see {@link #accepts(int, SizeSelector)}.
+ */
+public class FrameStreams {
+
+    private final static String TAG = FrameStreams.class.getSimpleName();
+    private final static CameraLogger LOG = CameraLogger.create(TAG);
+
+    /**
+     * The primary stream.
+     */
+    public final static int PRIMARY = 0;
+
+    /**
+     * The secondary stream, if any.
+     */
+    public final static int SECONDARY = 1;
+
+    // A secondary stream is added when the primary stream has at least
+    // this many times the pixels that some processors need.
+    private final static int SECONDARY_STREAM_AREA_RATIO = 4;
+
+    /**
+     * Chooses the stream sizes for the given processor preferences.
+     *
+     * @param sizes the sizes that the camera supports
+     * @param fallback the selector for processors that have no preference
+     * @param preferences the preference of each processor, or null for no preference
+     * @param allowSecondary whether a secondary stream can be used
+     * @return the negotiated streams
+     */
+    @NonNull
+    public static FrameStreams negotiate(@NonNull List<Size> sizes,
+                                         @NonNull SizeSelector fallback,
+                                         @NonNull List<SizeSelector> preferences,
+                                         boolean allowSecondary) {
+        if (sizes.isEmpty()) throw new IllegalArgumentException("No sizes to choose from.");
+        Size fallbackSize = select(sizes, fallback, null);
+        if (preferences.isEmpty()) {
+            return new FrameStreams(fallbackSize, null, Collections.<SizeSelector>emptySet(), false);
+        }
+        List<Size> preferred = new ArrayList<>(preferences.size());
+        Size primary = null;
+        for (SizeSelector preference : preferences) {
+            Size size = preference == null ? fallbackSize : select(sizes, preference, fallbackSize);
+            preferred.add(size);
+            if (primary == null || area(size) > area(primary)) primary = size;
+        }
+        //noinspection ConstantConditions
+        long primaryArea = area(primary);
+
+        // The secondary stream serves all processors that need much less than the primary.
+        Size secondary = null;
+        if (allowSecondary) {
+            for (Size size : preferred) {
+                boolean small = area(size) * SECONDARY_STREAM_AREA_RATIO <= primaryArea;
+                if (small && (secondary == null || area(size) > area(secondary))) secondary = size;
+            }
+        }
+        Set<SizeSelector> secondarySelectors = Collections.newSetFromMap(
+                new IdentityHashMap<SizeSelector, Boolean>());
+        boolean fallbackOnSecondary = false;
+        if (secondary != null) {
+            for (int i = 0; i < preferences.size(); i++) {
+                if (area(preferred.get(i)) * SECONDARY_STREAM_AREA_RATIO > primaryArea) continue;
+                SizeSelector preference = preferences.get(i);
+                if (preference == null) {
+                    fallbackOnSecondary = true;
+                } else {
+                    secondarySelectors.add(preference);
+                }
+            }
+        }
+        LOG.i("negotiate:", "primary:", primary, "secondary:", secondary);
+        return new FrameStreams(primary, secondary, secondarySelectors, fallbackOnSecondary);
+    }
+
+    @NonNull
+    private static Size select(@NonNull List<Size> sizes, @NonNull SizeSelector selector, @Nullable Size fallback) {
+        // Selectors can sort the list they receive, so pass a copy.
+        List<Size> selected = selector.select(new ArrayList<>(sizes));
+        if (!selected.isEmpty()) return selected.get(0);
+        if (fallback != null) return fallback;
+        // Nothing matched the fallback either. Take the smallest size.
+        return Collections.min(sizes);
+    }
+
+    private static long area(@NonNull Size size) {
+        return (long) size.getWidth() * size.getHeight();
+    }
+
+    private final Size mPrimarySize;
+    private final Size mSecondarySize;
+    private final Set<SizeSelector> mSecondarySelectors;
+    private final boolean mFallbackOnSecondary;
+
+    private FrameStreams(@NonNull Size primarySize,
+                         @Nullable Size secondarySize,
+                         @NonNull Set<SizeSelector> secondarySelectors,
+                         boolean fallbackOnSecondary) {
+        mPrimarySize = primarySize;
+        mSecondarySize = secondarySize;
+        mSecondarySelectors = secondarySelectors;
+        mFallbackOnSecondary = fallbackOnSecondary;
+    }
+
+    /**
+     * Returns the size of the primary stream.
+     *
+     * @return the primary size
+     */
+    @NonNull
+    public Size getPrimarySize() {
+        return mPrimarySize;
+    }
+
+    /**
+     * Returns the size of the secondary stream, or null if there is none.
+     *
+     * @return the secondary size, or null
+     */
+    @Nullable
+    public Size getSecondarySize() {
+        return mSecondarySize;
+    }
+
+    /**
+     * Whether there is a secondary stream.
+     *
+     * @return true if there is a secondary stream
+     */
+    public boolean hasSecondaryStream() {
+        return mSecondarySize != null;
+    }
+
+    /**
+     * Whether a processor with the given preference should receive frames from the given stream.
+     * Processors that were not part of the negotiation use the primary stream.
+     *
+     * @param stream the stream, {@link #PRIMARY} or {@link #SECONDARY}
+     * @param preference the processor preference, or null
+     * @return true if accepted
+     */
+    boolean accepts(int stream, @Nullable SizeSelector preference) {
+        if (mSecondarySize == null) return stream == PRIMARY;
+        boolean secondary = preference == null ? mFallbackOnSecondary : mSecondarySelectors.contains(preference);
+        return secondary == (stream == SECONDARY);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof FrameStreams)) return false;
+        FrameStreams other = (FrameStreams) obj;
+        return mPrimarySize.equals(other.mPrimarySize)
+                && (mSecondarySize == null ? other.mSecondarySize == null : mSecondarySize.equals(other.mSecondarySize))
+                && mFallbackOnSecondary == other.mFallbackOnSecondary
+                && mSecondarySelectors.equals(other.mSecondarySelectors);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mPrimarySize.hashCode();
+        result = 31 * result + (mSecondarySize != null ? mSecondarySize.hashCode() : 0);
+        result = 31 * result + (mFallbackOnSecondary ? 1 : 0);
+        return result;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " - primary:" + mPrimarySize + ", secondary:" + mSecondarySize;
+    }
+}
@@ -0,0 +1,207 @@
+package com.otaliastudios.cameraview.frame;
+
+import com.otaliastudios.cameraview.CameraLogger;
+import com.otaliastudios.cameraview.internal.utils.RingBuffer;
+import com.otaliastudios.cameraview.size.Size;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A cropped and resized version of the camera frames, as requested through
+ * {@link FrameProcessorOptions#setFrameSize(Size)} and
+ * {@link FrameProcessorOptions#setFrameCrop(android.graphics.Rect)}.
+ *
+ * The {@link FrameDispatcher} shares a single instance between all processors that
+ * request equal variants, so that each variant is computed once per frame, the first
+ * time that one of them reads its data. Derived frames and their buffers are pooled
+ * here, and go back to the pool when the frame they were derived from is released.
+ */
+class FrameVariant {
+
+    private final static String TAG = FrameVariant.class.getSimpleName();
+    private final static CameraLogger LOG = CameraLogger.create(TAG);
+
+    // Derived frames can not outlive the frames they come from, so this is rarely reached.
+    private final static int POOL_SIZE = 32;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mHasCrop;
+    private final int mCropLeft;
+    private final int mCropTop;
+    private final int mCropRight;
+    private final int mCropBottom;
+    private final int mFormat;
+
+    private final RingBuffer<Frame> mFrames = new RingBuffer<>(POOL_SIZE);
+    private final RingBuffer<byte[]> mBuffers = new RingBuffer<>(POOL_SIZE);
+    private volatile boolean mCropWarned = false;
+
+    // Only accessed by the dispatching thread.
+    private Size mLastInputSize;
+    private Size mLastOutputSize;
+
+    /**
+     * Creates a new variant.
+     *
+     * @param size the output size, or null to keep the crop size
+     * @param hasCrop whether there is a crop rect
+     * @param cropLeft the crop left
+     * @param cropTop the crop top
+     * @param cropRight the crop right
+     * @param cropBottom the crop bottom
+     * @param format the output format
+     */
+    FrameVariant(Size size, boolean hasCrop,
+                 int cropLeft, int cropTop, int cropRight, int cropBottom,
+                 int format) {
+        mWidth = size == null ? 0 : size.getWidth();
+        mHeight = size == null ? 0 : size.getHeight();
+        mHasCrop = hasCrop;
+        mCropLeft = hasCrop ? cropLeft : 0;
+        mCropTop = hasCrop ? cropTop : 0;
+        mCropRight = hasCrop ? cropRight : 0;
+        mCropBottom = hasCrop ? cropBottom : 0;
+        mFormat = format;
+    }
+
+    int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Returns the size of the derived frames, for input frames of the given size.
+     * Should only be called by the dispatching thread.
+     *
+     * @param inputSize the input size
+     * @return the output size
+     */
+    @NonNull
+    Size getOutputSize(@NonNull Size inputSize) {
+        if (!inputSize.equals(mLastInputSize)) {
+            int width = mWidth;
+            int height = mHeight;
+            if (width == 0) {
+                width = getCropRight(inputSize) - getCropLeft(inputSize);
+                height = getCropBottom(inputSize) - getCropTop(inputSize);
+            }
+            mLastInputSize = inputSize;
+            mLastOutputSize = new Size(width, height);
+        }
+        return mLastOutputSize;
+    }
+
+    /**
+     * Takes a frame instance from the pool, or creates a new one.
+     *
+     * @param manager the manager of the frame that is being derived
+     * @return a frame
+     */
+    @NonNull
+    Frame obtain(@NonNull FrameManager manager) {
+        Frame frame = mFrames.poll();
+        return frame != null ? frame : new Frame(manager);
+    }
+
+    /**
+     * Computes the data of a derived frame.
+     *
+     * @param input the input data
+     * @param inputSize the input size
+     * @param outputSize the output size, as returned by {@link #getOutputSize(Size)}
+     * @return the output data
+     */
+    @NonNull
+    byte[] render(@NonNull byte[] input, @NonNull Size inputSize, @NonNull Size outputSize) {
+        int width = outputSize.getWidth();
+        int height = outputSize.getHeight();
+        int length = FrameResampler.getLength(width, height);
+        byte[] output = mBuffers.poll();
+        if (output == null || output.length != length) {
+            // Buffers of the wrong length are left to the garbage collector.
+            output = new byte[length];
+        }
+        int left = getCropLeft(inputSize);
+        int top = getCropTop(inputSize);
+        FrameResampler.resample(input, inputSize.getWidth(), inputSize.getHeight(),
+                left, top, getCropRight(inputSize) - left, getCropBottom(inputSize) - top,
+                output, width, height);
+        return output;
+    }
+
+    /**
+     * Gives back a derived frame and its buffer, once the frame
+     * it was derived from has been released.
+     *
+     * @param frame the derived frame
+     * @param buffer its buffer, or null
+     */
+    void recycle(@NonNull Frame frame, byte[] buffer) {
+        if (buffer != null) mBuffers.offer(buffer);
+        mFrames.offer(frame);
+    }
+
+    // Crop coordinates are clamped to the input and aligned to even values.
+
+    private boolean hasValidCrop(@NonNull Size inputSize) {
+        if (!mHasCrop) return false;
+        int width = inputSize.getWidth();
+        int height = inputSize.getHeight();
+        int left = Math.max(0, mCropLeft) & ~1;
+        int top = Math.max(0, mCropTop) & ~1;
+        int right = Math.min(width, mCropRight) & ~1;
+        int bottom = Math.min(height, mCropBottom) & ~1;
+        if (left < right && top < bottom) return true;
+        if (!mCropWarned) {
+            mCropWarned = true;
+            LOG.w("Crop rect is outside of the frame. Using the whole frame. Size:", inputSize);
+        }
+        return false;
+    }
+
+    private int getCropLeft(@NonNull Size inputSize) {
+        return hasValidCrop(inputSize) ? Math.max(0, mCropLeft) & ~1 : 0;
+    }
+
+    private int getCropTop(@NonNull Size inputSize) {
+        return hasValidCrop(inputSize) ? Math.max(0, mCropTop) & ~1 : 0;
+    }
+
+    private int getCropRight(@NonNull Size inputSize) {
+        int right = hasValidCrop(inputSize) ? Math.min(inputSize.getWidth(), mCropRight) : inputSize.getWidth();
+        return right & ~1;
+    }
+
+    private int getCropBottom(@NonNull Size inputSize) {
+        int bottom = hasValidCrop(inputSize) ? Math.min(inputSize.getHeight(), mCropBottom) : inputSize.getHeight();
+        return bottom & ~1;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof FrameVariant)) return false;
+        FrameVariant other = (FrameVariant) obj;
+        return mWidth == other.mWidth
+                && mHeight == other.mHeight
+                && mHasCrop == other.mHasCrop
+                && mCropLeft == other.mCropLeft
+                && mCropTop == other.mCropTop
+                && mCropRight == other.mCropRight
+                && mCropBottom == other.mCropBottom
+                && mFormat == other.mFormat;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mWidth;
+        result = 31 * result + mHeight;
+        result = 31 * result + (mHasCrop ? 1 : 0);
+        result = 31 * result + mCropLeft;
+        result = 31 * result + mCropTop;
+        result = 31 * result + mCropRight;
+        result = 31 * result + mCropBottom;
+        result = 31 * result + mFormat;
+        return result;
+    }
+}
@@ -0,0 +1,77 @@
+package com.otaliastudios.cameraview.frame;
+
+import android.media.Image;
+import android.os.Build;
+
+import com.otaliastudios.cameraview.internal.utils.ImageHelper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds the planes of a YUV_420_888 {@link Image}, so that a {@link Frame} can expose them
+ * without any copy. The image stays open until {@link #close()} is called.
+ */
+@RequiresApi(Build.VERSION_CODES.KITKAT)
+class ImagePlanes {
+
+    private final Image mImage;
+    private final int mWidth;
+    private final int mHeight;
+    private final ByteBuffer[] mBuffers;
+    private final int[] mRowStrides;
+    private final int[] mPixelStrides;
+
+    ImagePlanes(@NonNull Image image) {
+        mImage = image;
+        mWidth = image.getWidth();
+        mHeight = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+        mBuffers = new ByteBuffer[planes.length];
+        mRowStrides = new int[planes.length];
+        mPixelStrides = new int[planes.length];
+        for (int i = 0; i < planes.length; i++) {
+            mBuffers[i] = planes[i].getBuffer();
+            mRowStrides[i] = planes[i].getRowStride();
+            mPixelStrides[i] = planes[i].getPixelStride();
+        }
+    }
+
+    int getCount() {
+        return mBuffers.length;
+    }
+
+    /**
+     * Returns a read-only view of the given plane. Each call returns a new view,
+     * so that different threads can read the same plane at the same time.
+     *
+     * @param plane the plane index
+     * @return the plane buffer
+     */
+    @NonNull
+    ByteBuffer getBuffer(int plane) {
+        return mBuffers[plane].asReadOnlyBuffer();
+    }
+
+    int getRowStride(int plane) {
+        return mRowStrides[plane];
+    }
+
+    int getPixelStride(int plane) {
+        return mPixelStrides[plane];
+    }
+
+    void convertToNV21(@NonNull byte[] result) {
+        ImageHelper.convertToNV21(mWidth, mHeight,
+                mBuffers[0], mRowStrides[0], mPixelStrides[0],
+                mBuffers[1], mRowStrides[1], mPixelStrides[1],
+                mBuffers[2], mRowStrides[2], mPixelStrides[2],
+                result);
+    }
+
+    void close() {
+        mImage.close();
+    }
+}
@@ -14,86 +14,135 @@ import androidx.annotation.RequiresApi;
 @RequiresApi(19)
 public class ImageHelper {
 
+    // Scratch row for strided reads. Conversions can run on any thread.
+    private static final ThreadLocal<byte[]> sScratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[0];
+        }
+    };
+
     /**
-     * From https://stackoverflow.com/a/52740776/4288782 .
+     * Converts a YUV_420_888 image into NV21.
      * The result array should have a size that is at least 3/2 * w * h.
      * This is correctly computed by {@link com.otaliastudios.cameraview.frame.FrameManager}.
      *
      * @param image input image
      * @param result output array
+     * @see #convertToNV21(int, int, ByteBuffer, int, int, ByteBuffer, int, int, ByteBuffer, int, int, byte[])
      */
     public static void convertToNV21(@NonNull Image image, @NonNull byte[] result) {
         if (image.getFormat() != ImageFormat.YUV_420_888) {
             throw new IllegalStateException("CAn only convert from YUV_420_888.");
         }
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int ySize = width * height;
-        int uvSize = width * height / 4;
-
-        ByteBuffer yBuffer = image.getPlanes()[0].getBuffer(); // Y
-        ByteBuffer uBuffer = image.getPlanes()[1].getBuffer(); // U
-        ByteBuffer vBuffer = image.getPlanes()[2].getBuffer(); // V
-
-        int rowStride = image.getPlanes()[0].getRowStride();
-
-        if (image.getPlanes()[0].getPixelStride() != 1) {
-            throw new AssertionError("Something wrong in convertToNV21");
-        }
-
-        int pos = 0;
-
-        if (rowStride == width) { // likely
-            yBuffer.get(result, 0, ySize);
-            pos += ySize;
-        }
-        else {
-            int yBufferPos = width - rowStride; // not an actual position
-            for (; pos<ySize; pos+=width) {
-                yBufferPos += rowStride - width;
-                yBuffer.position(yBufferPos);
-                yBuffer.get(result, pos, width);
-            }
-        }
-
-        rowStride = image.getPlanes()[2].getRowStride();
-        int pixelStride = image.getPlanes()[2].getPixelStride();
+        Image.Plane[] planes = image.getPlanes();
+        convertToNV21(image.getWidth(), image.getHeight(),
+                planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                planes[1].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                planes[2].getBuffer(), planes[2].getRowStride(), planes[2].getPixelStride(),
+                result);
+    }
 
-        if (rowStride != image.getPlanes()[1].getRowStride()) {
-            throw new AssertionError("Something wrong in convertToNV21");
+    /**
+     * Converts the planes of a YUV_420_888 image into NV21.
+     * The result array should have a size that is at least 3/2 * w * h.
+     *
+     * Rows are copied in bulk whenever possible. Each plane can have its own row stride
+     * and pixel stride, and the common layout where U and V are interleaved with a
+     * pixel stride of 2 only needs one bulk copy per chroma row, plus one pass for U.
+     * The positions of the given buffers are not changed, and the scratch row is
+     * reused by the next conversions on the same thread.
+     *
+     * @param width image width
+     * @param height image height
+     * @param yBuffer the Y plane
+     * @param yRowStride the Y row stride
+     * @param yPixelStride the Y pixel stride
+     * @param uBuffer the U plane
+     * @param uRowStride the U row stride
+     * @param uPixelStride the U pixel stride
+     * @param vBuffer the V plane
+     * @param vRowStride the V row stride
+     * @param vPixelStride the V pixel stride
+     * @param result output array
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static void convertToNV21(int width, int height,
+                                     @NonNull ByteBuffer yBuffer, int yRowStride, int yPixelStride,
+                                     @NonNull ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+                                     @NonNull ByteBuffer vBuffer, int vRowStride, int vPixelStride,
+                                     @NonNull byte[] result) {
+        int ySize = width * height;
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        if (result.length < ySize + 2 * chromaWidth * chromaHeight) {
+            throw new IllegalArgumentException("Result array is too small.");
         }
-        if (pixelStride != image.getPlanes()[1].getPixelStride()) {
-            throw new AssertionError("Something wrong in convertToNV21");
+        // Duplicate so that we can move positions freely.
+        ByteBuffer y = yBuffer.duplicate();
+        ByteBuffer u = uBuffer.duplicate();
+        ByteBuffer v = vBuffer.duplicate();
+        int yStart = y.position();
+        int uStart = u.position();
+        int vStart = v.position();
+
+        // One scratch row, large enough for the widest strided row we will read.
+        int scratchSize = 0;
+        if (yPixelStride != 1) scratchSize = rowLength(width, yPixelStride);
+        scratchSize = Math.max(scratchSize, rowLength(chromaWidth, uPixelStride));
+        if (vPixelStride != 2) scratchSize = Math.max(scratchSize, rowLength(chromaWidth, vPixelStride));
+        byte[] scratch = sScratch.get();
+        if (scratch.length < scratchSize) {
+            scratch = new byte[scratchSize];
+            sScratch.set(scratch);
         }
 
-        if (pixelStride == 2 && rowStride == width && uBuffer.get(0) == vBuffer.get(1)) {
-            // maybe V an U planes overlap as per NV21, which means vBuffer[1] is alias of uBuffer[0]
-            byte savePixel = vBuffer.get(1);
-            vBuffer.put(1, (byte)0);
-            if (uBuffer.get(0) == 0) {
-                vBuffer.put(1, (byte)255);
-                //noinspection ConstantConditions
-                if (uBuffer.get(0) == 255) {
-                    vBuffer.put(1, savePixel);
-                    vBuffer.get(result, ySize, uvSize);
-                    return; // shortcut
-                }
+        // Y plane.
+        if (yPixelStride == 1 && yRowStride == width) {
+            y.position(yStart);
+            y.get(result, 0, ySize);
+        } else {
+            for (int row = 0; row < height; row++) {
+                y.position(yStart + row * yRowStride);
+                readRow(y, width, yPixelStride, result, row * width, 1, true, scratch);
             }
+        }
 
-            // unfortunately, the check failed. We must save U and V pixel by pixel
-            vBuffer.put(1, savePixel);
+        // Chroma planes. NV21 wants V, U, V, U... If V has a pixel stride of 2, it is copied
+        // in bulk, which also writes garbage (or U, if planes are interleaved) at odd positions.
+        // U is written after that, without bulk copy, so it does not overwrite V.
+        int pos = ySize;
+        for (int row = 0; row < chromaHeight; row++) {
+            v.position(vStart + row * vRowStride);
+            readRow(v, chromaWidth, vPixelStride, result, pos, 2, true, scratch);
+            u.position(uStart + row * uRowStride);
+            readRow(u, chromaWidth, uPixelStride, result, pos + 1, 2, false, scratch);
+            pos += 2 * chromaWidth;
         }
+    }
 
-        // other optimizations could check if (pixelStride == 1) or (pixelStride == 2),
-        // but performance gain would be less significant
+    private static int rowLength(int count, int pixelStride) {
+        return count == 0 ? 0 : (count - 1) * pixelStride + 1;
+    }
 
-        for (int row=0; row<height/2; row++) {
-            for (int col=0; col<width/2; col++) {
-                int vuPos = col*pixelStride + row*rowStride;
-                result[pos++] = vBuffer.get(vuPos);
-                result[pos++] = uBuffer.get(vuPos);
+    /**
+     * Reads count samples from the source, starting at its current position and spaced by
+     * srcStride, into the destination, starting at dstOffset and spaced by dstStride.
+     * If bulk is true and strides are equal, this is a single bulk copy, but it will also
+     * overwrite the bytes between samples.
+     */
+    private static void readRow(@NonNull ByteBuffer src, int count, int srcStride,
+                                @NonNull byte[] dst, int dstOffset, int dstStride,
+                                boolean bulk, @NonNull byte[] scratch) {
+        if (count == 0) return;
+        int length = rowLength(count, srcStride);
+        if (bulk && srcStride == dstStride) {
+            src.get(dst, dstOffset, length);
+        } else {
+            src.get(scratch, 0, length);
+            for (int i = 0, s = 0, o = dstOffset; i < count; i++, s += srcStride, o += dstStride) {
+                dst[o] = scratch[s];
             }
         }
     }
 }
-
@@ -0,0 +1,91 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records durations in nanoseconds and computes their percentiles,
+ * without locking and without allocating.
+ *
+ * Values are counted in buckets that grow exponentially, with 8 linear buckets
+ * for each power of two, so percentiles are accurate to about 6%.
+ * Values above 2^40 nanoseconds (about 18 minutes) end up in the last bucket.
+ */
+public class LatencyHistogram {
+
+    // 3 bits = 8 sub buckets for each power of two.
+    private final static int SUB_BITS = 3;
+    private final static int SUB_COUNT = 1 << SUB_BITS;
+    private final static int MAX_EXPONENT = 40;
+    private final static int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Records the given duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        mCounts.incrementAndGet(getBucket(nanos));
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded values fall,
+     * for example 0.99 for the 99th percentile, or 0 if nothing was recorded.
+     *
+     * @param fraction a value between 0 and 1
+     * @return the percentile in nanoseconds
+     */
+    public long getPercentile(float fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("Fraction should be between 0 and 1.");
+        }
+        long count = getCount();
+        if (count == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        int last = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = mCounts.get(i);
+            if (bucketCount == 0) continue;
+            last = i;
+            seen += bucketCount;
+            if (seen >= target) return getValue(i);
+        }
+        // Values were added while we were reading.
+        return getValue(last);
+    }
+
+    private static int getBucket(long nanos) {
+        if (nanos < SUB_COUNT) return (int) Math.max(0, nanos);
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Returns the middle of the given bucket.
+     */
+    private static long getValue(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        int sub = bucket % SUB_COUNT;
+        long width = 1L << (exponent - SUB_BITS);
+        long low = (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+        return low + width / 2;
+    }
+}
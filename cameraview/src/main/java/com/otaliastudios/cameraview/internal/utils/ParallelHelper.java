@@ -0,0 +1,209 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits CPU-bound work on large buffers (like frame conversions) into stripes,
+ * and runs them in parallel on a shared pool.
+ *
+ * The calling thread always takes part in the work, and stripes that were not started
+ * by the pool are run by the caller, so it is safe to call this from any thread,
+ * including the pool threads.
+ *
+ * Jobs are recycled and the pool queue is array-backed, so running a task does not
+ * allocate once the helper is warmed up.
+ */
+public class ParallelHelper {
+
+    /**
+     * A piece of work that can be split in stripes.
+     */
+    public interface Task {
+
+        /**
+         * Runs the work between start (inclusive) and end (exclusive).
+         * This can be called concurrently for different ranges.
+         *
+         * @param start the first index
+         * @param end the end index
+         */
+        void run(int start, int end);
+    }
+
+    @VisibleForTesting
+    static final int MAX_STRIPES = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    // Queued stripes past this number are run by the caller.
+    private static final int MAX_QUEUED = MAX_STRIPES * 8;
+    private static final RingBuffer<Job> sJobs = new RingBuffer<>(MAX_STRIPES * 2);
+    private static Executor sExecutor;
+
+    @NonNull
+    private static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            final AtomicInteger count = new AtomicInteger(0);
+            int threads = Math.max(1, MAX_STRIPES - 1);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                    30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_QUEUED),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable, "CameraViewParallel-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    },
+                    new RejectedExecutionHandler() {
+                        @Override
+                        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                            // The queue is full. The caller will run the stripes itself.
+                            ((Job) runnable).release();
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sExecutor = executor;
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Runs the task over the range [0, count), split in stripes of at least
+     * minStripeSize elements. If the range is too small, or there is a single core,
+     * the task is run synchronously in a single call.
+     * Returns when all stripes are done.
+     *
+     * @param count the range size
+     * @param minStripeSize the minimum stripe size
+     * @param task the task
+     */
+    public static void run(int count, int minStripeSize, @NonNull Task task) {
+        run(count, minStripeSize, 1, task);
+    }
+
+    /**
+     * Like {@link #run(int, int, Task)}, but stripe boundaries are always multiples
+     * of the given alignment, except for the end of the range.
+     *
+     * @param count the range size
+     * @param minStripeSize the minimum stripe size
+     * @param alignment the stripe alignment
+     * @param task the task
+     */
+    public static void run(int count, int minStripeSize, int alignment, @NonNull Task task) {
+        int stripes = Math.min(MAX_STRIPES, count / Math.max(1, minStripeSize));
+        if (stripes <= 1) {
+            if (count > 0) task.run(0, count);
+            return;
+        }
+        int stripeSize = (count + stripes - 1) / stripes;
+        stripeSize = ((stripeSize + alignment - 1) / alignment) * alignment;
+        stripes = (count + stripeSize - 1) / stripeSize;
+        Job job = sJobs.poll();
+        if (job == null) job = new Job();
+        job.set(count, stripeSize, stripes, task);
+        Executor executor = getExecutor();
+        for (int i = 1; i < stripes; i++) {
+            job.retain();
+            executor.execute(job);
+        }
+        job.work();
+        RuntimeException error = job.await();
+        job.release();
+        if (error != null) throw error;
+    }
+
+    /**
+     * A job is referenced by the caller and by each runnable that was queued,
+     * and goes back to {@link #sJobs} when the last one releases it, so that
+     * a recycled job can never be run by a stale runnable.
+     */
+    private static class Job implements Runnable {
+        private int mCount;
+        private int mStripeSize;
+        private int mStripes;
+        private Task mTask;
+        private final AtomicInteger mNext = new AtomicInteger(0);
+        private final AtomicInteger mPending = new AtomicInteger(0);
+        private final AtomicInteger mRefs = new AtomicInteger(0);
+        private volatile RuntimeException mError;
+
+        private void set(int count, int stripeSize, int stripes, @NonNull Task task) {
+            mCount = count;
+            mStripeSize = stripeSize;
+            mStripes = stripes;
+            mTask = task;
+            mError = null;
+            mNext.set(0);
+            mPending.set(stripes);
+            mRefs.set(1);
+        }
+
+        private void retain() {
+            mRefs.incrementAndGet();
+        }
+
+        private void release() {
+            if (mRefs.decrementAndGet() == 0) {
+                mTask = null;
+                mError = null;
+                sJobs.offer(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                work();
+            } finally {
+                release();
+            }
+        }
+
+        private void work() {
+            int stripe;
+            while ((stripe = mNext.getAndIncrement()) < mStripes) {
+                int start = stripe * mStripeSize;
+                int end = Math.min(mCount, start + mStripeSize);
+                try {
+                    mTask.run(start, end);
+                } catch (RuntimeException e) {
+                    mError = e;
+                } finally {
+                    if (mPending.decrementAndGet() == 0) {
+                        synchronized (this) {
+                            notifyAll();
+                        }
+                    }
+                }
+            }
+        }
+
+        @Nullable
+        private RuntimeException await() {
+            // At this point all stripes were claimed, so we only wait for running ones.
+            boolean interrupted = false;
+            synchronized (this) {
+                while (mPending.get() > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            return mError;
+        }
+    }
+}
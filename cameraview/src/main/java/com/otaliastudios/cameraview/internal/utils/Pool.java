@@ -2,7 +2,7 @@ package com.otaliastudios.cameraview.internal.utils;
 
 import com.otaliastudios.cameraview.CameraLogger;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.CallSuper;
 import androidx.annotation.NonNull;
@@ -10,6 +10,15 @@ import androidx.annotation.Nullable;
 
 /**
  * Base class for thread-safe pools of recycleable objects.
+ *
+ * The pool does not lock: recycled items are kept in a lock-free {@link RingBuffer},
+ * and counts are kept in atomic integers, so threads calling {@link #get()} and
+ * {@link #recycle(Object)} at the same time do not block each other.
+ * The queue can hold the whole pool, so that recycling into a full queue is detected as
+ * an item being recycled twice. Only pools bigger than {@link #MAX_QUEUE_CAPACITY}, which
+ * are meant to be unbounded, keep at most {@link #MAX_RECYCLED_COUNT} recycled items:
+ * items recycled past this number are dropped and no longer counted.
+ *
  * @param <T> the object type
  */
 public class Pool<T> {
@@ -17,11 +26,23 @@ public class Pool<T> {
     private static final String TAG = Pool.class.getSimpleName();
     private static final CameraLogger LOG = CameraLogger.create(TAG);
 
-    private int maxPoolSize;
-    private int activeCount;
-    private LinkedBlockingQueue<T> queue;
-    private Factory<T> factory;
-    private final Object lock = new Object();
+    /**
+     * The biggest pool size for which the queue can hold the whole pool.
+     */
+    private static final int MAX_QUEUE_CAPACITY = 1 << 16;
+
+    /**
+     * Caps the recycled queue capacity for unbounded pools.
+     */
+    private static final int MAX_RECYCLED_COUNT = 64;
+
+    private final int maxPoolSize;
+    // All items managed by this pool: active + recycled.
+    private final AtomicInteger count = new AtomicInteger(0);
+    private final AtomicInteger activeCount = new AtomicInteger(0);
+    private final RingBuffer<T> queue;
+    private final boolean queueBounded;
+    private final Factory<T> factory;
 
     /**
      * Used to create new instances of objects when needed.
@@ -38,7 +59,8 @@ public class Pool<T> {
      */
     public Pool(int maxPoolSize, @NonNull Factory<T> factory) {
         this.maxPoolSize = maxPoolSize;
-        this.queue = new LinkedBlockingQueue<>(maxPoolSize);
+        this.queueBounded = maxPoolSize <= MAX_QUEUE_CAPACITY;
+        this.queue = new RingBuffer<>(queueBounded ? Math.max(1, maxPoolSize) : MAX_RECYCLED_COUNT);
         this.factory = factory;
     }
 
@@ -49,9 +71,7 @@ public class Pool<T> {
      * @return whether the pool is empty
      */
     public boolean isEmpty() {
-        synchronized (lock) {
-            return count() >= maxPoolSize;
-        }
+        return count() >= maxPoolSize;
     }
 
     /**
@@ -63,23 +83,24 @@ public class Pool<T> {
      */
     @Nullable
     public T get() {
-        synchronized (lock) {
-            T item = queue.poll();
-            if (item != null) {
-                activeCount++; // poll decreases, this fixes
-                LOG.v("GET - Reusing recycled item.", this);
-                return item;
-            }
+        T item = queue.poll();
+        if (item != null) {
+            activeCount.incrementAndGet();
+            LOG.v("GET - Reusing recycled item.", this);
+            return item;
+        }
 
-            if (isEmpty()) {
+        while (true) {
+            int current = count.get();
+            if (current >= maxPoolSize) {
                 LOG.v("GET - Returning null. Too much items requested.", this);
                 return null;
             }
-
-            activeCount++;
-            LOG.v("GET - Creating a new item.", this);
-            return factory.create();
+            if (count.compareAndSet(current, current + 1)) break;
         }
+        activeCount.incrementAndGet();
+        LOG.v("GET - Creating a new item.", this);
+        return factory.create();
     }
 
     /**
@@ -89,18 +110,22 @@ public class Pool<T> {
      * @param item used item
      */
     public void recycle(@NonNull T item) {
-        synchronized (lock) {
-            LOG.v("RECYCLE - Recycling item.", this);
-            if (--activeCount < 0) {
-                throw new IllegalStateException("Trying to recycle an item which makes activeCount < 0." +
-                        "This means that this or some previous items being recycled were not coming from " +
-                        "this pool, or some item was recycled more than once. " + this);
-            }
-            if (!queue.offer(item)) {
+        LOG.v("RECYCLE - Recycling item.", this);
+        if (activeCount.decrementAndGet() < 0) {
+            activeCount.incrementAndGet();
+            throw new IllegalStateException("Trying to recycle an item which makes activeCount < 0." +
+                    "This means that this or some previous items being recycled were not coming from " +
+                    "this pool, or some item was recycled more than once. " + this);
+        }
+        if (!queue.offer(item)) {
+            if (queueBounded) {
+                activeCount.incrementAndGet();
                 throw new IllegalStateException("Trying to recycle an item while the queue is full. " +
                         "This means that this or some previous items being recycled were not coming from " +
                         "this pool, or some item was recycled more than once. " + this);
             }
+            // Enough recycled items already. Drop this one.
+            count.decrementAndGet();
         }
     }
 
@@ -109,8 +134,8 @@ public class Pool<T> {
      */
     @CallSuper
     public void clear() {
-        synchronized (lock) {
-            queue.clear();
+        while (queue.poll() != null) {
+            count.decrementAndGet();
         }
     }
 
@@ -123,9 +148,7 @@ public class Pool<T> {
      */
     @SuppressWarnings("WeakerAccess")
     public final int count() {
-        synchronized (lock) {
-            return activeCount() + recycledCount();
-        }
+        return count.get();
     }
 
     /**
@@ -136,9 +159,7 @@ public class Pool<T> {
      */
     @SuppressWarnings("WeakerAccess")
     public final int activeCount() {
-        synchronized (lock) {
-            return activeCount;
-        }
+        return activeCount.get();
     }
 
     /**
@@ -150,9 +171,7 @@ public class Pool<T> {
      */
     @SuppressWarnings("WeakerAccess")
     public final int recycledCount() {
-        synchronized (lock) {
-            return queue.size();
-        }
+        return queue.size();
     }
 
     @NonNull
@@ -0,0 +1,152 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, array-backed, lock-free queue that can be used by any number of producer
+ * and consumer threads. Unlike {@link java.util.concurrent.LinkedBlockingQueue},
+ * {@link #offer(Object)} and {@link #poll()} never allocate and never take locks.
+ *
+ * Each slot has a sequence number telling whether it is ready to be written or read
+ * for the current lap, so producers and consumers only contend on their own index.
+ * If the slot is still being written or read by a thread that already claimed it,
+ * the caller waits for that thread to finish, which only takes a few instructions.
+ * The capacity is rounded up to a power of two.
+ *
+ * @param <T> the item type
+ */
+public class RingBuffer<T> {
+
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicReferenceArray<T> mItems;
+    private final AtomicIntegerArray mSequences;
+    private final AtomicInteger mHead = new AtomicInteger(0);
+    private final AtomicInteger mTail = new AtomicInteger(0);
+
+    /**
+     * Creates a new ring buffer that can hold at least the given number of items.
+     *
+     * @param capacity the minimum capacity
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity should be between 1 and 2^30.");
+        }
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        mCapacity = size;
+        mMask = size - 1;
+        mItems = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an item at the end of the queue.
+     *
+     * @param item the item
+     * @return true if added, false if the queue is full
+     */
+    public boolean offer(@NonNull T item) {
+        //noinspection ConstantConditions
+        if (item == null) throw new NullPointerException("Item can not be null.");
+        while (true) {
+            int position = mTail.get();
+            int index = position & mMask;
+            int diff = mSequences.get(index) - position;
+            if (diff == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mItems.lazySet(index, item);
+                    // Publishes the item to consumers.
+                    mSequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                if (position - mHead.get() >= mCapacity) {
+                    // The slot still holds an item from the previous lap.
+                    return false;
+                }
+                // A consumer claimed this slot, but did not free it yet.
+                Thread.yield();
+            }
+            // Otherwise, another producer took this position. Try again.
+        }
+    }
+
+    /**
+     * Removes the item at the head of the queue.
+     *
+     * @return the item, or null if the queue is empty
+     */
+    @Nullable
+    public T poll() {
+        while (true) {
+            int position = mHead.get();
+            int index = position & mMask;
+            int diff = mSequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (mHead.compareAndSet(position, position + 1)) {
+                    T item = mItems.get(index);
+                    mItems.lazySet(index, null);
+                    // Frees the slot for the next lap.
+                    mSequences.lazySet(index, position + mCapacity);
+                    return item;
+                }
+            } else if (diff < 0) {
+                if (mTail.get() - position <= 0) {
+                    // The slot was not written yet.
+                    return null;
+                }
+                // A producer claimed this slot, but did not publish the item yet.
+                Thread.yield();
+            }
+            // Otherwise, another consumer took this position. Try again.
+        }
+    }
+
+    /**
+     * Removes all items.
+     */
+    public void clear() {
+        //noinspection StatementWithEmptyBody
+        while (poll() != null) {}
+    }
+
+    /**
+     * Returns the number of items in the queue. When other threads are offering
+     * or polling, this is only an estimate.
+     *
+     * @return the size
+     */
+    public int size() {
+        int size = mTail.get() - mHead.get();
+        return Math.max(0, Math.min(mCapacity, size));
+    }
+
+    /**
+     * Whether the queue is empty. When other threads are offering
+     * or polling, this is only an estimate.
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of items that this queue can hold.
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return mCapacity;
+    }
+}
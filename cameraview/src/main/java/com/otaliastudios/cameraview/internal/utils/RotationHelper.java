@@ -5,57 +5,209 @@ import com.otaliastudios.cameraview.size.Size;
 import androidx.annotation.NonNull;
 
 /**
+ * Rotates NV21 images on the CPU.
  * This will only be used on low APIs or when GL surface is not available.
- * This risks OOMs and was never a good tool.
+ *
+ * Luma and chroma planes are rotated separately, in square tiles so that both reads
+ * and writes stay within a few cache lines. Large images are split in stripes of rows
+ * that are rotated in parallel, see {@link ParallelHelper}. The task and plane descriptions
+ * are cached per thread, so that rotating into a recycled output does not allocate.
  */
-@SuppressWarnings("DeprecatedIsStillUsed")
-@Deprecated
 public class RotationHelper {
 
+    // 32x32 luma tile = 1KB read + 1KB written.
+    private final static int TILE = 32;
+
+    // Don't split images in stripes of less than this many pixels.
+    private final static int MIN_STRIPE_PIXELS = 128 * 1024;
+
+    private final static ThreadLocal<Rotation> ROTATION = new ThreadLocal<Rotation>() {
+        @Override
+        protected Rotation initialValue() {
+            return new Rotation();
+        }
+    };
+
     /**
      * Rotates the given yuv image into another yuv array, by the given angle.
      * @param yuv image
      * @param size image size
      * @param rotation desired angle
      * @return a new yuv array
+     * @deprecated this allocates a new array on each call.
+     * Use {@link #rotate(byte[], Size, int, boolean, byte[])} instead.
      */
+    @Deprecated
     public static byte[] rotate(@NonNull final byte[] yuv, @NonNull final Size size, final int rotation) {
+        checkRotation(rotation);
         if (rotation == 0) return yuv;
-        if (rotation % 90 != 0 || rotation < 0 || rotation > 270) {
-            throw new IllegalArgumentException("0 <= rotation < 360, rotation % 90 == 0");
+        byte[] output = new byte[yuv.length];
+        rotate(yuv, size, rotation, false, output);
+        return output;
+    }
+
+    /**
+     * Rotates the given NV21 image clockwise by the given angle, and writes the result
+     * in the output array, which should be at least as big as the input and can be
+     * recycled across calls. If mirror is true, the rotated image is also flipped
+     * horizontally, as needed for front cameras.
+     *
+     * If rotation is 90 or 270, the output size is the input size, flipped.
+     * Width and height should be even.
+     *
+     * @param input the input image
+     * @param size the input size
+     * @param rotation the clockwise angle, one of 0, 90, 180 or 270
+     * @param mirror whether to flip the output horizontally
+     * @param output the output array, different from input
+     */
+    public static void rotate(@NonNull final byte[] input,
+                              @NonNull final Size size,
+                              final int rotation,
+                              final boolean mirror,
+                              @NonNull final byte[] output) {
+        checkRotation(rotation);
+        if (input == output) {
+            throw new IllegalArgumentException("Can not rotate in place.");
         }
         final int width = size.getWidth();
         final int height = size.getHeight();
-        final byte[] output = new byte[yuv.length];
-        final int frameSize = width * height;
-        final boolean swap = rotation % 180 != 0;
-        final boolean xflip = rotation % 270 != 0;
-        final boolean yflip = rotation >= 180;
-
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-                final int yIn = j * width + i;
-                final int uIn = frameSize + (j >> 1) * width + (i & ~1);
-                final int vIn = uIn + 1;
-
-                final int wOut = swap ? height : width;
-                final int hOut = swap ? width : height;
-                final int iSwapped = swap ? j : i;
-                final int jSwapped = swap ? i : j;
-                final int iOut = xflip ? wOut - iSwapped - 1 : iSwapped;
-                final int jOut = yflip ? hOut - jSwapped - 1 : jSwapped;
-
-                final int yOut = jOut * wOut + iOut;
-                final int uOut = frameSize + (jOut >> 1) * wOut + (iOut & ~1);
-                final int vOut = uOut + 1;
-
-                output[yOut] = (byte) (0xff & yuv[yIn]);
-                output[uOut] = (byte) (0xff & yuv[uIn]);
-                output[vOut] = (byte) (0xff & yuv[vIn]);
+        final int lumaSize = width * height;
+        final int chromaWidth = width / 2;
+        final int chromaHeight = height / 2;
+        final int length = lumaSize + 2 * chromaWidth * chromaHeight;
+        if (input.length < length || output.length < length) {
+            throw new IllegalArgumentException("Arrays are too small for size " + size);
+        }
+        if (rotation == 0 && !mirror) {
+            System.arraycopy(input, 0, output, 0, length);
+            return;
+        }
+        Rotation task = ROTATION.get();
+        task.input = input;
+        task.output = output;
+        task.luma.set(width, height, rotation, mirror);
+        task.chroma.set(chromaWidth, chromaHeight, rotation, mirror);
+        // Stripes are made of luma rows. Keep them even, so that they match whole chroma rows.
+        int minStripeRows = Math.max(2 * TILE, MIN_STRIPE_PIXELS / Math.max(1, width));
+        try {
+            ParallelHelper.run(height, minStripeRows, 2, task);
+        } finally {
+            // Don't keep the arrays alive.
+            task.input = null;
+            task.output = null;
+        }
+    }
+
+    private static void checkRotation(int rotation) {
+        if (rotation % 90 != 0 || rotation < 0 || rotation > 270) {
+            throw new IllegalArgumentException("0 <= rotation < 360, rotation % 90 == 0");
+        }
+    }
+
+    /**
+     * Rotates a stripe of luma rows, and the matching chroma rows.
+     * Stripes are run in parallel, so this is only written by the calling thread,
+     * before {@link ParallelHelper#run(int, int, int, ParallelHelper.Task)}.
+     */
+    private static class Rotation implements ParallelHelper.Task {
+        private final Plane luma = new Plane();
+        private final Plane chroma = new Plane();
+        private byte[] input;
+        private byte[] output;
+
+        @Override
+        public void run(int start, int end) {
+            rotateBytes(input, output, 0, luma, start, end);
+            int chromaEnd = end == luma.height ? chroma.height : end / 2;
+            rotatePairs(input, output, luma.width * luma.height, chroma, start / 2, chromaEnd);
+        }
+    }
+
+    /**
+     * Describes where input samples land in the output, for a plane of the given size.
+     * The output index of sample (x, y) is origin + x * dx + y * dy, in samples.
+     */
+    private static class Plane {
+        private int width;
+        private int height;
+        private int origin;
+        private int dx;
+        private int dy;
+
+        private void set(int width, int height, int rotation, boolean mirror) {
+            this.width = width;
+            this.height = height;
+            // The mapping is linear, so we can compute it from three points.
+            origin = map(0, 0, rotation, mirror);
+            dx = map(1, 0, rotation, mirror) - origin;
+            dy = map(0, 1, rotation, mirror) - origin;
+        }
+
+        private int map(int x, int y, int rotation, boolean mirror) {
+            boolean swap = rotation == 90 || rotation == 270;
+            int outWidth = swap ? height : width;
+            int outX, outY;
+            switch (rotation) {
+                case 90: outX = height - 1 - y; outY = x; break;
+                case 180: outX = width - 1 - x; outY = height - 1 - y; break;
+                case 270: outX = y; outY = width - 1 - x; break;
+                default: outX = x; outY = y; break;
             }
+            if (mirror) outX = outWidth - 1 - outX;
+            return outY * outWidth + outX;
         }
+    }
 
-        return output;
+    /**
+     * Rotates rows [startRow, endRow) of a plane with one byte per sample.
+     */
+    private static void rotateBytes(@NonNull byte[] input, @NonNull byte[] output, int offset,
+                                    @NonNull Plane plane, int startRow, int endRow) {
+        final int width = plane.width;
+        final int dx = plane.dx;
+        final int dy = plane.dy;
+        for (int tileY = startRow; tileY < endRow; tileY += TILE) {
+            int tileEndY = Math.min(tileY + TILE, endRow);
+            for (int tileX = 0; tileX < width; tileX += TILE) {
+                int tileEndX = Math.min(tileX + TILE, width);
+                for (int y = tileY; y < tileEndY; y++) {
+                    int in = offset + y * width + tileX;
+                    int inEnd = in + tileEndX - tileX;
+                    int out = offset + plane.origin + tileX * dx + y * dy;
+                    for (; in < inEnd; in++, out += dx) {
+                        output[out] = input[in];
+                    }
+                }
+            }
+        }
     }
-}
 
+    /**
+     * Rotates rows [startRow, endRow) of a plane with two bytes per sample,
+     * like the interleaved V and U values of NV21.
+     */
+    private static void rotatePairs(@NonNull byte[] input, @NonNull byte[] output, int offset,
+                                    @NonNull Plane plane, int startRow, int endRow) {
+        final int width = plane.width;
+        final int dx = 2 * plane.dx;
+        final int dy = 2 * plane.dy;
+        // Chroma tiles cover the same area as luma tiles.
+        final int tile = TILE / 2;
+        for (int tileY = startRow; tileY < endRow; tileY += tile) {
+            int tileEndY = Math.min(tileY + tile, endRow);
+            for (int tileX = 0; tileX < width; tileX += tile) {
+                int tileEndX = Math.min(tileX + tile, width);
+                for (int y = tileY; y < tileEndY; y++) {
+                    int in = offset + 2 * (y * width + tileX);
+                    int inEnd = in + 2 * (tileEndX - tileX);
+                    int out = offset + 2 * plane.origin + tileX * dx + y * dy;
+                    for (; in < inEnd; in += 2, out += dx) {
+                        output[out] = input[in];
+                        output[out + 1] = input[in + 1];
+                    }
+                }
+            }
+        }
+    }
+}
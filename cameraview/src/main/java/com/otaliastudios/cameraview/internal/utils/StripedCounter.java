@@ -0,0 +1,69 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that can be incremented by many threads with little contention,
+ * and read at any time without locking.
+ *
+ * The count is split in a few cells, each on its own cache line, and each thread
+ * always increments the same cell. {@link #get()} sums all of them, so it is
+ * slower than incrementing and only exact when no thread is incrementing.
+ */
+public class StripedCounter {
+
+    // Longs per cell, so that each cell is on its own 64 bytes cache line.
+    private final static int PADDING = 8;
+    private final static int STRIPES = stripes();
+
+    private static int stripes() {
+        int cores = Math.min(16, Runtime.getRuntime().availableProcessors());
+        int stripes = 1;
+        while (stripes < cores) stripes <<= 1;
+        return stripes;
+    }
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * Adds one to the count.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Adds the given value to the count.
+     *
+     * @param delta the value to add
+     */
+    public void add(long delta) {
+        mCells.getAndAdd(index(), delta);
+    }
+
+    private static int index() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 16)) & (STRIPES - 1)) * PADDING;
+    }
+
+    /**
+     * Returns the current count.
+     *
+     * @return the count
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += mCells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+}
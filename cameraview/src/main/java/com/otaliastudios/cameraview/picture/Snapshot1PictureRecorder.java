@@ -19,6 +19,7 @@ import com.otaliastudios.cameraview.size.Size;
 import androidx.annotation.NonNull;
 
 import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A {@link PictureRecorder} that uses standard APIs.
@@ -26,9 +27,13 @@ import java.io.ByteArrayOutputStream;
 public class Snapshot1PictureRecorder extends PictureRecorder {
 
     private static final String TAG = Snapshot1PictureRecorder.class.getSimpleName();
-    @SuppressWarnings("unused")
     private static final CameraLogger LOG = CameraLogger.create(TAG);
 
+    // Recorders are created for each snapshot, so the rotation buffer is kept here and
+    // reused by the next snapshots of the same size. Concurrent snapshots that find
+    // the slot empty allocate their own buffer.
+    private static final AtomicReference<byte[]> sRotationBuffer = new AtomicReference<>();
+
     private Camera1Engine mEngine1;
     private Camera mCamera;
     private AspectRatio mOutputRatio;
@@ -67,14 +72,23 @@ public class Snapshot1PictureRecorder extends PictureRecorder {
                     public void run() {
                         // Rotate the picture, because no one will write EXIF data,
                         // then crop if needed. In both cases, transform yuv to jpeg.
-                        //noinspection deprecation
-                        byte[] data = RotationHelper.rotate(yuv, previewStreamSize, sensorToOutput);
+                        byte[] data = yuv;
+                        byte[] rotationBuffer = null;
+                        if (sensorToOutput != 0) {
+                            rotationBuffer = takeRotationBuffer(yuv.length);
+                            RotationHelper.rotate(yuv, previewStreamSize, sensorToOutput, false, rotationBuffer);
+                            data = rotationBuffer;
+                        }
                         YuvImage yuv = new YuvImage(data, mFormat, outputSize.getWidth(), outputSize.getHeight(), null);
 
                         ByteArrayOutputStream stream = new ByteArrayOutputStream();
                         Rect outputRect = CropHelper.computeCrop(outputSize, mOutputRatio);
                         yuv.compressToJpeg(outputRect, 90, stream);
                         data = stream.toByteArray();
+                        if (rotationBuffer != null) {
+                            // The JPEG is a copy, so the buffer can be reused.
+                            sRotationBuffer.set(rotationBuffer);
+                        }
 
                         mResult.data = data;
                         mResult.size = new Size(outputRect.width(), outputRect.height());
@@ -92,6 +106,23 @@ public class Snapshot1PictureRecorder extends PictureRecorder {
         });
     }
 
+    /**
+     * Takes the shared rotation buffer if it has the given length,
+     * or allocates a new one otherwise.
+     *
+     * @param length the buffer length
+     * @return a buffer
+     */
+    @NonNull
+    private static byte[] takeRotationBuffer(int length) {
+        byte[] buffer = sRotationBuffer.getAndSet(null);
+        if (buffer == null || buffer.length != length) {
+            LOG.i("takeRotationBuffer:", "allocating buffer. length:", length);
+            buffer = new byte[length];
+        }
+        return buffer;
+    }
+
     @Override
     protected void dispatchResult() {
         mEngine1 = null;
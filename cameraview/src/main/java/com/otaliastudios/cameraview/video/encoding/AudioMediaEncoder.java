@@ -19,6 +19,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Default implementation for audio encoding.
@@ -33,7 +34,8 @@ public class AudioMediaEncoder extends MediaEncoder {
     private static final boolean PERFORMANCE_FILL_GAPS = true;
     private static final int PERFORMANCE_MAX_GAPS = 8;
 
-    private boolean mRequestStop = false;
+    private volatile boolean mRequestStop = false;
+    private final Object mRequestStopLock = new Object();
     private AudioEncodingThread mEncoder;
     private AudioRecordingThread mRecorder;
     private ByteBufferPool mByteBufferPool;
@@ -41,6 +43,8 @@ public class AudioMediaEncoder extends MediaEncoder {
     private AudioConfig mConfig;
     private InputBufferPool mInputBufferPool = new InputBufferPool();
     private final LinkedBlockingQueue<InputBuffer> mInputBufferQueue = new LinkedBlockingQueue<>();
+    // Buffers in mInputBufferQueue that still wait for a codec buffer.
+    private final AtomicInteger mPendingFallbacks = new AtomicInteger(0);
     private AudioNoise mAudioNoise;
 
     // Just to debug performance.
@@ -75,6 +79,7 @@ public class AudioMediaEncoder extends MediaEncoder {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        enableAsyncMode();
         mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mMediaCodec.start();
         mByteBufferPool = new ByteBufferPool(mConfig.frameSize(), mConfig.bufferPoolMaxSize());
@@ -92,7 +97,10 @@ public class AudioMediaEncoder extends MediaEncoder {
     @EncoderThread
     @Override
     protected void onStop() {
-        mRequestStop = true;
+        synchronized (mRequestStopLock) {
+            mRequestStop = true;
+            mRequestStopLock.notifyAll();
+        }
     }
 
     @Override
@@ -127,11 +135,22 @@ public class AudioMediaEncoder extends MediaEncoder {
     /**
      * A thread recording from microphone using {@link AudioRecord} class.
      * Communicates with {@link AudioEncodingThread} using {@link #mInputBufferQueue}.
+     *
+     * Whenever the codec has a free input buffer, we read straight into it, so that the
+     * encoding thread only has to queue it. Otherwise, we read into one of our own buffers,
+     * which the encoding thread will copy into the codec. Either way, buffers go through
+     * {@link #mInputBufferQueue}, so that they reach the codec in the right order, and the
+     * output is always drained by the same thread.
+     *
+     * While one of our buffers is queued, we do not take codec buffers: any codec buffer
+     * we took would be queued behind it, and the encoding thread could wait forever for
+     * a free one. See {@link #mPendingFallbacks}.
      */
     private class AudioRecordingThread extends Thread {
 
         private AudioRecord mAudioRecord;
         private ByteBuffer mCurrentBuffer;
+        private InputBuffer mCodecBuffer;
         private int mCurrentReadBytes;
 
         private long mLastTimeUs;
@@ -168,9 +187,8 @@ public class AudioMediaEncoder extends MediaEncoder {
                     // We have reached the max length, so stop reading.
                     // However, do not get out of the loop - the controller
                     // will call stop() on us soon. It's not our responsibility
-                    // to stop ourselves.
-                    //noinspection UnnecessaryContinue
-                    continue;
+                    // to stop ourselves. Wait for it without spinning.
+                    awaitStopRequest();
                 }
             }
             LOG.w("Stop was requested. We're out of the loop. Will post an endOfStream.");
@@ -182,7 +200,59 @@ public class AudioMediaEncoder extends MediaEncoder {
             mAudioRecord = null;
         }
 
+        private void awaitStopRequest() {
+            synchronized (mRequestStopLock) {
+                while (!mRequestStop) {
+                    try {
+                        mRequestStopLock.wait();
+                    } catch (InterruptedException ignore) {}
+                }
+            }
+        }
+
         private void read(boolean endOfStream) {
+            if (mCodecBuffer == null && mPendingFallbacks.get() == 0) {
+                InputBuffer inputBuffer = mInputBufferPool.get();
+                //noinspection ConstantConditions
+                if (tryAcquireInputBuffer(inputBuffer)) {
+                    mCodecBuffer = inputBuffer;
+                } else {
+                    mInputBufferPool.recycle(inputBuffer);
+                }
+            }
+            if (mCodecBuffer != null) {
+                readIntoCodec(endOfStream);
+            } else {
+                readIntoPool(endOfStream);
+            }
+        }
+
+        /**
+         * Reads straight into {@link #mCodecBuffer}, with no copy. The buffer is kept
+         * for the next read if this one fails, unless this is the end of stream.
+         */
+        private void readIntoCodec(boolean endOfStream) {
+            ByteBuffer data = mCodecBuffer.data;
+            mCurrentReadBytes = readAudio(data, Math.min(mConfig.frameSize(), data.capacity()));
+            LOG.i("read thread - eos:", endOfStream, "- Read new audio frame into codec. Bytes:", mCurrentReadBytes);
+            if (mCurrentReadBytes > 0) {
+                increaseTime(mCurrentReadBytes, endOfStream);
+                LOG.i("read thread - eos:", endOfStream, "- mLastTimeUs:", mLastTimeUs);
+            } else {
+                logReadError(endOfStream);
+                if (!endOfStream) return;
+            }
+            InputBuffer inputBuffer = mCodecBuffer;
+            mCodecBuffer = null;
+            inputBuffer.source = null;
+            enqueue(inputBuffer, mLastTimeUs, Math.max(0, mCurrentReadBytes), endOfStream);
+        }
+
+        /**
+         * Reads into one of our buffers, which will be copied into the codec later.
+         * This is used when the codec has no free input buffer.
+         */
+        private void readIntoPool(boolean endOfStream) {
             mCurrentBuffer = mByteBufferPool.get();
             if (mCurrentBuffer == null) {
                 // This can happen and it means that encoding is slow with respect to recording.
@@ -193,41 +263,57 @@ public class AudioMediaEncoder extends MediaEncoder {
                 // However, if endOfStream, we CAN'T lose this frame!
                 if (endOfStream) {
                     LOG.v("read thread - eos: true - No buffer, retrying.");
-                    read(true); // try again
+                    // We can't take a codec buffer while fallbacks are queued, so wait for
+                    // the encoding thread to recycle one of ours instead of spinning.
+                    if (mPendingFallbacks.get() > 0) skipFrames(1);
+                    read(true); // try again, maybe with a codec buffer
                 } else {
                     LOG.w("read thread - eos: false - Skipping audio frame, encoding is too slow.");
                     skipFrames(6); // sleep a bit
                 }
             } else {
                 mCurrentBuffer.clear();
-                // When stereo, we read twice the data here and AudioRecord will fill the buffer
-                // with left and right bytes. https://stackoverflow.com/q/20594750/4288782
-                if (PERFORMANCE_DEBUG) {
-                    long before = System.nanoTime();
-                    mCurrentReadBytes = mAudioRecord.read(mCurrentBuffer, mConfig.frameSize());
-                    long after = System.nanoTime();
-                    float delayMillis = (after - before) / 1000000F;
-                    float durationMillis = AudioTimestamp.bytesToMillis(mCurrentReadBytes, mConfig.byteRate());
-                    LOG.v("read thread - reading took:", delayMillis,
-                            "should be:", durationMillis,
-                            "delay:", delayMillis - durationMillis);
-                } else {
-                    mCurrentReadBytes = mAudioRecord.read(mCurrentBuffer, mConfig.frameSize());
-                }
+                mCurrentReadBytes = readAudio(mCurrentBuffer, mConfig.frameSize());
                 LOG.i("read thread - eos:", endOfStream, "- Read new audio frame. Bytes:", mCurrentReadBytes);
                 if (mCurrentReadBytes > 0) { // Good read: increase PTS.
                     increaseTime(mCurrentReadBytes, endOfStream);
                     LOG.i("read thread - eos:", endOfStream, "- mLastTimeUs:", mLastTimeUs);
                     mCurrentBuffer.limit(mCurrentReadBytes);
                     enqueue(mCurrentBuffer, mLastTimeUs, endOfStream);
-                } else if (mCurrentReadBytes == AudioRecord.ERROR_INVALID_OPERATION) {
-                    LOG.e("read thread - eos:", endOfStream, "- Got AudioRecord.ERROR_INVALID_OPERATION");
-                } else if (mCurrentReadBytes == AudioRecord.ERROR_BAD_VALUE) {
-                    LOG.e("read thread - eos:", endOfStream, "- Got AudioRecord.ERROR_BAD_VALUE");
+                } else {
+                    logReadError(endOfStream);
                 }
             }
         }
 
+        /**
+         * Reads from the {@link AudioRecord}, starting at position 0 of the given buffer.
+         * When stereo, we read twice the data here and AudioRecord will fill the buffer
+         * with left and right bytes. https://stackoverflow.com/q/20594750/4288782
+         */
+        private int readAudio(@NonNull ByteBuffer buffer, int size) {
+            if (!PERFORMANCE_DEBUG) {
+                return mAudioRecord.read(buffer, size);
+            }
+            long before = System.nanoTime();
+            int readBytes = mAudioRecord.read(buffer, size);
+            long after = System.nanoTime();
+            float delayMillis = (after - before) / 1000000F;
+            float durationMillis = AudioTimestamp.bytesToMillis(readBytes, mConfig.byteRate());
+            LOG.v("read thread - reading took:", delayMillis,
+                    "should be:", durationMillis,
+                    "delay:", delayMillis - durationMillis);
+            return readBytes;
+        }
+
+        private void logReadError(boolean endOfStream) {
+            if (mCurrentReadBytes == AudioRecord.ERROR_INVALID_OPERATION) {
+                LOG.e("read thread - eos:", endOfStream, "- Got AudioRecord.ERROR_INVALID_OPERATION");
+            } else if (mCurrentReadBytes == AudioRecord.ERROR_BAD_VALUE) {
+                LOG.e("read thread - eos:", endOfStream, "- Got AudioRecord.ERROR_BAD_VALUE");
+            }
+        }
+
         /**
          * Increases presentation time and checks for max length constraint. This is much faster
          * then waiting for the encoder to check it during {@link #drainOutput(boolean)}. We
@@ -260,15 +346,19 @@ public class AudioMediaEncoder extends MediaEncoder {
         }
 
         private void enqueue(@NonNull ByteBuffer byteBuffer, long timestamp, boolean isEndOfStream) {
-            if (PERFORMANCE_DEBUG) {
-                mDebugSendStartMap.put(timestamp, System.nanoTime() / 1000000);
-            }
-            int readBytes = byteBuffer.remaining();
             InputBuffer inputBuffer = mInputBufferPool.get();
             //noinspection ConstantConditions
             inputBuffer.source = byteBuffer;
+            mPendingFallbacks.incrementAndGet();
+            enqueue(inputBuffer, timestamp, byteBuffer.remaining(), isEndOfStream);
+        }
+
+        private void enqueue(@NonNull InputBuffer inputBuffer, long timestamp, int length, boolean isEndOfStream) {
+            if (PERFORMANCE_DEBUG) {
+                mDebugSendStartMap.put(timestamp, System.nanoTime() / 1000000);
+            }
             inputBuffer.timestamp = timestamp;
-            inputBuffer.length = readBytes;
+            inputBuffer.length = length;
             inputBuffer.isEndOfStream = isEndOfStream;
             mInputBufferQueue.add(inputBuffer);
         }
@@ -316,7 +406,8 @@ public class AudioMediaEncoder extends MediaEncoder {
 
     /**
      * A thread encoding the microphone data using the media encoder APIs.
-     * Communicates with {@link AudioRecordingThread} using {@link #mInputBufferQueue}.
+     * Communicates with {@link AudioRecordingThread} using {@link #mInputBufferQueue},
+     * and sleeps while the queue is empty.
      *
      * We want to do this operation on a different thread than the recording one (to avoid
      * losing frames while we're working here), and different than the {@link MediaEncoder}
@@ -329,39 +420,36 @@ public class AudioMediaEncoder extends MediaEncoder {
 
         @Override
         public void run() {
-            encoding: while (true) {
-                if (mInputBufferQueue.isEmpty()) {
-                    skipFrames(2);
-                } else {
-                    LOG.i("encoding thread - performing", mInputBufferQueue.size(), "pending operations.");
-                    InputBuffer inputBuffer;
-                    while ((inputBuffer = mInputBufferQueue.peek()) != null) {
-
-                        // Performance logging
-                        if (PERFORMANCE_DEBUG) {
-                            long sendEnd = System.nanoTime() / 1000000;
-                            Long sendStart = mDebugSendStartMap.remove(inputBuffer.timestamp);
-                            //noinspection StatementWithEmptyBody
-                            if (sendStart != null) {
-                                mDebugSendAvgDelay = ((mDebugSendAvgDelay * mDebugSendCount) + (sendEnd - sendStart)) / (++mDebugSendCount);
-                                LOG.v("send delay millis:", sendEnd - sendStart, "average:", mDebugSendAvgDelay);
-                            } else {
-                                // This input buffer was already processed (but tryAcquire failed for now).
-                            }
-                        }
-
-                        // Actual work
-                        if (inputBuffer.isEndOfStream) {
-                            acquireInputBuffer(inputBuffer);
-                            encode(inputBuffer);
-                            break encoding;
-                        } else if (tryAcquireInputBuffer(inputBuffer)) {
-                            encode(inputBuffer);
-                        } else {
-                            skipFrames(1);
-                        }
+            while (true) {
+                // Sleep until the recording thread has some data for us.
+                InputBuffer inputBuffer;
+                try {
+                    inputBuffer = mInputBufferQueue.take();
+                } catch (InterruptedException e) {
+                    // Nobody should interrupt us. Keep going until the end of stream.
+                    continue;
+                }
+                LOG.i("encoding thread - performing pending operation. Still pending:", mInputBufferQueue.size());
+
+                // Performance logging
+                if (PERFORMANCE_DEBUG) {
+                    long sendEnd = System.nanoTime() / 1000000;
+                    Long sendStart = mDebugSendStartMap.remove(inputBuffer.timestamp);
+                    if (sendStart != null) {
+                        mDebugSendAvgDelay = ((mDebugSendAvgDelay * mDebugSendCount) + (sendEnd - sendStart)) / (++mDebugSendCount);
+                        LOG.v("send delay millis:", sendEnd - sendStart, "average:", mDebugSendAvgDelay);
                     }
                 }
+
+                // Actual work. If the data is not in a codec buffer yet, this
+                // sleeps until the codec has a free input buffer.
+                boolean eos = inputBuffer.isEndOfStream;
+                if (inputBuffer.source != null) {
+                    acquireInputBuffer(inputBuffer);
+                    mPendingFallbacks.decrementAndGet();
+                }
+                encode(inputBuffer);
+                if (eos) break;
             }
             // We got an end of stream.
             mInputBufferPool.clear();
@@ -377,9 +465,13 @@ public class AudioMediaEncoder extends MediaEncoder {
             long executeStart = System.nanoTime() / 1000000;
 
             LOG.i("encoding thread - performing pending operation for timestamp:", buffer.timestamp, "- encoding.");
-            buffer.data.put(buffer.source); // NOTE: this copy is prob. the worst part here for performance
-            mByteBufferPool.recycle(buffer.source);
-            mInputBufferQueue.remove(buffer);
+            if (buffer.source != null) {
+                // The data was read into our own buffer, because the codec had no free input buffer.
+                // NOTE: this copy is prob. the worst part here for performance
+                buffer.data.put(buffer.source);
+                mByteBufferPool.recycle(buffer.source);
+                buffer.source = null;
+            }
             encodeInputBuffer(buffer);
             boolean eos = buffer.isEndOfStream;
             mInputBufferPool.recycle(buffer);
@@ -5,6 +5,9 @@ import java.nio.ByteBuffer;
 /**
  * Represents an input buffer, which means,
  * raw data that should be encoded by MediaCodec.
+ *
+ * The data is in the codec buffer, unless source is not null: in this case, it
+ * still has to be copied from source into the codec buffer.
  */
 @SuppressWarnings("WeakerAccess")
 public class InputBuffer {
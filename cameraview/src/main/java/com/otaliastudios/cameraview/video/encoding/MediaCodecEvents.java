@@ -0,0 +1,156 @@
+package com.otaliastudios.cameraview.video.encoding;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayDeque;
+
+/**
+ * A {@link MediaCodec.Callback} for codecs in asynchronous mode, that collects the available
+ * buffers and exposes them through the same dequeue methods of the synchronous mode.
+ * This way {@link MediaEncoder} can work the same way in both modes.
+ *
+ * Unlike the codec ones, dequeue methods wait on a monitor that is notified by the callbacks,
+ * so encoder threads only wake up when a buffer is available. Callbacks should be received on
+ * a dedicated thread, since encoder threads block while waiting for them.
+ */
+@RequiresApi(Build.VERSION_CODES.M)
+class MediaCodecEvents extends MediaCodec.Callback {
+
+    /**
+     * An output buffer, or a format change if index is
+     * {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED}.
+     */
+    private static class Output {
+        private int index;
+        private int offset;
+        private int size;
+        private long presentationTimeUs;
+        private int flags;
+    }
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<Integer> mInputIndices = new ArrayDeque<>();
+    private final ArrayDeque<Output> mOutputs = new ArrayDeque<>();
+    private final ArrayDeque<Output> mRecycledOutputs = new ArrayDeque<>();
+    private MediaCodec.CodecException mError;
+
+    @Override
+    public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+        synchronized (mLock) {
+            mInputIndices.add(index);
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+        synchronized (mLock) {
+            Output output = obtainOutput(index);
+            output.offset = info.offset;
+            output.size = info.size;
+            output.presentationTimeUs = info.presentationTimeUs;
+            output.flags = info.flags;
+            mOutputs.add(output);
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+        synchronized (mLock) {
+            mOutputs.add(obtainOutput(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED));
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+        synchronized (mLock) {
+            mError = e;
+            mLock.notifyAll();
+        }
+    }
+
+    @NonNull
+    private Output obtainOutput(int index) {
+        Output output = mRecycledOutputs.poll();
+        if (output == null) output = new Output();
+        output.index = index;
+        return output;
+    }
+
+    /**
+     * Like {@link MediaCodec#dequeueInputBuffer(long)}. This also returns
+     * {@link MediaCodec#INFO_TRY_AGAIN_LATER} as soon as output buffers are available, because
+     * the codec might be waiting for them to be released before it can free input buffers.
+     *
+     * @param timeoutUs the timeout, or a negative value to wait indefinitely
+     * @return the buffer index or {@link MediaCodec#INFO_TRY_AGAIN_LATER}
+     */
+    int dequeueInputBuffer(long timeoutUs) {
+        synchronized (mLock) {
+            long deadline = getDeadline(timeoutUs);
+            while (mInputIndices.isEmpty()) {
+                if (mError != null) throw mError;
+                if (!mOutputs.isEmpty() || !await(deadline)) {
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+            }
+            return mInputIndices.poll();
+        }
+    }
+
+    /**
+     * Like {@link MediaCodec#dequeueOutputBuffer(MediaCodec.BufferInfo, long)}.
+     *
+     * @param info the info to be filled
+     * @param timeoutUs the timeout, or a negative value to wait indefinitely
+     * @return the buffer index, {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED}
+     *         or {@link MediaCodec#INFO_TRY_AGAIN_LATER}
+     */
+    int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo info, long timeoutUs) {
+        synchronized (mLock) {
+            long deadline = getDeadline(timeoutUs);
+            while (mOutputs.isEmpty()) {
+                if (mError != null) throw mError;
+                if (!await(deadline)) return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            Output output = mOutputs.poll();
+            int index = output.index;
+            if (index >= 0) {
+                info.set(output.offset, output.size, output.presentationTimeUs, output.flags);
+            }
+            mRecycledOutputs.add(output);
+            return index;
+        }
+    }
+
+    private static long getDeadline(long timeoutUs) {
+        return timeoutUs < 0 ? Long.MAX_VALUE : System.nanoTime() + timeoutUs * 1000;
+    }
+
+    /**
+     * Waits for a callback, until the deadline. Must hold the lock.
+     * Returns false if the deadline has passed or we were interrupted.
+     */
+    private boolean await(long deadline) {
+        try {
+            if (deadline == Long.MAX_VALUE) {
+                mLock.wait();
+                return true;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            mLock.wait(remaining / 1000000, (int) (remaining % 1000000));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -75,6 +75,13 @@ import java.util.concurrent.atomic.AtomicInteger;
  * However, they are required to call {@link #notifyFirstFrameMillis(long)} and pass the
  * milliseconds of the first frame in the {@link System#currentTimeMillis()} reference, so
  * something that we can coordinate on.
+ *
+ * ASYNC MODE
+ *
+ * Subclasses can call {@link #enableAsyncMode()} before configuring the codec. On API 23+,
+ * this moves the codec to asynchronous mode: available buffers are pushed to us by callbacks,
+ * and threads waiting for them are woken up instead of polling the codec. On older versions,
+ * the codec stays synchronous and we wait inside the codec dequeue calls.
  */
 // https://github.com/saki4510t/AudioVideoRecordingSample/blob/master/app/src/main/java/com/serenegiant/encoder/MediaEncoder.java
 @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
@@ -95,6 +102,11 @@ public abstract class MediaEncoder {
     // Can't go too high or this is a bottleneck for the audio encoder.
     private final static int OUTPUT_TIMEOUT_US = 0;
 
+    // Used when we have to wait for a buffer. The wait ends as soon as the buffer is available,
+    // so this only bounds how long we go without draining the output while waiting for input.
+    private final static int INPUT_WAIT_TIMEOUT_US = 10000;
+    private final static int OUTPUT_WAIT_TIMEOUT_US = 10000;
+
     private final static int STATE_NONE = 0;
     private final static int STATE_PREPARING = 1;
     private final static int STATE_PREPARED = 2;
@@ -120,6 +132,8 @@ public abstract class MediaEncoder {
     private OutputBufferPool mOutputBufferPool;
     private MediaCodec.BufferInfo mBufferInfo;
     private MediaCodecBuffers mBuffers;
+    private MediaCodecEvents mEvents;
+    private WorkerHandler mEventsWorker;
     private final Map<String, AtomicInteger> mPendingEvents = new HashMap<>();
 
     private long mMaxLengthMillis;
@@ -269,6 +283,39 @@ public abstract class MediaEncoder {
         });
     }
 
+    /**
+     * Moves {@link #mMediaCodec} to asynchronous mode, so that buffers are pushed to us when
+     * available instead of being polled. Subclasses should call this in
+     * {@link #onPrepare(MediaEncoderEngine.Controller, long)}, after creating the codec
+     * and before configuring it.
+     *
+     * This needs API 23, because callbacks must be received on a thread that is not blocked
+     * waiting for them, like the encoder thread can be. On older versions this does nothing.
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected final void enableAsyncMode() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return;
+        LOG.i(mName, "Enabling async mode.");
+        mEvents = new MediaCodecEvents();
+        mEventsWorker = WorkerHandler.get(mName + "Events");
+        mEventsWorker.getThread().setPriority(Thread.MAX_PRIORITY);
+        mMediaCodec.setCallback(mEvents, mEventsWorker.getHandler());
+    }
+
+    private int dequeueInputBuffer(long timeoutUs) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && mEvents != null) {
+            return mEvents.dequeueInputBuffer(timeoutUs);
+        }
+        return mMediaCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    private int dequeueOutputBuffer(@NonNull MediaCodec.BufferInfo info, long timeoutUs) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && mEvents != null) {
+            return mEvents.dequeueOutputBuffer(info, timeoutUs);
+        }
+        return mMediaCodec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
     /**
      * Called to prepare this encoder before starting.
      * Any initialization should be done here as it does not interfere with the original
@@ -324,6 +371,11 @@ public abstract class MediaEncoder {
         mOutputBufferPool.clear();
         mOutputBufferPool = null;
         mBuffers = null;
+        mEvents = null;
+        if (mEventsWorker != null) {
+            mEventsWorker.destroy();
+            mEventsWorker = null;
+        }
         setState(STATE_STOPPED);
         mWorker.destroy();
     }
@@ -331,34 +383,54 @@ public abstract class MediaEncoder {
     /**
      * Returns a new input buffer and index, waiting at most {@link #INPUT_TIMEOUT_US} if none is available.
      * Callers should check the boolean result - true if the buffer was filled.
+     * This can be called from any thread, for example to read data straight into the buffer.
      *
      * @param holder the input buffer holder
      * @return true if acquired
      */
     @SuppressWarnings("WeakerAccess")
     protected boolean tryAcquireInputBuffer(@NonNull InputBuffer holder) {
-        if (mBuffers == null) {
-            mBuffers = new MediaCodecBuffers(mMediaCodec);
-        }
-        int inputBufferIndex = mMediaCodec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+        return tryAcquireInputBuffer(holder, INPUT_TIMEOUT_US);
+    }
+
+    private boolean tryAcquireInputBuffer(@NonNull InputBuffer holder, long timeoutUs) {
+        MediaCodecBuffers buffers = getBuffers();
+        int inputBufferIndex = dequeueInputBuffer(timeoutUs);
         if (inputBufferIndex < 0) {
             return false;
         } else {
             holder.index = inputBufferIndex;
-            holder.data = mBuffers.getInputBuffer(inputBufferIndex);
+            holder.data = buffers.getInputBuffer(inputBufferIndex);
             return true;
         }
     }
 
+    /**
+     * Input buffers can be acquired from any thread, so this is synchronized.
+     */
+    @NonNull
+    private synchronized MediaCodecBuffers getBuffers() {
+        if (mBuffers == null) {
+            mBuffers = new MediaCodecBuffers(mMediaCodec);
+        }
+        return mBuffers;
+    }
+
     /**
      * Returns a new input buffer and index, waiting indefinitely if none is available.
      * The buffer should be written into, then be passed to {@link #encodeInputBuffer(InputBuffer)}.
      *
+     * While waiting, this thread sleeps until a buffer is available. The output is drained,
+     * since the codec might need output buffers to be released before freeing input buffers.
+     *
      * @param holder the input buffer holder
      */
-    @SuppressWarnings({"StatementWithEmptyBody", "WeakerAccess"})
+    @SuppressWarnings("WeakerAccess")
     protected void acquireInputBuffer(@NonNull InputBuffer holder) {
-        while (!tryAcquireInputBuffer(holder)) {}
+        while (!tryAcquireInputBuffer(holder, INPUT_TIMEOUT_US)) {
+            drainOutput(false);
+            if (tryAcquireInputBuffer(holder, INPUT_WAIT_TIMEOUT_US)) return;
+        }
     }
 
     /**
@@ -385,7 +457,7 @@ public abstract class MediaEncoder {
      * and forwards it to the muxer.
      *
      * If drainAll is not set, this returns after TIMEOUT_USEC if there is no more data to drain.
-     * If drainAll is set, we wait until we see EOS on the output.
+     * If drainAll is set, we wait until we see EOS on the output, sleeping between buffers.
      * Calling this with drainAll set should be done once, right before stopping the muxer.
      *
      * @param drainAll whether to drain all
@@ -398,18 +470,17 @@ public abstract class MediaEncoder {
             LOG.e("drain() was called before prepare() or after releasing.");
             return;
         }
-        if (mBuffers == null) {
-            mBuffers = new MediaCodecBuffers(mMediaCodec);
-        }
+        MediaCodecBuffers buffers = getBuffers();
         while (true) {
-            int encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, OUTPUT_TIMEOUT_US);
+            int encoderStatus = dequeueOutputBuffer(mBufferInfo,
+                    drainAll ? OUTPUT_WAIT_TIMEOUT_US : OUTPUT_TIMEOUT_US);
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 // no output available yet
                 if (!drainAll) break; // out of while
 
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 // not expected for an encoder
-                mBuffers.onOutputBuffersChanged();
+                buffers.onOutputBuffersChanged();
 
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 // should happen before receiving buffers, and should only happen once
@@ -422,7 +493,7 @@ public abstract class MediaEncoder {
                 LOG.e("Unexpected result from dequeueOutputBuffer: " + encoderStatus);
                 // let's ignore it
             } else {
-                ByteBuffer encodedData = mBuffers.getOutputBuffer(encoderStatus);
+                ByteBuffer encodedData = buffers.getOutputBuffer(encoderStatus);
 
                 // Codec config means that config data was pulled out and fed to the muxer when we got
                 // the INFO_OUTPUT_FORMAT_CHANGED status. Ignore it.
@@ -71,6 +71,7 @@ abstract class VideoMediaEncoder<C extends VideoConfig> extends MediaEncoder {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        enableAsyncMode();
         mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mSurface = mMediaCodec.createInputSurface();
         mMediaCodec.start();
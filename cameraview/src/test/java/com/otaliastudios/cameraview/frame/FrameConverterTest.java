@@ -0,0 +1,205 @@
+package com.otaliastudios.cameraview.frame;
+
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+
+import com.otaliastudios.cameraview.internal.utils.AllocationCounter;
+import com.otaliastudios.cameraview.size.Size;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+public class FrameConverterTest {
+
+    private final static int WIDTH = 64;
+    private final static int HEIGHT = 48;
+
+    private FrameManager manager;
+    private byte[] data;
+    private Frame frame;
+
+    @Before
+    public void setUp() {
+        manager = mock(FrameManager.class);
+        data = new byte[WIDTH * HEIGHT * 3 / 2];
+        new Random(WIDTH).nextBytes(data);
+        frame = new Frame(manager);
+        frame.set(data, 0, 0, new Size(WIDTH, HEIGHT), ImageFormat.NV21);
+    }
+
+    /**
+     * Floating point BT.601 conversion of the pixel at (x, y).
+     */
+    private static int expected(@NonNull byte[] nv21, int width, int height, int x, int y) {
+        int vu = width * height + (y / 2) * width + (x / 2) * 2;
+        float luma = 1.164F * Math.max(0, (nv21[y * width + x] & 0xFF) - 16);
+        float v = (nv21[vu] & 0xFF) - 128;
+        float u = (nv21[vu + 1] & 0xFF) - 128;
+        int r = clamp(luma + 1.596F * v);
+        int g = clamp(luma - 0.813F * v - 0.391F * u);
+        int b = clamp(luma + 2.018F * u);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(float value) {
+        return (int) Math.max(0, Math.min(255, value));
+    }
+
+    private static void assertPixel(int expected, int actual) {
+        assertEquals(0xFF, actual >>> 24);
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int e = (expected >> shift) & 0xFF;
+            int a = (actual >> shift) & 0xFF;
+            assertTrue("Expected " + e + ", got " + a, Math.abs(e - a) <= 2);
+        }
+    }
+
+    @Test
+    public void testConvert() {
+        int[] output = new int[WIDTH * HEIGHT];
+        new FrameConverter().convert(frame, output);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertPixel(expected(data, WIDTH, HEIGHT, x, y), output[y * WIDTH + x]);
+            }
+        }
+    }
+
+    @Test
+    public void testConvert_gray() {
+        Arrays.fill(data, (byte) 128);
+        int[] output = new int[WIDTH * HEIGHT];
+        frame.toArgb(output);
+        int gray = Math.round(1.164F * (128 - 16));
+        for (int pixel : output) {
+            assertEquals(0xFF000000 | (gray << 16) | (gray << 8) | gray, pixel);
+        }
+    }
+
+    @Test
+    public void testToArgb() {
+        int[] expected = new int[WIDTH * HEIGHT];
+        int[] output = new int[WIDTH * HEIGHT];
+        new FrameConverter().convert(frame, expected);
+        frame.toArgb(output);
+        for (int i = 0; i < output.length; i++) {
+            assertEquals(expected[i], output[i]);
+        }
+    }
+
+    @Test
+    public void testDownscale() {
+        FrameConverter converter = new FrameConverter().setDownscale(3);
+        assertEquals(3, converter.getDownscale());
+        Size size = converter.getOutputSize(frame.getSize());
+        assertEquals(WIDTH / 3, size.getWidth());
+        assertEquals(HEIGHT / 3, size.getHeight());
+        int[] output = converter.convert(frame);
+        for (int y = 0; y < size.getHeight(); y++) {
+            for (int x = 0; x < size.getWidth(); x++) {
+                assertPixel(expected(data, WIDTH, HEIGHT, x * 3, y * 3),
+                        output[y * size.getWidth() + x]);
+            }
+        }
+    }
+
+    @Test
+    public void testCrop() {
+        // Partially outside of the frame: should be intersected.
+        Rect crop = mock(Rect.class);
+        crop.left = 10;
+        crop.top = 6;
+        crop.right = WIDTH + 20;
+        crop.bottom = 30;
+        FrameConverter converter = new FrameConverter().setCrop(crop).setDownscale(2);
+        Size size = converter.getOutputSize(frame.getSize());
+        assertEquals((WIDTH - 10) / 2, size.getWidth());
+        assertEquals((30 - 6) / 2, size.getHeight());
+        int[] output = converter.convert(frame);
+        for (int y = 0; y < size.getHeight(); y++) {
+            for (int x = 0; x < size.getWidth(); x++) {
+                assertPixel(expected(data, WIDTH, HEIGHT, 10 + x * 2, 6 + y * 2),
+                        output[y * size.getWidth() + x]);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCrop_outside() {
+        Rect crop = mock(Rect.class);
+        crop.left = WIDTH;
+        crop.top = 0;
+        crop.right = WIDTH + 10;
+        crop.bottom = 10;
+        new FrameConverter().setCrop(crop).convert(frame);
+    }
+
+    @Test
+    public void testConvert_reusesOutput() {
+        FrameConverter converter = new FrameConverter();
+        int[] first = converter.convert(frame);
+        int[] second = converter.convert(frame);
+        assertSame(first, second);
+        // Smaller outputs fit in the same array.
+        converter.setDownscale(2);
+        assertSame(first, converter.convert(frame));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConvert_outputTooSmall() {
+        new FrameConverter().convert(frame, new int[WIDTH * HEIGHT - 1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidDownscale() {
+        new FrameConverter().setDownscale(0);
+    }
+
+    @Test
+    public void testConvert_parallel() {
+        // Large enough to be split in stripes, if there are multiple cores.
+        int width = 640;
+        int height = 480;
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        new Random(width).nextBytes(nv21);
+        int[] output = new int[width * height];
+        FrameConverter.convert(nv21, width, height, output);
+        for (int y = 0; y < height; y += 7) {
+            for (int x = 0; x < width; x += 5) {
+                assertPixel(expected(nv21, width, height, x, y), output[y * width + x]);
+            }
+        }
+    }
+
+    @Test
+    public void testToArgb_noAllocations() {
+        assumeTrue(AllocationCounter.isSupported());
+        // Large enough to be split in stripes, if there are multiple cores.
+        int width = 640;
+        int height = 480;
+        final Frame frame = new Frame(manager);
+        frame.set(new byte[width * height * 3 / 2], 0, 0, new Size(width, height), ImageFormat.NV21);
+        final int[] output = new int[width * height];
+        long bytes = AllocationCounter.measure(20, new Runnable() {
+            @Override
+            public void run() {
+                frame.toArgb(output);
+            }
+        });
+        // Pool threads are measured too: leave some room for the executor internals.
+        int threads = Runtime.getRuntime().availableProcessors();
+        assertTrue("Allocated " + bytes + " bytes per conversion", bytes < 64 * threads);
+    }
+}
@@ -0,0 +1,813 @@
+package com.otaliastudios.cameraview.frame;
+
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.otaliastudios.cameraview.size.Size;
+import com.otaliastudios.cameraview.size.SizeSelector;
+import com.otaliastudios.cameraview.size.SizeSelectors;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.same;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FrameDispatcherTest {
+
+    /**
+     * An executor that holds runnables until {@link #flush()} is called.
+     */
+    private class QueueExecutor implements Executor {
+        private final List<Runnable> runnables = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            runnables.add(command);
+        }
+
+        private void flush() {
+            List<Runnable> list = new ArrayList<>(runnables);
+            runnables.clear();
+            for (Runnable runnable : list) runnable.run();
+        }
+    }
+
+    /**
+     * An async processor whose tasks are completed by {@link #complete(int, boolean)}.
+     */
+    private class TaskProcessor implements AsyncFrameProcessor {
+        private final List<Frame> frames = new ArrayList<>();
+        private final List<Task<Object>> tasks = new ArrayList<>();
+
+        @NonNull
+        @Override
+        public Task<?> process(@NonNull Frame frame) {
+            //noinspection unchecked
+            Task<Object> task = mock(Task.class);
+            frames.add(frame);
+            tasks.add(task);
+            return task;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void complete(int index, boolean successful) {
+            Task<Object> task = tasks.get(index);
+            when(task.isSuccessful()).thenReturn(successful);
+            ArgumentCaptor<OnCompleteListener> captor = ArgumentCaptor.forClass(OnCompleteListener.class);
+            verify(task).addOnCompleteListener(any(Executor.class), captor.capture());
+            captor.getValue().onComplete(task);
+        }
+    }
+
+    private final Executor directExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private FrameManager.BufferCallback callback;
+    private FrameManager manager;
+    private FrameDispatcher dispatcher;
+    private int length;
+
+    @Before
+    public void setUp() {
+        callback = mock(FrameManager.BufferCallback.class);
+        manager = new FrameManager(5, callback);
+        length = manager.setUp(4, new Size(50, 50));
+        dispatcher = new FrameDispatcher(directExecutor);
+        reset(callback);
+    }
+
+    @After
+    public void tearDown() {
+        callback = null;
+        manager = null;
+        dispatcher = null;
+    }
+
+    @Test
+    public void testDispatch_noProcessors() {
+        byte[] data = new byte[length];
+        dispatcher.dispatch(manager.getFrame(data, 0, 0, null, 0));
+        verify(callback, times(1)).onBufferAvailable(data);
+    }
+
+    @Test
+    public void testDispatch_defaultExecutor() {
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, new FrameProcessorOptions());
+        byte[] data = new byte[length];
+        Frame frame = manager.getFrame(data, 0, 0, null, 0);
+        dispatcher.dispatch(frame);
+        verify(processor, times(1)).process(frame);
+        verify(callback, times(1)).onBufferAvailable(data);
+    }
+
+    @Test
+    public void testDispatch_fanOut() {
+        QueueExecutor executor1 = new QueueExecutor();
+        QueueExecutor executor2 = new QueueExecutor();
+        FrameProcessor processor1 = mock(FrameProcessor.class);
+        FrameProcessor processor2 = mock(FrameProcessor.class);
+        dispatcher.add(processor1, new FrameProcessorOptions().setExecutor(executor1));
+        dispatcher.add(processor2, new FrameProcessorOptions().setExecutor(executor2));
+
+        byte[] data = new byte[length];
+        Frame frame = manager.getFrame(data, 0, 0, null, 0);
+        dispatcher.dispatch(frame);
+        verify(processor1, never()).process(any(Frame.class));
+        verify(processor2, never()).process(any(Frame.class));
+
+        // Run the second one first. Frame should not be recycled yet.
+        executor2.flush();
+        verify(processor2, times(1)).process(frame);
+        verify(callback, never()).onBufferAvailable(data);
+
+        executor1.flush();
+        verify(processor1, times(1)).process(frame);
+        verify(callback, times(1)).onBufferAvailable(data);
+    }
+
+    @Test
+    public void testDispatch_serial() {
+        // Processor should receive one frame at a time, with a single runnable.
+        QueueExecutor executor = new QueueExecutor();
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, new FrameProcessorOptions().setExecutor(executor));
+        dispatcher.dispatch(manager.getFrame(new byte[length], 0, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(new byte[length], 1, 0, null, 0));
+        assertEquals(1, executor.runnables.size());
+        executor.flush();
+        verify(processor, times(2)).process(any(Frame.class));
+    }
+
+    @Test
+    public void testBackpressure_dropNewest() {
+        QueueExecutor executor = new QueueExecutor();
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, new FrameProcessorOptions()
+                .setExecutor(executor)
+                .setBackpressure(FrameProcessorOptions.Backpressure.DROP_NEWEST));
+        byte[] data1 = new byte[length];
+        byte[] data2 = new byte[length];
+        Frame frame1 = manager.getFrame(data1, 0, 0, null, 0);
+        dispatcher.dispatch(frame1);
+        dispatcher.dispatch(manager.getFrame(data2, 1, 0, null, 0));
+        // Second frame is dropped and goes back to the camera right away.
+        verify(callback, times(1)).onBufferAvailable(same(data2));
+        verify(callback, never()).onBufferAvailable(same(data1));
+
+        executor.flush();
+        verify(processor, times(1)).process(any(Frame.class));
+        verify(callback, times(1)).onBufferAvailable(same(data1));
+        FrameProcessorStats stats = dispatcher.getStats(processor);
+        assertNotNull(stats);
+        assertEquals(1, stats.getProcessedCount());
+        assertEquals(1, stats.getDroppedCount());
+    }
+
+    @Test
+    public void testBackpressure_dropOldest() {
+        QueueExecutor executor = new QueueExecutor();
+        final List<Long> times = new ArrayList<>();
+        FrameProcessor processor = new FrameProcessor() {
+            @Override
+            public void process(@NonNull Frame frame) {
+                times.add(frame.getTime());
+            }
+        };
+        dispatcher.add(processor, new FrameProcessorOptions()
+                .setExecutor(executor)
+                .setBackpressure(FrameProcessorOptions.Backpressure.DROP_OLDEST));
+        byte[] data1 = new byte[length];
+        byte[] data2 = new byte[length];
+        dispatcher.dispatch(manager.getFrame(data1, 1, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(data2, 2, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(new byte[length], 3, 0, null, 0));
+        // The processor did not start yet, so the mailbox was overwritten twice.
+        verify(callback, times(1)).onBufferAvailable(same(data1));
+        verify(callback, times(1)).onBufferAvailable(same(data2));
+
+        executor.flush();
+        assertEquals(1, times.size());
+        assertEquals(3L, (long) times.get(0));
+        FrameProcessorStats stats = dispatcher.getStats(processor);
+        assertNotNull(stats);
+        assertEquals(1, stats.getProcessedCount());
+        assertEquals(2, stats.getDroppedCount());
+    }
+
+    @Test
+    public void testBackpressure_boundedQueue() {
+        QueueExecutor executor = new QueueExecutor();
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, new FrameProcessorOptions()
+                .setExecutor(executor)
+                .setBackpressure(FrameProcessorOptions.Backpressure.QUEUE)
+                .setQueueSize(2));
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch(manager.getFrame(new byte[length], i, 0, null, 0));
+        }
+        executor.flush();
+        verify(processor, times(2)).process(any(Frame.class));
+        FrameProcessorStats stats = dispatcher.getStats(processor);
+        assertNotNull(stats);
+        assertEquals(2, stats.getProcessedCount());
+        assertEquals(3, stats.getDroppedCount());
+    }
+
+    @Test
+    public void testBackpressure_defaultQueueIsUnbounded() {
+        QueueExecutor executor = new QueueExecutor();
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, new FrameProcessorOptions().setExecutor(executor));
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch(manager.getFrame(new byte[length], i, 0, null, 0));
+        }
+        executor.flush();
+        verify(processor, times(10)).process(any(Frame.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOptions_invalidQueueSize() {
+        new FrameProcessorOptions().setQueueSize(0);
+    }
+
+    @Test
+    public void testFrameInterval() {
+        FrameProcessor processor1 = mock(FrameProcessor.class);
+        FrameProcessor processor2 = mock(FrameProcessor.class);
+        dispatcher.add(processor1, new FrameProcessorOptions());
+        dispatcher.add(processor2, new FrameProcessorOptions().setFrameInterval(3));
+        for (int i = 0; i < 7; i++) {
+            dispatcher.dispatch(manager.getFrame(new byte[length], i, 0, null, 0));
+        }
+        verify(processor1, times(7)).process(any(Frame.class));
+        verify(processor2, times(3)).process(any(Frame.class));
+    }
+
+    @Test
+    public void testMaxFrameRate() {
+        final List<Long> times = new ArrayList<>();
+        FrameProcessor processor = new FrameProcessor() {
+            @Override
+            public void process(@NonNull Frame frame) {
+                times.add(frame.getTime());
+            }
+        };
+        dispatcher.add(processor, new FrameProcessorOptions().setMaxFrameRate(5));
+        // One second at 30 fps, then one second of pause.
+        for (int i = 0; i < 30; i++) {
+            long time = 1000 + Math.round(i * 1000D / 30D);
+            dispatcher.dispatch(manager.getFrame(new byte[length], time, 0, null, 0));
+        }
+        dispatcher.dispatch(manager.getFrame(new byte[length], 3000, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(new byte[length], 3033, 0, null, 0));
+        assertEquals(6, times.size());
+        assertEquals(1000L, (long) times.get(0));
+        assertEquals(1200L, (long) times.get(1));
+        assertEquals(3000L, (long) times.get(5));
+    }
+
+    @Test
+    public void testMaxFrameRate_skippedFramesAreNotRetained() {
+        QueueExecutor executor = new QueueExecutor();
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, new FrameProcessorOptions()
+                .setExecutor(executor)
+                .setMaxFrameRate(1));
+        dispatcher.dispatch(manager.getFrame(new byte[length], 0, 0, null, 0));
+        byte[] data = new byte[length];
+        dispatcher.dispatch(manager.getFrame(data, 100, 0, null, 0));
+        // Recycled right away, even if the processor did not run yet.
+        verify(callback, times(1)).onBufferAvailable(same(data));
+        FrameProcessorStats stats = dispatcher.getStats(processor);
+        assertNotNull(stats);
+        assertEquals(0, stats.getDroppedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOptions_invalidFrameInterval() {
+        new FrameProcessorOptions().setFrameInterval(0);
+    }
+
+    @Test
+    public void testRemove_releasesPendingFrames() {
+        QueueExecutor executor = new QueueExecutor();
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, new FrameProcessorOptions().setExecutor(executor));
+        byte[] data = new byte[length];
+        dispatcher.dispatch(manager.getFrame(data, 0, 0, null, 0));
+
+        assertTrue(dispatcher.remove(processor));
+        assertTrue(dispatcher.isEmpty());
+        verify(callback, times(1)).onBufferAvailable(data);
+        executor.flush();
+        verify(processor, never()).process(any(Frame.class));
+        assertFalse(dispatcher.remove(processor));
+    }
+
+    @Test
+    public void testStats() {
+        FrameProcessor processor = mock(FrameProcessor.class);
+        assertNull(dispatcher.getStats(processor));
+        dispatcher.add(processor, new FrameProcessorOptions());
+        dispatcher.dispatch(manager.getFrame(new byte[length], 0, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(new byte[length], 1, 0, null, 0));
+        FrameProcessorStats stats = dispatcher.getStats(processor);
+        assertNotNull(stats);
+        assertEquals(2, stats.getProcessedCount());
+        assertTrue(stats.getAverageLatency() >= 0);
+    }
+
+    @Test
+    public void testStats_endToEndLatency() {
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, new FrameProcessorOptions());
+        long timestamp = System.nanoTime() - 50000000L;
+        dispatcher.dispatch(manager.getFrame(new byte[length], 0, timestamp, 0, null, 0));
+        FrameProcessorStats stats = dispatcher.getStats(processor);
+        assertNotNull(stats);
+        assertTrue(stats.getAverageEndToEndLatency() >= 50);
+        assertTrue(stats.getP99EndToEndLatency() >= stats.getMedianEndToEndLatency());
+    }
+
+    @Test
+    public void testPipelineStats() {
+        QueueExecutor executor = new QueueExecutor();
+        FrameProcessor processor1 = mock(FrameProcessor.class);
+        FrameProcessor processor2 = mock(FrameProcessor.class);
+        dispatcher.add(processor1, new FrameProcessorOptions()
+                .setExecutor(executor)
+                .setBackpressure(FrameProcessorOptions.Backpressure.QUEUE)
+                .setQueueSize(2));
+        dispatcher.add(processor2, new FrameProcessorOptions().setFrameInterval(2));
+        for (int i = 0; i < 4; i++) {
+            dispatcher.dispatch(manager.getFrame(new byte[length], i, 0, null, 0));
+        }
+        FramePipelineStats stats = dispatcher.getPipelineStats(manager);
+        assertEquals(4, stats.getProducedCount());
+        assertEquals(4, stats.getDispatchedCount());
+        assertEquals(2, stats.getDroppedCount(FramePipelineStats.DropReason.BACKPRESSURE));
+        assertEquals(2, stats.getDroppedCount(FramePipelineStats.DropReason.SKIPPED));
+        assertEquals(0, stats.getDroppedCount(FramePipelineStats.DropReason.UNUSED));
+        assertEquals(2, stats.getDroppedCount());
+        assertEquals(2, stats.getQueueDepth());
+        FrameProcessorStats stats1 = stats.getProcessorStats(processor1);
+        assertNotNull(stats1);
+        assertEquals(2, stats1.getQueueDepth());
+        assertEquals(0, stats1.getProcessedCount());
+
+        executor.flush();
+        stats = dispatcher.getPipelineStats(manager);
+        assertEquals(0, stats.getQueueDepth());
+        stats1 = stats.getProcessorStats(processor1);
+        assertNotNull(stats1);
+        assertEquals(2, stats1.getProcessedCount());
+        assertTrue(stats1.getP99Latency() >= stats1.getMedianLatency());
+    }
+
+    @Test
+    public void testPipelineStats_managers() {
+        FrameManager secondary = new FrameManager(3, mock(FrameManager.BufferCallback.class));
+        int secondaryLength = secondary.setUp(4, new Size(20, 20));
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, new FrameProcessorOptions());
+        dispatcher.dispatch(manager.getFrame(new byte[length], 0, 0, null, 0));
+        dispatcher.dispatch(secondary.getFrame(new byte[secondaryLength], 0, 0, null, 0));
+        dispatcher.dispatch(secondary.getFrame(new byte[secondaryLength], 1, 0, null, 0));
+        FramePipelineStats stats = dispatcher.getPipelineStats(Arrays.asList(manager, secondary));
+        // Frames from both managers are counted.
+        assertEquals(3, stats.getProducedCount());
+        assertEquals(3, stats.getDispatchedCount());
+        assertEquals(manager.getPoolSize() + secondary.getPoolSize(), stats.getPoolSize());
+    }
+
+    @Test
+    public void testPipelineStats_releasedAndUnused() {
+        QueueExecutor executor = new QueueExecutor();
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, new FrameProcessorOptions()
+                .setExecutor(executor)
+                .setMaxFrameRate(1));
+        dispatcher.dispatch(manager.getFrame(new byte[length], 0, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(new byte[length], 100, 0, null, 0));
+        FramePipelineStats stats = dispatcher.getPipelineStats(manager);
+        assertEquals(1, stats.getDroppedCount(FramePipelineStats.DropReason.UNUSED));
+        assertEquals(1, stats.getDroppedCount(FramePipelineStats.DropReason.SKIPPED));
+        assertEquals(1, stats.getQueueDepth());
+
+        // The processor is gone, so its counters are not in the snapshot anymore.
+        dispatcher.remove(processor);
+        stats = dispatcher.getPipelineStats(manager);
+        assertNull(stats.getProcessorStats(processor));
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(2, stats.getDispatchedCount());
+    }
+
+    @Test
+    public void testStats_released() {
+        QueueExecutor executor = new QueueExecutor();
+        FrameProcessorWorker worker = new FrameProcessorWorker(mock(FrameProcessor.class),
+                executor, new FrameProcessorOptions(), null);
+        Frame frame = manager.getFrame(new byte[length], 0, 0, null, 0);
+        worker.enqueue(frame);
+        assertEquals(1, worker.getStats().getQueueDepth());
+        worker.release();
+        worker.enqueue(manager.getFrame(new byte[length], 1, 0, null, 0));
+        executor.flush();
+        FrameProcessorStats stats = worker.getStats();
+        assertEquals(0, stats.getProcessedCount());
+        assertEquals(2, stats.getReleasedCount());
+        assertEquals(0, stats.getQueueDepth());
+    }
+
+    /**
+     * Stores the frames it receives, along with their data and size.
+     */
+    private static class CapturingProcessor implements FrameProcessor {
+        private final List<Frame> frames = new ArrayList<>();
+        private final List<byte[]> data = new ArrayList<>();
+        private final List<Size> sizes = new ArrayList<>();
+        private boolean retain = false;
+
+        @Override
+        public void process(@NonNull Frame frame) {
+            frames.add(retain ? frame.retain() : frame);
+            data.add(frame.getData());
+            sizes.add(frame.getSize());
+        }
+    }
+
+    @Test
+    public void testDerivedFrames_shared() {
+        FrameManager manager = new FrameManager(2, callback);
+        Size size = new Size(8, 8);
+        int length = manager.setUp(12, size);
+        reset(callback);
+        CapturingProcessor processor1 = new CapturingProcessor();
+        CapturingProcessor processor2 = new CapturingProcessor();
+        CapturingProcessor processor3 = new CapturingProcessor();
+        dispatcher.add(processor1, new FrameProcessorOptions().setFrameSize(new Size(4, 4)));
+        dispatcher.add(processor2, new FrameProcessorOptions().setFrameSize(new Size(4, 4)));
+        dispatcher.add(processor3, new FrameProcessorOptions());
+
+        byte[] data = new byte[length];
+        Frame frame = manager.getFrame(data, 0, 0, size, ImageFormat.NV21);
+        dispatcher.dispatch(frame);
+        // The first two share the same derived frame, computed once.
+        assertSame(processor1.frames.get(0), processor2.frames.get(0));
+        assertSame(processor1.data.get(0), processor2.data.get(0));
+        assertEquals(new Size(4, 4), processor1.sizes.get(0));
+        assertEquals(FrameResampler.getLength(4, 4), processor1.data.get(0).length);
+        assertSame(frame, processor3.frames.get(0));
+        assertSame(data, processor3.data.get(0));
+        // Once the frame is released, derived frames are released too.
+        verify(callback, times(1)).onBufferAvailable(same(data));
+        try {
+            processor1.frames.get(0).getData();
+            fail("Derived frame should be released.");
+        } catch (RuntimeException ignore) {}
+
+        // The derived frame and its buffer are reused.
+        dispatcher.dispatch(manager.getFrame(data, 1, 0, size, ImageFormat.NV21));
+        assertSame(processor1.frames.get(0), processor1.frames.get(1));
+        assertSame(processor1.data.get(0), processor1.data.get(1));
+    }
+
+    @Test
+    public void testDerivedFrames_lifecycle() {
+        FrameManager manager = new FrameManager(2, callback);
+        Size size = new Size(8, 8);
+        int length = manager.setUp(12, size);
+        reset(callback);
+        CapturingProcessor processor = new CapturingProcessor();
+        processor.retain = true;
+        dispatcher.add(processor, new FrameProcessorOptions().setFrameSize(new Size(4, 4)));
+
+        byte[] data = new byte[length];
+        dispatcher.dispatch(manager.getFrame(data, 0, 0, size, ImageFormat.NV21));
+        // Retaining the derived frame retains the camera frame.
+        Frame derived = processor.frames.get(0);
+        verify(callback, never()).onBufferAvailable(same(data));
+        assertEquals(0L, derived.getTime());
+        derived.release();
+        verify(callback, times(1)).onBufferAvailable(same(data));
+    }
+
+    @Test
+    public void testDerivedFrames_variantsPruned() {
+        CapturingProcessor processor1 = new CapturingProcessor();
+        CapturingProcessor processor2 = new CapturingProcessor();
+        CapturingProcessor processor3 = new CapturingProcessor();
+        dispatcher.add(processor1, new FrameProcessorOptions().setFrameSize(new Size(4, 4)));
+        dispatcher.add(processor2, new FrameProcessorOptions().setFrameSize(new Size(4, 4)));
+        dispatcher.add(processor3, new FrameProcessorOptions().setFrameSize(new Size(2, 2)));
+        assertEquals(2, dispatcher.getVariantCount());
+        // The shared variant is kept until the last processor using it is removed.
+        dispatcher.remove(processor1);
+        assertEquals(2, dispatcher.getVariantCount());
+        dispatcher.remove(processor2);
+        assertEquals(1, dispatcher.getVariantCount());
+        dispatcher.add(processor1, new FrameProcessorOptions().setFrameSize(new Size(4, 4)));
+        assertEquals(2, dispatcher.getVariantCount());
+        dispatcher.clear();
+        assertEquals(0, dispatcher.getVariantCount());
+    }
+
+    @Test
+    public void testDerivedFrames_differentVariants() {
+        FrameManager manager = new FrameManager(2, callback);
+        Size size = new Size(8, 8);
+        int length = manager.setUp(12, size);
+        CapturingProcessor processor1 = new CapturingProcessor();
+        CapturingProcessor processor2 = new CapturingProcessor();
+        Rect crop = mock(Rect.class);
+        crop.left = 0;
+        crop.top = 0;
+        crop.right = 4;
+        crop.bottom = 6;
+        dispatcher.add(processor1, new FrameProcessorOptions().setFrameSize(new Size(4, 4)));
+        dispatcher.add(processor2, new FrameProcessorOptions().setFrameCrop(crop));
+
+        dispatcher.dispatch(manager.getFrame(new byte[length], 0, 0, size, ImageFormat.NV21));
+        assertNotSame(processor1.frames.get(0), processor2.frames.get(0));
+        assertEquals(new Size(4, 4), processor1.sizes.get(0));
+        assertEquals(new Size(4, 6), processor2.sizes.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOptions_invalidFrameSize() {
+        new FrameProcessorOptions().setFrameSize(new Size(3, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOptions_invalidFrameFormat() {
+        new FrameProcessorOptions().setFrameFormat(ImageFormat.JPEG);
+    }
+
+    @Test
+    public void testStreams() {
+        SizeSelector big = SizeSelectors.minWidth(1000);
+        SizeSelector small = SizeSelectors.and(SizeSelectors.maxWidth(100), SizeSelectors.biggest());
+        FrameProcessor processor1 = mock(FrameProcessor.class);
+        FrameProcessor processor2 = mock(FrameProcessor.class);
+        dispatcher.add(processor1, new FrameProcessorOptions().setPreferredSize(big));
+        dispatcher.add(processor2, new FrameProcessorOptions().setPreferredSize(small));
+        List<SizeSelector> preferences = dispatcher.getStreamPreferences();
+        assertEquals(2, preferences.size());
+        assertSame(big, preferences.get(0));
+        FrameStreams streams = FrameStreams.negotiate(
+                Arrays.asList(new Size(1280, 720), new Size(80, 60)),
+                SizeSelectors.biggest(), preferences, true);
+        assertTrue(streams.hasSecondaryStream());
+
+        FrameManager secondary = new FrameManager(1, callback);
+        secondary.setUp(4, new Size(50, 50));
+        manager.setStream(streams, FrameStreams.PRIMARY);
+        secondary.setStream(streams, FrameStreams.SECONDARY);
+        Frame frame1 = manager.getFrame(new byte[length], 0, 0, null, 0);
+        dispatcher.dispatch(frame1);
+        verify(processor1, times(1)).process(frame1);
+        verify(processor2, never()).process(any(Frame.class));
+        Frame frame2 = secondary.getFrame(new byte[length], 1, 0, null, 0);
+        dispatcher.dispatch(frame2);
+        verify(processor2, times(1)).process(frame2);
+        verify(processor1, times(1)).process(any(Frame.class));
+    }
+
+    @Test
+    public void testStreamPreference_fromFrameSize() {
+        assertNull(new FrameProcessorOptions().getStreamPreference());
+        SizeSelector selector = new FrameProcessorOptions()
+                .setFrameSize(new Size(320, 240))
+                .getStreamPreference();
+        assertNotNull(selector);
+        List<Size> selected = selector.select(new ArrayList<>(Arrays.asList(
+                new Size(1280, 720), new Size(640, 480), new Size(176, 144))));
+        assertEquals(new Size(640, 480), selected.get(0));
+    }
+
+    @Test
+    public void testAsync_inFlightFrames() {
+        TaskProcessor processor = new TaskProcessor();
+        dispatcher.addAsync(processor, new FrameProcessorOptions()
+                .setMaxInFlightFrames(2)
+                .setBackpressure(FrameProcessorOptions.Backpressure.DROP_NEWEST));
+        byte[] data1 = new byte[length];
+        byte[] data2 = new byte[length];
+        byte[] data3 = new byte[length];
+        dispatcher.dispatch(manager.getFrame(data1, 0, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(data2, 1, 0, null, 0));
+        // Both frames are in flight, so they are kept alive.
+        assertEquals(2, processor.frames.size());
+        verify(callback, never()).onBufferAvailable(any(byte[].class));
+        assertSame(data1, processor.frames.get(0).getData());
+
+        // The processor is busy, so this is dropped.
+        dispatcher.dispatch(manager.getFrame(data3, 2, 0, null, 0));
+        assertEquals(2, processor.frames.size());
+        verify(callback, times(1)).onBufferAvailable(same(data3));
+
+        // Completing a task releases the frame and frees a slot.
+        processor.complete(0, true);
+        verify(callback, times(1)).onBufferAvailable(same(data1));
+        dispatcher.dispatch(manager.getFrame(data3, 3, 0, null, 0));
+        assertEquals(3, processor.frames.size());
+        FrameProcessorStats stats = dispatcher.getAsyncStats(processor);
+        assertNotNull(stats);
+        assertEquals(1, stats.getProcessedCount());
+        assertEquals(1, stats.getDroppedCount());
+    }
+
+    @Test
+    public void testAsync_queue() {
+        TaskProcessor processor = new TaskProcessor();
+        dispatcher.addAsync(processor, new FrameProcessorOptions());
+        byte[] data1 = new byte[length];
+        byte[] data2 = new byte[length];
+        dispatcher.dispatch(manager.getFrame(data1, 0, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(data2, 1, 0, null, 0));
+        // The second frame waits until the first task completes, even if it fails.
+        assertEquals(1, processor.frames.size());
+        processor.complete(0, false);
+        verify(callback, times(1)).onBufferAvailable(same(data1));
+        assertEquals(2, processor.frames.size());
+        processor.complete(1, true);
+        verify(callback, times(1)).onBufferAvailable(same(data2));
+        FrameProcessorStats stats = dispatcher.getAsyncStats(processor);
+        assertNotNull(stats);
+        assertEquals(2, stats.getProcessedCount());
+    }
+
+    @Test
+    public void testAsync_remove() {
+        TaskProcessor processor = new TaskProcessor();
+        dispatcher.addAsync(processor, new FrameProcessorOptions());
+        byte[] data1 = new byte[length];
+        byte[] data2 = new byte[length];
+        dispatcher.dispatch(manager.getFrame(data1, 0, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(data2, 1, 0, null, 0));
+        assertTrue(dispatcher.removeAsync(processor));
+        assertNull(dispatcher.getAsyncStats(processor));
+        // The queued frame is released, the one in flight waits for its task.
+        verify(callback, times(1)).onBufferAvailable(same(data2));
+        verify(callback, never()).onBufferAvailable(same(data1));
+        processor.complete(0, true);
+        verify(callback, times(1)).onBufferAvailable(same(data1));
+        assertEquals(1, processor.frames.size());
+    }
+
+    @Test
+    public void testAsync_pipelineStats() {
+        TaskProcessor processor = new TaskProcessor();
+        dispatcher.addAsync(processor, new FrameProcessorOptions());
+        dispatcher.dispatch(manager.getFrame(new byte[length], 0, 0, null, 0));
+        processor.complete(0, true);
+        FramePipelineStats stats = dispatcher.getPipelineStats(manager);
+        FrameProcessorStats processorStats = stats.getAsyncProcessorStats(processor);
+        assertNotNull(processorStats);
+        assertEquals(1, processorStats.getProcessedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOptions_invalidMaxInFlightFrames() {
+        new FrameProcessorOptions().setMaxInFlightFrames(0);
+    }
+
+    @Test
+    public void testBatch() {
+        final List<List<Frame>> batches = new ArrayList<>();
+        final List<byte[]> data = new ArrayList<>();
+        BatchFrameProcessor processor = new BatchFrameProcessor() {
+            @Override
+            public void process(@NonNull List<Frame> frames) {
+                batches.add(new ArrayList<>(frames));
+                for (Frame frame : frames) data.add(frame.getData());
+            }
+        };
+        dispatcher.addBatch(processor, new FrameProcessorOptions().setBatchSize(3));
+        assertEquals(2, dispatcher.getReservedFrames());
+        byte[] data1 = new byte[length];
+        byte[] data2 = new byte[length];
+        byte[] data3 = new byte[length];
+        dispatcher.dispatch(manager.getFrame(data1, 0, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(data2, 1, 0, null, 0));
+        // Frames are held until the batch is full.
+        assertTrue(batches.isEmpty());
+        verify(callback, never()).onBufferAvailable(any(byte[].class));
+        dispatcher.dispatch(manager.getFrame(data3, 2, 0, null, 0));
+        assertEquals(1, batches.size());
+        assertEquals(3, batches.get(0).size());
+        assertSame(data1, data.get(0));
+        assertSame(data2, data.get(1));
+        assertSame(data3, data.get(2));
+        verify(callback, times(3)).onBufferAvailable(any(byte[].class));
+
+        FrameProcessorStats stats = dispatcher.getBatchStats(processor);
+        assertNotNull(stats);
+        assertEquals(3, stats.getProcessedCount());
+    }
+
+    @Test
+    public void testBatch_window() {
+        final List<Integer> sizes = new ArrayList<>();
+        BatchFrameProcessor processor = new BatchFrameProcessor() {
+            @Override
+            public void process(@NonNull List<Frame> frames) {
+                sizes.add(frames.size());
+            }
+        };
+        dispatcher.addBatch(processor, new FrameProcessorOptions().setBatchSize(4).setBatchWindow(100));
+        dispatcher.dispatch(manager.getFrame(new byte[length], 0, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(new byte[length], 50, 0, null, 0));
+        assertTrue(sizes.isEmpty());
+        // Out of the window: the first two are delivered, this one starts a new batch.
+        dispatcher.dispatch(manager.getFrame(new byte[length], 100, 0, null, 0));
+        assertEquals(Arrays.asList(2), sizes);
+        dispatcher.dispatch(manager.getFrame(new byte[length], 110, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(new byte[length], 120, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(new byte[length], 130, 0, null, 0));
+        assertEquals(Arrays.asList(2, 4), sizes);
+    }
+
+    @Test
+    public void testBatch_windowTimeout() throws InterruptedException {
+        final List<Integer> sizes = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        BatchFrameProcessor processor = new BatchFrameProcessor() {
+            @Override
+            public void process(@NonNull List<Frame> frames) {
+                sizes.add(frames.size());
+                latch.countDown();
+            }
+        };
+        dispatcher.addBatch(processor, new FrameProcessorOptions().setBatchSize(4).setBatchWindow(50));
+        byte[] data1 = new byte[length];
+        byte[] data2 = new byte[length];
+        dispatcher.dispatch(manager.getFrame(data1, 0, 0, null, 0));
+        dispatcher.dispatch(manager.getFrame(data2, 10, 0, null, 0));
+        // No more frames arrive: the incomplete batch is delivered when the window expires.
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(2), sizes);
+        // Frames are released right after the batch is processed.
+        verify(callback, timeout(2000)).onBufferAvailable(same(data1));
+        verify(callback, timeout(2000)).onBufferAvailable(same(data2));
+    }
+
+    @Test
+    public void testBatch_remove() {
+        BatchFrameProcessor processor = mock(BatchFrameProcessor.class);
+        dispatcher.addBatch(processor, new FrameProcessorOptions().setBatchSize(2));
+        byte[] data = new byte[length];
+        dispatcher.dispatch(manager.getFrame(data, 0, 0, null, 0));
+        verify(callback, never()).onBufferAvailable(any(byte[].class));
+        assertTrue(dispatcher.removeBatch(processor));
+        assertEquals(0, dispatcher.getReservedFrames());
+        // Frames waiting for their batch are released without being processed.
+        verify(callback, times(1)).onBufferAvailable(same(data));
+        verify(processor, never()).process(any(List.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOptions_invalidBatchSize() {
+        new FrameProcessorOptions().setBatchSize(17);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOptions_invalidBatchWindow() {
+        new FrameProcessorOptions().setBatchWindow(-1);
+    }
+}
@@ -0,0 +1,190 @@
+package com.otaliastudios.cameraview.frame;
+
+
+import android.graphics.ImageFormat;
+
+import com.otaliastudios.cameraview.size.Size;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class FrameDumpProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FrameManager manager;
+    private Size size;
+    private int length;
+
+    @Before
+    public void setUp() {
+        size = new Size(4, 2);
+        manager = new FrameManager(5, mock(FrameManager.BufferCallback.class));
+        length = manager.setUp(12, size); // NV21 bits per pixel
+    }
+
+    @After
+    public void tearDown() {
+        manager = null;
+    }
+
+    private void process(FrameDumpProcessor processor, int value, long timestamp) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (value + i);
+        Frame frame = manager.getFrame(data, 0, timestamp, 90, size, ImageFormat.NV21);
+        processor.process(frame);
+        frame.release();
+    }
+
+    private static byte[] read(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int) raf.length()];
+        raf.readFully(bytes);
+        raf.close();
+        return bytes;
+    }
+
+    @Test
+    public void testNV21() throws Exception {
+        File file = folder.newFile("frames.nv21");
+        FrameDumpProcessor processor = new FrameDumpProcessor(file, FrameDumpProcessor.Format.NV21, 3);
+        process(processor, 0, 100);
+        process(processor, 10, 200);
+        processor.release();
+        assertTrue(processor.isReleased());
+        assertEquals(2, processor.getWrittenCount());
+
+        // Files are truncated to the written frames.
+        byte[] bytes = read(file);
+        assertEquals(2 * 12, bytes.length);
+        assertEquals(0, bytes[0]);
+        assertEquals(10, bytes[12]);
+        assertEquals(21, bytes[23]);
+
+        ByteBuffer index = ByteBuffer.wrap(read(processor.getIndexFile()));
+        assertEquals(FrameDumpProcessor.INDEX_HEADER_LENGTH + 2 * FrameDumpProcessor.INDEX_ENTRY_LENGTH,
+                index.capacity());
+        assertEquals(FrameDumpProcessor.INDEX_MAGIC, index.getInt(0));
+        assertEquals(FrameDumpProcessor.Format.NV21.ordinal(), index.getInt(8));
+        assertEquals(4, index.getInt(12));
+        assertEquals(2, index.getInt(16));
+        assertEquals(0, index.getInt(20));
+        assertEquals(12, index.getInt(24));
+        assertEquals(3, index.getInt(28));
+        int entry = FrameDumpProcessor.INDEX_HEADER_LENGTH + FrameDumpProcessor.INDEX_ENTRY_LENGTH;
+        assertEquals(1, index.getLong(entry));
+        assertEquals(200, index.getLong(entry + 8));
+        assertEquals(90, index.getInt(entry + 24));
+        assertEquals(1, index.getInt(entry + 28));
+    }
+
+    @Test
+    public void testY4M() throws Exception {
+        File file = folder.newFile("frames.y4m");
+        FrameDumpProcessor processor = new FrameDumpProcessor(file, FrameDumpProcessor.Format.Y4M, 1)
+                .setFrameRate(15);
+        process(processor, 0, 100);
+        processor.release();
+        byte[] bytes = read(file);
+        String header = "YUV4MPEG2 W4 H2 F15:1 Ip A1:1 C420jpeg\n";
+        assertEquals(header, new String(bytes, 0, header.length()));
+        int offset = header.length() + 6;
+        assertEquals("FRAME\n", new String(bytes, header.length(), 6));
+        assertEquals(offset + 12, bytes.length);
+        // Luma is copied, while the NV21 chroma (V: 8, 10, U: 9, 11) is split in U and V planes.
+        assertEquals(7, bytes[offset + 7]);
+        assertEquals(9, bytes[offset + 8]);
+        assertEquals(11, bytes[offset + 9]);
+        assertEquals(8, bytes[offset + 10]);
+        assertEquals(10, bytes[offset + 11]);
+    }
+
+    @Test
+    public void testRing() throws Exception {
+        File file = folder.newFile("frames.nv21");
+        FrameDumpProcessor processor = new FrameDumpProcessor(file, FrameDumpProcessor.Format.NV21, 2);
+        process(processor, 0, 100);
+        process(processor, 10, 200);
+        process(processor, 20, 300);
+        processor.release();
+        assertEquals(3, processor.getWrittenCount());
+        byte[] bytes = read(file);
+        assertEquals(2 * 12, bytes.length);
+        // The oldest frame was overwritten, and the ring was sorted on release.
+        assertEquals(10, bytes[0]);
+        assertEquals(20, bytes[12]);
+        ByteBuffer index = ByteBuffer.wrap(read(processor.getIndexFile()));
+        int entry = FrameDumpProcessor.INDEX_HEADER_LENGTH;
+        assertEquals(1, index.getLong(entry));
+        assertEquals(200, index.getLong(entry + 8));
+        entry += FrameDumpProcessor.INDEX_ENTRY_LENGTH;
+        assertEquals(2, index.getLong(entry));
+        assertEquals(300, index.getLong(entry + 8));
+    }
+
+    @Test
+    public void testRing_y4mInOrder() throws Exception {
+        File file = folder.newFile("frames.y4m");
+        FrameDumpProcessor processor = new FrameDumpProcessor(file, FrameDumpProcessor.Format.Y4M, 3);
+        for (int i = 0; i < 8; i++) {
+            process(processor, i * 10, i * 100);
+        }
+        processor.release();
+        byte[] bytes = read(file);
+        String header = "YUV4MPEG2 W4 H2 F30:1 Ip A1:1 C420jpeg\n";
+        assertEquals(header, new String(bytes, 0, header.length()));
+        // Frames 5, 6 and 7 are read in order, with no index.
+        int slotLength = 6 + 12;
+        for (int i = 0; i < 3; i++) {
+            int offset = header.length() + i * slotLength;
+            assertEquals("FRAME\n", new String(bytes, offset, 6));
+            assertEquals((5 + i) * 10, bytes[offset + 6]);
+        }
+    }
+
+    @Test
+    public void testSkipsDifferentSize() throws Exception {
+        File file = folder.newFile("frames.nv21");
+        FrameDumpProcessor processor = new FrameDumpProcessor(file, FrameDumpProcessor.Format.NV21, 2);
+        process(processor, 0, 100);
+        Frame frame = manager.getFrame(new byte[length], 0, 0, new Size(2, 4), ImageFormat.NV21);
+        processor.process(frame);
+        frame.release();
+        assertEquals(1, processor.getWrittenCount());
+        assertEquals(1, processor.getSkippedCount());
+        processor.release();
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        File file = folder.newFile("frames.nv21");
+        FrameDumpProcessor processor = new FrameDumpProcessor(file, FrameDumpProcessor.Format.NV21, 2);
+        assertFalse(processor.isReleased());
+        processor.release();
+        process(processor, 0, 100);
+        assertEquals(0, processor.getWrittenCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxFrames() {
+        new FrameDumpProcessor(new File("frames"), FrameDumpProcessor.Format.NV21, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFrameRate() {
+        new FrameDumpProcessor(new File("frames"), FrameDumpProcessor.Format.Y4M, 1).setFrameRate(0);
+    }
+}
@@ -0,0 +1,153 @@
+package com.otaliastudios.cameraview.frame;
+
+
+import com.otaliastudios.cameraview.size.Size;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class FrameGeneratorTest {
+
+    private final Size size = new Size(16, 8);
+    private final int length = 16 * 8 * 3 / 2;
+
+    private byte[] read(@NonNull FrameGenerator generator, int frame) {
+        byte[] output = new byte[length];
+        generator.read(frame, output);
+        return output;
+    }
+
+    @Test
+    public void testDeterministic() {
+        for (FrameGenerator.Pattern pattern : FrameGenerator.Pattern.values()) {
+            FrameGenerator first = new FrameGenerator(size, pattern, 42);
+            FrameGenerator second = new FrameGenerator(size, pattern, 42);
+            assertArrayEquals(read(first, 7), read(second, 7));
+            // Order does not matter.
+            byte[] later = read(first, 3);
+            read(first, 9);
+            assertArrayEquals(later, read(first, 3));
+        }
+    }
+
+    @Test
+    public void testFramesChange() {
+        for (FrameGenerator.Pattern pattern : FrameGenerator.Pattern.values()) {
+            FrameGenerator generator = new FrameGenerator(size, pattern);
+            assertFalse(Arrays.equals(read(generator, 0), read(generator, 1)));
+        }
+    }
+
+    @Test
+    public void testNoise_seed() {
+        FrameGenerator first = new FrameGenerator(size, FrameGenerator.Pattern.NOISE, 1);
+        FrameGenerator second = new FrameGenerator(size, FrameGenerator.Pattern.NOISE, 2);
+        assertFalse(Arrays.equals(read(first, 0), read(second, 0)));
+    }
+
+    @Test
+    public void testMovingBars() {
+        FrameGenerator generator = new FrameGenerator(size, FrameGenerator.Pattern.MOVING_BARS);
+        byte[] data = read(generator, 0);
+        // Bars are 2 pixels wide.
+        assertEquals((byte) 235, data[0]);
+        assertEquals((byte) 235, data[1]);
+        assertEquals((byte) 16, data[2]);
+        // All rows are the same.
+        assertEquals(data[3], data[16 * 5 + 3]);
+        // Chroma is neutral.
+        assertEquals((byte) 128, data[length - 1]);
+    }
+
+    @Test
+    public void testRun() {
+        FrameGenerator generator = new FrameGenerator(size, FrameGenerator.Pattern.GRADIENT);
+        generator.setFrameCount(10).setFrameRate(0);
+        FrameManager manager = new FrameManager(2, null);
+        manager.setUp(12, size); // NV21 bits per pixel
+        long allocated = manager.getAllocatedBufferCount();
+        final int[] count = new int[1];
+        assertEquals(10, generator.run(manager, new FrameSource.Callback() {
+            @Override
+            public void dispatchFrame(@NonNull Frame frame) {
+                count[0]++;
+                frame.release();
+            }
+        }));
+        assertEquals(10, count[0]);
+        // Buffers were recycled.
+        assertEquals(allocated, manager.getAllocatedBufferCount());
+    }
+
+    @Test
+    public void testRun_waitsForBuffers() throws InterruptedException {
+        FrameGenerator generator = new FrameGenerator(size, FrameGenerator.Pattern.GRADIENT);
+        generator.setFrameCount(20).setFrameRate(0);
+        final FrameManager manager = new FrameManager(1, 1, null);
+        manager.setUp(12, size); // NV21 bits per pixel
+        // Frames are released on another thread, so the source has to wait for buffers.
+        final LinkedBlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+        Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 20; i++) {
+                        Frame frame = frames.take();
+                        Thread.sleep(1);
+                        frame.release();
+                    }
+                } catch (InterruptedException ignore) {}
+            }
+        });
+        releaser.start();
+        assertEquals(20, generator.run(manager, new FrameSource.Callback() {
+            @Override
+            public void dispatchFrame(@NonNull Frame frame) {
+                frames.add(frame);
+            }
+        }));
+        releaser.join();
+        // Waiting for buffers is not starvation.
+        assertEquals(0, manager.getStarvationCount());
+        assertEquals(1, manager.getAllocatedBufferCount());
+    }
+
+    @Test
+    public void testRun_stopBeforeRun() {
+        FrameGenerator generator = new FrameGenerator(size, FrameGenerator.Pattern.GRADIENT);
+        generator.setLoop(true).setFrameRate(0);
+        FrameManager manager = new FrameManager(2, null);
+        manager.setUp(12, size); // NV21 bits per pixel
+        FrameSource.Callback callback = new FrameSource.Callback() {
+            @Override
+            public void dispatchFrame(@NonNull Frame frame) {
+                frame.release();
+            }
+        };
+        // A stop coming before the run is not lost, even if looping.
+        generator.stop();
+        assertEquals(0, generator.run(manager, callback));
+        // After prepare(), the source runs again.
+        generator.setFrameCount(3).setLoop(false);
+        generator.prepare();
+        assertEquals(3, generator.run(manager, callback));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOddSize() {
+        new FrameGenerator(new Size(15, 8), FrameGenerator.Pattern.GRADIENT);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFrameCount() {
+        new FrameGenerator(size, FrameGenerator.Pattern.GRADIENT).setFrameCount(0);
+    }
+}
@@ -3,12 +3,28 @@ package com.otaliastudios.cameraview.frame;
 
 import com.otaliastudios.cameraview.size.Size;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -66,14 +82,40 @@ public class FrameManagerTest {
         // Since frame1 is already taken and poolSize = 1, a new Frame is created.
         Frame frame2 = manager.getFrame(new byte[length], 0, 0, null, 0);
         // Release the first frame so it goes back into the pool.
-        manager.onFrameReleased(frame1);
+        manager.onFrameReleased(frame1, frame1.getData());
         reset(callback);
         // Release the second. The pool is already full, so onBufferAvailable should not be called
         // since this Frame instance will NOT be reused.
-        manager.onFrameReleased(frame2);
+        manager.onFrameReleased(frame2, frame2.getData());
         verify(callback, never()).onBufferAvailable(frame2.getData());
     }
 
+    @Test
+    public void testOnFrameReleased_frameQueueFull() {
+        FrameManager manager = new FrameManager(2, 2, null);
+        manager.setUp(4, new Size(50, 50));
+        byte[] buffer1 = manager.getBuffer();
+        byte[] buffer2 = manager.getBuffer();
+        // Frames with no pooled buffer, like the ones holding image planes, fill the frame queue.
+        Frame empty1 = manager.getFrame(new byte[1], 0, 0, null, 0);
+        Frame empty2 = manager.getFrame(new byte[1], 0, 0, null, 0);
+        Frame frame1 = manager.getFrame(buffer1, 0, 0, null, 0);
+        Frame frame2 = manager.getFrame(buffer2, 0, 0, null, 0);
+        empty1.release();
+        empty2.release();
+
+        // The buffers are dropped with their frames, and the pool count falls back.
+        frame1.release();
+        frame2.release();
+        assertEquals(0, manager.getPoolSize());
+
+        // So the pool can grow again to replace them.
+        assertNotNull(manager.getBuffer());
+        assertNotNull(manager.getBuffer());
+        assertNull(manager.getBuffer());
+        assertEquals(2, manager.getPoolSize());
+    }
+
     @Test
     public void testOnFrameReleased_sameLength() {
         FrameManager manager = new FrameManager(1, callback);
@@ -85,7 +127,7 @@ public class FrameManagerTest {
 
         // Release the frame and ensure that onBufferAvailable is called.
         reset(callback);
-        manager.onFrameReleased(frame);
+        manager.onFrameReleased(frame, picture);
         verify(callback, times(1)).onBufferAvailable(picture);
     }
 
@@ -103,7 +145,7 @@ public class FrameManagerTest {
 
         // Now release the old frame and ensure that onBufferAvailable is NOT called,
         // because the released data has wrong length.
-        manager.onFrameReleased(frame);
+        manager.onFrameReleased(frame, picture);
         reset(callback);
         verify(callback, never()).onBufferAvailable(picture);
     }
@@ -119,4 +161,368 @@ public class FrameManagerTest {
         manager.release();
         assertNull(first.mManager);
     }
+
+    @Test
+    public void testRetain_recyclesOnLastRelease() {
+        FrameManager manager = new FrameManager(1, callback);
+        int length = manager.setUp(4, new Size(50, 50));
+        byte[] picture = new byte[length];
+        Frame frame = manager.getFrame(picture, 0, 0, null, 0);
+        frame.retain();
+        reset(callback);
+
+        frame.release();
+        verify(callback, never()).onBufferAvailable(picture);
+        frame.release();
+        verify(callback, times(1)).onBufferAvailable(picture);
+    }
+
+    @Test
+    public void testGrow_dispatch() {
+        FrameManager manager = new FrameManager(1, callback);
+        int length = manager.setUp(4, new Size(50, 50));
+        reset(callback);
+
+        // Without max memory, the pool does not grow.
+        Frame first = manager.getFrame(new byte[length], 0, 0, null, 0);
+        verify(callback, never()).onBufferAvailable(any(byte[].class));
+        first.release();
+        reset(callback);
+
+        // With max memory, the pool grows when all buffers are held.
+        manager.setMaxMemory(length * 3);
+        Frame frame1 = manager.getFrame(new byte[length], 0, 0, null, 0);
+        verify(callback, times(1)).onBufferAvailable(any(byte[].class));
+        Frame frame2 = manager.getFrame(new byte[length], 0, 0, null, 0);
+        verify(callback, times(2)).onBufferAvailable(any(byte[].class));
+        Frame frame3 = manager.getFrame(new byte[length], 0, 0, null, 0);
+        verify(callback, times(2)).onBufferAvailable(any(byte[].class));
+
+        // Releasing the held frames gives all buffers back.
+        frame1.release();
+        frame2.release();
+        frame3.release();
+        verify(callback, times(5)).onBufferAvailable(any(byte[].class));
+    }
+
+    @Test
+    public void testCounters() {
+        FrameManager manager = new FrameManager(2, callback);
+        int length = manager.setUp(4, new Size(50, 50));
+        assertEquals(2, manager.getAllocatedBufferCount());
+        assertEquals(0, manager.getAllocatedFrameCount());
+
+        manager.getFrame(new byte[length], 0, 0, null, 0).release();
+        manager.getFrame(new byte[length], 0, 0, null, 0).release();
+        assertEquals(1, manager.getAllocatedFrameCount());
+        assertEquals(1, manager.getRecycledFrameCount());
+        assertEquals(2, manager.getRecycledBufferCount());
+
+        manager.onFrameUnavailable();
+        assertEquals(1, manager.getStarvationCount());
+    }
+
+    @Test
+    public void testSequenceNumbers() {
+        FrameManager manager = new FrameManager(2, callback);
+        int length = manager.setUp(4, new Size(50, 50));
+        Frame frame = manager.getFrame(new byte[length], 0, 1234, 0, null, 0);
+        assertEquals(0, frame.getSequenceNumber());
+        assertEquals(1234, frame.getTimestamp());
+        assertTrue(frame.getConversionTime() >= 0);
+        frame.release();
+        frame = manager.getFrame(new byte[length], 0, 0, null, 0);
+        assertEquals(1, frame.getSequenceNumber());
+        assertTrue(frame.getTimestamp() >= 0);
+        frame.release();
+        // Missed frames leave a gap.
+        manager.onFrameUnavailable();
+        frame = manager.getFrame(new byte[length], 0, 0, null, 0);
+        assertEquals(3, frame.getSequenceNumber());
+        Frame frozen = frame.freeze();
+        assertEquals(3, frozen.getSequenceNumber());
+        assertEquals(frame.getTimestamp(), frozen.getTimestamp());
+        frame.release();
+        frozen.release();
+    }
+
+    @Test
+    public void testGrow_enqueue() {
+        FrameManager manager = new FrameManager(1, null);
+        int length = manager.setUp(4, new Size(50, 50));
+        manager.setMaxMemory(length * 2);
+
+        byte[] buffer1 = manager.getBuffer();
+        assertNotNull(buffer1);
+        byte[] buffer2 = manager.getBuffer();
+        assertNotNull(buffer2);
+        assertNull(manager.getBuffer());
+
+        // Give back and take again. No more allocations.
+        manager.getFrame(buffer1, 0, 0, null, 0).release();
+        manager.onBufferUnused(buffer2);
+        assertNotNull(manager.getBuffer());
+        assertNotNull(manager.getBuffer());
+        assertNull(manager.getBuffer());
+    }
+
+    @Test
+    public void testAwaitBuffer() throws Exception {
+        FrameManager manager = new FrameManager(1, 1, null);
+        manager.setUp(4, new Size(50, 50));
+        final Frame frame = manager.getFrame(manager.awaitBuffer(0), 0, 0, null, 0);
+        // Times out without counting starvation.
+        assertNull(manager.awaitBuffer(10));
+        assertEquals(0, manager.getStarvationCount());
+
+        // Returns as soon as a buffer is released.
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignore) {}
+                frame.release();
+            }
+        });
+        thread.start();
+        assertNotNull(manager.awaitBuffer(5000));
+        thread.join();
+        assertEquals(0, manager.getStarvationCount());
+        assertEquals(1, manager.getAllocatedBufferCount());
+    }
+
+    @Test
+    public void testConcurrentRelease_noBufferLostOrDuplicated() throws Exception {
+        // The camera thread takes buffers and creates frames, while workers release them concurrently.
+        // Each frame is shared by two workers, so the last release can happen on either one.
+        final int poolSize = 4;
+        final int frames = 20000;
+        final int workers = 4;
+        final Set<byte[]> inUse = Collections.newSetFromMap(new ConcurrentHashMap<byte[], Boolean>());
+        final AtomicReference<String> error = new AtomicReference<>();
+        final FrameManager manager = new FrameManager(poolSize, null) {
+            @Override
+            void onFrameReleased(@NonNull Frame frame, @Nullable byte[] buffer) {
+                if (buffer != null && !inUse.remove(buffer)) {
+                    error.set("Buffer released twice.");
+                }
+                super.onFrameReleased(frame, buffer);
+            }
+        };
+        int length = manager.setUp(4, new Size(50, 50));
+        @SuppressWarnings("unchecked")
+        final LinkedBlockingQueue<Frame>[] queues = new LinkedBlockingQueue[workers];
+        final AtomicInteger released = new AtomicInteger(0);
+        Thread[] threads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            final LinkedBlockingQueue<Frame> queue = new LinkedBlockingQueue<>();
+            queues[i] = queue;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (released.get() < 2 * frames) {
+                            Frame frame = queue.poll();
+                            if (frame == null) {
+                                Thread.yield();
+                                continue;
+                            }
+                            frame.release();
+                            released.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        error.set(e.toString());
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (int i = 0; i < frames; i++) {
+            byte[] buffer;
+            while ((buffer = manager.getBuffer()) == null) Thread.yield();
+            assertEquals(length, buffer.length);
+            if (!inUse.add(buffer)) error.set("Buffer handed out twice.");
+            Frame frame = manager.getFrame(buffer, i, 0, new Size(50, 50), 0);
+            frame.retain();
+            queues[i % workers].offer(frame);
+            queues[(i + 1) % workers].offer(frame);
+        }
+        for (Thread thread : threads) thread.join(30000);
+        assertNull(error.get(), error.get());
+        assertEquals(2 * frames, released.get());
+        assertTrue(inUse.isEmpty());
+
+        // All buffers should be back, each exactly once.
+        Set<byte[]> buffers = Collections.newSetFromMap(new ConcurrentHashMap<byte[], Boolean>());
+        byte[] buffer;
+        while ((buffer = manager.getBuffer()) != null) {
+            assertTrue(buffers.add(buffer));
+        }
+        assertEquals(poolSize, buffers.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPoolBounds() {
+        new FrameManager(4, 2, callback);
+    }
+
+    /**
+     * A DISPATCH manager with a fake clock, fed by a fake camera that produces a frame
+     * every frameInterval, if it has a buffer, and releases frames after holdTime.
+     */
+    private static class Simulation implements FrameManager.BufferCallback {
+        private final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+        private final List<Frame> frames = new ArrayList<>();
+        private final List<Long> times = new ArrayList<>();
+        private long now = 1000000000L;
+        private int dropped = 0;
+        private final FrameManager manager = new FrameManager(1, 8, this) {
+            @Override
+            long getNanoTime() {
+                return now;
+            }
+        };
+
+        @Override
+        public void onBufferAvailable(@NonNull byte[] buffer) {
+            buffers.add(buffer);
+        }
+
+        private void run(long durationMillis, long frameIntervalMillis, long holdTimeMillis) {
+            for (long millis = 0; millis < durationMillis; millis++) {
+                now += 1000000L;
+                Iterator<Frame> frameIterator = frames.iterator();
+                Iterator<Long> timeIterator = times.iterator();
+                while (frameIterator.hasNext()) {
+                    Frame frame = frameIterator.next();
+                    long time = timeIterator.next();
+                    if (now - time >= holdTimeMillis * 1000000L) {
+                        frame.release();
+                        frameIterator.remove();
+                        timeIterator.remove();
+                    }
+                }
+                if (millis % frameIntervalMillis == 0) {
+                    byte[] buffer = buffers.poll();
+                    if (buffer == null) {
+                        dropped++;
+                    } else {
+                        frames.add(manager.getFrame(buffer, now, 0, new Size(50, 50), 0));
+                        times.add(now);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAdaptive_growsWithHoldTime() {
+        Simulation simulation = new Simulation();
+        int length = simulation.manager.setUp(4, new Size(50, 50));
+        simulation.manager.setMaxMemory(length * 100);
+        // 30 fps, frames held for 100ms: about 4 frames are held at the same time.
+        simulation.run(1000, 33, 100);
+        assertTrue(simulation.manager.getPoolSize() >= 4);
+        assertTrue(simulation.manager.getStarvationCount() > 0);
+        // Once grown, no frame is dropped anymore.
+        simulation.dropped = 0;
+        simulation.run(3000, 33, 100);
+        assertEquals(0, simulation.dropped);
+        assertTrue(simulation.manager.getPoolSize() <= 8);
+    }
+
+    @Test
+    public void testAdaptive_shrinks() {
+        Simulation simulation = new Simulation();
+        int length = simulation.manager.setUp(4, new Size(50, 50));
+        simulation.manager.setMaxMemory(length * 100);
+        simulation.run(3000, 33, 100);
+        int grown = simulation.manager.getPoolSize();
+        // Processors get faster. The pool shrinks, one buffer every few seconds.
+        simulation.run(30000, 33, 5);
+        assertTrue(simulation.manager.getPoolSize() < grown);
+        assertEquals(2, simulation.manager.getPoolSize());
+        // Which is still enough.
+        simulation.dropped = 0;
+        simulation.run(3000, 33, 5);
+        assertEquals(0, simulation.dropped);
+    }
+
+    @Test
+    public void testAdaptive_ignoresFrozenFrames() {
+        Simulation simulation = new Simulation();
+        int length = simulation.manager.setUp(4, new Size(50, 50));
+        simulation.manager.setMaxMemory(length * 100);
+        simulation.run(1000, 33, 5);
+        simulation.run(1, 33, 5);
+        int desired = simulation.manager.getDesiredCount();
+        // A frozen copy is kept for a long time, but it holds no buffer.
+        Frame frozen = simulation.frames.get(0).freeze();
+        simulation.run(10000, 33, 5);
+        frozen.release();
+        assertEquals(desired, simulation.manager.getDesiredCount());
+    }
+
+    @Test
+    public void testAdaptive_respectsMaxMemory() {
+        Simulation simulation = new Simulation();
+        int length = simulation.manager.setUp(4, new Size(50, 50));
+        simulation.manager.setMaxMemory(length * 3);
+        simulation.run(3000, 33, 200);
+        assertEquals(3, simulation.manager.getPoolSize());
+        assertEquals(3, simulation.manager.getAllowedPoolSize(4, new Size(50, 50)));
+
+        // Lowering the max memory shrinks the pool as buffers are released.
+        simulation.manager.setMaxMemory(length * 2);
+        simulation.run(1000, 33, 200);
+        assertEquals(2, simulation.manager.getPoolSize());
+    }
+
+    @Test
+    public void testReservedCount() {
+        FrameManager manager = new FrameManager(1, 2, null);
+        manager.setReservedCount(3);
+        assertEquals(3, manager.getReservedCount());
+        int length = manager.setUp(4, new Size(50, 50));
+        // Reserved buffers are allocated on setUp, without max memory.
+        assertEquals(4, manager.getPoolSize());
+        assertEquals(4, manager.getAllowedPoolSize(4, new Size(50, 50)));
+        // With max memory, the max pool size is raised too.
+        manager.setMaxMemory(length * 100);
+        assertEquals(5, manager.getAllowedPoolSize(4, new Size(50, 50)));
+        List<byte[]> buffers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            byte[] buffer = manager.getBuffer();
+            assertNotNull(buffer);
+            assertEquals(length, buffer.length);
+            buffers.add(buffer);
+        }
+        assertNull(manager.getBuffer());
+
+        // Without max memory, the pool shrinks back, but not below the reserved count.
+        manager.setMaxMemory(0);
+        for (byte[] buffer : buffers) {
+            manager.getFrame(buffer, 0, 0, null, 0).release();
+        }
+        assertEquals(4, manager.getPoolSize());
+    }
+
+    @Test
+    public void testReservedCount_capped() {
+        FrameManager manager = new FrameManager(1, 1, null);
+        manager.setReservedCount(100);
+        assertEquals(16, manager.getReservedCount());
+        manager.setUp(4, new Size(50, 50));
+        for (int i = 0; i < 17; i++) {
+            assertNotNull(manager.getBuffer());
+        }
+        assertNull(manager.getBuffer());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReservedCount_invalid() {
+        new FrameManager(1, callback).setReservedCount(-1);
+    }
 }
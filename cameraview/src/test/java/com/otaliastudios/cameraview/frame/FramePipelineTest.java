@@ -0,0 +1,250 @@
+package com.otaliastudios.cameraview.frame;
+
+
+import com.otaliastudios.cameraview.size.Size;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class FramePipelineTest {
+
+    private FrameManager manager;
+    private FramePipeline pipeline;
+    private int length;
+
+    @Before
+    public void setUp() {
+        manager = new FrameManager(5, mock(FrameManager.BufferCallback.class));
+        length = manager.setUp(4, new Size(50, 50));
+        pipeline = new FramePipeline();
+    }
+
+    @After
+    public void tearDown() {
+        pipeline.release();
+        pipeline = null;
+        manager = null;
+    }
+
+    private void process(long time) {
+        Frame frame = manager.getFrame(new byte[length], time, 0, new Size(50, 50), 0);
+        pipeline.process(frame);
+        frame.release();
+    }
+
+    private final FramePipeline.Stage<Frame, Long> timeStage = new FramePipeline.Stage<Frame, Long>() {
+        @Override
+        public Long process(@NonNull Frame input) {
+            return input.getTime();
+        }
+    };
+
+    @Test
+    public void testChain() throws Exception {
+        final List<String> results = new CopyOnWriteArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(3);
+        FramePipeline.Node<Long, Long> doubled = pipeline.addStage("time", timeStage)
+                .then("double", new FramePipeline.Stage<Long, Long>() {
+                    @Override
+                    public Long process(@NonNull Long input) {
+                        return input * 2;
+                    }
+                }, 10, FramePipeline.Overflow.BLOCK);
+        doubled.then("print", new FramePipeline.Stage<Long, String>() {
+            @Override
+            public String process(@NonNull Long input) {
+                results.add(String.valueOf(input));
+                latch.countDown();
+                return null;
+            }
+        }, 10, FramePipeline.Overflow.BLOCK);
+        process(1);
+        process(2);
+        process(3);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals("2", results.get(0));
+        assertEquals("4", results.get(1));
+        assertEquals("6", results.get(2));
+        assertEquals(3, doubled.getStats().getProcessedCount());
+        assertEquals("double", doubled.getName());
+    }
+
+    @Test
+    public void testStagesRunInParallel() throws Exception {
+        // The slow stage waits until the fast one has seen the next result,
+        // which can only happen if they run at the same time.
+        final CountDownLatch second = new CountDownLatch(2);
+        final CountDownLatch done = new CountDownLatch(1);
+        FramePipeline.Node<Frame, Long> root = pipeline.addStage("time", timeStage);
+        FramePipeline.Node<Long, Long> fast = root.then("fast", new FramePipeline.Stage<Long, Long>() {
+            @Override
+            public Long process(@NonNull Long input) {
+                second.countDown();
+                return input;
+            }
+        }, 10, FramePipeline.Overflow.BLOCK);
+        fast.then("slow", new FramePipeline.Stage<Long, Void>() {
+            @Override
+            public Void process(@NonNull Long input) {
+                try {
+                    if (input == 1L && second.await(1, TimeUnit.SECONDS)) done.countDown();
+                } catch (InterruptedException ignore) { }
+                return null;
+            }
+        }, 10, FramePipeline.Overflow.BLOCK);
+        process(1);
+        process(2);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final List<Long> results = new CopyOnWriteArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(2);
+        FramePipeline.Node<Long, Void> slow = pipeline.addStage("time", timeStage)
+                .then("slow", new FramePipeline.Stage<Long, Void>() {
+                    @Override
+                    public Void process(@NonNull Long input) {
+                        blocked.countDown();
+                        try {
+                            unblock.await(1, TimeUnit.SECONDS);
+                        } catch (InterruptedException ignore) { }
+                        results.add(input);
+                        latch.countDown();
+                        return null;
+                    }
+                });
+        process(1);
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+        // The stage is busy and the queue holds one result. Only the last one is kept.
+        process(2);
+        process(3);
+        process(4);
+        unblock.countDown();
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(1L, (long) results.get(0));
+        assertEquals(4L, (long) results.get(1));
+        assertEquals(2, slow.getStats().getDroppedCount());
+    }
+
+    @Test
+    public void testDropCallback() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final CountDownLatch processed = new CountDownLatch(2);
+        final AtomicInteger retained = new AtomicInteger(0);
+        final List<Long> dropped = new CopyOnWriteArrayList<>();
+        pipeline.addStage("retain", new FramePipeline.Stage<Frame, Frame>() {
+            @Override
+            public Frame process(@NonNull Frame input) {
+                retained.incrementAndGet();
+                return input.retain();
+            }
+        }).then("slow", new FramePipeline.Stage<Frame, Void>() {
+            @Override
+            public Void process(@NonNull Frame input) {
+                blocked.countDown();
+                try {
+                    unblock.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException ignore) { }
+                input.release();
+                retained.decrementAndGet();
+                processed.countDown();
+                return null;
+            }
+        }).setDropCallback(new FramePipeline.DropCallback<Frame>() {
+            @Override
+            public void onDropped(@NonNull Frame input) {
+                dropped.add(input.getTime());
+                input.release();
+                retained.decrementAndGet();
+            }
+        });
+        process(1);
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+        process(2);
+        process(3);
+        process(4);
+        // Frames 2 and 3 were dropped, and released by the callback.
+        assertEquals(2, dropped.size());
+        assertEquals(2L, (long) dropped.get(0));
+        assertEquals(3L, (long) dropped.get(1));
+        unblock.countDown();
+        assertTrue(processed.await(1, TimeUnit.SECONDS));
+        assertEquals(0, retained.get());
+
+        // Results pending at release time are dropped as well.
+        FramePipeline other = new FramePipeline();
+        final List<Long> pending = new CopyOnWriteArrayList<>();
+        final CountDownLatch stuck = new CountDownLatch(1);
+        FramePipeline.Node<Long, Void> node = other.addStage("time", timeStage).then("stuck", new FramePipeline.Stage<Long, Void>() {
+            @Override
+            public Void process(@NonNull Long input) {
+                stuck.countDown();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignore) { }
+                return null;
+            }
+        }, 5, FramePipeline.Overflow.BLOCK).setDropCallback(new FramePipeline.DropCallback<Long>() {
+            @Override
+            public void onDropped(@NonNull Long input) {
+                pending.add(input);
+            }
+        });
+        for (long time = 1; time <= 3; time++) {
+            Frame frame = manager.getFrame(new byte[length], time, 0, new Size(50, 50), 0);
+            other.process(frame);
+            frame.release();
+            if (time == 1) assertTrue(stuck.await(1, TimeUnit.SECONDS));
+        }
+        other.release();
+        assertEquals(2, pending.size());
+        assertEquals(2, node.getStats().getDroppedCount());
+    }
+
+    @Test
+    public void testRelease() {
+        FramePipeline.Node<Frame, Long> root = pipeline.addStage("time", timeStage);
+        process(1);
+        assertEquals(1, root.getStats().getProcessedCount());
+        assertFalse(pipeline.isReleased());
+        pipeline.release();
+        assertTrue(pipeline.isReleased());
+        process(2);
+        assertEquals(1, root.getStats().getProcessedCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddStage_afterStart() {
+        pipeline.addStage("time", timeStage);
+        process(1);
+        pipeline.addStage("other", timeStage);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidQueueSize() {
+        pipeline.addStage("time", timeStage).then("next", new FramePipeline.Stage<Long, Long>() {
+            @Override
+            public Long process(@NonNull Long input) {
+                return input;
+            }
+        }, 0, FramePipeline.Overflow.BLOCK);
+    }
+}
@@ -0,0 +1,205 @@
+package com.otaliastudios.cameraview.frame;
+
+
+import android.graphics.ImageFormat;
+
+import com.otaliastudios.cameraview.size.Size;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class FrameReplayTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FrameManager manager;
+    private Size size;
+    private int length;
+
+    @Before
+    public void setUp() {
+        size = new Size(4, 2);
+        manager = new FrameManager(5, mock(FrameManager.BufferCallback.class));
+        length = manager.setUp(12, size); // NV21 bits per pixel
+    }
+
+    private void dump(File file, FrameDumpProcessor.Format format, int maxFrames, int frames) {
+        FrameDumpProcessor processor = new FrameDumpProcessor(file, format, maxFrames);
+        for (int i = 0; i < frames; i++) {
+            Frame frame = manager.getFrame(data(i * 10), 0, i * 100000000L, 90, size, ImageFormat.NV21);
+            processor.process(frame);
+            frame.release();
+        }
+        processor.release();
+    }
+
+    private byte[] data(int value) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (value + i);
+        return data;
+    }
+
+    private static class Collector implements FrameSource.Callback {
+        private final List<byte[]> data = new ArrayList<>();
+        private final List<Integer> rotations = new ArrayList<>();
+
+        @Override
+        public void dispatchFrame(@NonNull Frame frame) {
+            data.add(frame.getData().clone());
+            rotations.add(frame.getRotation());
+            frame.release();
+        }
+    }
+
+    private static FrameManager newManager(FrameReplay replay) {
+        FrameManager manager = new FrameManager(2, null);
+        manager.setUp(12, replay.getSize());
+        return manager;
+    }
+
+    @Test
+    public void testY4M() throws IOException {
+        File file = folder.newFile("frames.y4m");
+        dump(file, FrameDumpProcessor.Format.Y4M, 3, 2);
+        FrameReplay replay = new FrameReplay(file);
+        assertEquals(size, replay.getSize());
+        assertEquals(2, replay.getFrameCount());
+        assertEquals(30, replay.getFileFrameRate(), 0);
+        Collector collector = new Collector();
+        replay.setFrameRate(0);
+        assertEquals(2, replay.run(newManager(replay), collector));
+        assertArrayEquals(data(0), collector.data.get(0));
+        assertArrayEquals(data(10), collector.data.get(1));
+        assertEquals(90, (int) collector.rotations.get(0));
+        replay.release();
+    }
+
+    private File y4m(String header) throws IOException {
+        File file = folder.newFile("frames.y4m");
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write((header + "\nFRAME\n").getBytes());
+        stream.write(data(0));
+        stream.close();
+        return file;
+    }
+
+    @Test
+    public void testY4M_colorSpace() throws IOException {
+        FrameReplay replay = new FrameReplay(y4m("YUV4MPEG2 W4 H2 F30:1 C420mpeg2"));
+        assertEquals(1, replay.getFrameCount());
+        replay.release();
+    }
+
+    @Test(expected = IOException.class)
+    public void testY4M_highBitDepth() throws IOException {
+        new FrameReplay(y4m("YUV4MPEG2 W4 H2 F30:1 C420p10"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testY4M_invalidFrameRate() throws IOException {
+        new FrameReplay(y4m("YUV4MPEG2 W4 H2 F30:x C420jpeg"));
+    }
+
+    @Test
+    public void testNV21_ringOrder() throws IOException {
+        File file = folder.newFile("frames.nv21");
+        dump(file, FrameDumpProcessor.Format.NV21, 2, 3);
+        FrameReplay replay = new FrameReplay(file);
+        assertEquals(size, replay.getSize());
+        assertEquals(2, replay.getFrameCount());
+        // Frames were 100ms apart.
+        assertEquals(10, replay.getFileFrameRate(), 0.01);
+        Collector collector = new Collector();
+        replay.setFrameRate(0);
+        replay.run(newManager(replay), collector);
+        // The ring wrapped: frames are played by sequence number, not by position.
+        assertArrayEquals(data(10), collector.data.get(0));
+        assertArrayEquals(data(20), collector.data.get(1));
+        replay.release();
+    }
+
+    @Test
+    public void testNV21_noIndex() throws IOException {
+        File file = folder.newFile("frames.nv21");
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(data(0));
+        stream.write(data(5));
+        stream.close();
+        FrameReplay replay = new FrameReplay(file, size);
+        assertEquals(2, replay.getFrameCount());
+        byte[] output = new byte[length];
+        replay.read(1, output);
+        assertArrayEquals(data(5), output);
+        replay.release();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNV21_noIndexNoSize() throws IOException {
+        File file = folder.newFile("frames.nv21");
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(data(0));
+        stream.close();
+        new FrameReplay(file);
+    }
+
+    @Test
+    public void testLoop() throws IOException {
+        File file = folder.newFile("frames.y4m");
+        dump(file, FrameDumpProcessor.Format.Y4M, 2, 2);
+        final FrameReplay replay = new FrameReplay(file);
+        replay.setLoop(true).setFrameRate(0);
+        final List<Frame> frames = new ArrayList<>();
+        long count = replay.run(newManager(replay), new FrameSource.Callback() {
+            @Override
+            public void dispatchFrame(@NonNull Frame frame) {
+                frames.add(frame);
+                frame.release();
+                if (frames.size() == 5) replay.stop();
+            }
+        });
+        assertEquals(5, count);
+        replay.release();
+    }
+
+    @Test
+    public void testFrameRate() throws IOException {
+        File file = folder.newFile("frames.y4m");
+        dump(file, FrameDumpProcessor.Format.Y4M, 4, 4);
+        FrameReplay replay = new FrameReplay(file);
+        replay.setFrameRate(100);
+        long start = System.nanoTime();
+        assertEquals(4, replay.run(newManager(replay), new Collector()));
+        // Four frames at 100 fps take at least 30ms.
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue(elapsed >= 25);
+        replay.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFrameRate() throws IOException {
+        File file = folder.newFile("frames.y4m");
+        dump(file, FrameDumpProcessor.Format.Y4M, 1, 1);
+        FrameReplay replay = new FrameReplay(file);
+        try {
+            replay.setFrameRate(-1);
+        } finally {
+            replay.release();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.otaliastudios.cameraview.frame;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameResamplerTest {
+
+    /**
+     * Creates an NV21 image where luma is 10 * x + y and chroma is V = x, U = y + 100.
+     */
+    private static byte[] createImage(int width, int height) {
+        byte[] image = new byte[FrameResampler.getLength(width, height)];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image[y * width + x] = (byte) (10 * x + y);
+            }
+        }
+        int offset = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                image[offset + y * width + 2 * x] = (byte) x;
+                image[offset + y * width + 2 * x + 1] = (byte) (y + 100);
+            }
+        }
+        return image;
+    }
+
+    @Test
+    public void testGetLength() {
+        assertEquals(6, FrameResampler.getLength(2, 2));
+        assertEquals(640 * 480 * 3 / 2, FrameResampler.getLength(640, 480));
+    }
+
+    @Test
+    public void testCopy() {
+        byte[] input = createImage(8, 4);
+        byte[] output = new byte[input.length];
+        FrameResampler.resample(input, 8, 4, 0, 0, 8, 4, output, 8, 4);
+        assertArrayEquals(input, output);
+    }
+
+    @Test
+    public void testCrop() {
+        byte[] input = createImage(8, 8);
+        byte[] output = new byte[FrameResampler.getLength(4, 2)];
+        FrameResampler.resample(input, 8, 8, 2, 4, 4, 2, output, 4, 2);
+        // First luma row starts at (2, 4).
+        assertEquals(24, output[0]);
+        assertEquals(34, output[1]);
+        // Second luma row starts at (2, 5).
+        assertEquals(25, output[4]);
+        // Chroma starts at (1, 2) in the half resolution plane.
+        assertEquals(1, output[8]);
+        assertEquals(102, output[9]);
+        assertEquals(2, output[10]);
+    }
+
+    @Test
+    public void testBox() {
+        byte[] input = createImage(8, 4);
+        byte[] output = new byte[FrameResampler.getLength(4, 2)];
+        FrameResampler.resample(input, 8, 4, 0, 0, 8, 4, output, 4, 2);
+        // Average of (0, 0), (1, 0), (0, 1), (1, 1) = (0 + 10 + 1 + 11) / 4.
+        assertEquals(6, output[0]);
+        // Average of (2, 2), (3, 2), (2, 3), (3, 3) = (22 + 32 + 23 + 33) / 4.
+        assertEquals(28, output[5]);
+        // Chroma: average of V = 0, 1 and U = 100, 101.
+        assertEquals(1, output[8]);
+        assertEquals(101, output[9]);
+    }
+
+    @Test
+    public void testBilinear_uniform() {
+        int width = 12;
+        int height = 10;
+        byte[] input = new byte[FrameResampler.getLength(width, height)];
+        for (int i = 0; i < input.length; i++) input[i] = (byte) 200;
+        byte[] output = new byte[FrameResampler.getLength(8, 6)];
+        FrameResampler.resample(input, width, height, 0, 0, width, height, output, 8, 6);
+        for (byte value : output) {
+            assertEquals(200, value & 0xFF);
+        }
+    }
+
+    @Test
+    public void testBilinear_gradient() {
+        // Luma grows by 10 for each column, so the output should grow by 15.
+        byte[] input = createImage(12, 2);
+        byte[] output = new byte[FrameResampler.getLength(8, 2)];
+        FrameResampler.resample(input, 12, 2, 0, 0, 12, 2, output, 8, 2);
+        for (int x = 1; x < 7; x++) {
+            int step = (output[x] & 0xFF) - (output[x - 1] & 0xFF);
+            assertTrue("step at " + x + " is " + step, Math.abs(step - 15) <= 1);
+        }
+    }
+
+    @Test
+    public void testUpscale() {
+        byte[] input = createImage(4, 4);
+        byte[] output = new byte[FrameResampler.getLength(6, 6)];
+        FrameResampler.resample(input, 4, 4, 0, 0, 4, 4, output, 6, 6);
+        // Corners are clamped to the input corners.
+        assertEquals(0, output[0]);
+        assertEquals(33, output[6 * 6 - 1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCropOutside() {
+        byte[] input = createImage(8, 8);
+        FrameResampler.resample(input, 8, 8, 4, 4, 8, 8, new byte[input.length], 8, 8);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutputTooSmall() {
+        byte[] input = createImage(8, 8);
+        FrameResampler.resample(input, 8, 8, 0, 0, 8, 8, new byte[10], 4, 4);
+    }
+}
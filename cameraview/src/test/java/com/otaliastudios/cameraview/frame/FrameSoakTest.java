@@ -0,0 +1,184 @@
+package com.otaliastudios.cameraview.frame;
+
+import com.otaliastudios.cameraview.internal.utils.AllocationCounter;
+import com.otaliastudios.cameraview.size.Size;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pushes frames from a {@link FrameSource} through a {@link FrameManager}
+ * and a {@link FrameDispatcher} for a few minutes, then reports the throughput,
+ * the allocated bytes per frame, the GC count, the recycle hit rate and the p99 dispatch latency.
+ * This is skipped unless the cameraview.soak system property is set to true. The run can be
+ * configured with the cameraview.soak.minutes (default 1) and cameraview.soak.fps (default 30,
+ * 0 for as fast as possible) properties.
+ *
+ * Frames are synthesized by a {@link FrameGenerator}, configured with the cameraview.soak.width,
+ * cameraview.soak.height (default 1280x720) and cameraview.soak.pattern (default MOVING_BARS)
+ * properties. If cameraview.soak.source is set to a Y4M or NV21 file, frames are replayed
+ * from that file by a looping {@link FrameReplay} instead. This is the same path as the replay
+ * engine, which can not run on a plain JVM.
+ */
+public class FrameSoakTest {
+
+    private final static int WARMUP_FRAMES = 100;
+    // Dispatching a frame should only allocate executor and logging internals,
+    // never frames or buffers.
+    private final static long MAX_ALLOCATED_BYTES_PER_FRAME = 512;
+
+    private ExecutorService executor;
+    private ScheduledExecutorService timer;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.getBoolean("cameraview.soak"));
+        executor = Executors.newSingleThreadExecutor();
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        if (executor != null) executor.shutdownNow();
+        if (timer != null) timer.shutdownNow();
+    }
+
+    @Test
+    public void soak() throws Exception {
+        float minutes = Float.parseFloat(System.getProperty("cameraview.soak.minutes", "1"));
+        float fps = Float.parseFloat(System.getProperty("cameraview.soak.fps", "30"));
+        String path = System.getProperty("cameraview.soak.source");
+        final FrameSource source;
+        String name;
+        if (path != null) {
+            source = new FrameReplay(new File(path)).setLoop(true);
+            name = path;
+        } else {
+            Size size = new Size(Integer.getInteger("cameraview.soak.width", 1280),
+                    Integer.getInteger("cameraview.soak.height", 720));
+            FrameGenerator.Pattern pattern = FrameGenerator.Pattern.valueOf(
+                    System.getProperty("cameraview.soak.pattern", "MOVING_BARS"));
+            source = new FrameGenerator(size, pattern);
+            name = pattern.name();
+        }
+        Size size = source.getSize();
+        FrameManager manager = new FrameManager(2, 8, null);
+        manager.setUp(12, size); // NV21 bits per pixel
+        final FrameDispatcher dispatcher = new FrameDispatcher(executor);
+        FrameProcessor processor = new FrameProcessor() {
+            private long sum;
+
+            @Override
+            public void process(@NonNull Frame frame) {
+                byte[] data = frame.getData();
+                for (int i = 0; i < data.length; i += 64) sum += data[i];
+            }
+        };
+        dispatcher.add(processor, new FrameProcessorOptions());
+        final FrameSource.Callback callback = new FrameSource.Callback() {
+            @Override
+            public void dispatchFrame(@NonNull Frame frame) {
+                dispatcher.dispatch(frame);
+            }
+        };
+
+        // Warm up, so that pools are filled and code is compiled.
+        source.setFrameRate(0);
+        source.run(manager, new FrameSource.Callback() {
+            private int count;
+
+            @Override
+            public void dispatchFrame(@NonNull Frame frame) {
+                dispatcher.dispatch(frame);
+                if (++count == WARMUP_FRAMES) source.stop();
+            }
+        });
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {}
+        }).get();
+
+        long allocatedFrames = manager.getAllocatedFrameCount();
+        long recycledFrames = manager.getRecycledFrameCount();
+        long allocatedBuffers = manager.getAllocatedBufferCount();
+        long recycledBuffers = manager.getRecycledBufferCount();
+        long starvation = manager.getStarvationCount();
+        long gcCount = getGcCount();
+        AllocationCounter counter = AllocationCounter.isSupported() ? AllocationCounter.start() : null;
+
+        source.setFrameRate(fps);
+        source.prepare();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                source.stop();
+            }
+        }, (long) (minutes * 60 * 1000), TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        long frames = source.run(manager, callback);
+        long elapsed = System.nanoTime() - start;
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {}
+        }).get();
+
+        long allocatedBytes = counter == null ? -1 : counter.getAllocatedBytes();
+        gcCount = getGcCount() - gcCount;
+        allocatedFrames = manager.getAllocatedFrameCount() - allocatedFrames;
+        recycledFrames = manager.getRecycledFrameCount() - recycledFrames;
+        allocatedBuffers = manager.getAllocatedBufferCount() - allocatedBuffers;
+        recycledBuffers = manager.getRecycledBufferCount() - recycledBuffers;
+        starvation = manager.getStarvationCount() - starvation;
+        float frameHitRate = (float) recycledFrames / Math.max(1, recycledFrames + allocatedFrames);
+        float bufferHitRate = (float) recycledBuffers / Math.max(1, recycledBuffers + allocatedBuffers);
+        FramePipelineStats pipelineStats = dispatcher.getPipelineStats(manager);
+        FrameProcessorStats stats = pipelineStats.getProcessorStats(processor);
+        System.out.println("Soak (" + name + " " + size + " at " + fps + " fps, "
+                + (elapsed / 1000000000L) + "s)"
+                + " frames: " + frames
+                + " throughput: " + (frames * 1000000000L / Math.max(1, elapsed)) + "fps"
+                + " allocated: " + (allocatedBytes < 0 ? "n/a" : (allocatedBytes / Math.max(1, frames)) + "B/frame")
+                + " gc: " + gcCount
+                + " frame hit rate: " + frameHitRate
+                + " buffer hit rate: " + bufferHitRate
+                + " starvation: " + starvation
+                + " p99 latency: " + stats.getP99Latency() + "ms"
+                + " p99 end to end latency: " + stats.getP99EndToEndLatency() + "ms");
+
+        // Frames and buffers should be recycled, not copied or allocated per frame.
+        assertTrue(frames > 0);
+        assertTrue("Frame hit rate: " + frameHitRate, frameHitRate > 0.99F);
+        assertTrue("Buffer hit rate: " + bufferHitRate, bufferHitRate > 0.99F);
+        // At rate 0 the source waits for buffers, so there should be no starvation.
+        // At a fixed rate a slow processor can starve the pool, which is only reported.
+        if (fps == 0) assertEquals(0, starvation);
+        assertTrue("Allocated " + (allocatedBytes / frames) + "B/frame",
+                allocatedBytes < 0 || allocatedBytes / frames <= MAX_ALLOCATED_BYTES_PER_FRAME);
+        source.release();
+        dispatcher.clear();
+        manager.release();
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+}
@@ -0,0 +1,111 @@
+package com.otaliastudios.cameraview.frame;
+
+
+import com.otaliastudios.cameraview.size.Size;
+import com.otaliastudios.cameraview.size.SizeSelector;
+import com.otaliastudios.cameraview.size.SizeSelectors;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameStreamsTest {
+
+    private final List<Size> sizes = Arrays.asList(
+            new Size(1920, 1080),
+            new Size(1280, 720),
+            new Size(640, 480),
+            new Size(320, 240),
+            new Size(176, 144));
+
+    private final SizeSelector fallback = SizeSelectors.and(
+            SizeSelectors.maxWidth(700),
+            SizeSelectors.maxHeight(700),
+            SizeSelectors.biggest());
+
+    private static SizeSelector atLeast(int width, int height) {
+        return SizeSelectors.and(
+                SizeSelectors.minWidth(width),
+                SizeSelectors.minHeight(height),
+                SizeSelectors.smallest());
+    }
+
+    @Test
+    public void testNoPreferences() {
+        FrameStreams streams = FrameStreams.negotiate(sizes, fallback,
+                Collections.<SizeSelector>emptyList(), true);
+        assertEquals(new Size(640, 480), streams.getPrimarySize());
+        assertFalse(streams.hasSecondaryStream());
+        assertTrue(streams.accepts(FrameStreams.PRIMARY, null));
+    }
+
+    @Test
+    public void testBiggestPreferenceWins() {
+        SizeSelector ocr = atLeast(1280, 720);
+        FrameStreams streams = FrameStreams.negotiate(sizes, fallback,
+                Arrays.asList(ocr, null), false);
+        assertEquals(new Size(1280, 720), streams.getPrimarySize());
+        assertNull(streams.getSecondarySize());
+        assertTrue(streams.accepts(FrameStreams.PRIMARY, ocr));
+        assertTrue(streams.accepts(FrameStreams.PRIMARY, null));
+    }
+
+    @Test
+    public void testSecondaryStream() {
+        SizeSelector ocr = atLeast(1920, 1080);
+        SizeSelector classifier = atLeast(300, 200);
+        SizeSelector detector = atLeast(600, 400);
+        FrameStreams streams = FrameStreams.negotiate(sizes, fallback,
+                Arrays.asList(ocr, classifier, detector), true);
+        assertEquals(new Size(1920, 1080), streams.getPrimarySize());
+        // The biggest of the small ones.
+        assertEquals(new Size(640, 480), streams.getSecondarySize());
+        assertTrue(streams.accepts(FrameStreams.PRIMARY, ocr));
+        assertFalse(streams.accepts(FrameStreams.SECONDARY, ocr));
+        assertTrue(streams.accepts(FrameStreams.SECONDARY, classifier));
+        assertTrue(streams.accepts(FrameStreams.SECONDARY, detector));
+        assertFalse(streams.accepts(FrameStreams.PRIMARY, detector));
+        // Processors that were added later go to the primary stream.
+        assertTrue(streams.accepts(FrameStreams.PRIMARY, atLeast(10, 10)));
+    }
+
+    @Test
+    public void testNoSecondaryStreamWhenClose() {
+        FrameStreams streams = FrameStreams.negotiate(sizes, fallback,
+                Arrays.asList(atLeast(1280, 720), atLeast(640, 480)), true);
+        assertEquals(new Size(1280, 720), streams.getPrimarySize());
+        assertFalse(streams.hasSecondaryStream());
+    }
+
+    @Test
+    public void testUnsatisfiablePreference() {
+        FrameStreams streams = FrameStreams.negotiate(sizes, fallback,
+                Collections.singletonList(atLeast(4000, 3000)), true);
+        assertEquals(new Size(640, 480), streams.getPrimarySize());
+    }
+
+    @Test
+    public void testEquals() {
+        SizeSelector ocr = atLeast(1920, 1080);
+        SizeSelector classifier = atLeast(300, 200);
+        List<SizeSelector> preferences = Arrays.asList(ocr, classifier);
+        assertEquals(FrameStreams.negotiate(sizes, fallback, preferences, true),
+                FrameStreams.negotiate(sizes, fallback, preferences, true));
+        assertNotEquals(FrameStreams.negotiate(sizes, fallback, preferences, true),
+                FrameStreams.negotiate(sizes, fallback, preferences, false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoSizes() {
+        FrameStreams.negotiate(Collections.<Size>emptyList(), fallback,
+                Collections.<SizeSelector>emptyList(), true);
+    }
+}
@@ -2,22 +2,31 @@ package com.otaliastudios.cameraview.frame;
 
 
 import android.graphics.ImageFormat;
+import android.media.Image;
 
 import com.otaliastudios.cameraview.size.Size;
 
+import androidx.annotation.NonNull;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+
 import static junit.framework.Assert.assertNotNull;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class FrameTest {
 
@@ -49,9 +58,10 @@ public class FrameTest {
     @Test
     public void testReleaseThrows() {
         final Frame frame = new Frame(manager);
-        frame.set(new byte[2], 1000, 90, new Size(10, 10), ImageFormat.NV21);
+        byte[] data = new byte[2];
+        frame.set(data, 1000, 90, new Size(10, 10), ImageFormat.NV21);
         frame.release();
-        verify(manager, times(1)).onFrameReleased(frame);
+        verify(manager, times(1)).onFrameReleased(frame, data);
 
         assertThrows(new Runnable() { public void run() { frame.getTime(); }});
         assertThrows(new Runnable() { public void run() { frame.getFormat(); }});
@@ -69,6 +79,25 @@ public class FrameTest {
         }
     }
 
+    @Test
+    public void testRetainRelease() {
+        final Frame frame = new Frame(manager);
+        byte[] data = new byte[2];
+        frame.set(data, 1000, 90, new Size(10, 10), ImageFormat.NV21);
+        assertEquals(frame, frame.retain());
+
+        // First release should not dispose the frame.
+        frame.release();
+        verify(manager, never()).onFrameReleased(frame, data);
+        assertEquals(1000, frame.getTime());
+
+        // Second release should.
+        frame.release();
+        verify(manager, times(1)).onFrameReleased(frame, data);
+        assertThrows(new Runnable() { public void run() { frame.getTime(); }});
+        assertThrows(new Runnable() { public void run() { frame.retain(); }});
+    }
+
     @Test
     public void testReleaseManager() {
         Frame frame = new Frame(manager);
@@ -102,4 +131,91 @@ public class FrameTest {
         assertEquals(format, frozen.getFormat());
     }
 
+    @Test
+    public void testFreeze_releaseKeepsCopy() {
+        Frame frame = new Frame(manager);
+        byte[] data = new byte[]{0, 1, 5, 0, 7, 3, 4, 5};
+        frame.set(data, 1000, 90, new Size(10, 10), ImageFormat.NV21);
+        Frame frozen = frame.freeze();
+        byte[] copy = frozen.getData();
+
+        // The copy is not a pooled buffer, so it is not given to the manager.
+        frozen.release();
+        verify(manager, times(1)).onFrameReleased(frozen, null);
+        verify(manager, never()).onFrameReleased(frozen, copy);
+    }
+
+    @Test
+    public void testPlanes() {
+        Image image = mockImage();
+        byte[] buffer = new byte[12];
+        when(manager.getBuffer()).thenReturn(buffer);
+        Frame frame = new Frame(manager);
+        frame.setPlanes(new ImagePlanes(image), 1000, -1, -1, 90, new Size(4, 2), ImageFormat.NV21);
+        assertTrue(frame.hasPlanes());
+        assertEquals(3, frame.getPlaneCount());
+        assertEquals(4, frame.getPlaneRowStride(0));
+        assertEquals(1, frame.getPlanePixelStride(1));
+        ByteBuffer y = frame.getPlaneBuffer(0);
+        assertTrue(y.isReadOnly());
+        assertEquals(8, y.remaining());
+        assertEquals(7, y.get(7));
+
+        // No conversion until getData() is called. Then it is done only once.
+        verify(manager, never()).getBuffer();
+        byte[] expected = new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 20, 10, 21, 11};
+        assertArrayEquals(expected, frame.getData());
+        assertArrayEquals(expected, frame.getData());
+        verify(manager, times(1)).getBuffer();
+
+        frame.release();
+        verify(image, times(1)).close();
+        verify(manager, times(1)).onFrameReleased(frame, buffer);
+    }
+
+    @Test
+    public void testPlanes_noBuffer() {
+        Image image = mockImage();
+        when(manager.getBuffer()).thenReturn(null);
+        Frame frame = new Frame(manager);
+        frame.setPlanes(new ImagePlanes(image), 1000, -1, -1, 90, new Size(4, 2), ImageFormat.NV21);
+        assertEquals(12, frame.getData().length);
+        frame.release();
+        // The allocated buffer should not go into the pool.
+        verify(manager, times(1)).onFrameReleased(frame, null);
+    }
+
+    @Test
+    public void testPlanes_notPresent() {
+        final Frame frame = new Frame(manager);
+        frame.set(new byte[2], 1000, 90, new Size(10, 10), ImageFormat.NV21);
+        assertFalse(frame.hasPlanes());
+        assertEquals(0, frame.getPlaneCount());
+        assertThrows(new Runnable() { public void run() { frame.getPlaneBuffer(0); }});
+    }
+
+    @NonNull
+    private Image mockImage() {
+        // A 4x2 image with a Y plane and separate U and V planes.
+        Image image = mock(Image.class);
+        when(image.getFormat()).thenReturn(ImageFormat.YUV_420_888);
+        when(image.getWidth()).thenReturn(4);
+        when(image.getHeight()).thenReturn(2);
+        Image.Plane[] planes = new Image.Plane[]{
+                mockPlane(new byte[]{0, 1, 2, 3, 4, 5, 6, 7}, 4, 1),
+                mockPlane(new byte[]{10, 11}, 2, 1),
+                mockPlane(new byte[]{20, 21}, 2, 1)
+        };
+        when(image.getPlanes()).thenReturn(planes);
+        return image;
+    }
+
+    @NonNull
+    private Image.Plane mockPlane(@NonNull byte[] data, int rowStride, int pixelStride) {
+        Image.Plane plane = mock(Image.Plane.class);
+        when(plane.getBuffer()).thenReturn(ByteBuffer.wrap(data));
+        when(plane.getRowStride()).thenReturn(rowStride);
+        when(plane.getPixelStride()).thenReturn(pixelStride);
+        return plane;
+    }
 }
@@ -0,0 +1,104 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+import androidx.annotation.NonNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Counts the bytes allocated by all live threads, so that tests can check that hot paths
+ * do not allocate. Since every thread is measured, this includes the work that is split
+ * in stripes and run by the {@link ParallelHelper} threads, or run by other executors.
+ *
+ * Only works on JVMs that can measure thread allocations: check {@link #isSupported()} first.
+ */
+public class AllocationCounter {
+
+    private static final int ATTEMPTS = 3;
+
+    /**
+     * Whether the JVM can measure thread allocations.
+     *
+     * @return true if supported
+     */
+    public static boolean isSupported() {
+        com.sun.management.ThreadMXBean bean = getBean();
+        return bean != null && bean.isThreadAllocatedMemorySupported()
+                && bean.isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * Runs the action the given number of times to warm it up, then runs it again
+     * and returns the bytes allocated per run, by all threads. To filter out allocations
+     * made by unrelated threads, this is done a few times, and the lowest value is returned.
+     *
+     * @param runs the number of runs
+     * @param action the action
+     * @return the allocated bytes per run
+     */
+    public static long measure(int runs, @NonNull Runnable action) {
+        for (int i = 0; i < runs; i++) action.run();
+        long result = Long.MAX_VALUE;
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            // What the counter itself allocates.
+            long overhead = start().getAllocatedBytes();
+            AllocationCounter counter = start();
+            for (int i = 0; i < runs; i++) action.run();
+            long bytes = counter.getAllocatedBytes() - overhead;
+            result = Math.min(result, Math.max(0, bytes) / runs);
+        }
+        return result;
+    }
+
+    /**
+     * Starts counting.
+     *
+     * @return a new counter
+     */
+    @NonNull
+    public static AllocationCounter start() {
+        return new AllocationCounter();
+    }
+
+    private final long[] mThreads;
+    private final long[] mBytes;
+
+    private AllocationCounter() {
+        com.sun.management.ThreadMXBean bean = getBean();
+        if (bean == null) throw new IllegalStateException("Allocations can not be measured.");
+        mThreads = bean.getAllThreadIds();
+        mBytes = bean.getThreadAllocatedBytes(mThreads);
+    }
+
+    /**
+     * Returns the bytes allocated since {@link #start()}, by the threads that are alive now.
+     * Threads that were started in the meanwhile are counted from their start.
+     *
+     * @return the allocated bytes
+     */
+    public long getAllocatedBytes() {
+        com.sun.management.ThreadMXBean bean = getBean();
+        //noinspection ConstantConditions
+        long[] threads = bean.getAllThreadIds();
+        long[] bytes = bean.getThreadAllocatedBytes(threads);
+        long total = 0;
+        for (int i = 0; i < threads.length; i++) {
+            if (bytes[i] < 0) continue; // Died in the meanwhile.
+            total += bytes[i] - getStartBytes(threads[i]);
+        }
+        return total;
+    }
+
+    private long getStartBytes(long thread) {
+        for (int i = 0; i < mThreads.length; i++) {
+            if (mThreads[i] == thread) return Math.max(0, mBytes[i]);
+        }
+        return 0;
+    }
+
+    private static com.sun.management.ThreadMXBean getBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+        return (com.sun.management.ThreadMXBean) bean;
+    }
+}
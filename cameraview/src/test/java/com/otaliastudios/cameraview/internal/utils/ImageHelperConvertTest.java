@@ -0,0 +1,200 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class ImageHelperConvertTest {
+
+    /**
+     * Stand-in for the planes of a YUV_420_888 image, filled with random data.
+     */
+    static class Planes {
+        final int width;
+        final int height;
+        final ByteBuffer y;
+        final int yRowStride;
+        final int yPixelStride;
+        final ByteBuffer u;
+        final int uRowStride;
+        final int uPixelStride;
+        final ByteBuffer v;
+        final int vRowStride;
+        final int vPixelStride;
+
+        private Planes(int width, int height,
+                       ByteBuffer y, int yRowStride, int yPixelStride,
+                       ByteBuffer u, int uRowStride, int uPixelStride,
+                       ByteBuffer v, int vRowStride, int vPixelStride) {
+            this.width = width;
+            this.height = height;
+            this.y = y;
+            this.yRowStride = yRowStride;
+            this.yPixelStride = yPixelStride;
+            this.u = u;
+            this.uRowStride = uRowStride;
+            this.uPixelStride = uPixelStride;
+            this.v = v;
+            this.vRowStride = vRowStride;
+            this.vPixelStride = vPixelStride;
+        }
+
+        /**
+         * Separate planes, each with its own strides.
+         * Like real images, the last row is not padded.
+         */
+        @NonNull
+        static Planes separate(int width, int height,
+                               int yRowStride, int yPixelStride,
+                               int uRowStride, int uPixelStride,
+                               int vRowStride, int vPixelStride) {
+            return new Planes(width, height,
+                    plane(width, height, yRowStride, yPixelStride), yRowStride, yPixelStride,
+                    plane(width / 2, height / 2, uRowStride, uPixelStride), uRowStride, uPixelStride,
+                    plane(width / 2, height / 2, vRowStride, vPixelStride), vRowStride, vPixelStride);
+        }
+
+        /**
+         * Chroma planes sharing the same memory, with a pixel stride of 2,
+         * in VU order (NV21 layout) or UV order (NV12 layout).
+         */
+        @NonNull
+        static Planes interleaved(int width, int height, int yRowStride, int chromaRowStride, boolean vu) {
+            ByteBuffer y = plane(width, height, yRowStride, 1);
+            int chromaHeight = height / 2;
+            int chromaLength = (chromaHeight - 1) * chromaRowStride + width;
+            byte[] chroma = new byte[chromaLength];
+            new Random(chromaLength).nextBytes(chroma);
+            ByteBuffer first = ByteBuffer.wrap(chroma, 0, chromaLength - 1).slice();
+            ByteBuffer second = ByteBuffer.wrap(chroma, 1, chromaLength - 1).slice();
+            ByteBuffer u = vu ? second : first;
+            ByteBuffer v = vu ? first : second;
+            return new Planes(width, height,
+                    y, yRowStride, 1,
+                    u, chromaRowStride, 2,
+                    v, chromaRowStride, 2);
+        }
+
+        @NonNull
+        private static ByteBuffer plane(int width, int height, int rowStride, int pixelStride) {
+            int length = (height - 1) * rowStride + (width - 1) * pixelStride + 1;
+            byte[] data = new byte[length];
+            new Random(length).nextBytes(data);
+            return ByteBuffer.allocateDirect(length).put(data);
+        }
+
+        int nv21Size() {
+            return width * height * 3 / 2;
+        }
+
+        void convert(@NonNull byte[] result) {
+            ImageHelper.convertToNV21(width, height,
+                    y, yRowStride, yPixelStride,
+                    u, uRowStride, uPixelStride,
+                    v, vRowStride, vPixelStride,
+                    result);
+        }
+
+        /**
+         * Straightforward, per-sample conversion.
+         */
+        @NonNull
+        byte[] expected() {
+            byte[] result = new byte[nv21Size()];
+            int pos = 0;
+            for (int row = 0; row < height; row++) {
+                for (int col = 0; col < width; col++) {
+                    result[pos++] = y.get(row * yRowStride + col * yPixelStride);
+                }
+            }
+            for (int row = 0; row < height / 2; row++) {
+                for (int col = 0; col < width / 2; col++) {
+                    result[pos++] = v.get(row * vRowStride + col * vPixelStride);
+                    result[pos++] = u.get(row * uRowStride + col * uPixelStride);
+                }
+            }
+            return result;
+        }
+    }
+
+    private void assertConversion(@NonNull Planes planes) {
+        // Move positions to the start, like in Image buffers.
+        planes.y.rewind();
+        planes.u.rewind();
+        planes.v.rewind();
+        byte[] result = new byte[planes.nv21Size()];
+        planes.convert(result);
+        assertArrayEquals(planes.expected(), result);
+        // Positions should not change.
+        assertEquals(0, planes.y.position());
+        assertEquals(0, planes.u.position());
+        assertEquals(0, planes.v.position());
+    }
+
+    @Test
+    public void testPlanar() {
+        assertConversion(Planes.separate(64, 48, 64, 1, 32, 1, 32, 1));
+    }
+
+    @Test
+    public void testPlanar_padded() {
+        assertConversion(Planes.separate(64, 48, 80, 1, 40, 1, 40, 1));
+    }
+
+    @Test
+    public void testInterleaved_vu() {
+        assertConversion(Planes.interleaved(64, 48, 64, 64, true));
+    }
+
+    @Test
+    public void testInterleaved_vu_padded() {
+        assertConversion(Planes.interleaved(64, 48, 96, 96, true));
+    }
+
+    @Test
+    public void testInterleaved_uv() {
+        assertConversion(Planes.interleaved(64, 48, 64, 64, false));
+    }
+
+    @Test
+    public void testOddStrides() {
+        // Different and odd strides for each plane. Used to throw AssertionError.
+        assertConversion(Planes.separate(30, 20, 33, 1, 17, 1, 21, 1));
+        assertConversion(Planes.separate(30, 20, 31, 1, 37, 2, 19, 1));
+        assertConversion(Planes.separate(30, 20, 67, 2, 45, 3, 31, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testResultTooSmall() {
+        Planes planes = Planes.separate(64, 48, 64, 1, 32, 1, 32, 1);
+        planes.convert(new byte[planes.nv21Size() - 1]);
+    }
+
+    @Test
+    public void testStrided_reusesScratch() {
+        assumeTrue(AllocationCounter.isSupported());
+        // Pixel strides of 2 in all planes, so every row goes through the scratch row.
+        final Planes planes = Planes.separate(1920, 16, 3840, 2, 1920, 2, 1920, 2);
+        planes.y.rewind();
+        planes.u.rewind();
+        planes.v.rewind();
+        final byte[] result = new byte[planes.nv21Size()];
+        long bytes = AllocationCounter.measure(20, new Runnable() {
+            @Override
+            public void run() {
+                planes.convert(result);
+            }
+        });
+        // The scratch row alone would take ~4KB. Only the buffer duplicates are left.
+        assertTrue("Allocated " + bytes + " bytes per conversion", bytes < 512);
+    }
+}
@@ -0,0 +1,59 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5F));
+    }
+
+    @Test
+    public void testSmallValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 4; i++) {
+            histogram.record(i);
+        }
+        assertEquals(4, histogram.getCount());
+        assertEquals(2, histogram.getPercentile(0.5F));
+        assertEquals(4, histogram.getPercentile(1F));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1ms to 100ms.
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000000L);
+        }
+        assertClose(50000000L, histogram.getPercentile(0.5F));
+        assertClose(99000000L, histogram.getPercentile(0.99F));
+        assertClose(1000000L, histogram.getPercentile(0F));
+    }
+
+    @Test
+    public void testOutOfRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getPercentile(0.5F));
+        assertTrue(histogram.getPercentile(1F) > 1000000000000L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFraction() {
+        new LatencyHistogram().getPercentile(1.5F);
+    }
+
+    private static void assertClose(long expected, long actual) {
+        assertTrue("Expected " + expected + ", got " + actual,
+                Math.abs(expected - actual) <= expected * 0.07);
+    }
+}
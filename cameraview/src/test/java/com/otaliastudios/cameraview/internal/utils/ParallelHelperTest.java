@@ -0,0 +1,95 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class ParallelHelperTest {
+
+    private void assertCoverage(int count, int minStripeSize, final int alignment) {
+        final AtomicIntegerArray visits = new AtomicIntegerArray(count);
+        ParallelHelper.run(count, minStripeSize, alignment, new ParallelHelper.Task() {
+            @Override
+            public void run(int start, int end) {
+                assertEquals(0, start % alignment);
+                for (int i = start; i < end; i++) visits.incrementAndGet(i);
+            }
+        });
+        for (int i = 0; i < count; i++) {
+            assertEquals(1, visits.get(i));
+        }
+    }
+
+    @Test
+    public void testRun_coverage() {
+        assertCoverage(0, 1, 1);
+        assertCoverage(1, 1, 1);
+        assertCoverage(10, 100, 1);
+        assertCoverage(1000, 1, 1);
+        assertCoverage(1001, 7, 2);
+        assertCoverage(720, 64, 2);
+    }
+
+    @Test
+    public void testRun_nested() {
+        // Tasks running on the pool can use the pool too.
+        final AtomicIntegerArray visits = new AtomicIntegerArray(100 * 100);
+        ParallelHelper.run(100, 1, new ParallelHelper.Task() {
+            @Override
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    final int row = i;
+                    ParallelHelper.run(100, 1, new ParallelHelper.Task() {
+                        @Override
+                        public void run(int start, int end) {
+                            for (int j = start; j < end; j++) visits.incrementAndGet(row * 100 + j);
+                        }
+                    });
+                }
+            }
+        });
+        for (int i = 0; i < visits.length(); i++) {
+            assertEquals(1, visits.get(i));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRun_error() {
+        ParallelHelper.run(1000, 1, new ParallelHelper.Task() {
+            @Override
+            public void run(int start, int end) {
+                throw new IllegalStateException();
+            }
+        });
+    }
+
+    @Test
+    public void testRun_noAllocations() {
+        assumeTrue(AllocationCounter.isSupported());
+        final AtomicIntegerArray visits = new AtomicIntegerArray(1000);
+        final ParallelHelper.Task task = new ParallelHelper.Task() {
+            @Override
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) visits.incrementAndGet(i);
+            }
+        };
+        long bytes = AllocationCounter.measure(100, new Runnable() {
+            @Override
+            public void run() {
+                ParallelHelper.run(1000, 1, task);
+            }
+        });
+        // Pool threads are measured too: leave some room for the executor internals,
+        // but no job or latch per run.
+        assertTrue("Allocated " + bytes + " bytes per run", bytes < 64 * ParallelHelper.MAX_STRIPES);
+        // Warm up, then three attempts.
+        for (int i = 0; i < visits.length(); i++) {
+            assertEquals(400, visits.get(i));
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static junit.framework.Assert.assertNotNull;
 import static org.junit.Assert.assertEquals;
@@ -142,6 +143,30 @@ public class PoolTest {
         pool.recycle(items.get(0));
     }
 
+    @Test(expected = IllegalStateException.class)
+    public void testRecycle_twice_bigPool() {
+        // Pools bigger than the unbounded queue cap keep all recycled items,
+        // so that the accounting still catches double recycles.
+        Pool<Item> big = new Pool<>(100, new Pool.Factory<Item>() {
+            @Override
+            public Item create() {
+                return new Item();
+            }
+        });
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            items.add(big.get());
+        }
+        Item last = items.remove(99);
+        for (Item item : items) {
+            big.recycle(item);
+        }
+        big.recycle(items.get(0));
+        assertEquals(100, big.count());
+        assertEquals(100, big.recycledCount());
+        big.recycle(last);
+    }
+
     @Test
     public void testGet_fromFactory() {
         pool.get();
@@ -165,4 +190,57 @@ public class PoolTest {
         assertEquals(item, newItem);
         assertEquals(1, instances);
     }
+
+    @Test
+    public void testRecycle_unbounded() {
+        // Unbounded pools keep a limited number of recycled items. The others are dropped.
+        Pool<Item> unbounded = new Pool<>(Integer.MAX_VALUE, new Pool.Factory<Item>() {
+            @Override
+            public Item create() {
+                return new Item();
+            }
+        });
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(unbounded.get());
+        }
+        for (Item item : items) {
+            unbounded.recycle(item);
+        }
+        assertEquals(0, unbounded.activeCount());
+        assertTrue(unbounded.recycledCount() < 1000);
+        assertEquals(unbounded.recycledCount(), unbounded.count());
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        List<Item> held = new ArrayList<>();
+                        for (int j = 0; j < 20000; j++) {
+                            Item item = pool.get();
+                            if (item != null) held.add(item);
+                            if (held.size() > 3 || (item == null && !held.isEmpty())) {
+                                pool.recycle(held.remove(0));
+                            }
+                        }
+                        for (Item item : held) pool.recycle(item);
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertNull(error.get());
+        assertEquals(0, pool.activeCount());
+        assertTrue(pool.count() <= MAX_SIZE);
+        assertEquals(pool.count(), pool.recycledCount());
+    }
 }
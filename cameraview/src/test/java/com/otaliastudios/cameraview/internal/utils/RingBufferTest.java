@@ -0,0 +1,122 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+
+    @Test
+    public void testCapacity() {
+        assertEquals(1, new RingBuffer<Integer>(1).capacity());
+        assertEquals(4, new RingBuffer<Integer>(3).capacity());
+        assertEquals(32, new RingBuffer<Integer>(32).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacity_invalid() {
+        new RingBuffer<Integer>(0);
+    }
+
+    @Test
+    public void testOfferPoll() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+        // Go around a few times.
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(ring.offer(i));
+                assertEquals(i + 1, ring.size());
+            }
+            assertFalse(ring.offer(4));
+            for (int i = 0; i < 4; i++) {
+                assertEquals(i, (int) ring.poll());
+            }
+            assertNull(ring.poll());
+            assertTrue(ring.isEmpty());
+        }
+    }
+
+    @Test
+    public void testClear() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4);
+        ring.offer(1);
+        ring.offer(2);
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+        assertTrue(ring.offer(3));
+        assertEquals(3, (int) ring.poll());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testOffer_null() {
+        new RingBuffer<Integer>(4).offer(null);
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        // Producers offer unique items, consumers poll them. Each item should be seen once.
+        final int producers = 4;
+        final int consumers = 4;
+        final int itemsPerProducer = 20000;
+        final int total = producers * itemsPerProducer;
+        final RingBuffer<Integer> ring = new RingBuffer<>(16);
+        final AtomicIntegerArray seen = new AtomicIntegerArray(total);
+        final AtomicInteger consumed = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers + consumers];
+        for (int p = 0; p < producers; p++) {
+            final int first = p * itemsPerProducer;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for (int i = first; i < first + itemsPerProducer; i++) {
+                        while (!ring.offer(i)) Thread.yield();
+                    }
+                }
+            });
+        }
+        for (int c = 0; c < consumers; c++) {
+            threads[producers + c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    while (consumed.get() < total) {
+                        Integer item = ring.poll();
+                        if (item == null) {
+                            Thread.yield();
+                        } else {
+                            seen.incrementAndGet(item);
+                            consumed.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        start.countDown();
+        for (Thread thread : threads) thread.join(30000);
+        assertEquals(total, consumed.get());
+        for (int i = 0; i < total; i++) {
+            assertEquals(1, seen.get(i));
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ignore) {}
+    }
+}
@@ -0,0 +1,158 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+
+import androidx.annotation.NonNull;
+
+import com.otaliastudios.cameraview.size.Size;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class RotationHelperRotateTest {
+
+    @NonNull
+    static byte[] randomImage(@NonNull Size size) {
+        byte[] data = new byte[size.getWidth() * size.getHeight() * 3 / 2];
+        new Random(data.length).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * The previous, per-pixel implementation.
+     */
+    @NonNull
+    static byte[] rotateLegacy(@NonNull byte[] yuv, @NonNull Size size, int rotation) {
+        if (rotation == 0) return yuv;
+        final int width = size.getWidth();
+        final int height = size.getHeight();
+        final byte[] output = new byte[yuv.length];
+        final int frameSize = width * height;
+        final boolean swap = rotation % 180 != 0;
+        final boolean xflip = rotation % 270 != 0;
+        final boolean yflip = rotation >= 180;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                final int yIn = j * width + i;
+                final int uIn = frameSize + (j >> 1) * width + (i & ~1);
+                final int vIn = uIn + 1;
+                final int wOut = swap ? height : width;
+                final int hOut = swap ? width : height;
+                final int iSwapped = swap ? j : i;
+                final int jSwapped = swap ? i : j;
+                final int iOut = xflip ? wOut - iSwapped - 1 : iSwapped;
+                final int jOut = yflip ? hOut - jSwapped - 1 : jSwapped;
+                final int yOut = jOut * wOut + iOut;
+                final int uOut = frameSize + (jOut >> 1) * wOut + (iOut & ~1);
+                final int vOut = uOut + 1;
+                output[yOut] = (byte) (0xff & yuv[yIn]);
+                output[uOut] = (byte) (0xff & yuv[uIn]);
+                output[vOut] = (byte) (0xff & yuv[vIn]);
+            }
+        }
+        return output;
+    }
+
+    @NonNull
+    private static byte[] mirror(@NonNull byte[] yuv, @NonNull Size size) {
+        int width = size.getWidth();
+        int height = size.getHeight();
+        byte[] output = new byte[yuv.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                output[y * width + x] = yuv[y * width + width - 1 - x];
+            }
+        }
+        int offset = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                int out = offset + y * width + 2 * x;
+                int in = offset + y * width + 2 * (width / 2 - 1 - x);
+                output[out] = yuv[in];
+                output[out + 1] = yuv[in + 1];
+            }
+        }
+        return output;
+    }
+
+    private void assertRotation(@NonNull Size size) {
+        byte[] input = randomImage(size);
+        byte[] output = new byte[input.length];
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            Size outputSize = rotation % 180 == 0 ? size : size.flip();
+            byte[] expected = rotateLegacy(input, size, rotation);
+            RotationHelper.rotate(input, size, rotation, false, output);
+            assertArrayEquals("rotation " + rotation, expected, output);
+            RotationHelper.rotate(input, size, rotation, true, output);
+            assertArrayEquals("mirrored rotation " + rotation, mirror(expected, outputSize), output);
+        }
+    }
+
+    @Test
+    public void testRotate_small() {
+        assertRotation(new Size(2, 2));
+        assertRotation(new Size(4, 2));
+        assertRotation(new Size(6, 10));
+    }
+
+    @Test
+    public void testRotate_tiles() {
+        // Not a multiple of the tile size.
+        assertRotation(new Size(64, 64));
+        assertRotation(new Size(70, 46));
+    }
+
+    @Test
+    public void testRotate_stripes() {
+        // Large enough to be split in stripes.
+        assertRotation(new Size(1280, 720));
+        assertRotation(new Size(720, 1280));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testRotate_legacy() {
+        Size size = new Size(70, 46);
+        byte[] input = randomImage(size);
+        assertSame(input, RotationHelper.rotate(input, size, 0));
+        assertArrayEquals(rotateLegacy(input, size, 90), RotationHelper.rotate(input, size, 90));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRotate_inPlace() {
+        byte[] input = new byte[6];
+        RotationHelper.rotate(input, new Size(2, 2), 90, false, input);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRotate_outputTooSmall() {
+        RotationHelper.rotate(new byte[6], new Size(2, 2), 90, false, new byte[5]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRotate_invalidRotation() {
+        RotationHelper.rotate(new byte[6], new Size(2, 2), 45, false, new byte[6]);
+    }
+
+    @Test
+    public void testRotate_noAllocations() {
+        assumeTrue(AllocationCounter.isSupported());
+        // Large enough to be split in stripes, if there are multiple cores.
+        final Size size = new Size(1280, 720);
+        final byte[] input = randomImage(size);
+        final byte[] output = new byte[input.length];
+        long bytes = AllocationCounter.measure(20, new Runnable() {
+            @Override
+            public void run() {
+                RotationHelper.rotate(input, size, 90, false, output);
+            }
+        });
+        // Pool threads are measured too: leave some room for the executor internals.
+        assertTrue("Allocated " + bytes + " bytes per rotation", bytes < 64 * ParallelHelper.MAX_STRIPES);
+    }
+}
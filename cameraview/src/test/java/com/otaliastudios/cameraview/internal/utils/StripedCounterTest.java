@@ -0,0 +1,42 @@
+package com.otaliastudios.cameraview.internal.utils;
+
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class StripedCounterTest {
+
+    @Test
+    public void testAdd() {
+        StripedCounter counter = new StripedCounter();
+        assertEquals(0, counter.get());
+        counter.increment();
+        counter.add(5);
+        assertEquals(6, counter.get());
+        assertEquals("6", counter.toString());
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        final int threads = 4;
+        final int iterations = 10000;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < iterations; j++) {
+                        counter.increment();
+                    }
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        assertEquals(threads * iterations, counter.get());
+    }
+}